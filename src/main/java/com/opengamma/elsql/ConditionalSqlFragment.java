@@ -5,6 +5,8 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Representation of conditional SQL fragment.
  */
@@ -13,7 +15,7 @@ abstract class ConditionalSqlFragment extends ContainerSqlFragment {
   /**
    * The variable.
    */
-  private final String _variable;
+  private final SqlVariable _variable;
   /**
    * The value to match against.
    */
@@ -24,9 +26,10 @@ abstract class ConditionalSqlFragment extends ContainerSqlFragment {
    * 
    * @param variable  the variable to determine whether to include the AND on, not null
    * @param matchValue  the value to match, null to match on existence
+   * @param variables  the table of variables, not null
    */
-  ConditionalSqlFragment(String variable, String matchValue) {
-    _variable = extractVariableName(variable);
+  ConditionalSqlFragment(String variable, String matchValue, SqlVariables variables) {
+    _variable = variables.variable(extractVariableName(variable));
     _matchValue = matchValue;
   }
 
@@ -37,7 +40,7 @@ abstract class ConditionalSqlFragment extends ContainerSqlFragment {
    * @return the variable, not null
    */
   String getVariable() {
-    return _variable;
+    return _variable.getName();
   }
 
   /**
@@ -51,11 +54,10 @@ abstract class ConditionalSqlFragment extends ContainerSqlFragment {
 
   //-------------------------------------------------------------------------
   boolean isMatch(SqlParams params, int[] loopIndex) {
-    String var = applyLoopIndex(_variable, loopIndex);
-    if (params.contains(var) == false) {
+    if (_variable.contains(params, loopIndex) == false) {
       return false;
     }
-    Object value = params.get(var);
+    Object value = _variable.get(params, loopIndex);
     if (value == null) {
       return false;
     }
@@ -68,15 +70,15 @@ abstract class ConditionalSqlFragment extends ContainerSqlFragment {
     return true;
   }
 
-  boolean endsWith(StringBuilder buf, String match) {
-    String str = (buf.length() >= match.length() ? buf.substring(buf.length() - match.length()) : "");
-    return str.equals(match);
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    return false;
   }
 
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
-    return getClass().getSimpleName() + ":" + _variable + " " + getFragments();
+    return getClass().getSimpleName() + ":" + _variable.getName() + " " + getFragments();
   }
 
 }
@@ -8,6 +8,7 @@ package com.opengamma.elsql;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Representation of a list of child units.
@@ -46,12 +47,29 @@ class ContainerSqlFragment extends SqlFragment {
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
     for (SqlFragment fragment : _fragments) {
-      fragment.toSQL(buf, fragments, params, loopIndex);
+      fragment.toSQL(context, fragments, params, loopIndex);
     }
   }
 
+  @Override
+  void compile(SqlProgram.Builder program) {
+    for (SqlFragment fragment : _fragments) {
+      fragment.compile(program);
+    }
+  }
+
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    for (SqlFragment fragment : _fragments) {
+      if (fragment.isStatic(fragments, including) == false) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
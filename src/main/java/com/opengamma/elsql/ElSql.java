@@ -6,6 +6,9 @@
 package com.opengamma.elsql;
 
 import java.net.URL;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -26,6 +29,10 @@ public final class ElSql {
    * The fragments.
    */
   private final SqlFragments _fragments;
+  /**
+   * The reloader, null if the bundle is not reloaded.
+   */
+  private final SqlReloader _reloader;
 
   /**
    * Loads external SQL based for the specified type.
@@ -42,6 +49,13 @@ public final class ElSql {
    * The config is designed to handle some, but not all, database differences.
    * Other differences should be handled by creating and using a database specific
    * override file (the first optional resource is the override file).
+   * <p>
+   * If the type is annotated with {@link ElSqlSource} and {@link ElSqlProcessor} generated
+   * a renderer for it, the generated code is used to render the matching named blocks.
+   * <p>
+   * The parsed files are shared by all bundles loaded for the same type and config instance,
+   * thus calling this method repeatedly does not read or parse the files again.
+   * The location of the files is also remembered, including the absence of the override file.
    * 
    * @param config  the config, not null
    * @param type  the type, not null
@@ -55,9 +69,41 @@ public final class ElSql {
     if (type == null) {
       throw new IllegalArgumentException("Type must not be null");
     }
-    URL baseResource = type.getResource(type.getSimpleName() + ".elsql");
-    URL configResource = type.getResource(type.getSimpleName() + "-" + config.getName() + ".elsql");
-    return parse(config, baseResource, configResource);
+    return new ElSql(SqlRegistry.of(config, type));
+  }
+
+  /**
+   * Loads external SQL for each of the specified types.
+   * <p>
+   * Each type is used to locate the files of a bundle as per {@link #of(ElSqlConfig, Class)}.
+   * If the config has a {@linkplain ElSqlConfig#getParseExecutor() parse executor},
+   * the files of all the bundles are loaded and parsed in parallel.
+   * This is intended for use when initializing many data access objects at once.
+   * <p>
+   * As with {@link #of(ElSqlConfig, Class)}, types already loaded for the config are not parsed again.
+   * 
+   * @param config  the config, not null
+   * @param types  the types, not null
+   * @return the bundles, in the same order as the types, not null
+   * @throws IllegalArgumentException if the input cannot be parsed or if no matching resource exists
+   */
+  public static List<ElSql> ofAll(ElSqlConfig config, Class<?>... types) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config must not be null");
+    }
+    if (types == null) {
+      throw new IllegalArgumentException("Types must not be null");
+    }
+    for (Class<?> type : types) {
+      if (type == null) {
+        throw new IllegalArgumentException("Type must not be null");
+      }
+    }
+    List<ElSql> result = new ArrayList<ElSql>(types.length);
+    for (SqlFragments fragments : SqlRegistry.ofAll(config, types)) {
+      result.add(new ElSql(fragments));
+    }
+    return result;
   }
 
   /**
@@ -89,6 +135,58 @@ public final class ElSql {
     return new ElSql(SqlFragments.parseResource(resources, config));
   }
 
+  /**
+   * Loads external SQL for the specified type, reloading the files when they change.
+   * <p>
+   * The files are located as per {@link #of(ElSqlConfig, Class)}.
+   * Files on the file system are checked for changes when SQL is requested, at most once
+   * per interval. The check runs in the background, using the parse executor of the config
+   * if available, otherwise a shared daemon thread, thus requests never wait for it.
+   * Only the files that have changed are parsed again, with the new SQL replacing the old
+   * in a single step once parsed. Until then, requests continue to use the previous SQL.
+   * If a changed file cannot be parsed, the previous SQL is retained until the file changes again,
+   * with the failure available from {@link #getReloadFailure()}.
+   * <p>
+   * This is intended for tuning SQL without restarting the application.
+   * 
+   * @param config  the config, not null
+   * @param type  the type, not null
+   * @param checkIntervalMillis  the minimum interval between checks for changes, zero to check on every request
+   * @return the bundle, not null
+   * @throws IllegalArgumentException if the input cannot be parsed or if no matching resource exists
+   */
+  public static ElSql ofReloading(ElSqlConfig config, Class<?> type, long checkIntervalMillis) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config must not be null");
+    }
+    if (type == null) {
+      throw new IllegalArgumentException("Type must not be null");
+    }
+    return new ElSql(SqlReloader.load(SqlRegistry.resources(config, type), config, ElSqlRenderer.find(type), checkIntervalMillis));
+  }
+
+  /**
+   * Parses a bundle from a list of resources, reloading the files when they change.
+   * <p>
+   * The resources are handled as per {@link #parse(ElSqlConfig, URL...)}.
+   * Files are reloaded as per {@link #ofReloading(ElSqlConfig, Class, long)}.
+   * 
+   * @param config  the config to use, not null
+   * @param checkIntervalMillis  the minimum interval between checks for changes, zero to check on every request
+   * @param resources  the resources to load, not null, may contain nulls which are ignored
+   * @return the bundle, not null
+   * @throws IllegalArgumentException if the input cannot be parsed or if none of the resources exists
+   */
+  public static ElSql parseReloading(ElSqlConfig config, long checkIntervalMillis, URL... resources) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config must not be null");
+    }
+    if (resources == null) {
+      throw new IllegalArgumentException("Resources must not be null");
+    }
+    return new ElSql(SqlReloader.load(resources, config, null, checkIntervalMillis));
+  }
+
   //-------------------------------------------------------------------------
   /**
    * Creates an instance.
@@ -100,6 +198,22 @@ public final class ElSql {
       throw new IllegalArgumentException("Fragment map must not be null");
     }
     _fragments = fragments;
+    _reloader = null;
+  }
+
+  /**
+   * Creates an instance that reloads changed files.
+   * 
+   * @param reloader  the reloader, not null
+   */
+  private ElSql(SqlReloader reloader) {
+    _fragments = null;
+    _reloader = reloader;
+  }
+
+  // gets the current fragments
+  private SqlFragments fragments() {
+    return (_reloader != null ? _reloader.current() : _fragments);
   }
 
   //-------------------------------------------------------------------------
@@ -109,21 +223,92 @@ public final class ElSql {
    * @return the config, not null
    */
   public ElSqlConfig getConfig() {
-    return _fragments.getConfig();
+    return fragments().getConfig();
   }
 
   /**
    * Returns a copy of this bundle with a different configuration.
    * <p>
-   * This does not reload the underlying resources.
+   * This does not reload the underlying resources, unless this bundle reloads files.
    * 
    * @param config  the new config, not null
    * @return a bundle with the config updated, not null
    */
   public ElSql withConfig(ElSqlConfig config) {
+    if (_reloader != null) {
+      return new ElSql(_reloader.withConfig(config));
+    }
     return new ElSql(_fragments.withConfig(config));
   }
 
+  /**
+   * Reloads any files that have changed, if this bundle reloads files.
+   * <p>
+   * This checks for changes immediately, rather than waiting for the check interval.
+   * 
+   * @return true if any file was reloaded, false if none changed or this bundle does not reload files
+   * @throws IllegalArgumentException if a changed file cannot be parsed
+   */
+  public boolean reload() {
+    return (_reloader != null && _reloader.reload());
+  }
+
+  /**
+   * Gets the failure to parse a changed file, if this bundle reloads files.
+   * <p>
+   * When a changed file cannot be parsed, the previous SQL continues to be used.
+   * This returns the failure until the file is changed again and parses successfully.
+   * 
+   * @return the failure, null if none or this bundle does not reload files
+   */
+  public RuntimeException getReloadFailure() {
+    return (_reloader != null ? _reloader.getFailure() : null);
+  }
+
+  /**
+   * Gets the failure to generate a renderer for a named block, if generation is enabled.
+   * <p>
+   * When a renderer cannot be generated, such as when the block is too large for a method
+   * or the JVM does not permit defining classes, the block continues to be interpreted.
+   * The failure is recorded once per block and returned here.
+   * 
+   * @param name  the name, not null
+   * @return the failure, null if none or the renderer has not been generated
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   * @see ElSqlConfig#withGenerateThreshold(int)
+   */
+  public Throwable getGenerateFailure(String name) {
+    return fragments().getGenerateFailure(name);
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Creates an empty set of parameters that is accessed by slot.
+   * <p>
+   * Each variable referred to by this bundle is assigned a slot when parsed.
+   * Populating the parameters by slot allows the SQL to be rendered without hashing
+   * variable names. The returned instance is mutable and may be cleared and reused,
+   * but must not be shared between threads.
+   * 
+   * @return the parameters, not null
+   */
+  public IndexedSqlParams createParams() {
+    return fragments().createParams();
+  }
+
+  /**
+   * Gets the slot of a variable, used with {@link IndexedSqlParams#set(int, Object)}.
+   * <p>
+   * The slot of a variable does not change, thus it can be obtained once and stored.
+   * Variables whose name includes the LOOPINDEX tag have no slot.
+   * 
+   * @param variable  the variable name, without the colon, not null
+   * @return the slot, -1 if the variable is not referred to by this bundle
+   */
+  public int getVariableSlot(String variable) {
+    return fragments().getVariableSlot(variable);
+  }
+
   //-------------------------------------------------------------------------
   /**
    * Finds SQL for a named fragment key, without specifying parameters.
@@ -138,7 +323,7 @@ public final class ElSql {
    * @throws RuntimeException if a problem occurs
    */
   public String getSql(String name) {
-    return _fragments.getSql(name, EmptySqlParams.INSTANCE);
+    return fragments().getSql(name, EmptySqlParams.INSTANCE);
   }
 
   /**
@@ -157,7 +342,7 @@ public final class ElSql {
    * @throws RuntimeException if a problem occurs
    */
   public String getSql(String name, SqlParams params) {
-    return _fragments.getSql(name, params);
+    return fragments().getSql(name, params);
   }
 
   /**
@@ -174,7 +359,48 @@ public final class ElSql {
    * @throws RuntimeException if a problem occurs
    */
   public String getSql(String name, Map<String, Object> params) {
-    return _fragments.getSql(name, new MapSqlParams(params));
+    return fragments().getSql(name, new MapSqlParams(params));
+  }
+
+  /**
+   * Finds SQL for a named fragment key, appending it to the specified destination.
+   * <p>
+   * This finds, processes and appends a named block from the bundle.
+   * The parameters are used to provide intelligent processing of SQL based on
+   * the actual data in the request.
+   * <p>
+   * A {@code StringBuilder} destination is rendered into directly.
+   * A {@code Writer} destination receives the characters without creating an intermediate string.
+   * 
+   * @param name  the name, not null
+   * @param params  the SQL parameters, not null
+   * @param dest  the destination to append to, not null
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   * @throws RuntimeException if a problem occurs, including an {@code IOException} from the destination
+   */
+  public void getSql(String name, SqlParams params, Appendable dest) {
+    fragments().getSql(name, params, dest);
+  }
+
+  /**
+   * Finds SQL for a named fragment key, putting it into the specified buffer.
+   * <p>
+   * This finds, processes and puts a named block from the bundle into the buffer
+   * at its current position, advancing the position.
+   * The parameters are used to provide intelligent processing of SQL based on
+   * the actual data in the request.
+   * <p>
+   * An array of characters can be used by wrapping it using {@link CharBuffer#wrap(char[])}.
+   * 
+   * @param name  the name, not null
+   * @param params  the SQL parameters, not null
+   * @param dest  the buffer to put the SQL into, not null
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   * @throws java.nio.BufferOverflowException if the buffer has insufficient space, leaving it unchanged
+   * @throws RuntimeException if a problem occurs
+   */
+  public void getSql(String name, SqlParams params, CharBuffer dest) {
+    fragments().getSql(name, params, dest);
   }
 
 }
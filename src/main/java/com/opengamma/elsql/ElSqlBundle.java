@@ -7,6 +7,7 @@ package com.opengamma.elsql;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -61,9 +62,48 @@ public final class ElSqlBundle {
     if (type == null) {
       throw new IllegalArgumentException("Type must not be null");
     }
+    return parse(config, resources(config, type));
+  }
+
+  /**
+   * Loads external SQL for each of the specified types.
+   * <p>
+   * Each type is used to locate the files of a bundle as per {@link #of(ElSqlConfig, Class)}.
+   * If the config has a {@linkplain ElSqlConfig#getParseExecutor() parse executor},
+   * the files of all the bundles are loaded and parsed in parallel.
+   * This is intended for use when initializing many data access objects at once.
+   * 
+   * @param config  the config, not null
+   * @param types  the types, not null
+   * @return the bundles, in the same order as the types, not null
+   * @throws IllegalArgumentException if the input cannot be parsed or if no matching resource exists
+   */
+  public static List<ElSqlBundle> ofAll(ElSqlConfig config, Class<?>... types) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config must not be null");
+    }
+    if (types == null) {
+      throw new IllegalArgumentException("Types must not be null");
+    }
+    List<URL[]> bundles = new ArrayList<URL[]>(types.length);
+    for (Class<?> type : types) {
+      if (type == null) {
+        throw new IllegalArgumentException("Type must not be null");
+      }
+      bundles.add(urls(resources(config, type)));
+    }
+    List<ElSqlBundle> result = new ArrayList<ElSqlBundle>(types.length);
+    for (SqlFragments fragments : SqlFragments.parseResources(bundles, config)) {
+      result.add(new ElSqlBundle(fragments));
+    }
+    return result;
+  }
+
+  // finds the base resource and the config override resource of a type
+  private static Resource[] resources(ElSqlConfig config, Class<?> type) {
     ClassPathResource baseResource = new ClassPathResource(type.getSimpleName() + ".elsql", type);
     ClassPathResource configResource = new ClassPathResource(type.getSimpleName() + "-" + config.getName() + ".elsql", type);
-    return parse(config, baseResource, configResource);
+    return new Resource[] {baseResource, configResource};
   }
 
   /**
@@ -91,25 +131,22 @@ public final class ElSqlBundle {
   }
 
   private static ElSqlBundle parseResource(Resource[] resources, ElSqlConfig config) {
-    List<List<String>> files = new ArrayList<List<String>>();
-    boolean resourceFound = false;
-    for (Resource resource : resources) {
-      if (resource.exists()) {
-        resourceFound = true;
-        URL url;
+    return new ElSqlBundle(SqlFragments.parseResource(urls(resources), config));
+  }
+
+  // converts the resources to URLs, with null for those that do not exist
+  private static URL[] urls(Resource[] resources) {
+    URL[] urls = new URL[resources.length];
+    for (int i = 0; i < resources.length; i++) {
+      if (resources[i].exists()) {
         try {
-          url = resource.getURL();
+          urls[i] = resources[i].getURL();
         } catch (IOException ex) {
           throw new RuntimeException(ex);
         }
-        List<String> lines = SqlFragments.loadResource(url);
-        files.add(lines);
       }
     }
-    if (!resourceFound) {
-      throw new IllegalArgumentException("No matching resource was found");
-    }
-    return new ElSqlBundle(SqlFragments.parse(files, config));
+    return urls;
   }
 
   //-------------------------------------------------------------------------
@@ -181,4 +218,45 @@ public final class ElSqlBundle {
     return _fragments.getSql(name, new SpringSqlParams(paramSource));
   }
 
+  /**
+   * Finds SQL for a named fragment key, appending it to the specified destination.
+   * <p>
+   * This finds, processes and appends a named block from the bundle.
+   * The parameters are used to provide intelligent processing of SQL based on
+   * the actual data in the request.
+   * <p>
+   * A {@code StringBuilder} destination is rendered into directly.
+   * A {@code Writer} destination receives the characters without creating an intermediate string.
+   * 
+   * @param name  the name, not null
+   * @param paramSource  the Spring SQL parameters, not null
+   * @param dest  the destination to append to, not null
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   * @throws RuntimeException if a problem occurs, including an {@code IOException} from the destination
+   */
+  public void getSql(String name, SqlParameterSource paramSource, Appendable dest) {
+    _fragments.getSql(name, new SpringSqlParams(paramSource), dest);
+  }
+
+  /**
+   * Finds SQL for a named fragment key, putting it into the specified buffer.
+   * <p>
+   * This finds, processes and puts a named block from the bundle into the buffer
+   * at its current position, advancing the position.
+   * The parameters are used to provide intelligent processing of SQL based on
+   * the actual data in the request.
+   * <p>
+   * An array of characters can be used by wrapping it using {@link CharBuffer#wrap(char[])}.
+   * 
+   * @param name  the name, not null
+   * @param paramSource  the Spring SQL parameters, not null
+   * @param dest  the buffer to put the SQL into, not null
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   * @throws java.nio.BufferOverflowException if the buffer has insufficient space, leaving it unchanged
+   * @throws RuntimeException if a problem occurs
+   */
+  public void getSql(String name, SqlParameterSource paramSource, CharBuffer dest) {
+    _fragments.getSql(name, new SpringSqlParams(paramSource), dest);
+  }
+
 }
@@ -0,0 +1,602 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Generates and loads the class of a renderer for a named fragment at runtime.
+ * <p>
+ * The generated class has the same structure as the source generated by {@link ElSqlGenerator},
+ * written directly as bytecode. The class file format of Java 5 is used, as it is the latest
+ * that does not require stack map frames, thus the bytecode can be written without analysis.
+ * <p>
+ * When running on Java 15 or later, the class is defined as a hidden class, which can be
+ * unloaded as soon as the fragment is no longer used. On earlier versions, the class is
+ * defined in its own class loader, which has the same effect.
+ * <p>
+ * This class is mutable and intended for use by a single thread.
+ */
+final class ElSqlClassWriter {
+
+  /**
+   * The internal name of the generated class.
+   */
+  private static final String CLASS_NAME = "com/opengamma/elsql/GeneratedElSqlRenderer";
+  /**
+   * The internal name of the superclass.
+   */
+  private static final String SUPER_NAME = "com/opengamma/elsql/ElSqlRenderer";
+  /**
+   * The internal name of the render context.
+   */
+  private static final String CONTEXT_NAME = "com/opengamma/elsql/ElSqlRenderer$Context";
+  /**
+   * The local variable holding the render context.
+   */
+  private static final int CONTEXT_LOCAL = 2;
+  /**
+   * The maximum operand stack size used by the generated code.
+   */
+  private static final int MAX_STACK = 4;
+  /**
+   * The method that creates the lookup used to define hidden classes, null if not supported.
+   */
+  private static final Method LOOKUP;
+  /**
+   * The method that defines a hidden class, null if not supported.
+   */
+  private static final Method DEFINE_HIDDEN;
+  /**
+   * The method that gets the class of a lookup, null if not supported.
+   */
+  private static final Method LOOKUP_CLASS;
+  /**
+   * The empty array of class options.
+   */
+  private static final Object NO_OPTIONS;
+  static {
+    Method lookup = null;
+    Method defineHidden = null;
+    Method lookupClass = null;
+    Object noOptions = null;
+    try {
+      Class<?> handles = Class.forName("java.lang.invoke.MethodHandles");
+      Class<?> lookupType = Class.forName("java.lang.invoke.MethodHandles$Lookup");
+      Class<?> optionType = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+      noOptions = Array.newInstance(optionType, 0);
+      lookup = handles.getMethod("lookup");
+      defineHidden = lookupType.getMethod("defineHiddenClass", byte[].class, boolean.class, noOptions.getClass());
+      lookupClass = lookupType.getMethod("lookupClass");
+    } catch (Exception ex) {
+      // hidden classes not supported before Java 15
+      lookup = null;
+    }
+    LOOKUP = lookup;
+    DEFINE_HIDDEN = defineHidden;
+    LOOKUP_CLASS = lookupClass;
+    NO_OPTIONS = noOptions;
+  }
+
+  /**
+   * The constant pool, keyed by a description of each constant.
+   */
+  private final Map<String, Integer> _constants = new HashMap<String, Integer>();
+  /**
+   * The constant pool entries.
+   */
+  private final ByteArrayOutputStream _pool = new ByteArrayOutputStream(1024);
+  /**
+   * The data output of the constant pool entries.
+   */
+  private final DataOutputStream _poolData = new DataOutputStream(_pool);
+  /**
+   * The number of constant pool slots used, including the unused first slot.
+   */
+  private int _poolSize = 1;
+  /**
+   * The bytecode being written.
+   */
+  private byte[] _code = new byte[256];
+  /**
+   * The length of the bytecode.
+   */
+  private int _codeLength;
+  /**
+   * The next unused local variable.
+   */
+  private int _nextLocal = CONTEXT_LOCAL + 1;
+  /**
+   * The index of each operand of the fragment.
+   */
+  private final Map<SqlFragment, Integer> _operands = new IdentityHashMap<SqlFragment, Integer>();
+  /**
+   * The text waiting to be appended.
+   */
+  private final StringBuilder _text = new StringBuilder();
+  /**
+   * The clause state after the waiting text.
+   */
+  private int _textClause = SqlRenderContext.CLAUSE_UNCHANGED;
+
+  /**
+   * Generates and loads a renderer for the fragment.
+   *
+   * @param fragment  the fragment, not null
+   * @return the renderer, not null
+   * @throws RuntimeException if the renderer cannot be generated or loaded
+   */
+  static ElSqlRenderer load(NameSqlFragment fragment) {
+    try {
+      return (ElSqlRenderer) define(generate(fragment)).newInstance();
+    } catch (InstantiationException ex) {
+      throw new IllegalStateException(ex);
+    } catch (IllegalAccessException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+   * Generates the class file of a renderer for the fragment.
+   *
+   * @param fragment  the fragment, not null
+   * @return the class file, not null
+   * @throws IllegalArgumentException if the fragment is too large for a single method
+   */
+  static byte[] generate(NameSqlFragment fragment) {
+    try {
+      return new ElSqlClassWriter().generateClass(fragment);
+    } catch (IOException ex) {
+      throw new IllegalArgumentException("Unable to generate renderer: " + fragment.getName(), ex);
+    }
+  }
+
+  /**
+   * Defines the class, as a hidden class if supported.
+   *
+   * @param bytes  the class file, not null
+   * @return the class, not null
+   */
+  static Class<?> define(byte[] bytes) {
+    if (LOOKUP != null) {
+      try {
+        Object lookup = LOOKUP.invoke(null);
+        return (Class<?>) LOOKUP_CLASS.invoke(DEFINE_HIDDEN.invoke(lookup, bytes, true, NO_OPTIONS));
+      } catch (Exception ex) {
+        // fall back to a class loader
+      }
+    }
+    return defineInLoader(bytes);
+  }
+
+  /**
+   * Defines the class in its own class loader.
+   *
+   * @param bytes  the class file, not null
+   * @return the class, not null
+   */
+  static Class<?> defineInLoader(byte[] bytes) {
+    return new RendererClassLoader().define(bytes);
+  }
+
+  /**
+   * Restricted constructor.
+   */
+  private ElSqlClassWriter() {
+  }
+
+  //-------------------------------------------------------------------------
+  // generates the class file
+  private byte[] generateClass(NameSqlFragment fragment) throws IOException {
+    SqlFragment[] operands = ElSqlRenderer.operands(fragment);
+    for (int i = 0; i < operands.length; i++) {
+      _operands.put(operands[i], i);
+    }
+    // constructor, passing empty arrays as the names are not used
+    aload(0);
+    emit(0x03);  // iconst_0
+    emit(0xbd);  // anewarray
+    emit2(classConstant("java/lang/String"));
+    emit(0x03);  // iconst_0
+    emit(0xbd);  // anewarray
+    emit2(classConstant("java/lang/String"));
+    emit(0xb7);  // invokespecial
+    emit2(methodConstant(SUPER_NAME, "<init>", "([Ljava/lang/String;[Ljava/lang/String;)V"));
+    emit(0xb1);  // return
+    byte[] constructor = Arrays.copyOf(_code, _codeLength);
+    _codeLength = 0;
+
+    // render method, ignoring the index as there is one fragment
+    generateChildren(fragment);
+    flushText();
+    emit(0xb1);  // return
+    if (_codeLength > Short.MAX_VALUE || _nextLocal > 255 || _poolSize > 0xFFFF) {
+      throw new IllegalArgumentException("Fragment too large to generate renderer: " + fragment.getName());
+    }
+    byte[] render = Arrays.copyOf(_code, _codeLength);
+
+    int thisClass = classConstant(CLASS_NAME);
+    int superClass = classConstant(SUPER_NAME);
+    int codeName = utf8Constant("Code");
+    int initName = utf8Constant("<init>");
+    int initDesc = utf8Constant("()V");
+    int renderName = utf8Constant("render");
+    int renderDesc = utf8Constant("(IL" + CONTEXT_NAME + ";)V");
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(_pool.size() + render.length + 256);
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(0xCAFEBABE);
+    data.writeShort(0);
+    data.writeShort(49);
+    data.writeShort(_poolSize);
+    _pool.writeTo(data);
+    data.writeShort(0x0031);  // public final super
+    data.writeShort(thisClass);
+    data.writeShort(superClass);
+    data.writeShort(0);  // interfaces
+    data.writeShort(0);  // fields
+    data.writeShort(2);  // methods
+    writeMethod(data, 0x0001, initName, initDesc, codeName, 3, 1, constructor);
+    writeMethod(data, 0x0004, renderName, renderDesc, codeName, MAX_STACK, _nextLocal, render);
+    data.writeShort(0);  // attributes
+    data.flush();
+    return out.toByteArray();
+  }
+
+  // writes a method with a code attribute
+  private static void writeMethod(
+      DataOutputStream data, int access, int name, int desc, int codeName,
+      int maxStack, int maxLocals, byte[] code) throws IOException {
+    data.writeShort(access);
+    data.writeShort(name);
+    data.writeShort(desc);
+    data.writeShort(1);
+    data.writeShort(codeName);
+    data.writeInt(12 + code.length);
+    data.writeShort(maxStack);
+    data.writeShort(maxLocals);
+    data.writeInt(code.length);
+    data.write(code);
+    data.writeShort(0);  // exception table
+    data.writeShort(0);  // attributes
+  }
+
+  //-------------------------------------------------------------------------
+  // generates the children of a container
+  private void generateChildren(ContainerSqlFragment container) throws IOException {
+    for (SqlFragment fragment : container.getFragments()) {
+      generate(fragment);
+    }
+  }
+
+  // generates a fragment, matching the structure generated by ElSqlGenerator
+  private void generate(SqlFragment fragment) throws IOException {
+    if (fragment instanceof TextSqlFragment) {
+      String text = ((TextSqlFragment) fragment).getText();
+      if (LoopIndexText.parse(text) == null) {
+        _text.append(text);
+        int clause = SqlRenderContext.clauseOf(text);
+        if (clause != SqlRenderContext.CLAUSE_UNCHANGED) {
+          _textClause = clause;
+        }
+        return;
+      }
+      flushText();
+      invoke("text", "(I)V", operand(fragment));
+      return;
+    }
+    flushText();
+    int op = operand(fragment);
+    if (fragment instanceof NameSqlFragment) {
+      generateChildren((NameSqlFragment) fragment);
+
+    } else if (fragment instanceof IncludeSqlFragment) {
+      invoke("include", "(I)V", op);
+
+    } else if (fragment instanceof ValueSqlFragment) {
+      invoke("value", "(I)V", op);
+
+    } else if (fragment instanceof OffsetFetchSqlFragment) {
+      invoke("offsetFetch", "(I)V", op);
+
+    } else if (fragment instanceof SeekSqlFragment) {
+      invoke("seek", "(I)V", op);
+
+    } else if (fragment instanceof InSqlFragment) {
+      invoke("in", "(I)V", op);
+
+    } else if (fragment instanceof ConditionalSqlFragment) {
+      String method = (fragment instanceof AndSqlFragment ? "and" : (fragment instanceof OrSqlFragment ? "or" : "test"));
+      invoke(method, "(I)Z", op);
+      int skip = branch(0x99);  // ifeq
+      generateNested((ContainerSqlFragment) fragment);
+      target(skip);
+
+    } else if (fragment instanceof OperatorSqlFragment) {
+      int result = _nextLocal++;
+      invoke("operatorBegin", "(I)I", op);
+      istore(result);
+      iload(result);
+      int skip = branch(0x99);  // ifeq
+      generateNested((ContainerSqlFragment) fragment);
+      aload(CONTEXT_LOCAL);
+      push(op);
+      iload(result);
+      invokeContext("operatorEnd", "(II)V");
+      target(skip);
+
+    } else if (fragment instanceof WhereSqlFragment) {
+      int mark = _nextLocal++;
+      aload(CONTEXT_LOCAL);
+      invokeContext("whereBegin", "()I");
+      istore(mark);
+      generateNested((ContainerSqlFragment) fragment);
+      aload(CONTEXT_LOCAL);
+      iload(mark);
+      invokeContext("whereEnd", "(I)V");
+
+    } else if (fragment instanceof PagingSqlFragment) {
+      int mark = _nextLocal++;
+      aload(CONTEXT_LOCAL);
+      invokeContext("pagingBegin", "()I");
+      istore(mark);
+      generateNested((ContainerSqlFragment) fragment);
+      aload(CONTEXT_LOCAL);
+      push(op);
+      iload(mark);
+      invokeContext("pagingEnd", "(II)V");
+
+    } else if (fragment instanceof LoopSqlFragment) {
+      LoopSqlFragment loop = (LoopSqlFragment) fragment;
+      int size = _nextLocal++;
+      int index = _nextLocal++;
+      invoke("loopBegin", "(I)I", op);
+      istore(size);
+      iload(size);
+      int skip = branch(0x9e);  // ifle
+      push(0);
+      istore(index);
+      int top = _codeLength;
+      iload(index);
+      iload(size);
+      int done = branch(0xa2);  // if_icmpge
+      aload(CONTEXT_LOCAL);
+      iload(index);
+      invokeContext("loopIndex", "(I)V");
+      generateNested(loop);
+      if (loop.getJoin() != null) {
+        iload(index);
+        iload(size);
+        push(1);
+        emit(0x64);  // isub
+        int last = branch(0xa2);  // if_icmpge
+        generateNested(loop.getJoin());
+        target(last);
+      }
+      emit(0x84);  // iinc
+      emit(index);
+      emit(1);
+      int back = branch(0xa7);  // goto
+      patch(back, top);
+      target(done);
+      aload(CONTEXT_LOCAL);
+      invokeContext("loopEnd", "()V");
+      target(skip);
+
+    } else {
+      throw new IllegalArgumentException("Unknown fragment: " + fragment.getClass().getSimpleName());
+    }
+  }
+
+  // generates the children of a container whose content is conditional
+  private void generateNested(ContainerSqlFragment container) throws IOException {
+    generateChildren(container);
+    flushText();
+  }
+
+  // appends the waiting text
+  private void flushText() throws IOException {
+    if (_text.length() > 0) {
+      aload(CONTEXT_LOCAL);
+      int index = stringConstant(_text.toString());
+      if (index <= 0xFF) {
+        emit(0x12);  // ldc
+        emit(index);
+      } else {
+        emit(0x13);  // ldc_w
+        emit2(index);
+      }
+      push(_textClause);
+      invokeContext("append", "(Ljava/lang/String;I)V");
+      _text.setLength(0);
+      _textClause = SqlRenderContext.CLAUSE_UNCHANGED;
+    }
+  }
+
+  // gets the index of the operand
+  private int operand(SqlFragment fragment) {
+    return _operands.get(fragment);
+  }
+
+  //-------------------------------------------------------------------------
+  // invokes a context method taking the operand index
+  private void invoke(String name, String desc, int op) throws IOException {
+    aload(CONTEXT_LOCAL);
+    push(op);
+    invokeContext(name, desc);
+  }
+
+  // invokes a context method with the arguments already on the stack
+  private void invokeContext(String name, String desc) throws IOException {
+    emit(0xb6);  // invokevirtual
+    emit2(methodConstant(CONTEXT_NAME, name, desc));
+  }
+
+  // pushes an int constant
+  private void push(int value) throws IOException {
+    if (value >= -1 && value <= 5) {
+      emit(0x03 + value);  // iconst
+    } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+      emit(0x10);  // bipush
+      emit(value);
+    } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+      emit(0x11);  // sipush
+      emit2(value);
+    } else {
+      int index = intConstant(value);
+      emit(0x13);  // ldc_w
+      emit2(index);
+    }
+  }
+
+  // loads a reference local variable
+  private void aload(int local) {
+    emit(0x19);  // aload
+    emit(local);
+  }
+
+  // loads an int local variable
+  private void iload(int local) {
+    emit(0x15);  // iload
+    emit(local);
+  }
+
+  // stores an int local variable
+  private void istore(int local) {
+    emit(0x36);  // istore
+    emit(local);
+  }
+
+  // emits a branch whose target is set later, returning its address
+  private int branch(int opcode) {
+    int address = _codeLength;
+    emit(opcode);
+    emit2(0);
+    return address;
+  }
+
+  // sets the target of the branch to the next instruction
+  private void target(int address) {
+    patch(address, _codeLength);
+  }
+
+  // sets the target of the branch
+  private void patch(int address, int target) {
+    int offset = target - address;
+    _code[address + 1] = (byte) (offset >> 8);
+    _code[address + 2] = (byte) offset;
+  }
+
+  // emits a byte
+  private void emit(int value) {
+    if (_codeLength == _code.length) {
+      _code = Arrays.copyOf(_code, _code.length * 2);
+    }
+    _code[_codeLength++] = (byte) value;
+  }
+
+  // emits two bytes
+  private void emit2(int value) {
+    emit(value >> 8);
+    emit(value);
+  }
+
+  //-------------------------------------------------------------------------
+  // finds or adds a UTF-8 constant
+  private int utf8Constant(String str) throws IOException {
+    Integer index = _constants.get("U" + str);
+    if (index == null) {
+      _poolData.writeByte(1);
+      _poolData.writeUTF(str);
+      index = addConstant("U" + str);
+    }
+    return index;
+  }
+
+  // finds or adds an int constant
+  private int intConstant(int value) throws IOException {
+    Integer index = _constants.get("I" + value);
+    if (index == null) {
+      _poolData.writeByte(3);
+      _poolData.writeInt(value);
+      index = addConstant("I" + value);
+    }
+    return index;
+  }
+
+  // finds or adds a class constant
+  private int classConstant(String name) throws IOException {
+    Integer index = _constants.get("C" + name);
+    if (index == null) {
+      int nameIndex = utf8Constant(name);
+      _poolData.writeByte(7);
+      _poolData.writeShort(nameIndex);
+      index = addConstant("C" + name);
+    }
+    return index;
+  }
+
+  // finds or adds a string constant
+  private int stringConstant(String str) throws IOException {
+    Integer index = _constants.get("S" + str);
+    if (index == null) {
+      int utf8Index = utf8Constant(str);
+      _poolData.writeByte(8);
+      _poolData.writeShort(utf8Index);
+      index = addConstant("S" + str);
+    }
+    return index;
+  }
+
+  // finds or adds a method constant
+  private int methodConstant(String owner, String name, String desc) throws IOException {
+    String key = "M" + owner + "." + name + desc;
+    Integer index = _constants.get(key);
+    if (index == null) {
+      int ownerIndex = classConstant(owner);
+      int nameIndex = utf8Constant(name);
+      int descIndex = utf8Constant(desc);
+      _poolData.writeByte(12);
+      _poolData.writeShort(nameIndex);
+      _poolData.writeShort(descIndex);
+      int nameAndType = addConstant("N" + name + desc);
+      _poolData.writeByte(10);
+      _poolData.writeShort(ownerIndex);
+      _poolData.writeShort(nameAndType);
+      index = addConstant(key);
+    }
+    return index;
+  }
+
+  // records the constant just written
+  private int addConstant(String key) {
+    int index = _poolSize++;
+    _constants.put(key, index);
+    return index;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Class loader used to define a renderer where hidden classes are not supported.
+   */
+  private static final class RendererClassLoader extends ClassLoader {
+    RendererClassLoader() {
+      super(ElSqlRenderer.class.getClassLoader());
+    }
+    Class<?> define(byte[] bytes) {
+      return defineClass(null, bytes, 0, bytes.length);
+    }
+  }
+
+}
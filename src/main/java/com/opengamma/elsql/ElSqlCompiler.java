@@ -0,0 +1,526 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Compiles elsql files to a binary form that is loaded without parsing.
+ * <p>
+ * Each ".elsql" file is parsed and the tree of fragments written to a sibling ".elsqlc" file.
+ * When loading a bundle, the ".elsqlc" file is used in preference to the ".elsql" file if it exists.
+ * For files on the file system, the compiled file is only used if the checksum of the source
+ * recorded when compiling matches the current source, thus an edited source is always parsed.
+ * <p>
+ * The compiler is intended to be run as part of a build, after the resources have been
+ * copied to the output directory. This library ships no elsql files, so its own build does not run it.
+ * With Maven, an application can run it using the exec plugin in the 'process-classes' phase:
+ * <pre>
+ *  &lt;plugin&gt;
+ *    &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *    &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *    &lt;executions&gt;
+ *      &lt;execution&gt;
+ *        &lt;id&gt;compile-elsql&lt;/id&gt;
+ *        &lt;phase&gt;process-classes&lt;/phase&gt;
+ *        &lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *        &lt;configuration&gt;
+ *          &lt;mainClass&gt;com.opengamma.elsql.ElSqlCompiler&lt;/mainClass&gt;
+ *          &lt;arguments&gt;&lt;argument&gt;${project.build.outputDirectory}&lt;/argument&gt;&lt;/arguments&gt;
+ *        &lt;/configuration&gt;
+ *      &lt;/execution&gt;
+ *    &lt;/executions&gt;
+ *  &lt;/plugin&gt;
+ * </pre>
+ * <p>
+ * The binary form starts with a header containing the format version and the checksum of the source.
+ * A file with a different version is ignored, such that the source file is parsed instead.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class ElSqlCompiler {
+
+  /**
+   * The header of compiled files, 'ELSQ'.
+   */
+  private static final int MAGIC = 0x454C5351;
+  /**
+   * The version of the format.
+   */
+  private static final int VERSION = 2;
+  /**
+   * Kind for a NAME defined at this point.
+   */
+  private static final int KIND_NAME = 1;
+  /**
+   * Kind for a NAME previously defined.
+   */
+  private static final int KIND_NAME_REF = 2;
+  /**
+   * Kind for text.
+   */
+  private static final int KIND_TEXT = 3;
+  /**
+   * Kind for INCLUDE.
+   */
+  private static final int KIND_INCLUDE = 4;
+  /**
+   * Kind for VALUE.
+   */
+  private static final int KIND_VALUE = 5;
+  /**
+   * Kind for LIKE.
+   */
+  private static final int KIND_LIKE = 6;
+  /**
+   * Kind for EQUALS.
+   */
+  private static final int KIND_EQUALS = 7;
+  /**
+   * Kind for AND.
+   */
+  private static final int KIND_AND = 8;
+  /**
+   * Kind for OR.
+   */
+  private static final int KIND_OR = 9;
+  /**
+   * Kind for IF.
+   */
+  private static final int KIND_IF = 10;
+  /**
+   * Kind for WHERE.
+   */
+  private static final int KIND_WHERE = 11;
+  /**
+   * Kind for LOOP.
+   */
+  private static final int KIND_LOOP = 12;
+  /**
+   * Kind for PAGING.
+   */
+  private static final int KIND_PAGING = 13;
+  /**
+   * Kind for OFFSETFETCH and FETCH.
+   */
+  private static final int KIND_OFFSETFETCH = 14;
+  /**
+   * Kind for SEEK.
+   */
+  private static final int KIND_SEEK = 15;
+  /**
+   * Kind for IN.
+   */
+  private static final int KIND_IN = 16;
+
+  /**
+   * Compiles the elsql files in the specified directories.
+   * <p>
+   * Each argument is a directory, searched recursively for ".elsql" files, or a single file.
+   * Each compiled file is written next to its source.
+   *
+   * @param args  the directories or files to compile
+   * @throws IOException if an error occurs reading or writing
+   * @throws IllegalArgumentException if a file cannot be parsed
+   */
+  public static void main(String[] args) throws IOException {
+    int count = 0;
+    for (String arg : args) {
+      count += compileAll(new File(arg));
+    }
+    System.out.println("Compiled " + count + " elsql files");
+  }
+
+  // compiles the file, or the files in the directory recursively
+  private static int compileAll(File file) throws IOException {
+    if (file.isDirectory()) {
+      int count = 0;
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          count += compileAll(child);
+        }
+      }
+      return count;
+    }
+    if (file.getName().endsWith(".elsql")) {
+      compile(file, new File(file.getPath() + "c"));
+      return 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Restricted constructor.
+   */
+  private ElSqlCompiler() {
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Compiles an elsql file.
+   *
+   * @param source  the elsql file to parse, not null
+   * @param target  the compiled file to write, not null
+   * @throws IOException if an error occurs reading or writing
+   * @throws IllegalArgumentException if the file cannot be parsed
+   */
+  static void compile(File source, File target) throws IOException {
+    byte[] bytes = SqlFragments.readFile(source);
+    String content = new String(bytes, "UTF-8");
+    Map<String, NameSqlFragment> parsed;
+    try {
+      parsed = new ElSqlParser(content, new SqlVariables()).parse();
+    } catch (IllegalArgumentException ex) {
+      throw new IllegalArgumentException(ex.getMessage() + " in " + source, ex);
+    }
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+    try {
+      write(parsed, checksum(bytes), out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the parsed fragments in binary form.
+   *
+   * @param parsed  the parsed fragments keyed by name, not null
+   * @param sourceChecksum  the checksum of the source, from {@link #checksum(byte[])}
+   * @param out  the stream to write to, not null
+   * @throws IOException if an error occurs
+   */
+  static void write(Map<String, NameSqlFragment> parsed, long sourceChecksum, OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeLong(sourceChecksum);
+    data.writeInt(parsed.size());
+    Map<NameSqlFragment, Integer> ids = new IdentityHashMap<NameSqlFragment, Integer>();
+    for (Map.Entry<String, NameSqlFragment> entry : parsed.entrySet()) {
+      data.writeUTF(entry.getKey());
+      writeFragment(data, entry.getValue(), ids);
+    }
+    data.flush();
+  }
+
+  /**
+   * Calculates a fingerprint of the structure of a named fragment.
+   * <p>
+   * The fingerprint is a digest of the binary form, thus two fragments parsed
+   * from equivalent source have the same fingerprint.
+   *
+   * @param fragment  the fragment, not null
+   * @return the fingerprint in hexadecimal, not null
+   */
+  static String fingerprint(NameSqlFragment fragment) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+      DataOutputStream data = new DataOutputStream(out);
+      data.writeInt(VERSION);
+      writeFragment(data, fragment, new IdentityHashMap<NameSqlFragment, Integer>());
+      data.flush();
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(out.toByteArray());
+      StringBuilder buf = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        buf.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return buf.toString();
+    } catch (IOException ex) {
+      throw new IllegalStateException(ex);
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // writes a fragment, with the names written so far identified by index
+  private static void writeFragment(
+      DataOutputStream data, SqlFragment fragment, Map<NameSqlFragment, Integer> ids) throws IOException {
+    if (fragment instanceof NameSqlFragment) {
+      NameSqlFragment name = (NameSqlFragment) fragment;
+      Integer id = ids.get(name);
+      if (id != null) {
+        data.writeByte(KIND_NAME_REF);
+        data.writeInt(id);
+        return;
+      }
+      ids.put(name, ids.size());
+      data.writeByte(KIND_NAME);
+      data.writeUTF(name.getName());
+
+    } else if (fragment instanceof TextSqlFragment) {
+      data.writeByte(KIND_TEXT);
+      data.writeUTF(((TextSqlFragment) fragment).getText());
+      return;
+
+    } else if (fragment instanceof IncludeSqlFragment) {
+      data.writeByte(KIND_INCLUDE);
+      data.writeUTF(((IncludeSqlFragment) fragment).getIncludeKey());
+      return;
+
+    } else if (fragment instanceof ValueSqlFragment) {
+      ValueSqlFragment value = (ValueSqlFragment) fragment;
+      data.writeByte(KIND_VALUE);
+      data.writeUTF(value.getVariable());
+      data.writeBoolean(value.isFollowWithSpace());
+      return;
+
+    } else if (fragment instanceof OperatorSqlFragment) {
+      data.writeByte(fragment instanceof LikeSqlFragment ? KIND_LIKE : KIND_EQUALS);
+      data.writeUTF(((OperatorSqlFragment) fragment).getVariable());
+
+    } else if (fragment instanceof ConditionalSqlFragment) {
+      ConditionalSqlFragment conditional = (ConditionalSqlFragment) fragment;
+      if (fragment instanceof AndSqlFragment) {
+        data.writeByte(KIND_AND);
+      } else {
+        data.writeByte(fragment instanceof OrSqlFragment ? KIND_OR : KIND_IF);
+      }
+      data.writeUTF(conditional.getVariable());
+      writeNullable(data, conditional.getMatchValue());
+
+    } else if (fragment instanceof WhereSqlFragment) {
+      data.writeByte(KIND_WHERE);
+
+    } else if (fragment instanceof LoopSqlFragment) {
+      LoopSqlFragment loop = (LoopSqlFragment) fragment;
+      data.writeByte(KIND_LOOP);
+      data.writeUTF(loop.getSize());
+      writeChildren(data, loop, ids);
+      data.writeBoolean(loop.getJoin() != null);
+      if (loop.getJoin() != null) {
+        writeChildren(data, loop.getJoin(), ids);
+      }
+      return;
+
+    } else if (fragment instanceof PagingSqlFragment) {
+      PagingSqlFragment paging = (PagingSqlFragment) fragment;
+      data.writeByte(KIND_PAGING);
+      writeNullable(data, paging.getOffset());
+      writeNullable(data, paging.getFetch());
+
+    } else if (fragment instanceof OffsetFetchSqlFragment) {
+      OffsetFetchSqlFragment offsetFetch = (OffsetFetchSqlFragment) fragment;
+      data.writeByte(KIND_OFFSETFETCH);
+      writeNullable(data, offsetFetch.getOffset());
+      writeNullable(data, offsetFetch.getFetch());
+      return;
+
+    } else if (fragment instanceof SeekSqlFragment) {
+      SeekSqlFragment seek = (SeekSqlFragment) fragment;
+      String[] columns = seek.getColumns();
+      boolean[] descending = seek.getDescending();
+      String[] variables = seek.getVariables();
+      data.writeByte(KIND_SEEK);
+      data.writeInt(columns.length);
+      for (int i = 0; i < columns.length; i++) {
+        data.writeUTF(columns[i]);
+        data.writeBoolean(descending[i]);
+        data.writeUTF(variables[i]);
+      }
+      return;
+
+    } else if (fragment instanceof InSqlFragment) {
+      InSqlFragment in = (InSqlFragment) fragment;
+      data.writeByte(KIND_IN);
+      data.writeUTF(in.getVariable());
+      data.writeBoolean(in.isFollowWithSpace());
+      return;
+
+    } else {
+      throw new IllegalArgumentException("Unknown fragment: " + fragment.getClass().getSimpleName());
+    }
+    writeChildren(data, (ContainerSqlFragment) fragment, ids);
+  }
+
+  // writes the children of a container
+  private static void writeChildren(
+      DataOutputStream data, ContainerSqlFragment container, Map<NameSqlFragment, Integer> ids) throws IOException {
+    List<SqlFragment> children = container.getFragments();
+    data.writeInt(children.size());
+    for (SqlFragment child : children) {
+      writeFragment(data, child, ids);
+    }
+  }
+
+  // writes a string that may be null
+  private static void writeNullable(DataOutputStream data, String str) throws IOException {
+    data.writeBoolean(str != null);
+    if (str != null) {
+      data.writeUTF(str);
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Reads fragments from their binary form.
+   *
+   * @param bytes  the bytes of the compiled file, not null
+   * @param variables  the table of variables to register in, not null
+   * @return the fragments keyed by name, null if the format version differs
+   * @throws IOException if the data is invalid
+   */
+  static Map<String, NameSqlFragment> read(byte[] bytes, SqlVariables variables) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (bytes.length < 16 || data.readInt() != MAGIC || data.readInt() != VERSION) {
+      return null;
+    }
+    data.readLong();
+    int size = data.readInt();
+    Map<String, NameSqlFragment> result = new LinkedHashMap<String, NameSqlFragment>();
+    List<NameSqlFragment> names = new ArrayList<NameSqlFragment>();
+    for (int i = 0; i < size; i++) {
+      String key = data.readUTF();
+      SqlFragment fragment = readFragment(data, variables, names);
+      if (fragment instanceof NameSqlFragment == false) {
+        throw new IOException("Invalid compiled elsql, expected name");
+      }
+      result.put(key, (NameSqlFragment) fragment);
+    }
+    return result;
+  }
+
+  /**
+   * Reads the checksum of the source from the binary form.
+   *
+   * @param bytes  the bytes of the compiled file, not null
+   * @return the checksum, -1 if the format version differs
+   * @throws IOException if the data is invalid
+   */
+  static long readChecksum(byte[] bytes) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+    if (bytes.length < 16 || data.readInt() != MAGIC || data.readInt() != VERSION) {
+      return -1;
+    }
+    return data.readLong();
+  }
+
+  /**
+   * Calculates the checksum of the source.
+   *
+   * @param source  the bytes of the source file, not null
+   * @return the checksum, not negative
+   */
+  static long checksum(byte[] source) {
+    CRC32 crc = new CRC32();
+    crc.update(source, 0, source.length);
+    return crc.getValue();
+  }
+
+  // reads a fragment, with the names read so far identified by index
+  private static SqlFragment readFragment(
+      DataInputStream data, SqlVariables variables, List<NameSqlFragment> names) throws IOException {
+    int kind = data.readByte();
+    ContainerSqlFragment container;
+    switch (kind) {
+      case KIND_NAME: {
+        NameSqlFragment name = new NameSqlFragment(data.readUTF());
+        names.add(name);
+        container = name;
+        break;
+      }
+      case KIND_NAME_REF: {
+        int id = data.readInt();
+        if (id < 0 || id >= names.size()) {
+          throw new IOException("Invalid compiled elsql, unknown name");
+        }
+        return names.get(id);
+      }
+      case KIND_TEXT:
+        return new TextSqlFragment(data.readUTF(), false);
+      case KIND_INCLUDE:
+        return new IncludeSqlFragment(data.readUTF(), variables);
+      case KIND_VALUE:
+        return new ValueSqlFragment(":" + data.readUTF(), data.readBoolean(), variables);
+      case KIND_LIKE:
+        container = new LikeSqlFragment(":" + data.readUTF(), variables);
+        break;
+      case KIND_EQUALS:
+        container = new EqualsSqlFragment(":" + data.readUTF(), variables);
+        break;
+      case KIND_AND:
+        container = new AndSqlFragment(":" + data.readUTF(), readNullable(data), variables);
+        break;
+      case KIND_OR:
+        container = new OrSqlFragment(":" + data.readUTF(), readNullable(data), variables);
+        break;
+      case KIND_IF:
+        container = new IfSqlFragment(":" + data.readUTF(), readNullable(data), variables);
+        break;
+      case KIND_WHERE:
+        container = new WhereSqlFragment();
+        break;
+      case KIND_LOOP: {
+        LoopSqlFragment loop = new LoopSqlFragment(data.readUTF(), variables);
+        readChildren(data, loop, variables, names);
+        if (data.readBoolean()) {
+          LoopJoinSqlFragment join = new LoopJoinSqlFragment();
+          readChildren(data, join, variables, names);
+          loop.setJoin(join);
+        }
+        return loop;
+      }
+      case KIND_PAGING:
+        container = new PagingSqlFragment(readNullable(data), readNullable(data), variables);
+        break;
+      case KIND_OFFSETFETCH:
+        return new OffsetFetchSqlFragment(readNullable(data), readNullable(data), variables);
+      case KIND_SEEK: {
+        int count = data.readInt();
+        if (count <= 0) {
+          throw new IOException("Invalid compiled elsql, invalid seek");
+        }
+        String[] columns = new String[count];
+        boolean[] descending = new boolean[count];
+        String[] seekVariables = new String[count];
+        for (int i = 0; i < count; i++) {
+          columns[i] = data.readUTF();
+          descending[i] = data.readBoolean();
+          seekVariables[i] = ":" + data.readUTF();
+        }
+        return new SeekSqlFragment(columns, descending, seekVariables, variables);
+      }
+      case KIND_IN:
+        return new InSqlFragment(":" + data.readUTF(), data.readBoolean(), variables);
+      default:
+        throw new IOException("Invalid compiled elsql, unknown kind: " + kind);
+    }
+    readChildren(data, container, variables, names);
+    return container;
+  }
+
+  // reads the children of a container
+  private static void readChildren(
+      DataInputStream data, ContainerSqlFragment container, SqlVariables variables,
+      List<NameSqlFragment> names) throws IOException {
+    int size = data.readInt();
+    for (int i = 0; i < size; i++) {
+      container.addFragment(readFragment(data, variables, names));
+    }
+  }
+
+  // reads a string that may be null
+  private static String readNullable(DataInputStream data) throws IOException {
+    return (data.readBoolean() ? data.readUTF() : null);
+  }
+
+}
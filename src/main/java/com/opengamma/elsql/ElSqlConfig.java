@@ -5,6 +5,8 @@
  */
 package com.opengamma.elsql;
 
+import java.util.concurrent.Executor;
+
 /**
  * Configuration that provides support for differences between databases.
  * <p>
@@ -36,10 +38,20 @@ public class ElSqlConfig {
    * A constant for the config needed for Oracle RDBMS.
    */
   public static final ElSqlConfig ORACLE = new OracleElSqlConfig();
+  /**
+   * A constant for the config needed for Oracle RDBMS 12c and later, which uses OFFSET-FETCH.
+   * <p>
+   * This is named 'Oracle12', thus uses override files named with '-Oracle12', not those of {@code ORACLE}.
+   */
+  public static final ElSqlConfig ORACLE12 = new Oracle12ElSqlConfig();
   /**
    * A constant for the config needed for SQL Server 2008, which pages in a different way.
    */
   public static final ElSqlConfig SQL_SERVER_2008 = new SqlServer2008ElSqlConfig();
+  /**
+   * A constant for the config needed for SQL Server 2012 and later, which uses OFFSET-FETCH.
+   */
+  public static final ElSqlConfig SQL_SERVER_2012 = new SqlServer2012ElSqlConfig();
   /**
    * A constant for the config needed for Vertica, the same as {@code DEFAULT}.
    */
@@ -49,6 +61,10 @@ public class ElSqlConfig {
    * The descriptive name.
    */
   private final String _name;
+  /**
+   * Whether paging is added by appending to the SELECT, true unless the paging methods are overridden.
+   */
+  private final boolean _appendPaging;
 
   /**
    * Creates an instance.
@@ -57,6 +73,17 @@ public class ElSqlConfig {
    */
   public ElSqlConfig(String name) {
     _name = name;
+    _appendPaging = isInherited("addPaging", String.class, int.class, int.class) &&
+        isInherited("addBindPaging", String.class, String.class, String.class);
+  }
+
+  // checks if a method of this config is the implementation in this class
+  private boolean isInherited(String methodName, Class<?>... parameterTypes) {
+    try {
+      return getClass().getMethod(methodName, parameterTypes).getDeclaringClass() == ElSqlConfig.class;
+    } catch (NoSuchMethodException ex) {
+      return false;
+    }
   }
 
   /**
@@ -152,12 +179,475 @@ public class ElSqlConfig {
     return "OFFSET " + offset + " ROWS FETCH NEXT " + fetchLimit + " ROWS ONLY ";
   }
 
+  /**
+   * Alters the supplied SQL to add paging using bind variables, such as OFFSET-FETCH.
+   * <p>
+   * This is used instead of {@link #addPaging(String, int, int)} when {@link #isBindPaging()} is true.
+   * Each argument is either a placeholder, such as {@code :paging_offset}, or a numeric literal.
+   * The default implementation calls {@link #getBindPaging(String, String)}.
+   * <p>
+   * The returned SQL must be end in a space if non-empty.
+   * 
+   * @param selectToPage  the SELECT statement to page, not null
+   * @param offset  the OFFSET placeholder or literal, null to start from the beginning
+   * @param fetchLimit  the FETCH/LIMIT placeholder or literal, null to fetch all
+   * @return the updated SELECT, not null
+   */
+  public String addBindPaging(String selectToPage, String offset, String fetchLimit) {
+    return selectToPage + (selectToPage.endsWith(" ") ? "" : " ") + getBindPaging(offset, fetchLimit);
+  }
+
+  /**
+   * Gets the paging SQL using bind variables, such as OFFSET-FETCH.
+   * <p>
+   * This is used instead of {@link #getPaging(int, int)} when {@link #isBindPaging()} is true.
+   * Each argument is either a placeholder, such as {@code :paging_offset}, or a numeric literal.
+   * The default implementation uses 'FETCH FIRST n ROWS ONLY' or
+   * 'OFFSET n ROWS FETCH NEXT n ROWS ONLY'.
+   * <p>
+   * The returned SQL must be end in a space if non-empty.
+   * 
+   * @param offset  the OFFSET placeholder or literal, null to start from the beginning
+   * @param fetchLimit  the FETCH/LIMIT placeholder or literal, null to fetch all
+   * @return the SQL to use, not null
+   */
+  public String getBindPaging(String offset, String fetchLimit) {
+    if (fetchLimit == null && offset == null) {
+      return "";
+    }
+    if (fetchLimit == null) {
+      return "OFFSET " + offset + " ROWS ";
+    }
+    if (offset == null) {
+      return "FETCH FIRST " + fetchLimit + " ROWS ONLY ";
+    }
+    return "OFFSET " + offset + " ROWS FETCH NEXT " + fetchLimit + " ROWS ONLY ";
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Checks whether the database supports comparing row values, such as {@code (a, b) > (1, 2)}.
+   * <p>
+   * This is used by the SEEK tag. If supported, the keyset predicate is output as a single
+   * row value comparison, which databases can match to a multi-column index.
+   * Otherwise, the comparison is expanded into the equivalent OR of single column comparisons.
+   * The default implementation returns true.
+   * This matches Postgres, HSQL, MySQL and other databases.
+   * 
+   * @return true if row value comparisons are supported
+   */
+  public boolean isRowValueComparison() {
+    return true;
+  }
+
+  /**
+   * Checks whether a list of values can be bound as a single array parameter.
+   * <p>
+   * This is used by the IN tag. If supported, and the caller binds the parameter as an SQL array,
+   * being a {@code java.sql.Array} or a Spring {@code SqlParameterValue} of type {@code Types.ARRAY},
+   * the comparison is output as {@code = ANY(:ids)}, thus the SQL is the same for any size of list.
+   * Any other value, such as a plain collection, is output as {@code IN (:ids)}, for the named
+   * parameter layer, such as Spring's {@code NamedParameterJdbcTemplate}, to expand to one
+   * placeholder per element, as it would expand {@code = ANY(:ids)} to the invalid {@code = ANY(?, ?)}.
+   * The default implementation returns false.
+   * 
+   * @return true if the list is bound as a single array
+   */
+  public boolean isArrayBinding() {
+    return false;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Checks whether named blocks are rendered using their compiled form.
+   * <p>
+   * Once parsed, each named block is compiled to a flat program of instructions
+   * which is executed by a simple loop, avoiding a recursive walk of the fragment tree.
+   * The default implementation returns true.
+   * If false, the tree of fragments is walked instead.
+   * 
+   * @return true to render the compiled form, false to walk the fragment tree
+   */
+  public boolean isCompiled() {
+    return true;
+  }
+
+  /**
+   * Returns a copy of this config that controls whether named blocks are rendered
+   * using their compiled form.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param compiled  true to render the compiled form, false to walk the fragment tree
+   * @return the updated config, not null
+   */
+  public ElSqlConfig withCompiled(boolean compiled) {
+    return new OptionsElSqlConfig(
+        dialect(), compiled, getRenderCacheSize(), isThreadLocalBuffer(), getParseExecutor(), isLazyParsing(),
+        getGenerateThreshold(), isBindPaging());
+  }
+
+  /**
+   * Gets the maximum number of rendered SQL statements to cache per bundle.
+   * <p>
+   * A named block with N conditional tags has at most 2^N possible outputs, multiplied
+   * by the loop sizes and paging values in use. When the cache is enabled, the decisions
+   * made by the tags are evaluated first, which is much cheaper than rendering, and used as
+   * the key to previously rendered SQL. Blocks that include the value of a parameter
+   * using the VALUE tag are not cached.
+   * When the cache is full, the least recently used statement is discarded.
+   * <p>
+   * The default implementation returns zero, disabling the cache.
+   * 
+   * @return the maximum number of cached statements, zero to disable the cache
+   */
+  public int getRenderCacheSize() {
+    return 0;
+  }
+
+  /**
+   * Returns a copy of this config with a cache of rendered SQL statements.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param renderCacheSize  the maximum number of cached statements per bundle, zero to disable the cache
+   * @return the updated config, not null
+   * @see #getRenderCacheSize()
+   */
+  public ElSqlConfig withRenderCacheSize(int renderCacheSize) {
+    if (renderCacheSize < 0) {
+      throw new IllegalArgumentException("Render cache size must not be negative");
+    }
+    return new OptionsElSqlConfig(
+        dialect(), isCompiled(), renderCacheSize, isThreadLocalBuffer(), getParseExecutor(), isLazyParsing(),
+        getGenerateThreshold(), isBindPaging());
+  }
+
+  /**
+   * Checks whether SQL is rendered into a buffer held by the current thread.
+   * <p>
+   * The buffer used to render each named block is sized based on the output of previous renders.
+   * When this option is enabled, a buffer is also retained by each thread and reused,
+   * such that the only allocation in the steady state is the resulting string.
+   * Buffers that grow beyond 64k characters are not retained.
+   * The default implementation returns false.
+   * 
+   * @return true to reuse a buffer held by the current thread
+   */
+  public boolean isThreadLocalBuffer() {
+    return false;
+  }
+
+  /**
+   * Returns a copy of this config that controls whether SQL is rendered into
+   * a buffer held by the current thread.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param threadLocalBuffer  true to reuse a buffer held by the current thread
+   * @return the updated config, not null
+   * @see #isThreadLocalBuffer()
+   */
+  public ElSqlConfig withThreadLocalBuffer(boolean threadLocalBuffer) {
+    return new OptionsElSqlConfig(
+        dialect(), isCompiled(), getRenderCacheSize(), threadLocalBuffer, getParseExecutor(), isLazyParsing(),
+        getGenerateThreshold(), isBindPaging());
+  }
+
+  /**
+   * Gets the executor used to parse files.
+   * <p>
+   * When an executor is available, each file of a bundle is loaded and parsed as a separate task.
+   * When loading many bundles using {@link ElSql#ofAll(ElSqlConfig, Class...)}, the files
+   * of all the bundles are parsed in parallel. The results are merged in the calling thread,
+   * such that named blocks in override files still replace those in the base file.
+   * A task that has not started by the time its result is needed is run in the calling thread.
+   * The default implementation returns null, parsing in the calling thread.
+   * 
+   * @return the executor, null to parse in the calling thread
+   */
+  public Executor getParseExecutor() {
+    return null;
+  }
+
+  /**
+   * Returns a copy of this config that parses files using the specified executor.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param parseExecutor  the executor to parse using, null to parse in the calling thread
+   * @return the updated config, not null
+   * @see #getParseExecutor()
+   */
+  public ElSqlConfig withParseExecutor(Executor parseExecutor) {
+    return new OptionsElSqlConfig(
+        dialect(), isCompiled(), getRenderCacheSize(), isThreadLocalBuffer(), parseExecutor, isLazyParsing(),
+        getGenerateThreshold(), isBindPaging());
+  }
+
+  /**
+   * Checks whether named blocks are parsed when first used.
+   * <p>
+   * When this option is enabled, loading a file only finds the lines of each top-level
+   * named block, checking the format of the NAME tags and that nothing else is at the root level.
+   * The contents of each block are parsed when the block is first requested, at most once.
+   * This reduces the time and memory needed to load large files where only a few blocks are used.
+   * Errors in a block are only reported when it is used, thus tests should validate the files
+   * using a config where this option is disabled.
+   * The default implementation returns false, parsing every block when loaded.
+   * 
+   * @return true to parse each named block when first used
+   */
+  public boolean isLazyParsing() {
+    return false;
+  }
+
+  /**
+   * Returns a copy of this config that controls whether named blocks are parsed when first used.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param lazyParsing  true to parse each named block when first used, false to parse every block when loaded
+   * @return the updated config, not null
+   * @see #isLazyParsing()
+   */
+  public ElSqlConfig withLazyParsing(boolean lazyParsing) {
+    return new OptionsElSqlConfig(
+        dialect(), isCompiled(), getRenderCacheSize(), isThreadLocalBuffer(), getParseExecutor(), lazyParsing,
+        getGenerateThreshold(), isBindPaging());
+  }
+
+  /**
+   * Gets the number of renders of a named block after which a renderer class is generated.
+   * <p>
+   * When this option is enabled, each named block is rendered as normal until it has been
+   * rendered the specified number of times. A class specific to the block is then generated
+   * and loaded at runtime, and used for subsequent renders. The generated code appends the text
+   * as constants and has the tags as branches and loops, avoiding the walk over the fragments.
+   * Blocks that are rarely used are never generated, avoiding the cost of generating them.
+   * Blocks with a renderer generated at compile time by {@link ElSqlProcessor} use that instead.
+   * The default implementation returns zero, never generating at runtime.
+   * 
+   * @return the number of renders before generating, zero to never generate
+   */
+  public int getGenerateThreshold() {
+    return 0;
+  }
+
+  /**
+   * Returns a copy of this config that controls whether renderer classes are generated at runtime.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param generateThreshold  the number of renders of a named block before generating, zero to never generate
+   * @return the updated config, not null
+   * @throws IllegalArgumentException if the threshold is negative
+   * @see #getGenerateThreshold()
+   */
+  public ElSqlConfig withGenerateThreshold(int generateThreshold) {
+    if (generateThreshold < 0) {
+      throw new IllegalArgumentException("Generate threshold must not be negative");
+    }
+    return new OptionsElSqlConfig(
+        dialect(), isCompiled(), getRenderCacheSize(), isThreadLocalBuffer(), getParseExecutor(), isLazyParsing(),
+        generateThreshold, isBindPaging());
+  }
+
+  /**
+   * Checks whether paging values are output as bind variable placeholders.
+   * <p>
+   * By default, the PAGING, OFFSETFETCH and FETCH tags output the offset and fetch limit as literals,
+   * such that each page of a query is a different SQL statement, each parsed and planned separately.
+   * When this option is enabled, a tag argument that is a variable, such as {@code :paging_offset},
+   * is output as a placeholder of the same name, with the caller binding the value from the parameters
+   * when executing the statement. Thus every page of a query shares the same SQL statement.
+   * Arguments that are numeric literals in the tag are output unchanged.
+   * A value of zero still omits the associated clause, thus a statement has at most four forms.
+   * The default implementation returns false, outputting the values as literals.
+   * 
+   * @return true to output paging variables as placeholders
+   * @see #getBindPaging(String, String)
+   * @see #addBindPaging(String, String, String)
+   */
+  public boolean isBindPaging() {
+    return false;
+  }
+
+  /**
+   * Returns a copy of this config that controls whether paging values are output as placeholders.
+   * <p>
+   * The database specific behavior of this config is retained.
+   * 
+   * @param bindPaging  true to output paging variables as placeholders, false to output literals
+   * @return the updated config, not null
+   * @see #isBindPaging()
+   */
+  public ElSqlConfig withBindPaging(boolean bindPaging) {
+    return new OptionsElSqlConfig(
+        dialect(), isCompiled(), getRenderCacheSize(), isThreadLocalBuffer(), getParseExecutor(), isLazyParsing(),
+        getGenerateThreshold(), bindPaging);
+  }
+
+  /**
+   * Checks whether paging is added by appending to the SELECT statement.
+   * <p>
+   * When true, the PAGING tag appends the result of {@link #getPaging(int, int)} directly,
+   * rather than copying the rendered SELECT statement to pass to {@link #addPaging(String, int, int)}.
+   * 
+   * @return true if the paging methods are not overridden
+   */
+  boolean isAppendPaging() {
+    return _appendPaging;
+  }
+
+  /**
+   * Gets the config that provides the database specific behavior.
+   * 
+   * @return the config without any options applied, not null
+   */
+  ElSqlConfig dialect() {
+    return this;
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
     return "ElSqlConfig[" + _name + "]";
   }
 
+  //-------------------------------------------------------------------------
+  /**
+   * Class that applies options to another config.
+   * <p>
+   * Instances are equal if they apply the same options to the same config,
+   * allowing bundles to be shared by configs created separately.
+   */
+  private static final class OptionsElSqlConfig extends ElSqlConfig {
+    private final ElSqlConfig _dialect;
+    private final boolean _compiled;
+    private final int _renderCacheSize;
+    private final boolean _threadLocalBuffer;
+    private final Executor _parseExecutor;
+    private final boolean _lazyParsing;
+    private final int _generateThreshold;
+    private final boolean _bindPaging;
+    OptionsElSqlConfig(
+        ElSqlConfig dialect, boolean compiled, int renderCacheSize, boolean threadLocalBuffer,
+        Executor parseExecutor, boolean lazyParsing, int generateThreshold, boolean bindPaging) {
+      super(dialect.getName());
+      _dialect = dialect;
+      _compiled = compiled;
+      _renderCacheSize = renderCacheSize;
+      _threadLocalBuffer = threadLocalBuffer;
+      _parseExecutor = parseExecutor;
+      _lazyParsing = lazyParsing;
+      _generateThreshold = generateThreshold;
+      _bindPaging = bindPaging;
+    }
+    @Override
+    ElSqlConfig dialect() {
+      return _dialect;
+    }
+    @Override
+    public boolean isCompiled() {
+      return _compiled;
+    }
+    @Override
+    public int getRenderCacheSize() {
+      return _renderCacheSize;
+    }
+    @Override
+    public boolean isThreadLocalBuffer() {
+      return _threadLocalBuffer;
+    }
+    @Override
+    public Executor getParseExecutor() {
+      return _parseExecutor;
+    }
+    @Override
+    public boolean isLazyParsing() {
+      return _lazyParsing;
+    }
+    @Override
+    public int getGenerateThreshold() {
+      return _generateThreshold;
+    }
+    @Override
+    public boolean isBindPaging() {
+      return _bindPaging;
+    }
+    @Override
+    boolean isAppendPaging() {
+      return _dialect.isAppendPaging();
+    }
+    @Override
+    public boolean isLikeWildcard(String value) {
+      return _dialect.isLikeWildcard(value);
+    }
+    @Override
+    public String getLikeSuffix() {
+      return _dialect.getLikeSuffix();
+    }
+    @Override
+    public boolean isRowValueComparison() {
+      return _dialect.isRowValueComparison();
+    }
+    @Override
+    public boolean isArrayBinding() {
+      return _dialect.isArrayBinding();
+    }
+    @Override
+    public String addPaging(String selectToPage, int offset, int fetchLimit) {
+      return _dialect.addPaging(selectToPage, offset, fetchLimit);
+    }
+    @Override
+    public String getPaging(int offset, int fetchLimit) {
+      return _dialect.getPaging(offset, fetchLimit);
+    }
+    @Override
+    public String addBindPaging(String selectToPage, String offset, String fetchLimit) {
+      return _dialect.addBindPaging(selectToPage, offset, fetchLimit);
+    }
+    @Override
+    public String getBindPaging(String offset, String fetchLimit) {
+      return _dialect.getBindPaging(offset, fetchLimit);
+    }
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (obj instanceof OptionsElSqlConfig) {
+        OptionsElSqlConfig other = (OptionsElSqlConfig) obj;
+        return _dialect.equals(other._dialect) &&
+            _compiled == other._compiled &&
+            _renderCacheSize == other._renderCacheSize &&
+            _threadLocalBuffer == other._threadLocalBuffer &&
+            (_parseExecutor == null ? other._parseExecutor == null : _parseExecutor.equals(other._parseExecutor)) &&
+            _lazyParsing == other._lazyParsing &&
+            _generateThreshold == other._generateThreshold &&
+            _bindPaging == other._bindPaging;
+      }
+      return false;
+    }
+    @Override
+    public int hashCode() {
+      int hash = _dialect.hashCode();
+      hash = hash * 31 + (_compiled ? 1 : 0);
+      hash = hash * 31 + _renderCacheSize;
+      hash = hash * 31 + (_threadLocalBuffer ? 1 : 0);
+      hash = hash * 31 + (_parseExecutor != null ? _parseExecutor.hashCode() : 0);
+      hash = hash * 31 + (_lazyParsing ? 1 : 0);
+      hash = hash * 31 + _generateThreshold;
+      hash = hash * 31 + (_bindPaging ? 1 : 0);
+      return hash;
+    }
+    @Override
+    public String toString() {
+      return _dialect.toString();
+    }
+  }
+
   //-------------------------------------------------------------------------
   /**
    * Class for Postgres.
@@ -166,6 +656,10 @@ public class ElSqlConfig {
     public PostgresElSqlConfig() {
       super("Postgres");
     }
+    @Override
+    public boolean isArrayBinding() {
+      return true;
+    }
   }
 
   //-------------------------------------------------------------------------
@@ -203,6 +697,19 @@ public class ElSqlConfig {
       }
       return "LIMIT " + fetchLimit + " OFFSET " + offset + " ";
     }
+    @Override
+    public String getBindPaging(String offset, String fetchLimit) {
+      if (fetchLimit == null && offset == null) {
+        return "";
+      }
+      if (fetchLimit == null) {
+        return "OFFSET " + offset + " ";
+      }
+      if (offset == null) {
+        return "LIMIT " + fetchLimit + " ";
+      }
+      return "LIMIT " + fetchLimit + " OFFSET " + offset + " ";
+    }
   }
 
   //-------------------------------------------------------------------------
@@ -215,6 +722,10 @@ public class ElSqlConfig {
     public OracleElSqlConfig() {
       super("Oracle");
     }
+    @Override
+    public boolean isRowValueComparison() {
+      return false;
+    }
     @Override
 		public String addPaging(String selectToPage, int offset, int fetchLimit) {
       if (fetchLimit == 0 && offset == 0) {
@@ -232,6 +743,39 @@ public class ElSqlConfig {
     public String getPaging(int offset, int fetchLimit) {
       throw new UnsupportedOperationException();
     }
+    @Override
+    public String addBindPaging(String selectToPage, String offset, String fetchLimit) {
+      if (fetchLimit == null && offset == null) {
+        return selectToPage;
+      }
+      if (offset == null) {
+        return "SELECT * FROM ( " + selectToPage + " ) where rownum <= " + fetchLimit;
+      }
+      if (fetchLimit == null) {
+        return "SELECT * FROM (SELECT row_.*,rownum rownum_ FROM ( " + selectToPage +
+            " ) row_) WHERE rownum_ > " + offset;
+      }
+      return "SELECT * FROM (SELECT row_.*,rownum rownum_ FROM ( " + selectToPage +
+          " ) row_ where rownum <= " + offset + " + " + fetchLimit + ") WHERE rownum_ > " + offset;
+    }
+    @Override
+    public String getBindPaging(String offset, String fetchLimit) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Class for Oracle RDBMS 12c and later, using the SQL standard OFFSET/FETCH.
+   */
+  private static class Oracle12ElSqlConfig extends ElSqlConfig {
+    public Oracle12ElSqlConfig() {
+      super("Oracle12");
+    }
+    @Override
+    public boolean isRowValueComparison() {
+      return false;
+    }
   }
 
   //-------------------------------------------------------------------------
@@ -243,6 +787,10 @@ public class ElSqlConfig {
       super("SqlServer2008");
     }
     @Override
+    public boolean isRowValueComparison() {
+      return false;
+    }
+    @Override
     public String addPaging(String selectToPage, int offset, int fetchLimit) {
       if (fetchLimit == 0 && offset == 0) {
         // SQL Server needs a SELECT TOP with ORDER BY in an inner query, otherwise it complains
@@ -257,6 +805,29 @@ public class ElSqlConfig {
       return "SELECT * FROM (" + inner + ") AS ROW_TABLE WHERE ROW_NUM >= " + start + " AND ROW_NUM <= " + end;
     }
     @Override
+    public String addBindPaging(String selectToPage, String offset, String fetchLimit) {
+      if (fetchLimit == null && offset == null) {
+        return addPaging(selectToPage, 0, 0);
+      }
+      String columns = selectToPage.substring(selectToPage.indexOf("SELECT ") + 7, selectToPage.indexOf(" FROM "));
+      String from = selectToPage.substring(selectToPage.indexOf(" FROM ") + 6, selectToPage.indexOf(" ORDER BY "));
+      String order = selectToPage.substring(selectToPage.indexOf(" ORDER BY ") + 10);
+      String inner = "SELECT " + columns + ", ROW_NUMBER() OVER (ORDER BY " + order.trim() + ") AS ROW_NUM FROM " + from;
+      String where;
+      if (offset == null) {
+        where = "ROW_NUM <= " + fetchLimit;
+      } else if (fetchLimit == null) {
+        where = "ROW_NUM > " + offset;
+      } else {
+        where = "ROW_NUM > " + offset + " AND ROW_NUM <= " + offset + " + " + fetchLimit;
+      }
+      return "SELECT * FROM (" + inner + ") AS ROW_TABLE WHERE " + where;
+    }
+    @Override
+    public String getBindPaging(String offset, String fetchLimit) {
+      throw new UnsupportedOperationException();
+    }
+    @Override
     public String getLikeSuffix() {
       return "ESCAPE '\\' ";
     }
@@ -266,6 +837,10 @@ public class ElSqlConfig {
     }
     @Override
     public boolean isLikeWildcard(String value) {
+      return isSqlServerWildcard(value);
+    }
+    // checks for a wildcard, including the character class
+    static boolean isSqlServerWildcard(String value) {
       boolean escape = false;
       for (int i = 0; i < value.length(); i++) {
         char ch = value.charAt(i);
@@ -283,6 +858,51 @@ public class ElSqlConfig {
     }
   }
 
+  //-------------------------------------------------------------------------
+  /**
+   * Class for SQL server 2012 and later, using OFFSET-FETCH.
+   * <p>
+   * SQL Server requires an OFFSET clause before FETCH, thus 'OFFSET 0 ROWS' is used
+   * when only the fetch limit is specified. The statement must have an ORDER BY clause.
+   */
+  private static class SqlServer2012ElSqlConfig extends ElSqlConfig {
+    public SqlServer2012ElSqlConfig() {
+      super("SqlServer2012");
+    }
+    @Override
+    public boolean isRowValueComparison() {
+      return false;
+    }
+    @Override
+    public String getLikeSuffix() {
+      return "ESCAPE '\\' ";
+    }
+    @Override
+    public boolean isLikeWildcard(String value) {
+      return SqlServer2008ElSqlConfig.isSqlServerWildcard(value);
+    }
+    @Override
+    public String getPaging(int offset, int fetchLimit) {
+      if (fetchLimit == 0 && offset == 0) {
+        return "";
+      }
+      if (fetchLimit == 0) {
+        return "OFFSET " + offset + " ROWS ";
+      }
+      return "OFFSET " + offset + " ROWS FETCH NEXT " + fetchLimit + " ROWS ONLY ";
+    }
+    @Override
+    public String getBindPaging(String offset, String fetchLimit) {
+      if (fetchLimit == null && offset == null) {
+        return "";
+      }
+      if (fetchLimit == null) {
+        return "OFFSET " + offset + " ROWS ";
+      }
+      return "OFFSET " + (offset != null ? offset : "0") + " ROWS FETCH NEXT " + fetchLimit + " ROWS ONLY ";
+    }
+  }
+
   //-------------------------------------------------------------------------
   /**
    * Class for Vertica.
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Generates the Java source of a renderer from parsed fragments.
+ * <p>
+ * Each named block becomes a method of straight-line code.
+ * Text is appended as constants, with adjacent text merged, and the tags become
+ * branches and loops that call the {@link ElSqlRenderer.Context} to evaluate the tag.
+ * <p>
+ * This class is mutable and intended for use by a single thread.
+ */
+final class ElSqlGenerator {
+
+  /**
+   * The output.
+   */
+  private final StringBuilder _buf = new StringBuilder(4096);
+  /**
+   * The index of each operand of the block being generated.
+   */
+  private final Map<SqlFragment, Integer> _operands = new IdentityHashMap<SqlFragment, Integer>();
+  /**
+   * The text waiting to be appended.
+   */
+  private final StringBuilder _text = new StringBuilder();
+  /**
+   * The clause state after the waiting text.
+   */
+  private int _textClause = SqlRenderContext.CLAUSE_UNCHANGED;
+
+  /**
+   * Generates the source of a renderer.
+   *
+   * @param packageName  the package name, empty for the default package, not null
+   * @param className  the simple class name, not null
+   * @param sourceName  the name of the elsql file, used in comments, not null
+   * @param parsed  the parsed fragments keyed by name, not null
+   * @return the Java source, not null
+   */
+  static String generate(String packageName, String className, String sourceName, Map<String, NameSqlFragment> parsed) {
+    return new ElSqlGenerator().generateClass(packageName, className, sourceName, parsed);
+  }
+
+  /**
+   * Restricted constructor.
+   */
+  private ElSqlGenerator() {
+  }
+
+  //-------------------------------------------------------------------------
+  // generates the class
+  private String generateClass(String packageName, String className, String sourceName, Map<String, NameSqlFragment> parsed) {
+    _buf.append("// Generated by ElSqlProcessor from ").append(sourceName).append(" - do not edit\n");
+    if (packageName.length() > 0) {
+      _buf.append("package ").append(packageName).append(";\n");
+    }
+    _buf.append("\n");
+    _buf.append("import com.opengamma.elsql.ElSqlRenderer;\n");
+    _buf.append("\n");
+    _buf.append("/**\n");
+    _buf.append(" * Renderer generated from ").append(sourceName).append(".\n");
+    _buf.append(" */\n");
+    _buf.append("public final class ").append(className).append(" extends ElSqlRenderer {\n");
+    _buf.append("\n");
+    _buf.append("  /**\n");
+    _buf.append("   * Creates an instance.\n");
+    _buf.append("   */\n");
+    _buf.append("  public ").append(className).append("() {\n");
+    _buf.append("    super(\n");
+    _buf.append("        new String[] {");
+    int index = 0;
+    for (String name : parsed.keySet()) {
+      _buf.append(index++ > 0 ? ", " : "").append(literal(name));
+    }
+    _buf.append("},\n");
+    _buf.append("        new String[] {");
+    index = 0;
+    for (NameSqlFragment fragment : parsed.values()) {
+      _buf.append(index++ > 0 ? ", " : "").append(literal(ElSqlCompiler.fingerprint(fragment)));
+    }
+    _buf.append("});\n");
+    _buf.append("  }\n");
+    _buf.append("\n");
+    _buf.append("  @Override\n");
+    _buf.append("  protected void render(int index, ElSqlRenderer.Context c) {\n");
+    _buf.append("    switch (index) {\n");
+    for (int i = 0; i < parsed.size(); i++) {
+      _buf.append("      case ").append(i).append(":\n");
+      _buf.append("        render").append(i).append("(c);\n");
+      _buf.append("        return;\n");
+    }
+    _buf.append("      default:\n");
+    _buf.append("        throw new IllegalArgumentException(\"Unknown block: \" + index);\n");
+    _buf.append("    }\n");
+    _buf.append("  }\n");
+    index = 0;
+    for (Map.Entry<String, NameSqlFragment> entry : parsed.entrySet()) {
+      _buf.append("\n");
+      _buf.append("  // @NAME(").append(entry.getKey()).append(")\n");
+      _buf.append("  private static void render").append(index++).append("(ElSqlRenderer.Context c) {\n");
+      generateBlock(entry.getValue());
+      _buf.append("  }\n");
+    }
+    _buf.append("\n");
+    _buf.append("}\n");
+    return _buf.toString();
+  }
+
+  // generates the body of the method of a named block
+  private void generateBlock(NameSqlFragment fragment) {
+    _operands.clear();
+    SqlFragment[] operands = ElSqlRenderer.operands(fragment);
+    for (int i = 0; i < operands.length; i++) {
+      _operands.put(operands[i], i);
+    }
+    generateChildren(fragment, 2);
+    flushText(2);
+  }
+
+  // generates the children of a container
+  private void generateChildren(ContainerSqlFragment container, int depth) {
+    for (SqlFragment fragment : container.getFragments()) {
+      generate(fragment, depth);
+    }
+  }
+
+  // generates a fragment
+  private void generate(SqlFragment fragment, int depth) {
+    if (fragment instanceof TextSqlFragment) {
+      String text = ((TextSqlFragment) fragment).getText();
+      if (LoopIndexText.parse(text) == null) {
+        _text.append(text);
+        int clause = SqlRenderContext.clauseOf(text);
+        if (clause != SqlRenderContext.CLAUSE_UNCHANGED) {
+          _textClause = clause;
+        }
+        return;
+      }
+      flushText(depth);
+      line(depth).append("c.text(").append(operand(fragment)).append(");\n");
+      return;
+    }
+    flushText(depth);
+    int op = operand(fragment);
+    if (fragment instanceof NameSqlFragment) {
+      generateChildren((NameSqlFragment) fragment, depth);
+
+    } else if (fragment instanceof IncludeSqlFragment) {
+      line(depth).append("c.include(").append(op).append(");\n");
+
+    } else if (fragment instanceof ValueSqlFragment) {
+      line(depth).append("c.value(").append(op).append(");\n");
+
+    } else if (fragment instanceof OffsetFetchSqlFragment) {
+      line(depth).append("c.offsetFetch(").append(op).append(");\n");
+
+    } else if (fragment instanceof SeekSqlFragment) {
+      line(depth).append("c.seek(").append(op).append(");\n");
+
+    } else if (fragment instanceof InSqlFragment) {
+      line(depth).append("c.in(").append(op).append(");\n");
+
+    } else if (fragment instanceof ConditionalSqlFragment) {
+      String method = (fragment instanceof AndSqlFragment ? "and" : (fragment instanceof OrSqlFragment ? "or" : "test"));
+      line(depth).append("if (c.").append(method).append("(").append(op).append(")) {\n");
+      generateNested((ContainerSqlFragment) fragment, depth + 1);
+      line(depth).append("}\n");
+
+    } else if (fragment instanceof OperatorSqlFragment) {
+      line(depth).append("int r").append(op).append(" = c.operatorBegin(").append(op).append(");\n");
+      line(depth).append("if (r").append(op).append(" != 0) {\n");
+      generateNested((ContainerSqlFragment) fragment, depth + 1);
+      line(depth + 1).append("c.operatorEnd(").append(op).append(", r").append(op).append(");\n");
+      line(depth).append("}\n");
+
+    } else if (fragment instanceof WhereSqlFragment) {
+      line(depth).append("int w").append(op).append(" = c.whereBegin();\n");
+      generateNested((ContainerSqlFragment) fragment, depth);
+      line(depth).append("c.whereEnd(w").append(op).append(");\n");
+
+    } else if (fragment instanceof PagingSqlFragment) {
+      line(depth).append("int p").append(op).append(" = c.pagingBegin();\n");
+      generateNested((ContainerSqlFragment) fragment, depth);
+      line(depth).append("c.pagingEnd(").append(op).append(", p").append(op).append(");\n");
+
+    } else if (fragment instanceof LoopSqlFragment) {
+      LoopSqlFragment loop = (LoopSqlFragment) fragment;
+      String size = "n" + op;
+      String index = "i" + op;
+      line(depth).append("int ").append(size).append(" = c.loopBegin(").append(op).append(");\n");
+      line(depth).append("if (").append(size).append(" > 0) {\n");
+      line(depth + 1).append("for (int ").append(index).append(" = 0; ").append(index).append(" < ").append(size)
+          .append("; ").append(index).append("++) {\n");
+      line(depth + 2).append("c.loopIndex(").append(index).append(");\n");
+      generateNested(loop, depth + 2);
+      if (loop.getJoin() != null) {
+        line(depth + 2).append("if (").append(index).append(" < ").append(size).append(" - 1) {\n");
+        generateNested(loop.getJoin(), depth + 3);
+        line(depth + 2).append("}\n");
+      }
+      line(depth + 1).append("}\n");
+      line(depth + 1).append("c.loopEnd();\n");
+      line(depth).append("}\n");
+
+    } else {
+      throw new IllegalArgumentException("Unknown fragment: " + fragment.getClass().getSimpleName());
+    }
+  }
+
+  // generates the children of a container whose content is conditional
+  private void generateNested(ContainerSqlFragment container, int depth) {
+    generateChildren(container, depth);
+    flushText(depth);
+  }
+
+  // appends the waiting text
+  private void flushText(int depth) {
+    if (_text.length() > 0) {
+      line(depth).append("c.append(").append(literal(_text.toString())).append(", ").append(_textClause).append(");\n");
+      _text.setLength(0);
+      _textClause = SqlRenderContext.CLAUSE_UNCHANGED;
+    }
+  }
+
+  // gets the index of the operand
+  private int operand(SqlFragment fragment) {
+    return _operands.get(fragment);
+  }
+
+  // starts a line at the indent of the depth
+  private StringBuilder line(int depth) {
+    for (int i = 0; i < depth; i++) {
+      _buf.append("  ");
+    }
+    return _buf;
+  }
+
+  // creates a Java string literal
+  private static String literal(String str) {
+    StringBuilder buf = new StringBuilder(str.length() + 2);
+    buf.append('"');
+    for (int i = 0; i < str.length(); i++) {
+      char ch = str.charAt(i);
+      switch (ch) {
+        case '"':
+          buf.append("\\\"");
+          break;
+        case '\\':
+          buf.append("\\\\");
+          break;
+        case '\n':
+          buf.append("\\n");
+          break;
+        case '\r':
+          buf.append("\\r");
+          break;
+        case '\t':
+          buf.append("\\t");
+          break;
+        default:
+          if (ch < 0x20 || ch > 0x7E) {
+            buf.append(String.format("\\u%04x", (int) ch));
+          } else {
+            buf.append(ch);
+          }
+          break;
+      }
+    }
+    return buf.append('"').toString();
+  }
+
+}
@@ -6,12 +6,10 @@
 package com.opengamma.elsql;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A parse of elsql formatted SQL.
@@ -19,108 +17,204 @@ import java.util.regex.Pattern;
  * The parser reads the file line by line and creates the named fragments of SQL for later use.
  * The format is whitespace-aware, with indentation defining blocks (where curly braces would be used in Java).
  * <p>
- * This class is mutable and intended for use by a single thread.
+ * Each line is scanned once to find the indent, the comment and the position of each tag.
+ * The tags are then parsed character by character, without the use of regular expressions.
+ * <p>
+ * This class is mutable and intended for use by a single thread,
+ * except that the sections returned by {@link #index()} parse under the lock of the parser.
  */
 final class ElSqlParser {
 
   /**
-   * An identifier.
+   * Tag kind for @INCLUDE.
+   * The tags that may appear anywhere in a line are first, in the order of priority.
    */
-  private static final String IDENTIFIER = "[A-Za-z0-9_]+";
+  private static final int TAG_INCLUDE = 0;
   /**
-   * A variable.
+   * Tag kind for @LIKE.
    */
-  private static final String VARIABLE = "[:](?:[A-Za-z0-9_]+|[$]?[{][A-Za-z0-9_.]+[}])";
+  private static final int TAG_LIKE = 1;
   /**
-   * A variable or literal number.
+   * Tag kind for @EQUALS.
    */
-  private static final String VARIABLE_OR_LITERAL = "[0-9]+|" + VARIABLE;
+  private static final int TAG_EQUALS = 2;
   /**
-   * A variable with possible LOOPINDEX suffix.
+   * Tag kind for @OFFSETFETCH.
    */
-  private static final String VARIABLE_LOOPINDEX =
-      "[:](?:[A-Za-z0-9_]+(?:@LOOPINDEX[123]?)?|[$]?[{][A-Za-z0-9_.]+(?:@LOOPINDEX[123]?)?[}])";
+  private static final int TAG_OFFSETFETCH = 3;
   /**
-   * Text to match in AND/OR/IF.
+   * Tag kind for @FETCH.
    */
-  private static final String QUERY_TEXT = "[A-Za-z0-9_]+";
-
+  private static final int TAG_FETCH = 4;
+  /**
+   * Tag kind for @VALUE.
+   */
+  private static final int TAG_VALUE = 5;
+  /**
+   * Tag kind for @LOOPJOIN.
+   */
+  private static final int TAG_LOOPJOIN = 6;
+  /**
+   * Tag kind for @IN.
+   */
+  private static final int TAG_IN = 7;
+  /**
+   * Tag kind for @NAME.
+   */
+  private static final int TAG_NAME = 8;
   /**
-   * The regex for @NAME(identifier).
+   * Tag kind for @PAGING.
    */
-  private static final Pattern NAME_PATTERN = Pattern.compile(
-      "[ ]*[@]NAME[(](" + IDENTIFIER + ")[)][ ]*");
+  private static final int TAG_PAGING = 9;
   /**
-   * The regex for @AND(variable = query).
+   * Tag kind for @WHERE.
    */
-  private static final Pattern AND_PATTERN = Pattern.compile(
-      "[ ]*[@]AND[(](" + VARIABLE_LOOPINDEX + ")" + "([ ]?[=][ ]?" + QUERY_TEXT + ")?" + "[)][ ]*");
+  private static final int TAG_WHERE = 10;
   /**
-   * The regex for @OR(variable = query).
+   * Tag kind for @AND.
    */
-  private static final Pattern OR_PATTERN = Pattern.compile(
-      "[ ]*[@]OR[(](" + VARIABLE_LOOPINDEX + ")" + "([ ]?[=][ ]?" + QUERY_TEXT + ")?" + "[)][ ]*");
+  private static final int TAG_AND = 11;
   /**
-   * The regex for @IF(variable = query).
+   * Tag kind for @OR.
    */
-  private static final Pattern IF_PATTERN = Pattern.compile(
-      "[ ]*[@]IF[(](" + VARIABLE_LOOPINDEX + ")" + "([ ]?[=][ ]?" + QUERY_TEXT + ")?" + "[)][ ]*");
+  private static final int TAG_OR = 12;
   /**
-   * The regex for @LOOP(variable)
+   * Tag kind for @IF.
    */
-  private static final Pattern LOOP_PATTERN = Pattern.compile(
-      "[ ]*[@]LOOP[(](" + VARIABLE_OR_LITERAL + ")[)][ ]*");
+  private static final int TAG_IF = 13;
   /**
-   * The regex for @INCLUDE(variable|identifier)
+   * Tag kind for @LOOPINDEX.
    */
-  private static final Pattern INCLUDE_PATTERN = Pattern.compile(
-      "[@]INCLUDE[(](" + VARIABLE + "|" + IDENTIFIER + ")[)](.*)");
+  private static final int TAG_LOOPINDEX = 14;
   /**
-   * The regex for @PAGING(offsetVariableOrLiteral,fetchVariableOrLiteral)
+   * Tag kind for @LOOP.
    */
-  private static final Pattern PAGING_PATTERN = Pattern.compile(
-      "[@]PAGING[(](" + VARIABLE_OR_LITERAL + ")[ ]?[,][ ]?(" + VARIABLE_OR_LITERAL + ")[)](.*)");
+  private static final int TAG_LOOP = 15;
   /**
-   * The regex for @OFFSETFETCH(offsetVariableOrLiteral,fetchVariableOrLiteral)
+   * Tag kind for @ENDLIKE.
    */
-  private static final Pattern OFFSET_FETCH_PATTERN = Pattern.compile(
-      "[@]OFFSETFETCH[(](" + VARIABLE_OR_LITERAL + ")[ ]?[,][ ]?(" + VARIABLE_OR_LITERAL + ")[)](.*)");
+  private static final int TAG_ENDLIKE = 16;
   /**
-   * The regex for @FETCH(fetchVariableOrLiteral)
+   * Tag kind for @ENDEQUALS.
    */
-  private static final Pattern FETCH_PATTERN = Pattern.compile(
-      "[@]FETCH[(](" + VARIABLE_OR_LITERAL + ")[)](.*)");
+  private static final int TAG_ENDEQUALS = 17;
   /**
-   * The regex for @VALUE(variable)
+   * Tag kind for @SEEK.
    */
-  private static final Pattern VALUE_PATTERN = Pattern.compile(
-      "[@]VALUE[(](" + VARIABLE_LOOPINDEX + ")[)]( )*(.*)");
+  private static final int TAG_SEEK = 18;
   /**
-   * The regex for @LIKE and @EQUALS :variable
+   * The number of tag kinds that may appear anywhere in a line.
    */
-  private static final Pattern OPERATOR_VARIABLE_PATTERN = Pattern.compile(
-      "([^:])*(" + VARIABLE_LOOPINDEX + ")(.*)");
+  private static final int INLINE_TAGS = 8;
   /**
+   * The tag names, indexed by kind.
+   * A name that is a prefix of another must be later in the array.
+   */
+  private static final String[] TAG_NAMES = {
+    "@INCLUDE", "@LIKE", "@EQUALS", "@OFFSETFETCH", "@FETCH", "@VALUE", "@LOOPJOIN", "@IN",
+    "@NAME", "@PAGING", "@WHERE", "@AND", "@OR", "@IF", "@LOOPINDEX", "@LOOP", "@ENDLIKE", "@ENDEQUALS", "@SEEK",
+  };
 
   /**
-   * The input.
+   * The input, excluding comments and blank lines.
    */
-  private final List<Line> _lines = new ArrayList<Line>();
+  private final Line[] _lines;
+  /**
+   * The first line containing a tab, null if none.
+   */
+  private final Line _tabLine;
+  /**
+   * The index of the next line to parse.
+   */
+  private int _index;
   /**
    * The parsed output.
    */
   private Map<String, NameSqlFragment> _namedFragments = new LinkedHashMap<String, NameSqlFragment>();
+  /**
+   * The table of variables, shared by the files of a bundle.
+   */
+  private final SqlVariables _variables;
+  /**
+   * The containers being parsed, outermost first.
+   */
+  private final List<ContainerSqlFragment> _containers = new ArrayList<ContainerSqlFragment>();
+  /**
+   * The container of the most recent LOOPJOIN tag, null if none.
+   */
+  private ContainerSqlFragment _loopJoinContainer;
 
   /**
    * Creates the parser.
    * 
    * @param lines  the lines, not null
+   * @param variables  the table of variables to register in, not null
+   */
+  ElSqlParser(List<String> lines, SqlVariables variables) {
+    this(toLines(lines), variables);
+  }
+
+  /**
+   * Creates the parser for the whole content of a file.
+   * <p>
+   * The lines are held as offsets into the content, which is not split into separate strings.
+   * Lines are terminated by a line feed, a carriage return, or a carriage return followed by a line feed.
+   * 
+   * @param content  the content of the file, not null
+   * @param variables  the table of variables to register in, not null
    */
-  ElSqlParser(List<String> lines) {
-    for (int i = 0; i < lines.size(); i++) {
-      String line = lines.get(i);
-      _lines.add(new Line(line, i + 1));
+  ElSqlParser(String content, SqlVariables variables) {
+    this(toLines(content), variables);
+  }
+
+  /**
+   * Creates the parser.
+   * 
+   * @param lines  the lines, including comments, not null
+   * @param variables  the table of variables to register in, not null
+   */
+  private ElSqlParser(Line[] lines, SqlVariables variables) {
+    _variables = variables;
+    List<Line> parsed = new ArrayList<Line>(lines.length);
+    Line tabLine = null;
+    for (Line line : lines) {
+      if (tabLine == null && line.containsTab()) {
+        tabLine = line;
+      }
+      if (line.isComment() == false) {
+        parsed.add(line);
+      }
     }
+    _lines = parsed.toArray(new Line[parsed.size()]);
+    _tabLine = tabLine;
+  }
+
+  // converts each string to a line
+  private static Line[] toLines(List<String> lines) {
+    Line[] result = new Line[lines.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new Line(lines.get(i), i + 1);
+    }
+    return result;
+  }
+
+  // splits the content into lines, matching BufferedReader.readLine()
+  private static Line[] toLines(String content) {
+    List<Line> result = new ArrayList<Line>();
+    int length = content.length();
+    int start = 0;
+    while (start < length) {
+      int end = start;
+      while (end < length && content.charAt(end) != '\n' && content.charAt(end) != '\r') {
+        end++;
+      }
+      result.add(new Line(content, start, end, result.size() + 1));
+      start = end + 1;
+      if (end + 1 < length && content.charAt(end) == '\r' && content.charAt(end + 1) == '\n') {
+        start++;
+      }
+    }
+    return result.toArray(new Line[result.size()]);
   }
 
   //-------------------------------------------------------------------------
@@ -135,14 +229,70 @@ final class ElSqlParser {
     return _namedFragments;
   }
 
+  /**
+   * Index the input returning the named sections, without parsing their contents.
+   * <p>
+   * The format of each NAME tag is checked, as is the absence of anything else at the root level.
+   * The contents of each section are parsed when first requested.
+   * A section containing a nested NAME tag is parsed immediately, as the nested name
+   * must be known in advance.
+   * 
+   * @return the map of named sections, keyed by name, not null
+   */
+  Map<String, Section> index() {
+    rejectTabs();
+    Map<String, Section> sections = new LinkedHashMap<String, Section>();
+    int index = 0;
+    while (index < _lines.length) {
+      Line line = _lines[index];
+      if (line.tagAtStart() != TAG_NAME) {
+        throw new IllegalArgumentException("Invalid fragment found at root level, only @NAME is permitted: " + line);
+      }
+      String name = parseNameTag(line).getName();
+      int end = index + 1;
+      boolean nested = false;
+      while (end < _lines.length && _lines[end].indent() > line.indent()) {
+        nested |= (_lines[end].tagAtStart() == TAG_NAME);
+        end++;
+      }
+      if (end == index + 1) {
+        throw new IllegalArgumentException(TAG_NAMES[TAG_NAME] + " found with no subsequent indented lines: " + line);
+      }
+      if (nested) {
+        _namedFragments.clear();
+        _namedFragments.put(name, parseSection(index));
+        for (NameSqlFragment fragment : _namedFragments.values()) {
+          sections.put(fragment.getName(), new Section(fragment));
+        }
+      } else {
+        sections.put(name, new Section(this, index, name));
+      }
+      index = end;
+    }
+    _namedFragments.clear();
+    return sections;
+  }
+
+  /**
+   * Parses the section starting with the NAME tag on the line at the index.
+   * 
+   * @param index  the index of the line of the NAME tag
+   * @return the fragment, not null
+   */
+  private NameSqlFragment parseSection(int index) {
+    Line line = _lines[index];
+    NameSqlFragment fragment = parseNameTag(line);
+    _index = index + 1;
+    parseContainerTagContents(new ContainerSqlFragment(), fragment, line, TAG_NAME);
+    return fragment;
+  }
+
   /**
    * Ensure that there are no tabs.
    */
   private void rejectTabs() {
-    for (Line line : _lines) {
-      if (line.containsTab()) {
-        throw new IllegalArgumentException("Tab character not permitted: " + line);
-      }
+    if (_tabLine != null) {
+      throw new IllegalArgumentException("Tab character not permitted: " + _tabLine);
     }
   }
 
@@ -151,184 +301,280 @@ final class ElSqlParser {
    */
   private void parseNamedSections() {
     ContainerSqlFragment containerFragment = new ContainerSqlFragment();
-    parseContainerSection(containerFragment, _lines.listIterator(), -1);
+    _index = 0;
+    parseContainerSection(containerFragment, -1);
   }
 
   /**
    * Parses a container section.
    * <p>
    * A container is any section indented to the same amount.
+   * The lines are read from the current index, which is left at the first line not in the section.
    * 
    * @param container  the container to add to, not null
-   * @param lineIterator  the iterator, not null
    * @param indent  the current indent, negative if no indent
    */
-  private void parseContainerSection(ContainerSqlFragment container, ListIterator<Line> lineIterator, int indent) {
-    while (lineIterator.hasNext()) {
-      Line line = lineIterator.next();
-      if (line.isComment()) {
-        lineIterator.remove();
-        continue;
-      }
+  private void parseContainerSection(ContainerSqlFragment container, int indent) {
+    _containers.add(container);
+    parseContainerLines(container, indent);
+    _containers.remove(_containers.size() - 1);
+  }
+
+  /**
+   * Parses the lines of a container section.
+   * 
+   * @param container  the container to add to, not null
+   * @param indent  the current indent, negative if no indent
+   */
+  private void parseContainerLines(ContainerSqlFragment container, int indent) {
+    while (_index < _lines.length) {
+      Line line = _lines[_index];
       if (line.indent() <= indent) {
-        lineIterator.previous();
         return;
       }
-      String trimmed = line.lineTrimmed();
-      if (trimmed.startsWith("@NAME")) {
-        Matcher nameMatcher = NAME_PATTERN.matcher(trimmed);
-        if (nameMatcher.matches() == false) {
-          throw new IllegalArgumentException("@NAME found with invalid format: " + line);
-        }
-        NameSqlFragment nameFragment = new NameSqlFragment(nameMatcher.group(1));
-        parseContainerSection(nameFragment, lineIterator, line.indent());
-        if (nameFragment.getFragments().size() == 0) {
-          throw new IllegalArgumentException("@NAME found with no subsequent indented lines: " + line);
-        }
-        container.addFragment(nameFragment);
+      _index++;
+      int tag = line.tagAtStart();
+      int loopJoin = line.findTag(TAG_LOOPJOIN, line.start(), line.end());
+      if (tag == TAG_NAME) {
+        NameSqlFragment nameFragment = parseNameTag(line);
+        parseContainerTagContents(container, nameFragment, line, tag);
         _namedFragments.put(nameFragment.getName(), nameFragment);
         
       } else if (indent < 0) {
         throw new IllegalArgumentException("Invalid fragment found at root level, only @NAME is permitted: " + line);
         
-      } else if (trimmed.startsWith("@PAGING")) {
-        Matcher pagingMatcher = PAGING_PATTERN.matcher(trimmed);
-        if (pagingMatcher.matches() == false) {
-          throw new IllegalArgumentException("@PAGING found with invalid format: " + line);
-        }
-        PagingSqlFragment whereFragment = new PagingSqlFragment(pagingMatcher.group(1), pagingMatcher.group(2));
-        parseContainerSection(whereFragment, lineIterator, line.indent());
-        if (whereFragment.getFragments().size() == 0) {
-          throw new IllegalArgumentException("@PAGING found with no subsequent indented lines: " + line);
-        }
-        container.addFragment(whereFragment);
+      } else if (tag == TAG_PAGING || tag == TAG_WHERE || tag == TAG_AND || tag == TAG_OR || tag == TAG_IF) {
+        parseContainerTagContents(container, parseContainerTag(line, tag), line, tag);
         
-      } else if (trimmed.startsWith("@WHERE")) {
-        if (trimmed.equals("@WHERE") == false) {
-          throw new IllegalArgumentException("@WHERE found with invalid format: " + line);
-        }
-        WhereSqlFragment whereFragment = new WhereSqlFragment();
-        parseContainerSection(whereFragment, lineIterator, line.indent());
-        if (whereFragment.getFragments().size() == 0) {
-          throw new IllegalArgumentException("@WHERE found with no subsequent indented lines: " + line);
-        }
-        container.addFragment(whereFragment);
+      } else if (loopJoin >= 0) {
+        parseLoopJoinTag(container, line, loopJoin, indent);
         
-      } else if (trimmed.startsWith("@AND")) {
-        Matcher andMatcher = AND_PATTERN.matcher(trimmed);
-        if (andMatcher.matches() == false) {
-          throw new IllegalArgumentException("@AND found with invalid format: " + line);
-        }
-        AndSqlFragment andFragment = new AndSqlFragment(andMatcher.group(1), extractVariable(andMatcher.group(2)));
-        parseContainerSection(andFragment, lineIterator, line.indent());
-        if (andFragment.getFragments().size() == 0) {
-          throw new IllegalArgumentException("@AND found with no subsequent indented lines: " + line);
-        }
-        container.addFragment(andFragment);
+      } else if (tag == TAG_LOOP) {
+        parseContainerTagContents(container, parseContainerTag(line, tag), line, tag);
+        
+      } else if (tag == TAG_SEEK) {
+        container.addFragment(parseSeekTag(line));
         
-      } else if (trimmed.startsWith("@OR")) {
-        Matcher orMatcher = OR_PATTERN.matcher(trimmed);
-        if (orMatcher.matches() == false) {
-          throw new IllegalArgumentException("@OR found with invalid format: " + line);
+      } else {
+        parseLine(container, line);
+      }
+    }
+  }
+
+  /**
+   * Parses the indented lines following a tag that starts a block, adding the block to the container.
+   * 
+   * @param container  the container to add to, not null
+   * @param fragment  the fragment representing the tag, not null
+   * @param line  the line of the tag, not null
+   * @param tag  the tag kind
+   */
+  private void parseContainerTagContents(
+      ContainerSqlFragment container, ContainerSqlFragment fragment, Line line, int tag) {
+    parseContainerSection(fragment, line.indent());
+    if (fragment.getFragments().size() == 0 && fragment != _loopJoinContainer) {
+      throw new IllegalArgumentException(TAG_NAMES[tag] + " found with no subsequent indented lines: " + line);
+    }
+    container.addFragment(fragment);
+  }
+
+  /**
+   * Parses the NAME tag.
+   * <p>
+   * The tag must be the only content of the line.
+   * 
+   * @param line  the line to parse, not null
+   * @return the fragment, not null
+   */
+  private NameSqlFragment parseNameTag(Line line) {
+    String text = line.text();
+    int end = line.end();
+    int nameStart = expect(text, line.start() + TAG_NAMES[TAG_NAME].length(), end, '(');
+    int nameEnd = scanIdentifier(text, nameStart, end);
+    if (expect(text, nameEnd, end, ')') != end) {
+      throw invalidFormat(TAG_NAME, line);
+    }
+    return new NameSqlFragment(text.substring(nameStart, nameEnd));
+  }
+
+  /**
+   * Parses a tag that starts a block, other than NAME.
+   * <p>
+   * The tag must be the only content of the line, except that PAGING ignores any content following it.
+   * 
+   * @param line  the line to parse, not null
+   * @param tag  the tag kind
+   * @return the fragment, not null
+   */
+  private ContainerSqlFragment parseContainerTag(Line line, int tag) {
+    String text = line.text();
+    int end = line.end();
+    int argStart = expect(text, line.start() + TAG_NAMES[tag].length(), end, '(');
+    switch (tag) {
+      case TAG_PAGING: {
+        int offsetEnd = scanVariableOrLiteral(text, argStart, end);
+        int fetchStart = skipSpace(text, expect(text, skipSpace(text, offsetEnd, end), end, ','), end);
+        int fetchEnd = scanVariableOrLiteral(text, fetchStart, end);
+        if (expect(text, fetchEnd, end, ')') < 0) {
+          throw invalidFormat(tag, line);
         }
-        OrSqlFragment orFragment = new OrSqlFragment(orMatcher.group(1), extractVariable(orMatcher.group(2)));
-        parseContainerSection(orFragment, lineIterator, line.indent());
-        if (orFragment.getFragments().size() == 0) {
-          throw new IllegalArgumentException("@OR found with no subsequent indented lines: " + line);
+        return new PagingSqlFragment(text.substring(argStart, offsetEnd), text.substring(fetchStart, fetchEnd), _variables);
+      }
+      case TAG_WHERE: {
+        if (end - line.start() != TAG_NAMES[tag].length()) {
+          throw invalidFormat(tag, line);
         }
-        container.addFragment(orFragment);
-        
-      } else if (trimmed.startsWith("@IF")) {
-        Matcher ifMatcher = IF_PATTERN.matcher(trimmed);
-        if (ifMatcher.matches() == false) {
-          throw new IllegalArgumentException("@IF found with invalid format: " + line);
+        return new WhereSqlFragment();
+      }
+      case TAG_LOOP: {
+        int argEnd = scanVariableOrLiteral(text, argStart, end);
+        if (expect(text, argEnd, end, ')') != end) {
+          throw invalidFormat(tag, line);
         }
-        IfSqlFragment ifFragment = new IfSqlFragment(ifMatcher.group(1), extractVariable(ifMatcher.group(2)));
-        parseContainerSection(ifFragment, lineIterator, line.indent());
-        if (ifFragment.getFragments().size() == 0) {
-          throw new IllegalArgumentException("@IF found with no subsequent indented lines: " + line);
+        return new LoopSqlFragment(text.substring(argStart, argEnd), _variables);
+      }
+      default: {
+        // AND, OR and IF, with an optional match value
+        int varEnd = scanVariable(text, argStart, end, true);
+        int matchStart = skipSpace(text, expect(text, skipSpace(text, varEnd, end), end, '='), end);
+        int matchEnd = scanIdentifier(text, matchStart, end);
+        int close = expect(text, matchEnd >= 0 ? matchEnd : varEnd, end, ')');
+        if (close != end) {
+          throw invalidFormat(tag, line);
         }
-        container.addFragment(ifFragment);
-        
-      } else if (trimmed.startsWith("@LOOP")) {
-        if (trimmed.startsWith("@LOOPINDEX") || trimmed.startsWith("@LOOPJOIN")) {
-          parseLine(container, line);
-        } else {
-          Matcher loopMatcher = LOOP_PATTERN.matcher(trimmed);
-          if (loopMatcher.matches() == false) {
-            throw new IllegalArgumentException("@LOOP found with invalid format: " + line);
-          }
-          LoopSqlFragment loopFragment = new LoopSqlFragment(loopMatcher.group(1));
-          parseContainerSection(loopFragment, lineIterator, line.indent());
-          if (loopFragment.getFragments().size() == 0) {
-            throw new IllegalArgumentException("@LOOP found with no subsequent indented lines: " + line);
-          }
-          container.addFragment(loopFragment);
+        String variable = text.substring(argStart, varEnd);
+        String matchValue = (matchEnd >= 0 ? text.substring(matchStart, matchEnd) : null);
+        if (tag == TAG_AND) {
+          return new AndSqlFragment(variable, matchValue, _variables);
+        } else if (tag == TAG_OR) {
+          return new OrSqlFragment(variable, matchValue, _variables);
         }
-        
-      } else {
-        parseLine(container, line);
+        return new IfSqlFragment(variable, matchValue, _variables);
       }
     }
   }
 
   /**
-   * Extracts a variable from the input.
+   * Parses the SEEK tag.
+   * <p>
+   * The tag must be the only content of the line.
+   * Each argument is a column name, optionally followed by ASC or DESC, followed by the variable
+   * holding the last-seen value of the column, such as {@code @SEEK(name :last_name, id DESC :last_id)}.
    * 
-   * @param text  the text to parse, may be null
-   * @return the variable, null if none
+   * @param line  the line to parse, not null
+   * @return the fragment, not null
    */
-  private String extractVariable(String text) {
-    if (text == null) {
-      return null;
+  private SeekSqlFragment parseSeekTag(Line line) {
+    String text = line.text();
+    int end = line.end();
+    List<String> columns = new ArrayList<String>();
+    List<Boolean> descending = new ArrayList<Boolean>();
+    List<String> variables = new ArrayList<String>();
+    int pos = expect(text, line.start() + TAG_NAMES[TAG_SEEK].length(), end, '(');
+    while (true) {
+      int columnEnd = scanColumn(text, pos, end);
+      int directionStart = expect(text, columnEnd, end, ' ');
+      int directionEnd = directionStart;
+      if (directionStart >= 0 && text.startsWith("DESC ", directionStart)) {
+        directionEnd = directionStart + 5;
+      } else if (directionStart >= 0 && text.startsWith("ASC ", directionStart)) {
+        directionEnd = directionStart + 4;
+      }
+      int varEnd = scanVariable(text, directionEnd, end, false);
+      if (varEnd < 0) {
+        throw invalidFormat(TAG_SEEK, line);
+      }
+      columns.add(text.substring(pos, columnEnd));
+      descending.add(text.startsWith("DESC ", directionStart));
+      variables.add(text.substring(directionEnd, varEnd));
+      int next = skipSpace(text, varEnd, end);
+      int comma = expect(text, next, end, ',');
+      if (comma < 0) {
+        if (expect(text, next, end, ')') != end) {
+          throw invalidFormat(TAG_SEEK, line);
+        }
+        break;
+      }
+      pos = skipSpace(text, comma, end);
     }
-    text = text.trim();
-    if (text.startsWith("=")) {
-      return extractVariable(text.substring(1));
+    boolean[] directions = new boolean[descending.size()];
+    for (int i = 0; i < directions.length; i++) {
+      directions[i] = descending.get(i);
     }
-    return text;
+    return new SeekSqlFragment(
+        columns.toArray(new String[columns.size()]), directions, variables.toArray(new String[variables.size()]), _variables);
   }
 
   /**
-   * Parses a single line, or remainder of a line.
+   * Parses a single line.
    * 
    * @param container  the container to add to, not null
    * @param line  the line to parse, not null
    */
   private void parseLine(ContainerSqlFragment container, Line line) {
-    String trimmed = line.lineTrimmed();
-    if (trimmed.length() == 0) {
+    parseLine(container, line, line.start(), line.end(), true);
+  }
+
+  /**
+   * Parses part of a line.
+   * <p>
+   * The tag with the highest priority is parsed first, with the text before and after it
+   * parsed recursively. The text of the part is not trimmed.
+   * 
+   * @param container  the container to add to, not null
+   * @param line  the line to parse, not null
+   * @param start  the start index of the part in the text of the line
+   * @param end  the end index of the part in the text of the line
+   * @param endOfLine  whether the part ends at the end of the line
+   */
+  private void parseLine(ContainerSqlFragment container, Line line, int start, int end, boolean endOfLine) {
+    if (start >= end) {
       return;
     }
-    if (trimmed.contains("@INCLUDE")) {
-      parseIncludeTag(container, line);
-      
-    } else  if (trimmed.contains("@LIKE")) {
-      parseOperatorTag(container, line, "@LIKE");
-      
-    } else  if (trimmed.contains("@EQUALS")) {
-      parseOperatorTag(container, line, "@EQUALS");
-        
-    } else  if (trimmed.contains("@OFFSETFETCH")) {
-      parseOffsetFetchTag(container, line);
-      
-    } else  if (trimmed.contains("@FETCH")) {
-      parseFetchTag(container, line);
-      
-    } else  if (trimmed.contains("@VALUE")) {
-      parseValueTag(container, line);
-      
-    } else  if (trimmed.contains("@LOOPJOIN")) {
-      TextSqlFragment textFragment = new TextSqlFragment(trimmed, line.endOfLine());
-      container.addFragment(textFragment);
-      
-    } else if (trimmed.startsWith("@")) {
-      throw new IllegalArgumentException("Unknown tag at start of line: " + line);
-      
-    } else {
-      TextSqlFragment textFragment = new TextSqlFragment(trimmed, line.endOfLine());
-      container.addFragment(textFragment);
+    String text = line.text();
+    int tag = INLINE_TAGS;
+    int pos = -1;
+    for (int i = 0; i < line.tagCount(); i++) {
+      int tagPos = line.tagPosition(i);
+      if (tagPos >= start && tagPos < end && line.tagKind(i) < tag) {
+        tag = line.tagKind(i);
+        pos = tagPos;
+      }
+    }
+    if (pos < 0) {
+      if (text.charAt(start) == '@') {
+        throw new IllegalArgumentException("Unknown tag at start of line: " + line);
+      }
+      container.addFragment(new TextSqlFragment(text.substring(start, end), endOfLine));
+      return;
     }
+    if (tag == TAG_LOOPJOIN) {
+      throw invalidFormat(tag, line);
+    }
+    parseLine(container, line, start, pos, false);
+    int remainder;
+    switch (tag) {
+      case TAG_INCLUDE:
+        remainder = parseIncludeTag(container, line, pos, end);
+        break;
+      case TAG_LIKE:
+      case TAG_EQUALS:
+        remainder = parseOperatorTag(container, line, pos, end, endOfLine, tag);
+        break;
+      case TAG_OFFSETFETCH:
+        remainder = parseOffsetFetchTag(container, line, pos, end);
+        break;
+      case TAG_FETCH:
+        remainder = parseFetchTag(container, line, pos, end);
+        break;
+      case TAG_IN:
+        remainder = parseInTag(container, line, pos, end);
+        break;
+      default:
+        remainder = parseValueTag(container, line, pos, end);
+        break;
+    }
+    parseLine(container, line, remainder, end, endOfLine);
   }
 
   /**
@@ -336,235 +582,557 @@ final class ElSqlParser {
    * <p>
    * This tag can appear anywhere in a line.
    * It substitutes the entire content of the named section in at this point.
-   * The text before is treated as simple text.
-   * The text after is parsed.
    * 
    * @param container  the container to add to, not null
    * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param end  the end index of the part being parsed
+   * @return the index of the text after the tag
    */
-  private void parseIncludeTag(ContainerSqlFragment container, Line line) {
-    Line[] split = line.split(line.lineTrimmed().indexOf("@INCLUDE"));
-    parseLine(container, split[0]);
-    String trimmed = split[1].lineTrimmed();
-    
-    Matcher matcher = INCLUDE_PATTERN.matcher(trimmed);
-    if (matcher.matches() == false) {
-      throw new IllegalArgumentException("@INCLUDE found with invalid format: " + line);
+  private int parseIncludeTag(ContainerSqlFragment container, Line line, int pos, int end) {
+    String text = line.text();
+    int argStart = expect(text, pos + TAG_NAMES[TAG_INCLUDE].length(), end, '(');
+    int argEnd;
+    if (argStart >= 0 && argStart < end && text.charAt(argStart) == ':') {
+      argEnd = scanVariable(text, argStart, end, false);
+    } else {
+      argEnd = scanIdentifier(text, argStart, end);
     }
-    IncludeSqlFragment includeFragment = new IncludeSqlFragment(matcher.group(1));
-    container.addFragment(includeFragment);
+    int close = expect(text, argEnd, end, ')');
+    if (close < 0) {
+      throw invalidFormat(TAG_INCLUDE, line);
+    }
+    container.addFragment(new IncludeSqlFragment(text.substring(argStart, argEnd), _variables));
+    return close;
+  }
+
+  /**
+   * Parse LOOPJOIN tag.
+   * <p>
+   * This tag can appear anywhere in a line within a loop, including within a conditional block of the loop.
+   * The text before is parsed.
+   * The text after, and any subsequent lines at the same level, form the join
+   * that the loop outputs at the end of each iteration except the last.
+   * Where the tag is within conditional blocks of the loop, the join is only output if they all match.
+   * 
+   * @param container  the container to add to, not null
+   * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param indent  the current indent
+   */
+  private void parseLoopJoinTag(ContainerSqlFragment container, Line line, int pos, int indent) {
+    int loopPos = _containers.size() - 1;
+    while (loopPos >= 0 && _containers.get(loopPos) instanceof LoopSqlFragment == false) {
+      loopPos--;
+    }
+    if (loopPos < 0) {
+      throw new IllegalArgumentException("@LOOPJOIN found outside of @LOOP: " + line);
+    }
+    LoopSqlFragment loopFragment = (LoopSqlFragment) _containers.get(loopPos);
+    if (loopFragment.getJoin() != null) {
+      throw new IllegalArgumentException("@LOOPJOIN found more than once in @LOOP: " + line);
+    }
+    parseLine(container, line, line.start(), pos, false);
+    _loopJoinContainer = container;
     
-    Line subLine = split[1].splitRemainder(matcher.start(2));
-    parseLine(container, subLine);
+    // the join is output by the loop, so repeat the conditions between the loop and the tag
+    LoopJoinSqlFragment joinFragment = new LoopJoinSqlFragment();
+    loopFragment.setJoin(joinFragment);
+    ContainerSqlFragment joinContainer = joinFragment;
+    for (int i = loopPos + 1; i < _containers.size(); i++) {
+      if (_containers.get(i) instanceof ConditionalSqlFragment) {
+        ConditionalSqlFragment condition = (ConditionalSqlFragment) _containers.get(i);
+        IfSqlFragment ifFragment = new IfSqlFragment(":" + condition.getVariable(), condition.getMatchValue(), _variables);
+        joinContainer.addFragment(ifFragment);
+        joinContainer = ifFragment;
+      }
+    }
+    parseLine(joinContainer, line, pos + TAG_NAMES[TAG_LOOPJOIN].length(), line.end(), true);
+    parseContainerSection(joinContainer, indent);
   }
 
   /**
    * Parse Operator (LIKE or EQUALS) tag and optional END tag (ENDLIKE or ENDEQUALS)
    * <p>
    * This tag can appear anywhere in a line.
-   * The text before is treated as simple text.
-   * The text after is parsed.
+   * The text up to the END tag, or the end of the line, is the content of the operator.
    * 
    * @param container  the container to add to, not null
    * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param end  the end index of the part being parsed
+   * @param endOfLine  whether the part ends at the end of the line
+   * @param tag  the tag kind
+   * @return the index of the text after the tag
    */
-  private void parseOperatorTag(ContainerSqlFragment container, Line line, String tagName) {
-    Line[] split = line.split(line.lineTrimmed().indexOf(tagName));
-    parseLine(container, split[0]);
-    String trimmed = split[1].lineTrimmed();
-    
-    String content = trimmed.substring(tagName.length());
-    String endTag = "@END" + tagName.substring(1);
-    int end = trimmed.indexOf(endTag);
-    int remainderIndex = trimmed.length();
-    if (end >= 0) {
-      content = trimmed.substring(tagName.length(), end);
-      remainderIndex = end + endTag.length();
-    }
-    TextSqlFragment contentTextFragment = new TextSqlFragment(content, line.endOfLine());
-    Matcher matcher = OPERATOR_VARIABLE_PATTERN.matcher(content);
-    if (matcher.matches() == false) {
-      throw new IllegalArgumentException(tagName + " found with invalid format: " + line);
-    }
-    String variable = matcher.group(2);
-    OperatorSqlFragment operatorFragment = tagName.equals("@LIKE")
-        ? new LikeSqlFragment(variable)
-        : new EqualsSqlFragment(variable);
+  private int parseOperatorTag(ContainerSqlFragment container, Line line, int pos, int end, boolean endOfLine, int tag) {
+    String text = line.text();
+    int contentStart = pos + TAG_NAMES[tag].length();
+    int endTag = (tag == TAG_LIKE ? TAG_ENDLIKE : TAG_ENDEQUALS);
+    int contentEnd = line.findTag(endTag, contentStart, end);
+    int remainder = end;
+    if (contentEnd >= 0) {
+      remainder = contentEnd + TAG_NAMES[endTag].length();
+    } else {
+      contentEnd = end;
+    }
+    int varStart = text.indexOf(':', contentStart);
+    int varEnd = (varStart >= 0 && varStart < contentEnd ? scanVariable(text, varStart, contentEnd, true) : -1);
+    if (varEnd < 0) {
+      throw invalidFormat(tag, line);
+    }
+    String variable = text.substring(varStart, varEnd);
+    OperatorSqlFragment operatorFragment = (tag == TAG_LIKE)
+        ? new LikeSqlFragment(variable, _variables)
+        : new EqualsSqlFragment(variable, _variables);
     
     container.addFragment(operatorFragment);
-    operatorFragment.addFragment(contentTextFragment);
-    
-    Line subLine = split[1].splitRemainder(remainderIndex);
-    parseLine(container, subLine);
+    operatorFragment.addFragment(new TextSqlFragment(text.substring(contentStart, contentEnd), endOfLine));
+    return remainder;
   }
 
   /**
    * Parse OFFSET/FETCH tag.
    * <p>
    * This tag can appear anywhere in a line.
-   * The text before is treated as simple text.
-   * The text after is parsed.
    * 
    * @param container  the container to add to, not null
    * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param end  the end index of the part being parsed
+   * @return the index of the text after the tag
    */
-  private void parseOffsetFetchTag(ContainerSqlFragment container, Line line) {
-    Line[] split = line.split(line.lineTrimmed().indexOf("@OFFSETFETCH"));
-    parseLine(container, split[0]);
-    String trimmed = split[1].lineTrimmed();
-    
+  private int parseOffsetFetchTag(ContainerSqlFragment container, Line line, int pos, int end) {
+    String text = line.text();
     String offsetVariable = ":paging_offset";
     String fetchVariable = ":paging_fetch";
-    int remainderIndex = 12;
-    if (trimmed.startsWith("@OFFSETFETCH(")) {
-      Matcher matcher = OFFSET_FETCH_PATTERN.matcher(trimmed);
-      if (matcher.matches() == false) {
-        throw new IllegalArgumentException("@OFFSETFETCH found with invalid format: " + line);
+    int remainder = pos + TAG_NAMES[TAG_OFFSETFETCH].length();
+    if (remainder < end && text.charAt(remainder) == '(') {
+      int offsetStart = remainder + 1;
+      int offsetEnd = scanVariableOrLiteral(text, offsetStart, end);
+      int fetchStart = skipSpace(text, expect(text, skipSpace(text, offsetEnd, end), end, ','), end);
+      int fetchEnd = scanVariableOrLiteral(text, fetchStart, end);
+      remainder = expect(text, fetchEnd, end, ')');
+      if (remainder < 0) {
+        throw invalidFormat(TAG_OFFSETFETCH, line);
       }
-      offsetVariable = matcher.group(1);
-      fetchVariable = matcher.group(2);
-      remainderIndex = matcher.start(3);
+      offsetVariable = text.substring(offsetStart, offsetEnd);
+      fetchVariable = text.substring(fetchStart, fetchEnd);
     }
-    OffsetFetchSqlFragment pagingFragment = new OffsetFetchSqlFragment(offsetVariable, fetchVariable);
-    container.addFragment(pagingFragment);
-    
-    Line subLine = split[1].splitRemainder(remainderIndex);
-    parseLine(container, subLine);
+    container.addFragment(new OffsetFetchSqlFragment(offsetVariable, fetchVariable, _variables));
+    return remainder;
   }
 
   /**
    * Parse FETCH tag.
    * <p>
    * This tag can appear anywhere in a line.
-   * The text before is treated as simple text.
-   * The text after is parsed.
    * 
    * @param container  the container to add to, not null
    * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param end  the end index of the part being parsed
+   * @return the index of the text after the tag
    */
-  private void parseFetchTag(ContainerSqlFragment container, Line line) {
-    Line[] split = line.split(line.lineTrimmed().indexOf("@FETCH"));
-    parseLine(container, split[0]);
-    String trimmed = split[1].lineTrimmed();
-    
+  private int parseFetchTag(ContainerSqlFragment container, Line line, int pos, int end) {
+    String text = line.text();
     String fetchVariable = ":paging_fetch";
-    int remainderIndex = 6;
-    if (trimmed.startsWith("@FETCH(")) {
-      Matcher matcherVariable = FETCH_PATTERN.matcher(trimmed);
-      if (matcherVariable.matches()) {
-        fetchVariable = matcherVariable.group(1);
-        remainderIndex = matcherVariable.start(2);
-      } else {
-        throw new IllegalArgumentException("@FETCH found with invalid format: " + line);
+    int remainder = pos + TAG_NAMES[TAG_FETCH].length();
+    if (remainder < end && text.charAt(remainder) == '(') {
+      int fetchStart = remainder + 1;
+      int fetchEnd = scanVariableOrLiteral(text, fetchStart, end);
+      remainder = expect(text, fetchEnd, end, ')');
+      if (remainder < 0) {
+        throw invalidFormat(TAG_FETCH, line);
       }
+      fetchVariable = text.substring(fetchStart, fetchEnd);
     }
-    OffsetFetchSqlFragment pagingFragment = new OffsetFetchSqlFragment(fetchVariable);
-    container.addFragment(pagingFragment);
-    
-    Line subLine = split[1].splitRemainder(remainderIndex);
-    parseLine(container, subLine);
+    container.addFragment(new OffsetFetchSqlFragment(null, fetchVariable, _variables));
+    return remainder;
   }
 
   /**
    * Parse VALUE tag.
    * <p>
    * This tag can appear anywhere in a line.
-   * The text before is treated as simple text.
-   * The text after is parsed.
+   * Spaces following the tag are consumed, and output as a single space.
    * 
    * @param container  the container to add to, not null
    * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param end  the end index of the part being parsed
+   * @return the index of the text after the tag
    */
-  private void parseValueTag(ContainerSqlFragment container, Line line) {
-    Line[] split = line.split(line.lineTrimmed().indexOf("@VALUE"));
-    parseLine(container, split[0]);
-    Line lineStartingAtTag = split[1];
-    
-    Matcher matcher = VALUE_PATTERN.matcher(lineStartingAtTag.lineTrimmed());
-    if (matcher.matches() == false) {
-      throw new IllegalArgumentException("@VALUE found with invalid format: " + line);
+  private int parseValueTag(ContainerSqlFragment container, Line line, int pos, int end) {
+    String text = line.text();
+    int varStart = expect(text, pos + TAG_NAMES[TAG_VALUE].length(), end, '(');
+    int varEnd = scanVariable(text, varStart, end, true);
+    int close = expect(text, varEnd, end, ')');
+    if (close < 0) {
+      throw invalidFormat(TAG_VALUE, line);
+    }
+    int remainder = close;
+    while (remainder < end && text.charAt(remainder) == ' ') {
+      remainder++;
+    }
+    boolean followWithSpace = remainder > close || remainder == end;
+    container.addFragment(new ValueSqlFragment(text.substring(varStart, varEnd), followWithSpace, _variables));
+    return remainder;
+  }
+
+  /**
+   * Parse IN tag.
+   * <p>
+   * This tag can appear anywhere in a line.
+   * Spaces following the tag are consumed, and output as a single space.
+   * 
+   * @param container  the container to add to, not null
+   * @param line  the line to parse, not null
+   * @param pos  the index of the tag in the text of the line
+   * @param end  the end index of the part being parsed
+   * @return the index of the text after the tag
+   */
+  private int parseInTag(ContainerSqlFragment container, Line line, int pos, int end) {
+    String text = line.text();
+    int varStart = expect(text, pos + TAG_NAMES[TAG_IN].length(), end, '(');
+    int varEnd = scanVariable(text, varStart, end, true);
+    int close = expect(text, varEnd, end, ')');
+    if (close < 0) {
+      throw invalidFormat(TAG_IN, line);
+    }
+    int remainder = close;
+    while (remainder < end && text.charAt(remainder) == ' ') {
+      remainder++;
+    }
+    boolean followWithSpace = remainder > close || remainder == end;
+    container.addFragment(new InSqlFragment(text.substring(varStart, varEnd), followWithSpace, _variables));
+    return remainder;
+  }
+
+  /**
+   * Creates the exception for a tag with an invalid format.
+   * 
+   * @param tag  the tag kind
+   * @param line  the line, not null
+   * @return the exception, not null
+   */
+  private static IllegalArgumentException invalidFormat(int tag, Line line) {
+    return new IllegalArgumentException(TAG_NAMES[tag] + " found with invalid format: " + line);
+  }
+
+  //-------------------------------------------------------------------------
+  // The scanning methods take the index to start at and the end index of the text to scan.
+  // They return the index after the matched text, or -1 if the text does not match.
+  // A negative start index is treated as not matching, allowing the methods to be chained.
+
+  /**
+   * Finds the kind of tag at the specified index.
+   * <p>
+   * The IN tag is only recognised when directly followed by a bracket,
+   * as it was added later and is a prefix of words likely to be in literals, such as '@INFO'.
+   * 
+   * @param text  the text, not null
+   * @param pos  the index of the at sign
+   * @return the tag kind, -1 if not a known tag
+   */
+  static int tagAt(String text, int pos) {
+    for (int tag = 0; tag < TAG_NAMES.length; tag++) {
+      if (text.startsWith(TAG_NAMES[tag], pos)) {
+        if (tag == TAG_IN) {
+          int next = pos + TAG_NAMES[TAG_IN].length();
+          return (next < text.length() && text.charAt(next) == '(' ? tag : -1);
+        }
+        return tag;
+      }
+    }
+    return -1;
+  }
+
+  // matches the specified character
+  private static int expect(String text, int pos, int end, char ch) {
+    return (pos >= 0 && pos < end && text.charAt(pos) == ch ? pos + 1 : -1);
+  }
+
+  // matches an optional single space, always matching unless the start index is negative
+  private static int skipSpace(String text, int pos, int end) {
+    return (pos >= 0 && pos < end && text.charAt(pos) == ' ' ? pos + 1 : pos);
+  }
+
+  // matches an identifier, [A-Za-z0-9_]+
+  private static int scanIdentifier(String text, int pos, int end) {
+    if (pos < 0) {
+      return -1;
+    }
+    int i = pos;
+    while (i < end && isIdentifierChar(text.charAt(i))) {
+      i++;
+    }
+    return (i > pos ? i : -1);
+  }
+
+  // matches a column name, an identifier optionally qualified by dots
+  private static int scanColumn(String text, int pos, int end) {
+    int i = scanIdentifier(text, pos, end);
+    while (i >= 0 && i < end - 1 && text.charAt(i) == '.' && isIdentifierChar(text.charAt(i + 1))) {
+      i = scanIdentifier(text, i + 1, end);
+    }
+    return i;
+  }
+
+  // matches a variable, :identifier or :{identifier.with.dots} or :${identifier.with.dots}
+  // optionally followed by a loop index, which is within the braces if present
+  private static int scanVariable(String text, int pos, int end, boolean loopIndex) {
+    int i = expect(text, pos, end, ':');
+    if (i < 0) {
+      return -1;
+    }
+    if (i < end && isIdentifierChar(text.charAt(i))) {
+      i = scanIdentifier(text, i, end);
+      return (loopIndex ? scanLoopIndex(text, i, end) : i);
+    }
+    if (i < end && text.charAt(i) == '$') {
+      i++;
+    }
+    i = expect(text, i, end, '{');
+    if (i < 0) {
+      return -1;
+    }
+    int nameStart = i;
+    while (i < end && (isIdentifierChar(text.charAt(i)) || text.charAt(i) == '.')) {
+      i++;
+    }
+    if (i == nameStart) {
+      return -1;
+    }
+    return expect(text, (loopIndex ? scanLoopIndex(text, i, end) : i), end, '}');
+  }
+
+  // matches an optional loop index, @LOOPINDEX optionally followed by 1, 2 or 3
+  private static int scanLoopIndex(String text, int pos, int end) {
+    String tagName = TAG_NAMES[TAG_LOOPINDEX];
+    if (pos + tagName.length() > end || text.startsWith(tagName, pos) == false) {
+      return pos;
+    }
+    int i = pos + tagName.length();
+    if (i < end && text.charAt(i) >= '1' && text.charAt(i) <= '3') {
+      i++;
+    }
+    return i;
+  }
+
+  // matches a variable without loop index or a numeric literal, [0-9]+
+  private static int scanVariableOrLiteral(String text, int pos, int end) {
+    if (pos < 0 || pos >= end || isDigit(text.charAt(pos)) == false) {
+      return scanVariable(text, pos, end, false);
+    }
+    int i = pos;
+    while (i < end && isDigit(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isIdentifierChar(char ch) {
+    return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || isDigit(ch) || ch == '_';
+  }
+
+  private static boolean isDigit(char ch) {
+    return ch >= '0' && ch <= '9';
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * A named section of the input, parsed when first requested.
+   * <p>
+   * This class is thread-safe, parsing the section at most once.
+   */
+  static final class Section {
+    private final String _name;
+    private final ElSqlParser _parser;
+    private final int _index;
+    private volatile NameSqlFragment _fragment;
+
+    Section(NameSqlFragment fragment) {
+      _name = fragment.getName();
+      _parser = null;
+      _index = -1;
+      _fragment = fragment;
+    }
+
+    private Section(ElSqlParser parser, int index, String name) {
+      _name = name;
+      _parser = parser;
+      _index = index;
+    }
+
+    String getName() {
+      return _name;
+    }
+
+    /**
+     * Gets the fragment, parsing the section if necessary.
+     * 
+     * @return the fragment, not null
+     * @throws IllegalArgumentException if the section is invalid
+     */
+    NameSqlFragment parse() {
+      NameSqlFragment fragment = _fragment;
+      if (fragment == null) {
+        synchronized (_parser) {
+          fragment = _fragment;
+          if (fragment == null) {
+            fragment = _parser.parseSection(_index);
+            _fragment = fragment;
+          }
+        }
+      }
+      return fragment;
+    }
+
+    @Override
+    public String toString() {
+      return "Section " + _name;
     }
-    String followingSpaces = matcher.group(2);
-    Line subLine = lineStartingAtTag.splitRemainder(matcher.start(3));
-    boolean followWithSpace = (followingSpaces != null && followingSpaces.length() > 0) || subLine.lineTrimmed().isEmpty();
-    
-    ValueSqlFragment valueFragment = new ValueSqlFragment(matcher.group(1), followWithSpace);
-    container.addFragment(valueFragment);
-    
-    parseLine(container, subLine);
   }
 
   //-------------------------------------------------------------------------
   /**
    * Representation of a single line in the input.
+   * <p>
+   * The line is held as offsets into a text, which may be the content of the whole file.
+   * The line is scanned once when created, finding the indent, tabs, the comment and the tags.
+   * The index of each tag is an index into the text.
    */
   static final class Line {
-    private final String _line;
-    private final String _trimmed;
+    private final String _text;
+    private final int _lineStart;
+    private final int _lineEnd;
+    private final int _start;
+    private final int _end;
     private final int _lineNumber;
-    private final boolean _endOfLine;
+    private final int _indent;
+    private final boolean _tab;
+    private int[] _tagPositions;
+    private int[] _tagKinds;
+    private int _tagCount;
 
     Line(String line, int lineNumber) {
-      _line = line;
-      int commentPos = line.indexOf("--");
-      if (commentPos >= 0) {
-        _trimmed = line.substring(0, commentPos).trim();
-      } else {
-        _trimmed = line.trim();
-      }
-      _lineNumber = lineNumber;
-      _endOfLine = true;
+      this(line, 0, line.length(), lineNumber);
     }
 
-    Line(String line, String trimmed, int lineNumber, boolean endOfLine) {
-      _line = line;
-      _trimmed = trimmed;
+    Line(String text, int lineStart, int lineEnd, int lineNumber) {
+      _text = text;
+      _lineStart = lineStart;
+      _lineEnd = lineEnd;
       _lineNumber = lineNumber;
-      _endOfLine = endOfLine;
+      int indent = -1;
+      int end = lineEnd;
+      boolean tab = false;
+      for (int i = lineStart; i < lineEnd; i++) {
+        char ch = text.charAt(i);
+        if (ch == '\t') {
+          tab = true;
+        }
+        if (indent < 0 && ch != ' ') {
+          indent = i - lineStart;
+        }
+        if (i < end) {
+          if (ch == '-' && i + 1 < lineEnd && text.charAt(i + 1) == '-') {
+            end = i;
+          } else if (ch == '@') {
+            addTag(i, tagAt(text, i));
+          }
+        }
+      }
+      int start = lineStart;
+      while (start < end && text.charAt(start) <= ' ') {
+        start++;
+      }
+      while (end > start && text.charAt(end - 1) <= ' ') {
+        end--;
+      }
+      _start = start;
+      _end = end;
+      _indent = (indent < 0 ? lineEnd - lineStart : indent);
+      _tab = tab;
+    }
+
+    // adds a tag found at the index in the text
+    private void addTag(int pos, int kind) {
+      if (kind < 0) {
+        return;
+      }
+      if (_tagPositions == null) {
+        _tagPositions = new int[4];
+        _tagKinds = new int[4];
+      } else if (_tagCount == _tagPositions.length) {
+        _tagPositions = Arrays.copyOf(_tagPositions, _tagCount * 2);
+        _tagKinds = Arrays.copyOf(_tagKinds, _tagCount * 2);
+      }
+      _tagPositions[_tagCount] = pos;
+      _tagKinds[_tagCount] = kind;
+      _tagCount++;
     }
 
     String line() {
-      return _line;
+      return _text.substring(_lineStart, _lineEnd);
     }
 
     String lineTrimmed() {
-      return _trimmed;
+      return _text.substring(_start, _end);
     }
 
-    int lineNumber() {
-      return _lineNumber;
+    String text() {
+      return _text;
+    }
+
+    int start() {
+      return _start;
     }
 
-    boolean endOfLine() {
-      return _endOfLine;
+    int end() {
+      return _end;
+    }
+
+    int lineNumber() {
+      return _lineNumber;
     }
 
     boolean containsTab() {
-      return _line.contains("\t");
+      return _tab;
     }
 
     boolean isComment() {
-      return _trimmed.startsWith("--") || _trimmed.length() == 0;
+      return _start == _end;
     }
 
     int indent() {
-      for (int i = 0; i < _line.length(); i++) {
-        if (_line.charAt(i) != ' ') {
-          return i;
-        }
-      }
-      return _line.length();
+      return _indent;
     }
 
-    Line[] split(int trimmedIndex) {
-      String before = _trimmed.substring(0, trimmedIndex);
-      String after = _trimmed.substring(trimmedIndex);
-      return new Line[] {new Line(before, before, _lineNumber, false), new Line(after, after, _lineNumber, _endOfLine)};
+    int tagCount() {
+      return _tagCount;
     }
 
-    Line splitRemainder(int trimmedIndex) {
-      String after = _trimmed.substring(trimmedIndex);
-      return new Line(after, after, _lineNumber, _endOfLine);
+    int tagPosition(int index) {
+      return _tagPositions[index];
+    }
+
+    int tagKind(int index) {
+      return _tagKinds[index];
+    }
+
+    int tagAtStart() {
+      return (_tagCount > 0 && _tagPositions[0] == _start ? _tagKinds[0] : -1);
+    }
+
+    int findTag(int kind, int start, int end) {
+      for (int i = 0; i < _tagCount; i++) {
+        if (_tagKinds[i] == kind && _tagPositions[i] >= start && _tagPositions[i] < end) {
+          return _tagPositions[i];
+        }
+      }
+      return -1;
     }
 
     @Override
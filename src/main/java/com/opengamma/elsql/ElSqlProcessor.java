@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Annotation processor that generates renderers for types annotated with {@link ElSqlSource}.
+ * <p>
+ * For each annotated type, such as {@code com.foo.Bar}, the elsql file "com/foo/Bar.elsql"
+ * is parsed and the class {@code com.foo.BarElSqlRenderer} is generated.
+ * The elsql file is searched for on the source path, then in the class output directory
+ * and finally on the class path. With Maven, resources are copied to the class output
+ * directory before compiling, thus the file is found there.
+ * <p>
+ * The processor is not registered as a service, so it must be enabled explicitly,
+ * such as using the {@code -processor com.opengamma.elsql.ElSqlProcessor} option of javac
+ * or the {@code annotationProcessors} setting of the Maven compiler plugin.
+ * <p>
+ * An elsql file that cannot be found or parsed is reported as a compile error.
+ */
+@SupportedAnnotationTypes("com.opengamma.elsql.ElSqlSource")
+public class ElSqlProcessor extends AbstractProcessor {
+
+  /**
+   * The locations searched for the elsql file, in order.
+   */
+  private static final StandardLocation[] LOCATIONS = {
+    StandardLocation.SOURCE_PATH, StandardLocation.CLASS_OUTPUT, StandardLocation.CLASS_PATH};
+
+  /**
+   * Creates an instance.
+   */
+  public ElSqlProcessor() {
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    for (Element element : roundEnv.getElementsAnnotatedWith(ElSqlSource.class)) {
+      if (element.getKind().isClass() || element.getKind().isInterface()) {
+        process((TypeElement) element);
+      }
+    }
+    return true;
+  }
+
+  // generates the renderer for a type
+  private void process(TypeElement type) {
+    Elements elements = processingEnv.getElementUtils();
+    String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+    String binaryName = elements.getBinaryName(type).toString();
+    String className = binaryName.substring(packageName.length() == 0 ? 0 : packageName.length() + 1) + ElSqlRenderer.SUFFIX;
+    String sourceName = type.getSimpleName() + ".elsql";
+    try {
+      String content = read(packageName, sourceName);
+      if (content == null) {
+        error(type, "Unable to find " + sourceName + " for @ElSqlSource");
+        return;
+      }
+      Map<String, NameSqlFragment> parsed = new ElSqlParser(content, new SqlVariables()).parse();
+      String source = ElSqlGenerator.generate(packageName, className, sourceName, parsed);
+      String qualifiedName = (packageName.length() == 0 ? className : packageName + "." + className);
+      JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+      Writer writer = file.openWriter();
+      try {
+        writer.write(source);
+      } finally {
+        writer.close();
+      }
+    } catch (IllegalArgumentException ex) {
+      error(type, ex.getMessage() + " in " + sourceName);
+    } catch (IOException ex) {
+      error(type, "Unable to generate renderer for " + sourceName + ": " + ex);
+    }
+  }
+
+  // reads the elsql file, returning null if not found
+  private String read(String packageName, String sourceName) {
+    for (StandardLocation location : LOCATIONS) {
+      try {
+        FileObject file = processingEnv.getFiler().getResource(location, packageName, sourceName);
+        return file.getCharContent(true).toString();
+      } catch (IOException ex) {
+        // try next location
+      } catch (IllegalArgumentException ex) {
+        // location not supported by the compiler
+      }
+    }
+    return null;
+  }
+
+  // reports an error against the type
+  private void error(Element element, String msg) {
+    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, msg, element);
+  }
+
+}
@@ -0,0 +1,492 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for renderers generated by {@link ElSqlProcessor}.
+ * <p>
+ * A generated renderer has a method for each named block of an elsql file.
+ * Renderers for a single block are also generated at runtime, as controlled by
+ * {@link ElSqlConfig#getGenerateThreshold()}.
+ * Each method is straight-line Java code, where text is appended as constants and the tags
+ * are plain branches and loops, avoiding the walk over the tree of fragments.
+ * <p>
+ * Each named block is identified by a fingerprint of its parsed structure.
+ * When rendering, a generated method is only used if the fingerprint matches the block
+ * that was loaded, otherwise the block is interpreted as normal.
+ * <p>
+ * The methods in this class are intended for use by generated code only.
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+public abstract class ElSqlRenderer {
+
+  /**
+   * The suffix added to the name of the annotated type to form the name of the renderer.
+   */
+  static final String SUFFIX = "ElSqlRenderer";
+
+  /**
+   * The index of each named block, keyed by name.
+   */
+  private final Map<String, Integer> _indices;
+  /**
+   * The fingerprint of each named block, by index.
+   */
+  private final String[] _fingerprints;
+
+  /**
+   * Finds the generated renderer for a type.
+   *
+   * @param type  the type, not null
+   * @return the renderer, null if the type is not annotated or the renderer was not generated
+   * @throws IllegalArgumentException if the renderer cannot be created
+   */
+  static ElSqlRenderer find(Class<?> type) {
+    if (type.isAnnotationPresent(ElSqlSource.class) == false) {
+      return null;
+    }
+    try {
+      Class<?> cls = Class.forName(type.getName() + SUFFIX, true, type.getClassLoader());
+      return (ElSqlRenderer) cls.newInstance();
+    } catch (ClassNotFoundException ex) {
+      return null;
+    } catch (InstantiationException ex) {
+      throw new IllegalArgumentException("Unable to create renderer: " + type.getName() + SUFFIX, ex);
+    } catch (IllegalAccessException ex) {
+      throw new IllegalArgumentException("Unable to create renderer: " + type.getName() + SUFFIX, ex);
+    } catch (ClassCastException ex) {
+      throw new IllegalArgumentException("Renderer must extend ElSqlRenderer: " + type.getName() + SUFFIX, ex);
+    }
+  }
+
+  /**
+   * Gets the operands of a named fragment, referred to by index from generated code.
+   * <p>
+   * The operands are the fragment and its descendants in depth-first order,
+   * with the join of a loop following the body of the loop.
+   *
+   * @param fragment  the fragment, not null
+   * @return the operands, not null
+   */
+  static SqlFragment[] operands(NameSqlFragment fragment) {
+    List<SqlFragment> operands = new ArrayList<SqlFragment>();
+    addOperands(fragment, operands);
+    return operands.toArray(new SqlFragment[operands.size()]);
+  }
+
+  // adds the fragment and its descendants
+  private static void addOperands(SqlFragment fragment, List<SqlFragment> operands) {
+    operands.add(fragment);
+    if (fragment instanceof ContainerSqlFragment) {
+      for (SqlFragment child : ((ContainerSqlFragment) fragment).getFragments()) {
+        addOperands(child, operands);
+      }
+      if (fragment instanceof LoopSqlFragment && ((LoopSqlFragment) fragment).getJoin() != null) {
+        addOperands(((LoopSqlFragment) fragment).getJoin(), operands);
+      }
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Creates an instance.
+   *
+   * @param names  the names of the blocks, not null
+   * @param fingerprints  the fingerprints of the blocks, in the same order as the names, not null
+   */
+  protected ElSqlRenderer(String[] names, String[] fingerprints) {
+    if (names == null || fingerprints == null || names.length != fingerprints.length) {
+      throw new IllegalArgumentException("Names and fingerprints must be non-null and of the same length");
+    }
+    _indices = new HashMap<String, Integer>();
+    for (int i = 0; i < names.length; i++) {
+      _indices.put(names[i], i);
+    }
+    _fingerprints = fingerprints.clone();
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Binds a fragment to the generated method for the block, caching the result in the fragment.
+   *
+   * @param fragment  the fragment, not null
+   * @return the binding, null if there is no generated method matching the fragment
+   */
+  Binding bind(NameSqlFragment fragment) {
+    Binding binding = fragment.getBinding();
+    if (binding == null || binding._renderer != this) {
+      int index = -1;
+      Integer found = _indices.get(fragment.getName());
+      if (found != null && _fingerprints[found].equals(ElSqlCompiler.fingerprint(fragment))) {
+        index = found;
+      }
+      binding = new Binding(this, index, index >= 0 ? operands(fragment) : null);
+      fragment.setBinding(binding);
+    }
+    return (binding._index >= 0 ? binding : null);
+  }
+
+  /**
+   * Binds a fragment to a renderer generated at runtime, once rendered enough times.
+   * <p>
+   * The renderer is generated in the calling thread when the threshold is reached.
+   * If the renderer cannot be generated, the fragment continues to be interpreted
+   * and the failure is recorded in the binding, see {@link Binding#getFailure()}.
+   *
+   * @param fragment  the fragment, not null
+   * @param threshold  the number of renders before generating, positive
+   * @return the binding, null if not generated
+   */
+  static Binding generate(NameSqlFragment fragment, int threshold) {
+    Binding binding = fragment.getGenerated();
+    if (binding == null) {
+      if (fragment.countRender() < threshold) {
+        return null;
+      }
+      synchronized (fragment) {
+        binding = fragment.getGenerated();
+        if (binding == null) {
+          try {
+            binding = new Binding(ElSqlClassWriter.load(fragment), 0, operands(fragment));
+          } catch (RuntimeException ex) {
+            binding = new Binding(ex);
+          } catch (LinkageError ex) {
+            binding = new Binding(ex);
+          }
+          fragment.setGenerated(binding);
+        }
+      }
+    }
+    return (binding._index >= 0 ? binding : null);
+  }
+
+  /**
+   * Renders a named block.
+   * <p>
+   * This is implemented by generated code, delegating to the method of the block.
+   *
+   * @param index  the index of the block, as passed to the constructor
+   * @param context  the context of the render, not null
+   */
+  protected abstract void render(int index, Context context);
+
+  //-------------------------------------------------------------------------
+  /**
+   * A named fragment bound to its generated method.
+   * <p>
+   * This class is immutable and thread-safe.
+   */
+  static final class Binding {
+    private final ElSqlRenderer _renderer;
+    private final int _index;
+    private final SqlFragment[] _operands;
+    private final Throwable _failure;
+
+    /**
+     * Creates an instance.
+     *
+     * @param renderer  the renderer, not null
+     * @param index  the index of the block, -1 if the fragment does not match
+     * @param operands  the operands of the fragment, null if it does not match
+     */
+    Binding(ElSqlRenderer renderer, int index, SqlFragment[] operands) {
+      _renderer = renderer;
+      _index = index;
+      _operands = operands;
+      _failure = null;
+    }
+
+    /**
+     * Creates an instance recording that a renderer could not be generated.
+     *
+     * @param failure  the reason the renderer could not be generated, not null
+     */
+    Binding(Throwable failure) {
+      _renderer = null;
+      _index = -1;
+      _operands = null;
+      _failure = failure;
+    }
+
+    /**
+     * Gets the reason a renderer could not be generated.
+     *
+     * @return the failure, null if generated successfully or not generated at runtime
+     */
+    Throwable getFailure() {
+      return _failure;
+    }
+
+    /**
+     * Renders the fragment using the generated method.
+     *
+     * @param context  the render context holding the buffer to append to, not null
+     * @param fragments  the SQL fragments for context, not null
+     * @param params  the SQL parameters, not null
+     * @param loopIndex  the current loopIndex
+     */
+    void render(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+      _renderer.render(_index, new Context(context, fragments, params, _operands, loopIndex));
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * The context of a single render by generated code.
+   * <p>
+   * The tags are referred to by the index of their operand, as calculated when generating.
+   * The logic of each tag is shared with the interpreter, such that the output is identical.
+   * <p>
+   * This class is mutable and intended for use by a single thread.
+   */
+  public static final class Context {
+    private final SqlRenderContext _context;
+    private final StringBuilder _buf;
+    private final SqlFragments _fragments;
+    private final SqlParams _params;
+    private final SqlFragment[] _operands;
+    private int[] _loopIndex;
+    private int[][] _loopStack;
+    private int _depth;
+
+    /**
+     * Creates an instance.
+     *
+     * @param context  the render context holding the buffer to append to, not null
+     * @param fragments  the SQL fragments for context, not null
+     * @param params  the SQL parameters, not null
+     * @param operands  the operands, not null
+     * @param loopIndex  the current loopIndex
+     */
+    Context(SqlRenderContext context, SqlFragments fragments, SqlParams params, SqlFragment[] operands, int[] loopIndex) {
+      _context = context;
+      _buf = context.getBuffer();
+      _fragments = fragments;
+      _params = params;
+      _operands = operands;
+      _loopIndex = loopIndex;
+    }
+
+    //-------------------------------------------------------------------------
+    /**
+     * Appends text.
+     *
+     * @param sql  the text to append, not null
+     * @param clause  the clause state after the text, as calculated when generating
+     */
+    public void append(String sql, int clause) {
+      _buf.append(sql);
+      _context.setClause(clause);
+    }
+
+    /**
+     * Appends text containing the LOOPINDEX tag.
+     *
+     * @param operand  the index of the text operand
+     */
+    public void text(int operand) {
+      ((TextSqlFragment) _operands[operand]).appendTo(_context, _loopIndex);
+    }
+
+    /**
+     * Tests an IF tag.
+     *
+     * @param operand  the index of the IF operand
+     * @return true if the content is to be output
+     */
+    public boolean test(int operand) {
+      return ((IfSqlFragment) _operands[operand]).isMatch(_params, _loopIndex);
+    }
+
+    /**
+     * Tests an AND tag, appending the conjunction if the content is to be output.
+     *
+     * @param operand  the index of the AND operand
+     * @return true if the content is to be output
+     */
+    public boolean and(int operand) {
+      AndSqlFragment and = (AndSqlFragment) _operands[operand];
+      if (and.isMatch(_params, _loopIndex)) {
+        and.appendConjunction(_context);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Tests an OR tag, appending the conjunction if the content is to be output.
+     *
+     * @param operand  the index of the OR operand
+     * @return true if the content is to be output
+     */
+    public boolean or(int operand) {
+      OrSqlFragment or = (OrSqlFragment) _operands[operand];
+      if (or.isMatch(_params, _loopIndex)) {
+        or.appendConjunction(_context);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Starts a WHERE tag.
+     *
+     * @return the mark to pass to {@link #whereEnd(int)}
+     */
+    public int whereBegin() {
+      // the clause state is 0 to 3, thus can be held in the low bits
+      int mark = (_buf.length() << 2) | _context.getClause();
+      _buf.append("WHERE ");
+      _context.setClause(SqlRenderContext.CLAUSE_WHERE);
+      return mark;
+    }
+
+    /**
+     * Ends a WHERE tag, removing it if there is no content.
+     *
+     * @param mark  the mark from {@link #whereBegin()}
+     */
+    public void whereEnd(int mark) {
+      int oldLen = mark >>> 2;
+      if (_buf.length() == oldLen + 6) {
+        _buf.setLength(oldLen);
+        _context.setClause(mark & 3);
+      }
+    }
+
+    /**
+     * Starts a LOOP tag.
+     * <p>
+     * If the size is positive, {@link #loopEnd()} must be called after the iterations.
+     *
+     * @param operand  the index of the LOOP operand
+     * @return the size of the loop
+     */
+    public int loopBegin(int operand) {
+      int size = ((LoopSqlFragment) _operands[operand]).extractSize(_params);
+      if (size > 0) {
+        if (_loopStack == null) {
+          _loopStack = new int[4][];
+        } else if (_depth == _loopStack.length) {
+          _loopStack = Arrays.copyOf(_loopStack, _depth * 2);
+        }
+        _loopStack[_depth++] = _loopIndex;
+        _loopIndex = Arrays.copyOf(_loopIndex, _loopIndex.length + 1);
+      }
+      return size;
+    }
+
+    /**
+     * Sets the index of the current loop iteration.
+     *
+     * @param index  the index of the iteration
+     */
+    public void loopIndex(int index) {
+      _loopIndex[_loopIndex.length - 1] = index;
+    }
+
+    /**
+     * Ends a LOOP tag.
+     */
+    public void loopEnd() {
+      _loopIndex = _loopStack[--_depth];
+      _loopStack[_depth] = null;
+    }
+
+    /**
+     * Includes a named block or a variable.
+     *
+     * @param operand  the index of the INCLUDE operand
+     */
+    public void include(int operand) {
+      NameSqlFragment unit = ((IncludeSqlFragment) _operands[operand]).resolve(_fragments, _params);
+      _fragments.render(_context, unit, _params, _loopIndex);
+    }
+
+    /**
+     * Starts a PAGING tag.
+     *
+     * @return the mark to pass to {@link #pagingEnd(int, int)}
+     */
+    public int pagingBegin() {
+      return _buf.length();
+    }
+
+    /**
+     * Ends a PAGING tag, applying the paging to the content.
+     *
+     * @param operand  the index of the PAGING operand
+     * @param mark  the mark from {@link #pagingBegin()}
+     */
+    public void pagingEnd(int operand, int mark) {
+      ((PagingSqlFragment) _operands[operand]).applyPaging(_context, mark, _fragments, _params);
+    }
+
+    /**
+     * Appends an OFFSETFETCH or FETCH tag.
+     *
+     * @param operand  the index of the OFFSETFETCH operand
+     */
+    public void offsetFetch(int operand) {
+      ((OffsetFetchSqlFragment) _operands[operand]).toSQL(_context, _fragments, _params, _loopIndex);
+    }
+
+    /**
+     * Appends a SEEK tag.
+     *
+     * @param operand  the index of the SEEK operand
+     */
+    public void seek(int operand) {
+      ((SeekSqlFragment) _operands[operand]).toSQL(_context, _fragments, _params, _loopIndex);
+    }
+
+    /**
+     * Appends an IN tag.
+     *
+     * @param operand  the index of the IN operand
+     */
+    public void in(int operand) {
+      ((InSqlFragment) _operands[operand]).toSQL(_context, _fragments, _params, _loopIndex);
+    }
+
+    /**
+     * Appends a VALUE tag.
+     *
+     * @param operand  the index of the VALUE operand
+     */
+    public void value(int operand) {
+      ((ValueSqlFragment) _operands[operand]).toSQL(_context, _fragments, _params, _loopIndex);
+    }
+
+    /**
+     * Starts a LIKE or EQUALS tag, appending the operator.
+     *
+     * @param operand  the index of the LIKE or EQUALS operand
+     * @return the result to pass to {@link #operatorEnd(int, int)}, zero if the content is not output
+     */
+    public int operatorBegin(int operand) {
+      return ((OperatorSqlFragment) _operands[operand]).appendOperator(_context, _fragments, _params, _loopIndex);
+    }
+
+    /**
+     * Ends a LIKE or EQUALS tag.
+     *
+     * @param operand  the index of the LIKE or EQUALS operand
+     * @param result  the result from {@link #operatorBegin(int)}
+     */
+    public void operatorEnd(int operand, int result) {
+      ((OperatorSqlFragment) _operands[operand]).appendSuffix(_context, _fragments, result);
+    }
+  }
+
+}
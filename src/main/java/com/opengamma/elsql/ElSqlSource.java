@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a type whose elsql file is to have renderers generated at compile time.
+ * <p>
+ * The elsql file is the one located by {@link ElSql#of(ElSqlConfig, Class)}, such as
+ * "com/foo/Bar.elsql" for the type {@code com.foo.Bar}.
+ * When {@link ElSqlProcessor} is enabled, it generates the class {@code com.foo.BarElSqlRenderer}
+ * with a Java method for each named block.
+ * When the bundle is loaded using {@code ElSql.of}, the generated methods are used to render
+ * the named blocks instead of interpreting the parsed tags.
+ * <p>
+ * A named block that differs from the one the renderer was generated from,
+ * for example due to a database specific override file, is interpreted as normal.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ElSqlSource {
+
+}
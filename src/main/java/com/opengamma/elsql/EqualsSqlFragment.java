@@ -18,20 +18,24 @@ final class EqualsSqlFragment extends OperatorSqlFragment {
    * @param variable the variable to base the LIKE on, not null
    */
   EqualsSqlFragment(String variable) {
-    super(variable);
+    this(variable, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variable in a table.
+   * 
+   * @param variable  the variable to base the EQUALS on, not null
+   * @param variables  the table of variables, not null
+   */
+  EqualsSqlFragment(String variable, SqlVariables variables) {
+    super(variable, variables);
   }
 
   // -------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
-    String var = applyLoopIndex(_variable, loopIndex);
-    Object val = params.get(var);
-    if (val == null) {
-      buf.append("IS NULL ");
-    } else {
-      buf.append("= ");
-      super.toSQL(buf, fragments, params, loopIndex);
-    }
+  int evaluate(SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    Object val = _variable.get(params, loopIndex);
+    return (val == null ? NO_CONTENT : CONTENT);
   }
 
 }
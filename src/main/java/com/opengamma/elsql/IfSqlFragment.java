@@ -19,15 +19,33 @@ final class IfSqlFragment extends ConditionalSqlFragment {
    * @param matchValue  the value to match, null to match on existence
    */
   IfSqlFragment(String variable, String matchValue) {
-    super(variable, matchValue);
+    this(variable, matchValue, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variable in a table.
+   * 
+   * @param variable  the variable to determine whether to include the AND on, not null
+   * @param matchValue  the value to match, null to match on existence
+   * @param variables  the table of variables, not null
+   */
+  IfSqlFragment(String variable, String matchValue, SqlVariables variables) {
+    super(variable, matchValue, variables);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
     if (isMatch(params, loopIndex)) {
-      super.toSQL(buf, fragments, params, loopIndex);
+      super.toSQL(context, fragments, params, loopIndex);
     }
   }
 
+  @Override
+  void compile(SqlProgram.Builder program) {
+    int test = program.add(SqlProgram.IF, this);
+    super.compile(program);
+    program.jumpHere(test);
+  }
+
 }
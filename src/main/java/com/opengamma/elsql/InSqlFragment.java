@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.sql.Types;
+import java.util.Collection;
+
+/**
+ * Representation of IN(variable).
+ * <p>
+ * This outputs a comparison against a list of values held in a single parameter.
+ * Where the config supports array binding and the value is bound as an SQL array, being a
+ * {@code java.sql.Array} or a Spring {@code SqlParameterValue} of type {@code Types.ARRAY},
+ * the output is {@code = ANY(:ids)}.
+ * Otherwise, the output is {@code IN (:ids)}, with the placeholder expanded to one per element
+ * by the named parameter layer, such as Spring's {@code NamedParameterJdbcTemplate}.
+ * An empty list outputs {@code IN (NULL)}, as {@code IN ()} is invalid.
+ */
+final class InSqlFragment extends SqlFragment {
+
+  /**
+   * Shape value for a list bound as an SQL array.
+   */
+  private static final int ARRAY = 0;
+  /**
+   * Shape value for an empty list.
+   */
+  private static final int EMPTY = 1;
+  /**
+   * Shape value for a list expanded by the named parameter layer.
+   */
+  private static final int EXPANDED = 2;
+  /**
+   * The name of the Spring class that binds a value with an SQL type, which is an optional dependency.
+   */
+  private static final String SQL_PARAMETER_VALUE = "org.springframework.jdbc.core.SqlParameterValue";
+
+  /**
+   * The variable holding the list.
+   */
+  private final SqlVariable _variable;
+  /**
+   * Whether to follow with a space.
+   */
+  private final boolean _followWithSpace;
+
+  /**
+   * Creates an instance registering the variable in a table.
+   *
+   * @param variable  the variable, not null
+   * @param followWithSpace  whether to follow by a space
+   * @param variables  the table of variables, not null
+   */
+  InSqlFragment(String variable, boolean followWithSpace, SqlVariables variables) {
+    _variable = variables.variable(extractVariableName(variable));
+    _followWithSpace = followWithSpace;
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    StringBuilder buf = context.getBuffer();
+    int form = form(fragments, params, loopIndex);
+    if (form == ARRAY) {
+      buf.append("= ANY(:").append(_variable.resolveName(loopIndex)).append(')');
+    } else if (form == EMPTY) {
+      buf.append("IN (NULL)");
+    } else {
+      buf.append("IN (:").append(_variable.resolveName(loopIndex)).append(')');
+    }
+    if (_followWithSpace) {
+      buf.append(' ');
+    }
+    context.setClause(SqlRenderContext.CLAUSE_NONE);
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.IN, this);
+  }
+
+  /**
+   * Records the form of the output in the shape.
+   *
+   * @param shape  the shape to add to, not null
+   * @param fragments  the fragments, not null
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loop index
+   */
+  void shape(SqlShape shape, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    shape.add(form(fragments, params, loopIndex));
+  }
+
+  /**
+   * Determines the form of the output.
+   * <p>
+   * A missing or null parameter is treated as an empty list.
+   * A value that is not a collection or array is treated as a list of one element.
+   *
+   * @param fragments  the fragments, not null
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loop index
+   * @return the form, one of the constants in this class
+   */
+  private int form(SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    Object value = (_variable.contains(params, loopIndex) ? _variable.get(params, loopIndex) : null);
+    if (value == null) {
+      return EMPTY;
+    }
+    if (fragments.getConfig().isArrayBinding() && isSqlArray(value)) {
+      return ARRAY;
+    }
+    if (value instanceof Collection) {
+      return (((Collection<?>) value).isEmpty() ? EMPTY : EXPANDED);
+    }
+    if (value.getClass().isArray()) {
+      return (Array.getLength(value) == 0 ? EMPTY : EXPANDED);
+    }
+    return EXPANDED;
+  }
+
+  /**
+   * Checks whether the value is bound as an SQL array.
+   * <p>
+   * Spring is checked by name, as it is an optional dependency.
+   *
+   * @param value  the value, not null
+   * @return true if bound as an SQL array
+   */
+  private static boolean isSqlArray(Object value) {
+    if (value instanceof java.sql.Array) {
+      return true;
+    }
+    for (Class<?> cls = value.getClass(); cls != null; cls = cls.getSuperclass()) {
+      if (cls.getName().equals(SQL_PARAMETER_VALUE)) {
+        try {
+          Method method = cls.getMethod("getSqlType");
+          return ((Integer) method.invoke(value)).intValue() == Types.ARRAY;
+        } catch (Exception ex) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the variable.
+   *
+   * @return the variable name, not null
+   */
+  String getVariable() {
+    return _variable.getName();
+  }
+
+  /**
+   * Checks whether the list is followed by a space.
+   *
+   * @return true if followed by a space
+   */
+  boolean isFollowWithSpace() {
+    return _followWithSpace;
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + ":" + _variable.getName();
+  }
+
+}
@@ -5,6 +5,8 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Representation of INCLUDE(key).
  * <p>
@@ -16,6 +18,10 @@ final class IncludeSqlFragment extends SqlFragment {
    * The include key.
    */
   private final String _includeKey;
+  /**
+   * The variable selecting the fragment to include, null if the key is a name.
+   */
+  private final SqlVariable _includeVariable;
 
   /**
    * Creates an instance.
@@ -23,24 +29,81 @@ final class IncludeSqlFragment extends SqlFragment {
    * @param includeKey  the include key, not null
    */
   IncludeSqlFragment(String includeKey) {
+    this(includeKey, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering any variable in a table.
+   * 
+   * @param includeKey  the include key, not null
+   * @param variables  the table of variables, not null
+   */
+  IncludeSqlFragment(String includeKey, SqlVariables variables) {
     if (includeKey == null) {
       throw new IllegalArgumentException("Include key must be specified");
     }
     _includeKey = includeKey;
+    _includeVariable = (includeKey.startsWith(":") ? variables.variable(extractVariableName(includeKey)) : null);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    NameSqlFragment unit = resolve(fragments, params);
+    unit.toSQL(context, fragments, params, loopIndex);
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.INCLUDE, this);
+  }
+
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    if (_includeVariable != null) {
+      return false;
+    }
+    NameSqlFragment unit = fragments.findFragment(_includeKey);
+    if (unit == null || including.add(_includeKey) == false) {
+      return false;
+    }
+    boolean result = unit.isStatic(fragments, including);
+    including.remove(_includeKey);
+    return result;
+  }
+
+  /**
+   * Checks if the fragment to include is selected by a variable.
+   * 
+   * @return true if the include key is a variable
+   */
+  boolean isVariable() {
+    return _includeVariable != null;
+  }
+
+  /**
+   * Resolves the named fragment to include.
+   * 
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL parameters, not null
+   * @return the fragment to include, not null
+   * @throws IllegalArgumentException if there is no fragment with the resolved name
+   */
+  NameSqlFragment resolve(SqlFragments fragments, SqlParams params) {
     String key = _includeKey;
-    if (key.startsWith(":")) {
-      String var = extractVariableName(key);
-      if (params.contains(var)) {
-        key = params.get(var).toString();
-      }
+    if (_includeVariable != null && _includeVariable.contains(params)) {
+      key = _includeVariable.get(params).toString();
     }
-    NameSqlFragment unit = fragments.getFragment(key);
-    unit.toSQL(buf, fragments, params, loopIndex);
+    return fragments.getFragment(key);
+  }
+
+  /**
+   * Gets the include key.
+   * 
+   * @return the name to include, or the variable starting with a colon, not null
+   */
+  String getIncludeKey() {
+    return _includeKey;
   }
 
   //-------------------------------------------------------------------------
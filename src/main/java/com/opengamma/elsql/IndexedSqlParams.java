@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Provides access to SQL parameters by integer slot.
+ * <p>
+ * Each variable referred to by a bundle is assigned a slot when the bundle is parsed.
+ * Setting the values by slot, obtained once from {@link ElSql#getVariableSlot(String)},
+ * allows the SQL to be rendered without hashing variable names.
+ * Variables whose name includes the LOOPINDEX tag have no slot and are set by name.
+ * <p>
+ * Instances are created by {@link ElSql#createParams()}.
+ * When used with a different bundle, the values are accessed by name.
+ * <p>
+ * This class is mutable and not thread-safe.
+ * An instance may be cleared and reused.
+ */
+public final class IndexedSqlParams implements SqlParams {
+
+  /**
+   * The table of variables.
+   */
+  private final SqlVariables _variables;
+  /**
+   * The values by slot.
+   */
+  private Object[] _values;
+  /**
+   * Whether each slot has a value.
+   */
+  private boolean[] _present;
+  /**
+   * The values of variables without a slot, null if none.
+   */
+  private Map<String, Object> _other;
+
+  /**
+   * Creates an instance.
+   * 
+   * @param variables  the table of variables, not null
+   */
+  IndexedSqlParams(SqlVariables variables) {
+    _variables = variables;
+    _values = new Object[variables.size()];
+    _present = new boolean[variables.size()];
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Sets the value of the variable at the specified slot.
+   * 
+   * @param slot  the slot of the variable
+   * @param value  the value, may be null
+   * @return this, for chaining, not null
+   * @throws IllegalArgumentException if the slot is invalid
+   */
+  public IndexedSqlParams set(int slot, Object value) {
+    if (slot < 0 || slot >= _variables.size()) {
+      throw new IllegalArgumentException("Invalid variable slot: " + slot);
+    }
+    if (slot >= _values.length) {
+      _values = Arrays.copyOf(_values, _variables.size());
+      _present = Arrays.copyOf(_present, _variables.size());
+    }
+    _values[slot] = value;
+    _present[slot] = true;
+    return this;
+  }
+
+  /**
+   * Sets the value of the variable with the specified name.
+   * 
+   * @param variable  the variable name, not null
+   * @param value  the value, may be null
+   * @return this, for chaining, not null
+   */
+  public IndexedSqlParams set(String variable, Object value) {
+    if (variable == null) {
+      throw new IllegalArgumentException("Variable must not be null");
+    }
+    int slot = _variables.getSlot(variable);
+    if (slot >= 0) {
+      return set(slot, value);
+    }
+    if (_other == null) {
+      _other = new HashMap<String, Object>();
+    }
+    _other.put(variable, value);
+    return this;
+  }
+
+  /**
+   * Clears all values, allowing this instance to be reused.
+   * 
+   * @return this, for chaining, not null
+   */
+  public IndexedSqlParams clear() {
+    Arrays.fill(_values, null);
+    Arrays.fill(_present, false);
+    if (_other != null) {
+      _other.clear();
+    }
+    return this;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Checks whether the variable at the specified slot has a value.
+   * 
+   * @param slot  the slot of the variable
+   * @return true if it exists
+   */
+  public boolean contains(int slot) {
+    return slot >= 0 && slot < _present.length && _present[slot];
+  }
+
+  /**
+   * Gets the value of the variable at the specified slot, returning null if not found.
+   * 
+   * @param slot  the slot of the variable
+   * @return the value associated with the variable
+   */
+  public Object get(int slot) {
+    return (slot >= 0 && slot < _values.length ? _values[slot] : null);
+  }
+
+  @Override
+  public boolean contains(String variable) {
+    return contains(_variables.getSlot(variable), variable);
+  }
+
+  @Override
+  public Object get(String variable) {
+    return get(_variables.getSlot(variable), variable);
+  }
+
+  /**
+   * Checks whether the variable has a value, by slot or by name.
+   * <p>
+   * When named blocks are parsed lazily, a variable may be set by name before
+   * it is assigned a slot, thus the name is checked if the slot has no value.
+   * 
+   * @param slot  the slot of the variable, -1 if none
+   * @param variable  the variable name, not null
+   * @return true if it exists
+   */
+  boolean contains(int slot, String variable) {
+    if (contains(slot)) {
+      return true;
+    }
+    return _other != null && _other.containsKey(variable);
+  }
+
+  /**
+   * Gets the value of the variable, by slot or by name.
+   * 
+   * @param slot  the slot of the variable, -1 if none
+   * @param variable  the variable name, not null
+   * @return the value, null if not found
+   */
+  Object get(int slot, String variable) {
+    if (contains(slot)) {
+      return _values[slot];
+    }
+    return (_other != null ? _other.get(variable) : null);
+  }
+
+  /**
+   * Gets the table of variables.
+   * 
+   * @return the table, not null
+   */
+  SqlVariables getVariables() {
+    return _variables;
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    StringBuilder buf = new StringBuilder("IndexedSqlParams[");
+    for (int i = 0; i < _present.length; i++) {
+      if (_present[i]) {
+        buf.append(buf.length() > 17 ? ", " : "").append(i).append('=').append(_values[i]);
+      }
+    }
+    if (_other != null && _other.isEmpty() == false) {
+      buf.append(buf.length() > 17 ? ", " : "").append(_other);
+    }
+    return buf.append(']').toString();
+  }
+
+}
@@ -18,26 +18,30 @@ final class LikeSqlFragment extends OperatorSqlFragment {
    * @param variable  the variable to base the LIKE on, not null
    */
   LikeSqlFragment(String variable) {
-    super(variable);
+    this(variable, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variable in a table.
+   * 
+   * @param variable  the variable to base the LIKE on, not null
+   * @param variables  the table of variables, not null
+   */
+  LikeSqlFragment(String variable, SqlVariables variables) {
+    super(variable, variables);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
-    String var = applyLoopIndex(_variable, loopIndex);
-    Object val = params.get(var);
+  int evaluate(SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    Object val = _variable.get(params, loopIndex);
     if (val == null) {
-      buf.append("IS NULL ");
-    } else {
-      if (fragments.getConfig().isLikeWildcard(val.toString())) {
-        buf.append("LIKE ");
-        super.toSQL(buf, fragments, params, loopIndex);
-        buf.append(fragments.getConfig().getLikeSuffix());
-      } else {
-        buf.append("= ");
-        super.toSQL(buf, fragments, params, loopIndex);
-      }
+      return NO_CONTENT;
+    }
+    if (fragments.getConfig().isLikeWildcard(val.toString())) {
+      return CONTENT_WITH_SUFFIX;
     }
+    return CONTENT;
   }
 
 }
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text split at parse time into literal segments and loop index slots.
+ * <p>
+ * The LOOPINDEX tags are text-like tags that are not surrounded by whitespace.
+ * Splitting the text once allows rendering to append the segments and the
+ * loop indices directly, without searching or replacing text.
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+final class LoopIndexText {
+
+  /**
+   * The tag being searched for.
+   */
+  private static final String LOOPINDEX = "@LOOPINDEX";
+  /**
+   * The slot that refers to the innermost loop.
+   */
+  private static final int CURRENT = 0;
+
+  /**
+   * The original text.
+   */
+  private final String _text;
+  /**
+   * The literal segments, one more than the number of slots.
+   */
+  private final String[] _literals;
+  /**
+   * The slots, 0 for LOOPINDEX and 1 to 3 for LOOPINDEX1 to LOOPINDEX3.
+   */
+  private final int[] _slots;
+
+  /**
+   * Parses the text, returning null if it contains no loop index.
+   *
+   * @param text  the text to parse, not null
+   * @return the parsed text, null if there is no loop index
+   */
+  static LoopIndexText parse(String text) {
+    int pos = text.indexOf(LOOPINDEX);
+    if (pos < 0) {
+      return null;
+    }
+    List<String> literals = new ArrayList<String>();
+    List<Integer> slots = new ArrayList<Integer>();
+    int start = 0;
+    while (pos >= 0) {
+      literals.add(text.substring(start, pos));
+      int end = pos + LOOPINDEX.length();
+      int slot = CURRENT;
+      if (end < text.length() && text.charAt(end) >= '1' && text.charAt(end) <= '3') {
+        slot = text.charAt(end) - '0';
+        end++;
+      }
+      slots.add(slot);
+      start = end;
+      pos = text.indexOf(LOOPINDEX, start);
+    }
+    literals.add(text.substring(start));
+    int[] slotArray = new int[slots.size()];
+    for (int i = 0; i < slotArray.length; i++) {
+      slotArray[i] = slots.get(i);
+    }
+    return new LoopIndexText(text, literals.toArray(new String[literals.size()]), slotArray);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param text  the original text, not null
+   * @param literals  the literal segments, not null
+   * @param slots  the slots, not null
+   */
+  private LoopIndexText(String text, String[] literals, int[] slots) {
+    _text = text;
+    _literals = literals;
+    _slots = slots;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Appends the text to the buffer, applying the loop index.
+   * <p>
+   * The index of an outer loop that does not exist is treated as the current
+   * loop index followed by the number, matching the historic text replacement.
+   *
+   * @param buf  the buffer to append to, not null
+   * @param loopIndex  the current loop index, not null
+   */
+  void appendTo(StringBuilder buf, int[] loopIndex) {
+    int current = loopIndex[loopIndex.length - 1];
+    boolean outerAvailable = loopIndex.length <= 4;
+    for (int i = 0; i < _slots.length; i++) {
+      buf.append(_literals[i]);
+      int slot = _slots[i];
+      if (slot == CURRENT) {
+        buf.append(current);
+      } else if (outerAvailable && slot < loopIndex.length) {
+        buf.append(loopIndex[slot]);
+      } else {
+        buf.append(current).append(slot);
+      }
+    }
+    buf.append(_literals[_slots.length]);
+  }
+
+  /**
+   * Applies the loop index, returning the resulting text.
+   *
+   * @param loopIndex  the current loop index, not null
+   * @return the applied text, not null
+   */
+  String apply(int[] loopIndex) {
+    StringBuilder buf = new StringBuilder(_text.length() + 8);
+    appendTo(buf, loopIndex);
+    return buf.toString();
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return _text;
+  }
+
+}
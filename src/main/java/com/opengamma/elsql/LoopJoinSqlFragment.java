@@ -0,0 +1,27 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+/**
+ * Representation of LOOPJOIN.
+ * <p>
+ * This holds the text after the tag, which the loop outputs between iterations.
+ */
+final class LoopJoinSqlFragment extends ContainerSqlFragment {
+
+  /**
+   * Creates an instance.
+   */
+  LoopJoinSqlFragment() {
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " " + getFragments();
+  }
+
+}
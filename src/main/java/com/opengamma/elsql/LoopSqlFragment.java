@@ -6,18 +6,28 @@
 package com.opengamma.elsql;
 
 import java.util.Arrays;
+import java.util.Set;
 
 /**
  * Representation of a loop.
  * <p>
  * This loops over the children a number of times.
+ * The optional join is output between each iteration.
  */
 final class LoopSqlFragment extends ContainerSqlFragment {
 
   /**
-   * The size variable name (starting with a colon) or numeric literal.
+   * The size variable, null if the size is a literal.
    */
-  private final String _sizeVariable;
+  private final SqlVariable _sizeVariable;
+  /**
+   * The literal size, used if there is no variable.
+   */
+  private final int _size;
+  /**
+   * The join output between iterations, null if none.
+   */
+  private LoopJoinSqlFragment _join;
 
   /**
    * Creates an instance.
@@ -25,54 +35,125 @@ final class LoopSqlFragment extends ContainerSqlFragment {
    * @param variable  the variable to determine the loop size, not null
    */
   LoopSqlFragment(String variable) {
-    _sizeVariable = variable;
+    this(variable, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variable in a table.
+   * 
+   * @param variable  the variable (starting with a colon) or numeric literal to determine the loop size, not null
+   * @param variables  the table of variables, not null
+   */
+  LoopSqlFragment(String variable, SqlVariables variables) {
+    if (variable.startsWith(":")) {
+      _sizeVariable = variables.variable(extractVariableName(variable));
+      _size = 0;
+    } else {
+      _sizeVariable = null;
+      _size = Integer.parseInt(variable);
+    }
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
     // find loop size
     int size = extractSize(params);
-    // loop
+    if (size <= 0) {
+      return;
+    }
+    // loop, writing directly to the buffer
     int[] childLoopIndex = Arrays.copyOf(loopIndex, loopIndex.length + 1);
     for (int i = 0; i < size; i++) {
-      StringBuilder part = new StringBuilder();
       childLoopIndex[childLoopIndex.length - 1] = i;
-      super.toSQL(part, fragments, params, childLoopIndex);
-      int joinIndex = part.indexOf("@LOOPJOIN ");
-      if (joinIndex >= 0) {
-        if (i >= (size - 1)) {
-          part.setLength(joinIndex);
-        } else {
-          part.delete(joinIndex, joinIndex + 10);
-        }
+      super.toSQL(context, fragments, params, childLoopIndex);
+      if (_join != null && i < size - 1) {
+        _join.toSQL(context, fragments, params, childLoopIndex);
       }
-      buf.append(part);
     }
   }
 
-  private int extractSize(SqlParams params) {
-    if (_sizeVariable.startsWith(":")) {
-      String var = extractVariableName(_sizeVariable);
-      Object sizeObj = params.get(var);
-      if (sizeObj instanceof Number) {
-        return ((Number) sizeObj).intValue();
-      } else if (sizeObj instanceof String) {
-        return Integer.parseInt((String) sizeObj);
-      } else if (sizeObj == null) {
-        throw new IllegalArgumentException("Loop size variable not found: " + var);
-      } else {
-        throw new IllegalArgumentException("Loop size variable must be Number or String: " + var);
-      }
+  @Override
+  void compile(SqlProgram.Builder program) {
+    int begin = program.add(SqlProgram.LOOP_BEGIN, this);
+    program.enterLoop();
+    int body = program.next();
+    super.compile(program);
+    int join = -1;
+    if (_join != null) {
+      join = program.add(SqlProgram.LOOP_JOIN, this);
+      _join.compile(program);
+    }
+    int end = program.add(SqlProgram.LOOP_END, this);
+    if (join >= 0) {
+      program.jumpTo(join, end);
+    }
+    program.jumpTo(end, body);
+    program.exitLoop();
+    program.jumpHere(begin);
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Sets the join, output between iterations.
+   * <p>
+   * This is only called by the parser.
+   * 
+   * @param join  the join, not null
+   */
+  void setJoin(LoopJoinSqlFragment join) {
+    _join = join;
+  }
+
+  /**
+   * Gets the join, output between iterations.
+   * 
+   * @return the join, null if none
+   */
+  LoopJoinSqlFragment getJoin() {
+    return _join;
+  }
+
+  /**
+   * Extracts the size of the loop.
+   * 
+   * @param params  the SQL parameters, not null
+   * @return the loop size
+   */
+  int extractSize(SqlParams params) {
+    if (_sizeVariable == null) {
+      return _size;
+    }
+    Object sizeObj = _sizeVariable.get(params);
+    if (sizeObj instanceof Number) {
+      return ((Number) sizeObj).intValue();
+    } else if (sizeObj instanceof String) {
+      return Integer.parseInt((String) sizeObj);
+    } else if (sizeObj == null) {
+      throw new IllegalArgumentException("Loop size variable not found: " + _sizeVariable.getName());
     } else {
-      return Integer.parseInt(_sizeVariable);
+      throw new IllegalArgumentException("Loop size variable must be Number or String: " + _sizeVariable.getName());
     }
   }
 
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    return false;
+  }
+
+  /**
+   * Gets the loop size, as specified in the tag.
+   * 
+   * @return the variable starting with a colon, or the numeric literal, not null
+   */
+  String getSize() {
+    return (_sizeVariable != null ? ":" + _sizeVariable.getName() : Integer.toString(_size));
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
-    return getClass().getSimpleName() + " " + getFragments();
+    return getClass().getSimpleName() + " " + getFragments() + (_join != null ? " " + _join : "");
   }
 
 }
@@ -12,7 +12,39 @@ package com.opengamma.elsql;
  */
 final class NameSqlFragment extends ContainerSqlFragment {
 
+  /**
+   * The size hint used before the first render.
+   */
+  private static final int DEFAULT_SIZE_HINT = 256;
+  /**
+   * The maximum size hint, so a single huge render does not oversize every later buffer.
+   */
+  private static final int MAX_SIZE_HINT = 64 * 1024;
+
   private final String _name;
+  /**
+   * The compiled form, null until compiled.
+   */
+  private volatile SqlProgram _program;
+  /**
+   * The binding to a generated renderer, null until first rendered with one.
+   */
+  private volatile ElSqlRenderer.Binding _binding;
+  /**
+   * The binding to a renderer generated at runtime, null until generated.
+   */
+  private volatile ElSqlRenderer.Binding _generated;
+  /**
+   * The estimated output size, used to size the buffer.
+   * This is deliberately neither volatile nor synchronized, as the race is benign:
+   * an update lost between threads only results in a less accurate hint.
+   */
+  private int _sizeHint;
+  /**
+   * The number of renders, used to decide when to generate a renderer.
+   * Updates may be lost between threads, which only delays generating.
+   */
+  private int _renderCount;
 
   NameSqlFragment(String name) {
     if (name == null) {
@@ -31,6 +63,100 @@ final class NameSqlFragment extends ContainerSqlFragment {
     return _name;
   }
 
+  /**
+   * Compiles the fragment to a program.
+   * <p>
+   * This must only be called once parsing is complete.
+   */
+  void compile() {
+    _program = SqlProgram.compile(this);
+  }
+
+  /**
+   * Gets the compiled form of the fragment, compiling if necessary.
+   * 
+   * @return the program, not null
+   */
+  SqlProgram getProgram() {
+    SqlProgram program = _program;
+    if (program == null) {
+      program = SqlProgram.compile(this);
+      _program = program;
+    }
+    return program;
+  }
+
+  /**
+   * Gets the binding to a generated renderer.
+   * 
+   * @return the binding, null if not yet bound
+   */
+  ElSqlRenderer.Binding getBinding() {
+    return _binding;
+  }
+
+  /**
+   * Sets the binding to a generated renderer.
+   * 
+   * @param binding  the binding, not null
+   */
+  void setBinding(ElSqlRenderer.Binding binding) {
+    _binding = binding;
+  }
+
+  /**
+   * Gets the binding to a renderer generated at runtime.
+   * 
+   * @return the binding, null if not yet generated
+   */
+  ElSqlRenderer.Binding getGenerated() {
+    return _generated;
+  }
+
+  /**
+   * Sets the binding to a renderer generated at runtime.
+   * 
+   * @param generated  the binding, not null
+   */
+  void setGenerated(ElSqlRenderer.Binding generated) {
+    _generated = generated;
+  }
+
+  /**
+   * Counts a render of the fragment.
+   * 
+   * @return the number of renders so far, approximate if rendered by multiple threads
+   */
+  int countRender() {
+    return ++_renderCount;
+  }
+
+  /**
+   * Gets the size of buffer to use when rendering.
+   * 
+   * @return the size hint, based on recent output
+   */
+  int getSizeHint() {
+    int hint = _sizeHint;
+    return (hint > 0 ? hint : DEFAULT_SIZE_HINT);
+  }
+
+  /**
+   * Records the size of the output of a render.
+   * <p>
+   * The hint grows immediately to fit larger output, up to a maximum,
+   * and decays gradually towards smaller output.
+   * 
+   * @param size  the size of the output
+   */
+  void recordSize(int size) {
+    int hint = _sizeHint;
+    int updated = (size >= hint ? Math.min(size, MAX_SIZE_HINT) : hint - (hint - size) / 8);
+    if (updated != hint) {
+      _sizeHint = updated;
+    }
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
@@ -5,6 +5,8 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Representation of OFFSETFETCH.
  * <p>
@@ -13,13 +15,13 @@ package com.opengamma.elsql;
 final class OffsetFetchSqlFragment extends ContainerSqlFragment {
 
   /**
-   * The offset variable name (starting with a colon) or numeric literal.
+   * The offset, a variable or numeric literal.
    */
-  private final String _offsetVariable;
+  private final SqlIntValue _offset;
   /**
-   * The fetch limit variable name (starting with a colon) or numeric literal.
+   * The fetch limit, a variable or numeric literal.
    */
-  private final String _fetchVariable;
+  private final SqlIntValue _fetch;
 
   /**
    * Creates an instance.
@@ -27,8 +29,7 @@ final class OffsetFetchSqlFragment extends ContainerSqlFragment {
    * @param fetchVariable  the fetch limit variable name (starting with a colon) or numeric literal, not null
    */
   OffsetFetchSqlFragment(String fetchVariable) {
-    _offsetVariable = null;
-    _fetchVariable = fetchVariable;
+    this(null, fetchVariable, new SqlVariables());
   }
 
   /**
@@ -38,16 +39,85 @@ final class OffsetFetchSqlFragment extends ContainerSqlFragment {
    * @param fetchVariable  the fetch limit variable name (starting with a colon) or numeric literal, not null
    */
   OffsetFetchSqlFragment(String offsetVariable, String fetchVariable) {
-    _offsetVariable = offsetVariable;
-    _fetchVariable = fetchVariable;
+    this(offsetVariable, fetchVariable, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variables in a table.
+   *
+   * @param offsetVariable  the offset variable name (starting with a colon) or numeric literal, null for no offset
+   * @param fetchVariable  the fetch limit variable name (starting with a colon) or numeric literal, not null
+   * @param variables  the table of variables, not null
+   */
+  OffsetFetchSqlFragment(String offsetVariable, String fetchVariable, SqlVariables variables) {
+    _offset = SqlIntValue.parse(offsetVariable, variables);
+    _fetch = SqlIntValue.parse(fetchVariable, variables);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
-    int offset = extractVariableOrLiteral(params, _offsetVariable);
-    int fetchLimit = extractVariableOrLiteral(params, _fetchVariable);
-    buf.append(fragments.getConfig().getPaging(offset, fetchLimit == Integer.MAX_VALUE ? 0 : fetchLimit));
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    int offset = _offset.get(params);
+    int fetchLimit = fetchLimit(params);
+    ElSqlConfig config = fragments.getConfig();
+    if (config.isBindPaging()) {
+      context.append(config.getBindPaging(_offset.toBindSql(offset), _fetch.toBindSql(fetchLimit)));
+    } else {
+      context.append(config.getPaging(offset, fetchLimit));
+    }
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.OFFSET_FETCH, this);
+  }
+
+  /**
+   * Records the paging values in the shape of the output.
+   * <p>
+   * When binding the paging values, only whether each value is present affects the output.
+   * 
+   * @param shape  the shape to add to, not null
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL arguments, not null
+   */
+  void shape(SqlShape shape, SqlFragments fragments, SqlParams params) {
+    if (fragments.getConfig().isBindPaging()) {
+      shape.add(_offset.get(params) != 0);
+      shape.add(fetchLimit(params) != 0);
+    } else {
+      shape.add(_offset.get(params));
+      shape.add(_fetch.get(params));
+    }
+  }
+
+  // gets the fetch limit, where the maximum value means fetch all
+  private int fetchLimit(SqlParams params) {
+    int fetchLimit = _fetch.get(params);
+    return (fetchLimit == Integer.MAX_VALUE ? 0 : fetchLimit);
+  }
+
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    return false;
+  }
+
+  /**
+   * Gets the offset, as specified in the tag.
+   * 
+   * @return the variable starting with a colon, or the numeric literal, null if no offset
+   */
+  String getOffset() {
+    return _offset.getText();
+  }
+
+  /**
+   * Gets the fetch limit, as specified in the tag.
+   * 
+   * @return the variable starting with a colon, or the numeric literal, not null
+   */
+  String getFetch() {
+    return _fetch.getText();
   }
 
   //-------------------------------------------------------------------------
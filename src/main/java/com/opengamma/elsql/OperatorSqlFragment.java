@@ -5,29 +5,127 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Representation of a binary operator which mutates based upon the bound variable on the right hand side.
  */
 abstract class OperatorSqlFragment extends ContainerSqlFragment {
-  
+
+  /**
+   * Result indicating IS NULL, output without the content.
+   */
+  static final int NO_CONTENT = 0;
+  /**
+   * Result indicating =, output with the content.
+   */
+  static final int CONTENT = 1;
+  /**
+   * Result indicating LIKE, output with the content and suffix.
+   */
+  static final int CONTENT_WITH_SUFFIX = 2;
+
   /**
    * The variable.
    */
-  final String _variable;
+  final SqlVariable _variable;
 
   /**
    * Creates an instance.
    * 
    * @param variable  the variable to base the Operator on, not null
+   * @param variables  the table of variables, not null
    */
-  OperatorSqlFragment(String variable) {
-    _variable = extractVariableName(variable);
+  OperatorSqlFragment(String variable, SqlVariables variables) {
+    _variable = variables.variable(extractVariableName(variable));
   }
   
+  //-------------------------------------------------------------------------
+  @Override
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    int result = appendOperator(context, fragments, params, loopIndex);
+    if (result != NO_CONTENT) {
+      super.toSQL(context, fragments, params, loopIndex);
+      appendSuffix(context, fragments, result);
+    }
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    int begin = program.add(SqlProgram.OPERATOR_BEGIN, this);
+    program.push(1);
+    super.compile(program);
+    program.pop(1);
+    program.add(SqlProgram.OPERATOR_END, this);
+    program.jumpHere(begin);
+  }
+
+  /**
+   * Appends the operator based on the value of the variable.
+   * 
+   * @param context  the render context, not null
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loopIndex
+   * @return the result, one of the constants in this class
+   */
+  int appendOperator(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    int result = evaluate(fragments, params, loopIndex);
+    switch (result) {
+      case NO_CONTENT:
+        context.append("IS NULL ");
+        break;
+      case CONTENT_WITH_SUFFIX:
+        context.append("LIKE ");
+        break;
+      default:
+        context.append("= ");
+        break;
+    }
+    return result;
+  }
+
+  /**
+   * Evaluates the operator to use based on the value of the variable.
+   * 
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loopIndex
+   * @return the result, one of the constants in this class
+   */
+  abstract int evaluate(SqlFragments fragments, SqlParams params, int[] loopIndex);
+
+  /**
+   * Appends the suffix after the content.
+   * 
+   * @param context  the render context, not null
+   * @param fragments  the SQL fragments for context, not null
+   * @param result  the result of {@link #appendOperator}
+   */
+  void appendSuffix(SqlRenderContext context, SqlFragments fragments, int result) {
+    if (result == CONTENT_WITH_SUFFIX) {
+      context.append(fragments.getConfig().getLikeSuffix());
+    }
+  }
+
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    return false;
+  }
+
+  /**
+   * Gets the variable.
+   * 
+   * @return the variable name, not null
+   */
+  String getVariable() {
+    return _variable.getName();
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
-    return getClass().getSimpleName() + ":" + _variable + " " + getFragments();
+    return getClass().getSimpleName() + ":" + _variable.getName() + " " + getFragments();
   }
 
 }
@@ -9,7 +9,7 @@ package com.opengamma.elsql;
  * Representation of OR(expression).
  * <p>
  * This outputs an OR clause if the expression is true.
- * It also avoids outputting OR if the last thing in the buffer is WHERE.
+ * It also avoids outputting OR if the last thing output is WHERE or OR.
  */
 final class OrSqlFragment extends ConditionalSqlFragment {
 
@@ -20,18 +20,43 @@ final class OrSqlFragment extends ConditionalSqlFragment {
    * @param matchValue  the value to match, null to match on existence
    */
   OrSqlFragment(String variable, String matchValue) {
-    super(variable, matchValue);
+    this(variable, matchValue, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variable in a table.
+   * 
+   * @param variable  the variable to determine whether to include the AND on, not null
+   * @param matchValue  the value to match, null to match on existence
+   * @param variables  the table of variables, not null
+   */
+  OrSqlFragment(String variable, String matchValue, SqlVariables variables) {
+    super(variable, matchValue, variables);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
     if (isMatch(params, loopIndex)) {
-      if (endsWith(buf, " WHERE ") == false && endsWith(buf, " OR ") == false) {
-        buf.append("OR ");
-      }
-      super.toSQL(buf, fragments, params, loopIndex);
+      appendConjunction(context);
+      super.toSQL(context, fragments, params, loopIndex);
     }
   }
 
+  @Override
+  void compile(SqlProgram.Builder program) {
+    int test = program.add(SqlProgram.OR, this);
+    super.compile(program);
+    program.jumpHere(test);
+  }
+
+  /**
+   * Appends the OR, unless the output ends with WHERE or OR.
+   * 
+   * @param context  the render context, not null
+   */
+  void appendConjunction(SqlRenderContext context) {
+    context.appendConjunction(SqlRenderContext.CLAUSE_OR);
+  }
+
 }
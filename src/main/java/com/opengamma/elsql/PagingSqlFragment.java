@@ -5,19 +5,21 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Representation of paging over an SQL clause.
  */
 final class PagingSqlFragment extends ContainerSqlFragment {
 
   /**
-   * The offset variable name (starting with a colon) or numeric literal.
+   * The offset, a variable or numeric literal.
    */
-  private final String _offsetVariable;
+  private final SqlIntValue _offset;
   /**
-   * The fetch limit variable name (starting with a colon) or numeric literal.
+   * The fetch limit, a variable or numeric literal.
    */
-  private final String _fetchVariable;
+  private final SqlIntValue _fetch;
 
   /**
    * Creates an instance.
@@ -26,21 +28,92 @@ final class PagingSqlFragment extends ContainerSqlFragment {
    * @param fetchVariable  the fetch limit variable name (starting with a colon) or numeric literal, not null
    */
   PagingSqlFragment(String offsetVariable, String fetchVariable) {
-    _offsetVariable = offsetVariable;
-    _fetchVariable = fetchVariable;
+    this(offsetVariable, fetchVariable, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variables in a table.
+   * 
+   * @param offsetVariable  the offset variable name (starting with a colon) or numeric literal, not null
+   * @param fetchVariable  the fetch limit variable name (starting with a colon) or numeric literal, not null
+   * @param variables  the table of variables, not null
+   */
+  PagingSqlFragment(String offsetVariable, String fetchVariable, SqlVariables variables) {
+    _offset = SqlIntValue.parse(offsetVariable, variables);
+    _fetch = SqlIntValue.parse(fetchVariable, variables);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
-    int oldLen = buf.length();
-    super.toSQL(buf, fragments, params, loopIndex);
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    int oldLen = context.getBuffer().length();
+    super.toSQL(context, fragments, params, loopIndex);
+    applyPaging(context, oldLen, fragments, params);
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.PAGING_BEGIN, null);
+    program.push(1);
+    super.compile(program);
+    program.pop(1);
+    program.add(SqlProgram.PAGING_END, this);
+  }
+
+  /**
+   * Applies the paging to the enclosed block in the buffer.
+   * 
+   * @param context  the render context holding the enclosed block, not null
+   * @param oldLen  the start index of the enclosed block in the buffer
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL arguments, not null
+   */
+  void applyPaging(SqlRenderContext context, int oldLen, SqlFragments fragments, SqlParams params) {
+    StringBuilder buf = context.getBuffer();
     int newLen = buf.length();
+    if (fragments.getConfig().isAppendPaging()) {
+      if (isSelect(buf, oldLen)) {
+        if (buf.charAt(newLen - 1) != ' ') {
+          buf.append(' ');
+        }
+        context.append(getPaging(fragments, params));
+      }
+      return;
+    }
     String select = buf.substring(oldLen, newLen);
     if (select.startsWith("SELECT ")) {
-      buf.setLength(oldLen);
-      buf.append(applyPaging(select, fragments, params));
+      String paged = applyPaging(select, fragments, params);
+      if (paged.equals(select) == false) {
+        buf.setLength(oldLen);
+        buf.append(paged);
+        context.setClause(SqlRenderContext.clauseOf(paged));
+      }
+    }
+  }
+
+  // checks if the buffer contains a SELECT starting at the index
+  private static boolean isSelect(StringBuilder buf, int start) {
+    String select = "SELECT ";
+    if (buf.length() - start < select.length()) {
+      return false;
+    }
+    for (int i = 0; i < select.length(); i++) {
+      if (buf.charAt(start + i) != select.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // gets the paging SQL to append, used when the config appends paging
+  private String getPaging(SqlFragments fragments, SqlParams params) {
+    int offset = _offset.get(params);
+    int fetchLimit = fetchLimit(params);
+    ElSqlConfig config = fragments.getConfig();
+    if (config.isBindPaging()) {
+      return config.getBindPaging(_offset.toBindSql(offset), _fetch.toBindSql(fetchLimit));
     }
+    return config.getPaging(offset, fetchLimit);
   }
 
   /**
@@ -51,9 +124,61 @@ final class PagingSqlFragment extends ContainerSqlFragment {
    * @param params  the SQL arguments, not null
    */
   String applyPaging(String selectToPage, SqlFragments fragments, SqlParams params) {
-    int offset = extractVariableOrLiteral(params, _offsetVariable);
-    int fetchLimit = extractVariableOrLiteral(params, _fetchVariable);
-    return fragments.getConfig().addPaging(selectToPage, offset, fetchLimit == Integer.MAX_VALUE ? 0 : fetchLimit);
+    int offset = _offset.get(params);
+    int fetchLimit = fetchLimit(params);
+    ElSqlConfig config = fragments.getConfig();
+    if (config.isBindPaging()) {
+      return config.addBindPaging(selectToPage, _offset.toBindSql(offset), _fetch.toBindSql(fetchLimit));
+    }
+    return config.addPaging(selectToPage, offset, fetchLimit);
+  }
+
+  /**
+   * Records the paging values in the shape of the output.
+   * <p>
+   * When binding the paging values, only whether each value is present affects the output.
+   * 
+   * @param shape  the shape to add to, not null
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL arguments, not null
+   */
+  void shape(SqlShape shape, SqlFragments fragments, SqlParams params) {
+    if (fragments.getConfig().isBindPaging()) {
+      shape.add(_offset.get(params) != 0);
+      shape.add(fetchLimit(params) != 0);
+    } else {
+      shape.add(_offset.get(params));
+      shape.add(_fetch.get(params));
+    }
+  }
+
+  // gets the fetch limit, where the maximum value means fetch all
+  private int fetchLimit(SqlParams params) {
+    int fetchLimit = _fetch.get(params);
+    return (fetchLimit == Integer.MAX_VALUE ? 0 : fetchLimit);
+  }
+
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    return false;
+  }
+
+  /**
+   * Gets the offset, as specified in the tag.
+   * 
+   * @return the variable starting with a colon, or the numeric literal, not null
+   */
+  String getOffset() {
+    return _offset.getText();
+  }
+
+  /**
+   * Gets the fetch limit, as specified in the tag.
+   * 
+   * @return the variable starting with a colon, or the numeric literal, not null
+   */
+  String getFetch() {
+    return _fetch.getText();
   }
 
   //-------------------------------------------------------------------------
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+/**
+ * Representation of SEEK(column :variable, ...).
+ * <p>
+ * This outputs a keyset pagination predicate, selecting the rows after the last row
+ * of the previous page, in the order of the columns.
+ * The predicate is output if the variable of the first column exists, and is
+ * joined to preceding conditions with AND in the same way as the AND tag.
+ */
+final class SeekSqlFragment extends SqlFragment {
+
+  /**
+   * The column names.
+   */
+  private final String[] _columns;
+  /**
+   * Whether each column is sorted in descending order.
+   */
+  private final boolean[] _descending;
+  /**
+   * The variables holding the last-seen value of each column.
+   */
+  private final SqlVariable[] _variables;
+  /**
+   * The predicate using a row value comparison, null if the directions differ.
+   */
+  private final String _rowValueSql;
+  /**
+   * The predicate expanded into comparisons of single columns.
+   */
+  private final String _expandedSql;
+
+  /**
+   * Creates an instance.
+   *
+   * @param columns  the column names, not empty, not null
+   * @param descending  whether each column is sorted in descending order, not null
+   * @param variables  the variable names (starting with a colon) of the last-seen values, not null
+   * @param table  the table of variables, not null
+   */
+  SeekSqlFragment(String[] columns, boolean[] descending, String[] variables, SqlVariables table) {
+    if (columns.length == 0 || columns.length != descending.length || columns.length != variables.length) {
+      throw new IllegalArgumentException("Seek must have a variable and direction for each column");
+    }
+    _columns = columns.clone();
+    _descending = descending.clone();
+    _variables = new SqlVariable[variables.length];
+    String[] placeholders = new String[variables.length];
+    for (int i = 0; i < variables.length; i++) {
+      _variables[i] = table.variable(extractVariableName(variables[i]));
+      placeholders[i] = ":" + _variables[i].getName();
+    }
+    _rowValueSql = buildRowValue(_columns, _descending, placeholders);
+    _expandedSql = buildExpanded(_columns, _descending, placeholders);
+  }
+
+  // builds (a, b) > (:a, :b), null if the directions differ
+  private static String buildRowValue(String[] columns, boolean[] descending, String[] placeholders) {
+    if (columns.length == 1) {
+      return columns[0] + operator(descending[0]) + placeholders[0] + " ";
+    }
+    for (int i = 1; i < columns.length; i++) {
+      if (descending[i] != descending[0]) {
+        return null;
+      }
+    }
+    StringBuilder buf = new StringBuilder();
+    buf.append('(');
+    for (int i = 0; i < columns.length; i++) {
+      buf.append(i > 0 ? ", " : "").append(columns[i]);
+    }
+    buf.append(')').append(operator(descending[0])).append('(');
+    for (int i = 0; i < columns.length; i++) {
+      buf.append(i > 0 ? ", " : "").append(placeholders[i]);
+    }
+    return buf.append(") ").toString();
+  }
+
+  // builds (a > :a OR (a = :a AND b > :b))
+  private static String buildExpanded(String[] columns, boolean[] descending, String[] placeholders) {
+    if (columns.length == 1) {
+      return buildRowValue(columns, descending, placeholders);
+    }
+    StringBuilder buf = new StringBuilder();
+    buf.append('(');
+    for (int i = 0; i < columns.length; i++) {
+      if (i > 0) {
+        buf.append(" OR (");
+        for (int j = 0; j < i; j++) {
+          buf.append(columns[j]).append(" = ").append(placeholders[j]).append(" AND ");
+        }
+      }
+      buf.append(columns[i]).append(operator(descending[i])).append(placeholders[i]);
+      if (i > 0) {
+        buf.append(')');
+      }
+    }
+    return buf.append(") ").toString();
+  }
+
+  // the comparison operator for the direction
+  private static String operator(boolean descending) {
+    return (descending ? " < " : " > ");
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    if (isMatch(params)) {
+      context.appendConjunction(SqlRenderContext.CLAUSE_AND);
+      context.append(getSql(fragments.getConfig()));
+    }
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.SEEK, this);
+  }
+
+  /**
+   * Checks whether the predicate is output, which is when the last-seen value of the first column exists.
+   *
+   * @param params  the SQL parameters, not null
+   * @return true if the predicate is output
+   */
+  boolean isMatch(SqlParams params) {
+    return _variables[0].contains(params) && _variables[0].get(params) != null;
+  }
+
+  /**
+   * Gets the predicate for the config.
+   * <p>
+   * The row value comparison is used if the config supports it and all the columns are
+   * sorted in the same direction, otherwise the expanded form is used.
+   *
+   * @param config  the config, not null
+   * @return the predicate, not null
+   */
+  String getSql(ElSqlConfig config) {
+    return (_rowValueSql != null && config.isRowValueComparison() ? _rowValueSql : _expandedSql);
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the column names.
+   *
+   * @return the column names, not null
+   */
+  String[] getColumns() {
+    return _columns.clone();
+  }
+
+  /**
+   * Gets whether each column is sorted in descending order.
+   *
+   * @return the directions, not null
+   */
+  boolean[] getDescending() {
+    return _descending.clone();
+  }
+
+  /**
+   * Gets the variable names of the last-seen values.
+   *
+   * @return the variable names, without the colon, not null
+   */
+  String[] getVariables() {
+    String[] names = new String[_variables.length];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = _variables[i].getName();
+    }
+    return names;
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + ":" + _expandedSql;
+  }
+
+}
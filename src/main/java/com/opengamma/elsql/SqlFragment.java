@@ -5,6 +5,8 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Single fragment in the elsql AST.
  */
@@ -13,34 +15,32 @@ abstract class SqlFragment {
   /**
    * Convert this fragment to SQL, appending it to the specified buffer.
    * 
-   * @param buf  the buffer to append to, not null
+   * @param context  the render context holding the buffer to append to, not null
    * @param fragments  the SQL fragments for context, not null
    * @param params  the SQL parameters, not null
    * @param loopIndex  the current loopIndex
    */
-  abstract void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex);
+  abstract void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex);
 
   /**
-   * Applies the loop index to the string.
+   * Compiles this fragment, adding the equivalent instructions to the program.
    * 
-   * @param text  the text to apply to, not null
-   * @param loopIndex  the loop index
-   * @return the applied text, not null
+   * @param program  the program being built, not null
    */
-  String applyLoopIndex(String text, int[] loopIndex) {
-    String result = text;
-    switch (loopIndex.length) {
-      case 4:
-        result = result.replace("@LOOPINDEX3", Integer.toString(loopIndex[3]));  // fall through
-      case 3:
-        result = result.replace("@LOOPINDEX2", Integer.toString(loopIndex[2]));  // fall through
-      case 2:
-        result = result.replace("@LOOPINDEX1", Integer.toString(loopIndex[1]));  // fall through
-      case 1:
-      default:
-        result = result.replace("@LOOPINDEX", Integer.toString(loopIndex[loopIndex.length - 1]));
-    }
-    return result;
+  abstract void compile(SqlProgram.Builder program);
+
+  /**
+   * Checks whether the output of this fragment is independent of the SQL parameters.
+   * <p>
+   * Static fragments can be rendered once and the result shared.
+   * The default implementation returns false.
+   * 
+   * @param fragments  the SQL fragments used to resolve includes, not null
+   * @param including  the names being included, used to avoid cycles, not null
+   * @return true if the output is always the same
+   */
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    return false;
   }
 
   /**
@@ -60,25 +60,4 @@ abstract class SqlFragment {
     return postColon;
   }
 
-  /**
-   * Given a variable or literal string, extract the value.
-   * 
-   * @param params  the SQL parameters
-   * @param str  the value to parse
-   * @return the integer value
-   */
-  static int extractVariableOrLiteral(SqlParams params, String str) {
-    if (str != null) {
-      if (str.startsWith(":") && str.length() > 1) {
-        String fetchVariableName = extractVariableName(str);
-        if (params.contains(fetchVariableName)) {
-          return ((Number) params.get(fetchVariableName)).intValue();
-        }
-      } else if (str.matches("[0-9]+")) {
-        return Integer.parseInt(str);
-      }
-    }
-    return 0;
-  }
-
 }
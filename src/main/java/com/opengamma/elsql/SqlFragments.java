@@ -5,15 +5,35 @@
  */
 package com.opengamma.elsql;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The map of SQL fragments
@@ -26,57 +46,189 @@ final class SqlFragments {
    * An empty array.
    */
   private static final int[] NO_LOOP = new int[] {-1};
+  /**
+   * The largest buffer retained by a thread.
+   */
+  private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+  /**
+   * The size of chunk used when writing to a writer.
+   */
+  private static final int WRITE_CHUNK = 1024;
+  /**
+   * The buffer retained by each thread, null while in use.
+   */
+  private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>();
+  /**
+   * The encoding of elsql files.
+   */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
 
   /**
    * The map of known elsql.
    */
   private final Map<String, NameSqlFragment> _map;
+  /**
+   * The sections not yet parsed keyed by name, null if every section was parsed when loaded.
+   */
+  private final ConcurrentMap<String, ElSqlParser.Section> _sections;
+  /**
+   * The table of variables referred to by the fragments.
+   */
+  private final SqlVariables _variables;
+  /**
+   * The SQL of the named fragments that do not depend on the parameters, rendered once.
+   */
+  private final Map<String, String> _staticSql;
   /**
    * The config.
    */
   private final ElSqlConfig _config;
+  /**
+   * The cache of rendered SQL keyed by shape, null if caching is disabled.
+   * This is an access-ordered map, guarded by synchronizing on itself.
+   */
+  private final Map<SqlShape, String> _renderCache;
+  /**
+   * The generated renderer, null if none.
+   */
+  private final ElSqlRenderer _renderer;
 
   //-------------------------------------------------------------------------
   // parse a set of resources, where names in later resources override names in earlier ones
   // throws an IllegalArgumentException when none of the resources exists
   static SqlFragments parseResource(URL[] resources, ElSqlConfig config) {
-    List<List<String>> files = new ArrayList<List<String>>();
-    boolean resourceFound = false;
-    for (URL resource : resources) {
-      if (resource != null) {
-        resourceFound = true;
-        List<String> lines = loadResource(resource);
-        files.add(lines);
+    return parseResources(Collections.singletonList(resources), config).get(0);
+  }
+
+  // parse a list of sets of resources, each set forming one bundle
+  // the files are loaded and parsed using the executor of the config if there is one
+  // throws an IllegalArgumentException when none of the resources of a set exists
+  static List<SqlFragments> parseResources(List<URL[]> bundles, ElSqlConfig config) {
+    for (URL[] resources : bundles) {
+      boolean resourceFound = false;
+      for (URL resource : resources) {
+        resourceFound |= (resource != null);
+      }
+      if (!resourceFound) {
+        throw new IllegalArgumentException("No matching resource was found");
       }
     }
-    if (!resourceFound) {
-      throw new IllegalArgumentException("No matching resource was found");
+    List<SqlVariables> variables = new ArrayList<SqlVariables>(bundles.size());
+    List<List<FutureTask<Map<String, ElSqlParser.Section>>>> tasks =
+        new ArrayList<List<FutureTask<Map<String, ElSqlParser.Section>>>>(bundles.size());
+    for (URL[] resources : bundles) {
+      SqlVariables bundleVariables = new SqlVariables();
+      List<FutureTask<Map<String, ElSqlParser.Section>>> bundleTasks =
+          new ArrayList<FutureTask<Map<String, ElSqlParser.Section>>>();
+      for (URL resource : resources) {
+        if (resource != null) {
+          bundleTasks.add(start(new ParseTask(resource, null, bundleVariables, config), config.getParseExecutor()));
+        }
+      }
+      variables.add(bundleVariables);
+      tasks.add(bundleTasks);
     }
-    return parse(files, config);
+    List<SqlFragments> result = new ArrayList<SqlFragments>(bundles.size());
+    for (int i = 0; i < tasks.size(); i++) {
+      result.add(merge(tasks.get(i), variables.get(i), config));
+    }
+    return result;
   }
 
-  // convert a resource to a list of lines
-  static List<String> loadResource(URL resource) {
-    InputStream in = null;
+  // loads the whole content of a resource, decoding it from UTF-8 in a single step
+  static String loadResource(URL resource) {
     try {
-      in = resource.openStream();
-      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
-      List<String> list = new ArrayList<String>();
-      String line = reader.readLine();
-      while (line != null) {
-          list.add(line);
-          line = reader.readLine();
-      }
-      return list;
+      File file = toFile(resource);
+      byte[] bytes = (file != null ? readFile(file) : readStream(resource));
+      return new String(bytes, UTF8);
     } catch (IOException ex) {
       throw new RuntimeException(ex);
+    }
+  }
+
+  // loads the compiled form of a resource, null if there is no usable compiled form
+  // a compiled file on the file system is not used if the checksum of the source differs
+  static Map<String, NameSqlFragment> loadCompiled(URL resource, SqlVariables variables) {
+    String path = resource.toExternalForm();
+    if (path.endsWith(".elsql") == false) {
+      return null;
+    }
+    try {
+      URL compiled = new URL(path + "c");
+      File compiledFile = toFile(compiled);
+      byte[] bytes;
+      if (compiledFile != null) {
+        if (compiledFile.isFile() == false) {
+          return null;
+        }
+        bytes = readFile(compiledFile);
+        File sourceFile = toFile(resource);
+        if (ElSqlCompiler.readChecksum(bytes) != ElSqlCompiler.checksum(readFile(sourceFile))) {
+          return null;
+        }
+      } else {
+        bytes = readStream(compiled);
+      }
+      return ElSqlCompiler.read(bytes, variables);
+    } catch (IOException ex) {
+      // missing or invalid, parse the source instead
+      return null;
+    }
+  }
+
+  // converts a file URL to a file, returning null for other URLs
+  static File toFile(URL resource) {
+    if ("file".equals(resource.getProtocol()) == false) {
+      return null;
+    }
+    try {
+      return new File(resource.toURI());
+    } catch (URISyntaxException ex) {
+      return null;
+    } catch (IllegalArgumentException ex) {
+      return null;
+    }
+  }
+
+  // reads a file into an array of the size of the file using a single channel
+  static byte[] readFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File too large: " + file);
+      }
+      ByteBuffer buf = ByteBuffer.allocate((int) size);
+      while (buf.hasRemaining() && channel.read(buf) >= 0) {
+        // read until full or the file is shorter than expected
+      }
+      return (buf.hasRemaining() ? Arrays.copyOf(buf.array(), buf.position()) : buf.array());
     } finally {
-      try {
-        if (in != null) {
-          in.close();
+      in.close();
+    }
+  }
+
+  // reads a resource, such as an entry in a jar file, using the length if known
+  private static byte[] readStream(URL resource) throws IOException {
+    URLConnection connection = resource.openConnection();
+    InputStream in = connection.getInputStream();
+    try {
+      int length = connection.getContentLength();
+      byte[] bytes = new byte[length >= 0 ? length + 1 : 8192];
+      int count = 0;
+      while (true) {
+        if (count == bytes.length) {
+          bytes = Arrays.copyOf(bytes, count * 2);
         }
-      } catch (IOException ignored) {
+        int read = in.read(bytes, count, bytes.length - count);
+        if (read < 0) {
+          return Arrays.copyOf(bytes, count);
+        }
+        count += read;
       }
+    } finally {
+      in.close();
     }
   }
 
@@ -87,14 +239,83 @@ final class SqlFragments {
     return parse(files, ElSqlConfig.DEFAULT);
   }
 
-  // parse the files
+  // parse the files, where names in later files override names in earlier ones
   static SqlFragments parse(List<List<String>> files, ElSqlConfig config) {
-    Map<String, NameSqlFragment> parsed = new LinkedHashMap<String, NameSqlFragment>();
+    SqlVariables variables = new SqlVariables();
+    List<FutureTask<Map<String, ElSqlParser.Section>>> tasks = new ArrayList<FutureTask<Map<String, ElSqlParser.Section>>>();
     for (List<String> lines : files) {
-      ElSqlParser parser = new ElSqlParser(lines);
-      parsed.putAll(parser.parse());
+      tasks.add(start(new ParseTask(null, lines, variables, config), config.getParseExecutor()));
+    }
+    return merge(tasks, variables, config);
+  }
+
+  // starts the task using the executor, if there is one
+  private static FutureTask<Map<String, ElSqlParser.Section>> start(ParseTask parse, Executor executor) {
+    FutureTask<Map<String, ElSqlParser.Section>> task = new FutureTask<Map<String, ElSqlParser.Section>>(parse);
+    if (executor != null) {
+      try {
+        executor.execute(task);
+      } catch (RejectedExecutionException ex) {
+        // run in the calling thread when merging
+      }
+    }
+    return task;
+  }
+
+  // merges the parsed files in order, such that names in later files override names in earlier ones
+  private static SqlFragments merge(
+      List<FutureTask<Map<String, ElSqlParser.Section>>> tasks, SqlVariables variables, ElSqlConfig config) {
+    List<Map<String, ElSqlParser.Section>> files = new ArrayList<Map<String, ElSqlParser.Section>>(tasks.size());
+    for (FutureTask<Map<String, ElSqlParser.Section>> task : tasks) {
+      files.add(await(task));
+    }
+    return combine(files, variables, config);
+  }
+
+  // parses a single file, or indexes it when lazy parsing
+  static Map<String, ElSqlParser.Section> parseFile(URL resource, SqlVariables variables, ElSqlConfig config) {
+    return new ParseTask(resource, null, variables, config).call();
+  }
+
+  // combines the parsed files in order, such that names in later files override names in earlier ones
+  // sections that are already parsed are shared, thus unchanged files are not parsed again
+  static SqlFragments combine(List<Map<String, ElSqlParser.Section>> files, SqlVariables variables, ElSqlConfig config) {
+    Map<String, ElSqlParser.Section> sections = new LinkedHashMap<String, ElSqlParser.Section>();
+    for (Map<String, ElSqlParser.Section> file : files) {
+      sections.putAll(file);
+    }
+    if (config.isLazyParsing()) {
+      return new SqlFragments(
+          new ConcurrentHashMap<String, NameSqlFragment>(), new ConcurrentHashMap<String, ElSqlParser.Section>(sections),
+          variables, new ConcurrentHashMap<String, String>(), config, null);
+    }
+    Map<String, NameSqlFragment> parsed = new LinkedHashMap<String, NameSqlFragment>();
+    for (ElSqlParser.Section section : sections.values()) {
+      NameSqlFragment fragment = section.parse();
+      fragment.compile();
+      parsed.put(section.getName(), fragment);
+    }
+    return new SqlFragments(parsed, variables, config);
+  }
+
+  // waits for the result of the task, running it in the calling thread if it has not started
+  private static <T> T await(FutureTask<T> task) {
+    task.run();
+    try {
+      return task.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while parsing", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
     }
-    return new SqlFragments(parsed, config);
   }
 
   //-------------------------------------------------------------------------
@@ -105,6 +326,17 @@ final class SqlFragments {
    * @param config  the config to use, not null
    */
   SqlFragments(Map<String, NameSqlFragment> map, ElSqlConfig config) {
+    this(map, new SqlVariables(), config);
+  }
+
+  /**
+   * Creates an instance with the table of variables used by the fragments.
+   * 
+   * @param map  the map of names, not null
+   * @param variables  the table of variables, not null
+   * @param config  the config to use, not null
+   */
+  SqlFragments(Map<String, NameSqlFragment> map, SqlVariables variables, ElSqlConfig config) {
     if (map == null) {
       throw new IllegalArgumentException("Fragment map must not be null");
     }
@@ -112,7 +344,76 @@ final class SqlFragments {
       throw new IllegalArgumentException("Config must not be null");
     }
     _map = map;
+    _sections = null;
+    _variables = variables;
     _config = config;
+    _staticSql = renderStatic();
+    _renderCache = createRenderCache(config);
+    _renderer = null;
+  }
+
+  /**
+   * Creates an instance sharing the parsed fragments and static SQL.
+   * <p>
+   * When there are sections still to parse, the maps must be concurrent, as they are
+   * updated as each section is parsed.
+   * 
+   * @param map  the map of names, not null
+   * @param sections  the sections still to parse, null if none
+   * @param variables  the table of variables, not null
+   * @param staticSql  the map of static SQL, not null
+   * @param config  the config to use, not null
+   * @param renderer  the generated renderer, null if none
+   */
+  private SqlFragments(
+      Map<String, NameSqlFragment> map, ConcurrentMap<String, ElSqlParser.Section> sections,
+      SqlVariables variables, Map<String, String> staticSql, ElSqlConfig config, ElSqlRenderer renderer) {
+    if (config == null) {
+      throw new IllegalArgumentException("Config must not be null");
+    }
+    _map = map;
+    _sections = sections;
+    _variables = variables;
+    _config = config;
+    _staticSql = staticSql;
+    _renderCache = createRenderCache(config);
+    _renderer = renderer;
+  }
+
+  // creates the render cache if enabled, evicting the least recently used shape when full
+  private static Map<SqlShape, String> createRenderCache(ElSqlConfig config) {
+    final int maxSize = config.getRenderCacheSize();
+    if (maxSize <= 0) {
+      return null;
+    }
+    return new LinkedHashMap<SqlShape, String>(Math.min(maxSize, 256), 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<SqlShape, String> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  // renders the fragments whose output cannot depend on the parameters
+  private Map<String, String> renderStatic() {
+    Map<String, String> staticSql = new HashMap<String, String>();
+    Set<String> including = new HashSet<String>();
+    for (NameSqlFragment fragment : _map.values()) {
+      including.add(fragment.getName());
+      if (fragment.isStatic(this, including)) {
+        staticSql.put(fragment.getName(), renderStatic(fragment));
+      }
+      including.clear();
+    }
+    return staticSql;
+  }
+
+  // renders a fragment whose output cannot depend on the parameters
+  private String renderStatic(NameSqlFragment fragment) {
+    StringBuilder buf = new StringBuilder(1024);
+    fragment.toSQL(new SqlRenderContext(buf), this, EmptySqlParams.INSTANCE, NO_LOOP);
+    return buf.toString();
   }
 
   //-------------------------------------------------------------------------
@@ -134,7 +435,39 @@ final class SqlFragments {
    * @return a bundle with the config updated, not null
    */
   SqlFragments withConfig(ElSqlConfig config) {
-    return new SqlFragments(_map, config);
+    return new SqlFragments(_map, _sections, _variables, _staticSql, config, _renderer);
+  }
+
+  /**
+   * Returns a copy of this bundle using a generated renderer.
+   * 
+   * @param renderer  the generated renderer, null if none
+   * @return a bundle with the renderer updated, not null
+   */
+  SqlFragments withRenderer(ElSqlRenderer renderer) {
+    return new SqlFragments(_map, _sections, _variables, _staticSql, _config, renderer);
+  }
+
+  /**
+   * Creates an empty set of parameters accessed by slot.
+   * 
+   * @return the parameters, not null
+   */
+  IndexedSqlParams createParams() {
+    return new IndexedSqlParams(_variables);
+  }
+
+  /**
+   * Gets the slot of a variable.
+   * 
+   * @param variable  the variable name, without the colon, not null
+   * @return the slot, -1 if the variable is not referred to or has no slot
+   */
+  int getVariableSlot(String variable) {
+    if (variable == null) {
+      throw new IllegalArgumentException("Variable must not be null");
+    }
+    return _variables.getSlot(variable);
   }
 
   //-------------------------------------------------------------------------
@@ -142,6 +475,7 @@ final class SqlFragments {
    * Finds SQL for a named fragment key.
    * <p>
    * This finds, processes and returns a named block from the bundle.
+   * Blocks that do not depend on the parameters are returned from a shared instance.
    * 
    * @param name  the name, not null
    * @param params  the Spring SQL parameters, not null
@@ -150,16 +484,212 @@ final class SqlFragments {
    * @throws RuntimeException if a problem occurs
    */
   String getSql(String name, SqlParams params) {
+    validate(name, params);
+    String sql = findSql(name, params);
+    if (sql != null) {
+      return sql;
+    }
+    return render(getFragment(name), params);
+  }
+
+  /**
+   * Finds SQL for a named fragment key, appending it to the destination.
+   * <p>
+   * This finds, processes and appends a named block from the bundle.
+   * A {@code StringBuilder} is rendered into directly, a {@code Writer} or
+   * {@code CharBuffer} receives the characters without creating a string.
+   * 
+   * @param name  the name, not null
+   * @param params  the SQL parameters, not null
+   * @param dest  the destination to append to, not null
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   * @throws java.nio.BufferOverflowException if the destination is a buffer with insufficient space
+   * @throws RuntimeException if a problem occurs
+   */
+  void getSql(String name, SqlParams params, Appendable dest) {
+    validate(name, params);
+    if (dest == null) {
+      throw new IllegalArgumentException("Destination must not be null");
+    }
+    String sql = findSql(name, params);
+    if (sql != null) {
+      append(sql, dest);
+      return;
+    }
+    NameSqlFragment fragment = getFragment(name);
+    if (dest instanceof StringBuilder) {
+      StringBuilder buf = (StringBuilder) dest;
+      int start = buf.length();
+      renderTo(buf, fragment, params);
+      fragment.recordSize(buf.length() - start);
+      return;
+    }
+    StringBuilder buf = borrowBuffer(fragment);
+    renderTo(buf, fragment, params);
+    fragment.recordSize(buf.length());
+    append(buf, dest);
+    releaseBuffer(buf);
+  }
+
+  // validates the arguments
+  private static void validate(String name, SqlParams params) {
     if (name == null) {
       throw new IllegalArgumentException("Fragment name must not be null");
     }
     if (params == null) {
       throw new IllegalArgumentException("SqlParams must not be null");
     }
-    NameSqlFragment fragment = getFragment(name);
-    StringBuilder buf = new StringBuilder(1024);
-    fragment.toSQL(buf, this, params, NO_LOOP);
-    return buf.toString();
+  }
+
+  // finds SQL that is static or cached, null if it must be rendered
+  private String findSql(String name, SqlParams params) {
+    String staticSql = _staticSql.get(name);
+    if (staticSql != null) {
+      return staticSql;
+    }
+    if (_renderCache != null) {
+      NameSqlFragment fragment = getFragment(name);
+      SqlShape shape = new SqlShape(name);
+      if (fragment.getProgram().shape(shape, this, params, NO_LOOP)) {
+        shape.complete();
+        String sql;
+        synchronized (_renderCache) {
+          sql = _renderCache.get(shape);
+        }
+        if (sql == null) {
+          // render outside the lock, a concurrent render of the same shape is harmless
+          sql = render(fragment, params);
+          synchronized (_renderCache) {
+            _renderCache.put(shape, sql);
+          }
+        }
+        return sql;
+      }
+    }
+    return null;
+  }
+
+  // renders the fragment to a string, using a buffer sized by previous renders
+  private String render(NameSqlFragment fragment, SqlParams params) {
+    StringBuilder buf = borrowBuffer(fragment);
+    renderTo(buf, fragment, params);
+    String sql = buf.toString();
+    fragment.recordSize(sql.length());
+    releaseBuffer(buf);
+    return sql;
+  }
+
+  // renders the fragment, appending to the buffer
+  private void renderTo(StringBuilder buf, NameSqlFragment fragment, SqlParams params) {
+    render(new SqlRenderContext(buf), fragment, params, NO_LOOP);
+  }
+
+  /**
+   * Renders a fragment using a generated renderer, compiled form or tree, as available.
+   * 
+   * @param context  the render context holding the buffer to append to, not null
+   * @param fragment  the fragment to render, not null
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loopIndex
+   */
+  void render(SqlRenderContext context, NameSqlFragment fragment, SqlParams params, int[] loopIndex) {
+    ElSqlRenderer.Binding binding = null;
+    if (_renderer != null) {
+      binding = _renderer.bind(fragment);
+    }
+    if (binding == null && _config.getGenerateThreshold() > 0) {
+      binding = ElSqlRenderer.generate(fragment, _config.getGenerateThreshold());
+    }
+    if (binding != null) {
+      binding.render(context, this, params, loopIndex);
+      return;
+    }
+    if (_config.isCompiled()) {
+      fragment.getProgram().execute(context, this, params, loopIndex);
+    } else {
+      fragment.toSQL(context, this, params, loopIndex);
+    }
+  }
+
+  // obtains an empty buffer sized for the fragment
+  private StringBuilder borrowBuffer(NameSqlFragment fragment) {
+    StringBuilder buf = null;
+    if (_config.isThreadLocalBuffer()) {
+      // the buffer is removed while in use, in case parameter lookup renders SQL
+      buf = BUFFER.get();
+      BUFFER.set(null);
+    }
+    if (buf == null) {
+      return new StringBuilder(fragment.getSizeHint());
+    }
+    buf.ensureCapacity(fragment.getSizeHint());
+    return buf;
+  }
+
+  // returns the buffer for reuse if enabled
+  private void releaseBuffer(StringBuilder buf) {
+    if (_config.isThreadLocalBuffer() && buf.capacity() <= MAX_RETAINED_BUFFER) {
+      buf.setLength(0);
+      BUFFER.set(buf);
+    }
+  }
+
+  // appends a string or builder to the destination without creating an intermediate string
+  private static void append(CharSequence sql, Appendable dest) {
+    try {
+      if (dest instanceof StringBuilder) {
+        ((StringBuilder) dest).append(sql);
+      } else if (dest instanceof CharBuffer) {
+        CharBuffer charBuffer = (CharBuffer) dest;
+        int length = sql.length();
+        if (charBuffer.remaining() < length) {
+          throw new BufferOverflowException();
+        }
+        if (charBuffer.hasArray()) {
+          int pos = charBuffer.position();
+          getChars(sql, 0, length, charBuffer.array(), charBuffer.arrayOffset() + pos);
+          charBuffer.position(pos + length);
+        } else {
+          for (int i = 0; i < length; i++) {
+            charBuffer.put(sql.charAt(i));
+          }
+        }
+      } else if (dest instanceof Writer) {
+        Writer writer = (Writer) dest;
+        int length = sql.length();
+        char[] chunk = new char[Math.min(length, WRITE_CHUNK)];
+        for (int i = 0; i < length; i += chunk.length) {
+          int end = Math.min(i + chunk.length, length);
+          getChars(sql, i, end, chunk, 0);
+          writer.write(chunk, 0, end - i);
+        }
+      } else {
+        dest.append(sql);
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  // copies characters from a string or builder
+  private static void getChars(CharSequence sql, int start, int end, char[] dest, int destPos) {
+    if (sql instanceof String) {
+      ((String) sql).getChars(start, end, dest, destPos);
+    } else {
+      ((StringBuilder) sql).getChars(start, end, dest, destPos);
+    }
+  }
+
+  /**
+   * Gets the reason a renderer could not be generated at runtime for a fragment.
+   * 
+   * @param name  the name, not null
+   * @return the failure, null if none or not yet generated
+   * @throws IllegalArgumentException if there is no fragment with the specified name
+   */
+  Throwable getGenerateFailure(String name) {
+    ElSqlRenderer.Binding generated = getFragment(name).getGenerated();
+    return (generated != null ? generated.getFailure() : null);
   }
 
   /**
@@ -173,11 +703,97 @@ final class SqlFragments {
     if (name == null) {
       throw new IllegalArgumentException("Fragment name must not be null");
     }
-    NameSqlFragment fragment = _map.get(name);
+    NameSqlFragment fragment = findFragment(name);
     if (fragment == null) {
       throw new IllegalArgumentException("Unknown fragment name: " + name);
     }
     return fragment;
   }
 
+  /**
+   * Finds a fragment by name, parsing it if necessary.
+   * 
+   * @param name  the name, not null
+   * @return the fragment, null if there is no fragment with the specified name
+   * @throws IllegalArgumentException if the fragment is invalid
+   */
+  NameSqlFragment findFragment(String name) {
+    NameSqlFragment fragment = _map.get(name);
+    if (fragment == null && _sections != null) {
+      fragment = parseSection(name);
+    }
+    return fragment;
+  }
+
+  // parses a section when first requested, rendering it once if static
+  // the section is only removed once the fragment is available from the map
+  // a thread that misses waits on the lock of the section and uses the fragment of the thread that parsed it
+  // the static check is outside the lock, as it may parse the sections that are included
+  private NameSqlFragment parseSection(String name) {
+    ElSqlParser.Section section = _sections.get(name);
+    if (section == null) {
+      return _map.get(name);
+    }
+    NameSqlFragment fragment;
+    synchronized (section) {
+      fragment = _map.get(name);
+      if (fragment != null) {
+        return fragment;
+      }
+      fragment = section.parse();
+      fragment.compile();
+      _map.put(name, fragment);
+      _sections.remove(name, section);
+    }
+    Set<String> including = new HashSet<String>();
+    including.add(name);
+    if (fragment.isStatic(this, including)) {
+      _staticSql.put(name, renderStatic(fragment));
+    }
+    return fragment;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Task that loads and parses a single file.
+   * <p>
+   * A compiled form of the file is used in preference if available.
+   * Otherwise, when lazy parsing is enabled, the file is only indexed.
+   */
+  private static final class ParseTask implements Callable<Map<String, ElSqlParser.Section>> {
+    private final URL _resource;
+    private final List<String> _lines;
+    private final SqlVariables _variables;
+    private final boolean _lazy;
+
+    ParseTask(URL resource, List<String> lines, SqlVariables variables, ElSqlConfig config) {
+      _resource = resource;
+      _lines = lines;
+      _variables = variables;
+      _lazy = config.isLazyParsing();
+    }
+
+    @Override
+    public Map<String, ElSqlParser.Section> call() {
+      if (_resource != null) {
+        Map<String, NameSqlFragment> compiled = loadCompiled(_resource, _variables);
+        if (compiled != null) {
+          return sections(compiled);
+        }
+      }
+      ElSqlParser parser = (_lines != null ?
+          new ElSqlParser(_lines, _variables) : new ElSqlParser(loadResource(_resource), _variables));
+      return (_lazy ? parser.index() : sections(parser.parse()));
+    }
+
+    // wraps fragments that are already parsed
+    private static Map<String, ElSqlParser.Section> sections(Map<String, NameSqlFragment> parsed) {
+      Map<String, ElSqlParser.Section> sections = new LinkedHashMap<String, ElSqlParser.Section>();
+      for (Map.Entry<String, NameSqlFragment> entry : parsed.entrySet()) {
+        sections.put(entry.getKey(), new ElSqlParser.Section(entry.getValue()));
+      }
+      return sections;
+    }
+  }
+
 }
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+/**
+ * An integer argument to a tag, either a numeric literal or a variable.
+ * <p>
+ * The argument is resolved when parsed, so that obtaining the value when
+ * rendering does not need to examine the text of the argument.
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+final class SqlIntValue {
+
+  /**
+   * The original argument text.
+   */
+  private final String _text;
+  /**
+   * The variable, null if a literal.
+   */
+  private final SqlVariable _variable;
+  /**
+   * The literal value, used when the variable is null.
+   */
+  private final int _literal;
+
+  /**
+   * Parses the argument.
+   * <p>
+   * A variable starts with a colon, and a literal consists only of the digits 0 to 9.
+   * Anything else, including null, is treated as the literal zero.
+   *
+   * @param str  the variable name (starting with a colon) or numeric literal, may be null
+   * @param variables  the variables of the bundle, not null
+   * @return the argument, not null
+   */
+  static SqlIntValue parse(String str, SqlVariables variables) {
+    if (str != null) {
+      if (str.startsWith(":") && str.length() > 1) {
+        return new SqlIntValue(str, variables.variable(SqlFragment.extractVariableName(str)), 0);
+      } else if (isDigits(str)) {
+        return new SqlIntValue(str, null, Integer.parseInt(str));
+      }
+    }
+    return new SqlIntValue(str, null, 0);
+  }
+
+  // checks if the string is formed only of ASCII digits
+  private static boolean isDigits(String str) {
+    if (str.length() == 0) {
+      return false;
+    }
+    for (int i = 0; i < str.length(); i++) {
+      char ch = str.charAt(i);
+      if (ch < '0' || ch > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param text  the original argument text, may be null
+   * @param variable  the variable, null if a literal
+   * @param literal  the literal value
+   */
+  private SqlIntValue(String text, SqlVariable variable, int literal) {
+    _text = text;
+    _variable = variable;
+    _literal = literal;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the value from the parameters.
+   * <p>
+   * A variable that is not present in the parameters has the value zero.
+   *
+   * @param params  the SQL parameters, not null
+   * @return the value
+   */
+  int get(SqlParams params) {
+    if (_variable == null) {
+      return _literal;
+    }
+    Object value = _variable.get(params);
+    if (value == null && _variable.contains(params) == false) {
+      return 0;
+    }
+    return ((Number) value).intValue();
+  }
+
+  /**
+   * Gets the SQL that binds the value, used when paging with bind variables.
+   * <p>
+   * A variable is output as a placeholder with the same name, and a literal is output unchanged.
+   *
+   * @param value  the value, as obtained from the parameters
+   * @return the placeholder or literal, null if the value is zero
+   */
+  String toBindSql(int value) {
+    if (value == 0) {
+      return null;
+    }
+    return (_variable != null ? ":" + _variable.getName() : Integer.toString(value));
+  }
+
+  /**
+   * Gets the variable.
+   *
+   * @return the variable, null if a literal
+   */
+  SqlVariable getVariable() {
+    return _variable;
+  }
+
+  /**
+   * Gets the original argument text.
+   *
+   * @return the text, may be null
+   */
+  String getText() {
+    return _text;
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return String.valueOf(_text);
+  }
+
+}
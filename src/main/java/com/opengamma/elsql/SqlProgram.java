@@ -0,0 +1,532 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A named fragment compiled to a flat list of instructions.
+ * <p>
+ * Rendering the tree of fragments involves a recursive walk with a virtual call per node.
+ * A program holds the same logic as a flat array of instructions executed by a single loop.
+ * Each instruction refers to the fragment holding its data, which also provides the
+ * rendering logic shared with the tree walk.
+ * <p>
+ * Each instruction occupies three slots in the code array - the opcode,
+ * the index of the fragment operand and the jump target.
+ * <p>
+ * The program can also evaluate the shape of the output, being the decisions that
+ * rendering would take, without rendering. This is used as the key to cached output.
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+final class SqlProgram {
+
+  /** Appends text, operand TextSqlFragment. */
+  static final int TEXT = 0;
+  /** Tests an IF, jumping if false, operand IfSqlFragment. */
+  static final int IF = 1;
+  /** Tests an AND, jumping if false, operand AndSqlFragment. */
+  static final int AND = 2;
+  /** Tests an OR, jumping if false, operand OrSqlFragment. */
+  static final int OR = 3;
+  /** Starts a WHERE, no operand. */
+  static final int WHERE_BEGIN = 4;
+  /** Ends a WHERE, removing it if empty, no operand. */
+  static final int WHERE_END = 5;
+  /** Starts a loop, jumping if the size is zero, operand LoopSqlFragment. */
+  static final int LOOP_BEGIN = 6;
+  /** Ends a loop iteration, jumping back if more iterations, operand LoopSqlFragment. */
+  static final int LOOP_END = 7;
+  /** Tests whether to output the loop join, jumping if the last iteration, operand LoopSqlFragment. */
+  static final int LOOP_JOIN = 8;
+  /** Includes another named fragment, operand IncludeSqlFragment. */
+  static final int INCLUDE = 9;
+  /** Starts a paged section, no operand. */
+  static final int PAGING_BEGIN = 10;
+  /** Ends a paged section, applying the paging, operand PagingSqlFragment. */
+  static final int PAGING_END = 11;
+  /** Appends an offset-fetch clause, operand OffsetFetchSqlFragment. */
+  static final int OFFSET_FETCH = 12;
+  /** Appends a value, operand ValueSqlFragment. */
+  static final int VALUE = 13;
+  /** Appends an operator, jumping if no content, operand OperatorSqlFragment. */
+  static final int OPERATOR_BEGIN = 14;
+  /** Ends an operator, operand OperatorSqlFragment. */
+  static final int OPERATOR_END = 15;
+  /** Ends the program. */
+  static final int END = 16;
+  /** Appends a keyset predicate if the last-seen values exist, operand SeekSqlFragment. */
+  static final int SEEK = 17;
+  /** Appends a comparison against a list of values, operand InSqlFragment. */
+  static final int IN = 18;
+
+  /**
+   * An empty stack.
+   */
+  private static final int[] NO_STACK = new int[0];
+
+  /**
+   * The name of the compiled fragment.
+   */
+  private final String _name;
+  /**
+   * The instructions.
+   */
+  private final int[] _code;
+  /**
+   * The operands.
+   */
+  private final SqlFragment[] _operands;
+  /**
+   * The maximum size of the stack.
+   */
+  private final int _maxStack;
+  /**
+   * The maximum depth of loop nesting.
+   */
+  private final int _maxLoopDepth;
+  /**
+   * Whether the output can be described by a shape, false if the VALUE tag is used.
+   */
+  private final boolean _shaped;
+  /**
+   * Whether the body of the loop starting at each instruction only contains text, null if no loops.
+   */
+  private final boolean[] _textOnlyLoops;
+
+  /**
+   * Compiles a named fragment.
+   *
+   * @param fragment  the fragment to compile, not null
+   * @return the program, not null
+   */
+  static SqlProgram compile(NameSqlFragment fragment) {
+    Builder builder = new Builder();
+    fragment.compile(builder);
+    builder.add(END, null);
+    return new SqlProgram(fragment.getName(), builder);
+  }
+
+  /**
+   * Creates an instance.
+   *
+   * @param name  the name, not null
+   * @param builder  the builder, not null
+   */
+  private SqlProgram(String name, Builder builder) {
+    _name = name;
+    _code = Arrays.copyOf(builder._code, builder._size);
+    _operands = builder._operands.toArray(new SqlFragment[builder._operands.size()]);
+    _maxStack = builder._maxStack;
+    _maxLoopDepth = builder._maxLoopDepth;
+    boolean shaped = true;
+    boolean[] textOnlyLoops = (_maxLoopDepth > 0 ? new boolean[_code.length / 3] : null);
+    for (int pc = 0; pc < _code.length; pc += 3) {
+      if (_code[pc] == VALUE) {
+        shaped = false;
+      } else if (_code[pc] == LOOP_BEGIN) {
+        textOnlyLoops[pc / 3] = isTextOnly(pc + 3, _code[pc + 2] - 3);
+      }
+    }
+    _shaped = shaped;
+    _textOnlyLoops = textOnlyLoops;
+  }
+
+  // checks if the instructions in the range only output text
+  private boolean isTextOnly(int start, int end) {
+    for (int pc = start; pc < end; pc += 3) {
+      int opcode = _code[pc];
+      if (opcode != TEXT && opcode != WHERE_BEGIN && opcode != WHERE_END && opcode != LOOP_JOIN) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Executes the program, appending the SQL to the specified buffer.
+   *
+   * @param context  the render context holding the buffer to append to, not null
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL parameters, not null
+   * @param initialLoopIndex  the loop index on entry
+   */
+  void execute(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] initialLoopIndex) {
+    final StringBuilder buf = context.getBuffer();
+    final int[] code = _code;
+    final SqlFragment[] operands = _operands;
+    int[] stack = (_maxStack > 0 ? new int[_maxStack] : NO_STACK);
+    int[][] loopIndexStack = (_maxLoopDepth > 0 ? new int[_maxLoopDepth][] : null);
+    int[] loopIndex = initialLoopIndex;
+    int sp = 0;
+    int depth = 0;
+    int pc = 0;
+    while (true) {
+      switch (code[pc]) {
+        case TEXT: {
+          ((TextSqlFragment) operands[code[pc + 1]]).appendTo(context, loopIndex);
+          break;
+        }
+        case IF: {
+          if (((IfSqlFragment) operands[code[pc + 1]]).isMatch(params, loopIndex) == false) {
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case AND: {
+          AndSqlFragment and = (AndSqlFragment) operands[code[pc + 1]];
+          if (and.isMatch(params, loopIndex) == false) {
+            pc = code[pc + 2];
+            continue;
+          }
+          and.appendConjunction(context);
+          break;
+        }
+        case OR: {
+          OrSqlFragment or = (OrSqlFragment) operands[code[pc + 1]];
+          if (or.isMatch(params, loopIndex) == false) {
+            pc = code[pc + 2];
+            continue;
+          }
+          or.appendConjunction(context);
+          break;
+        }
+        case WHERE_BEGIN: {
+          stack[sp++] = context.getClause();
+          stack[sp++] = buf.length();
+          buf.append("WHERE ");
+          context.setClause(SqlRenderContext.CLAUSE_WHERE);
+          stack[sp++] = buf.length();
+          break;
+        }
+        case WHERE_END: {
+          int newLen = stack[--sp];
+          int oldLen = stack[--sp];
+          int oldClause = stack[--sp];
+          if (buf.length() == newLen) {
+            buf.setLength(oldLen);
+            context.setClause(oldClause);
+          }
+          break;
+        }
+        case LOOP_BEGIN: {
+          int size = ((LoopSqlFragment) operands[code[pc + 1]]).extractSize(params);
+          if (size <= 0) {
+            pc = code[pc + 2];
+            continue;
+          }
+          loopIndexStack[depth++] = loopIndex;
+          loopIndex = Arrays.copyOf(loopIndex, loopIndex.length + 1);
+          stack[sp++] = size;
+          stack[sp++] = 0;
+          break;
+        }
+        case LOOP_JOIN: {
+          if (stack[sp - 1] >= stack[sp - 2] - 1) {
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case LOOP_END: {
+          int index = stack[sp - 1] + 1;
+          if (index >= stack[sp - 2]) {
+            sp -= 2;
+            loopIndex = loopIndexStack[--depth];
+            loopIndexStack[depth] = null;
+          } else {
+            stack[sp - 1] = index;
+            loopIndex[loopIndex.length - 1] = index;
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case INCLUDE: {
+          NameSqlFragment unit = ((IncludeSqlFragment) operands[code[pc + 1]]).resolve(fragments, params);
+          unit.getProgram().execute(context, fragments, params, loopIndex);
+          break;
+        }
+        case PAGING_BEGIN: {
+          stack[sp++] = buf.length();
+          break;
+        }
+        case PAGING_END: {
+          ((PagingSqlFragment) operands[code[pc + 1]]).applyPaging(context, stack[--sp], fragments, params);
+          break;
+        }
+        case OFFSET_FETCH: {
+          ((OffsetFetchSqlFragment) operands[code[pc + 1]]).toSQL(context, fragments, params, loopIndex);
+          break;
+        }
+        case VALUE: {
+          ((ValueSqlFragment) operands[code[pc + 1]]).toSQL(context, fragments, params, loopIndex);
+          break;
+        }
+        case SEEK: {
+          ((SeekSqlFragment) operands[code[pc + 1]]).toSQL(context, fragments, params, loopIndex);
+          break;
+        }
+        case IN: {
+          ((InSqlFragment) operands[code[pc + 1]]).toSQL(context, fragments, params, loopIndex);
+          break;
+        }
+        case OPERATOR_BEGIN: {
+          int result = ((OperatorSqlFragment) operands[code[pc + 1]]).appendOperator(context, fragments, params, loopIndex);
+          if (result == OperatorSqlFragment.NO_CONTENT) {
+            pc = code[pc + 2];
+            continue;
+          }
+          stack[sp++] = result;
+          break;
+        }
+        case OPERATOR_END: {
+          ((OperatorSqlFragment) operands[code[pc + 1]]).appendSuffix(context, fragments, stack[--sp]);
+          break;
+        }
+        case END: {
+          return;
+        }
+        default:
+          throw new IllegalStateException("Invalid instruction in " + _name + " at " + pc);
+      }
+      pc += 3;
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Evaluates the shape of the output without rendering it.
+   * <p>
+   * The decisions taken by the tags are recorded in the shape.
+   * Text is skipped, as are the iterations of loops that only contain text.
+   *
+   * @param shape  the shape to add to, not null
+   * @param fragments  the SQL fragments for context, not null
+   * @param params  the SQL parameters, not null
+   * @param initialLoopIndex  the loop index on entry
+   * @return true if the shape was evaluated, false if the output cannot be described by a shape
+   */
+  boolean shape(SqlShape shape, SqlFragments fragments, SqlParams params, int[] initialLoopIndex) {
+    if (_shaped == false) {
+      return false;
+    }
+    final int[] code = _code;
+    final SqlFragment[] operands = _operands;
+    int[] stack = (_maxLoopDepth > 0 ? new int[_maxLoopDepth * 2] : NO_STACK);
+    int[][] loopIndexStack = (_maxLoopDepth > 0 ? new int[_maxLoopDepth][] : null);
+    int[] loopIndex = initialLoopIndex;
+    int sp = 0;
+    int depth = 0;
+    int pc = 0;
+    while (true) {
+      switch (code[pc]) {
+        case IF:
+        case AND:
+        case OR: {
+          boolean match = ((ConditionalSqlFragment) operands[code[pc + 1]]).isMatch(params, loopIndex);
+          shape.add(match);
+          if (match == false) {
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case LOOP_BEGIN: {
+          int size = ((LoopSqlFragment) operands[code[pc + 1]]).extractSize(params);
+          shape.add(size);
+          if (size <= 0 || _textOnlyLoops[pc / 3]) {
+            pc = code[pc + 2];
+            continue;
+          }
+          loopIndexStack[depth++] = loopIndex;
+          loopIndex = Arrays.copyOf(loopIndex, loopIndex.length + 1);
+          stack[sp++] = size;
+          stack[sp++] = 0;
+          break;
+        }
+        case LOOP_JOIN: {
+          if (stack[sp - 1] >= stack[sp - 2] - 1) {
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case LOOP_END: {
+          int index = stack[sp - 1] + 1;
+          if (index >= stack[sp - 2]) {
+            sp -= 2;
+            loopIndex = loopIndexStack[--depth];
+            loopIndexStack[depth] = null;
+          } else {
+            stack[sp - 1] = index;
+            loopIndex[loopIndex.length - 1] = index;
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case INCLUDE: {
+          IncludeSqlFragment include = (IncludeSqlFragment) operands[code[pc + 1]];
+          NameSqlFragment unit = include.resolve(fragments, params);
+          if (include.isVariable()) {
+            shape.addInclude(unit);
+          }
+          if (unit.getProgram().shape(shape, fragments, params, loopIndex) == false) {
+            return false;
+          }
+          break;
+        }
+        case PAGING_END: {
+          ((PagingSqlFragment) operands[code[pc + 1]]).shape(shape, fragments, params);
+          break;
+        }
+        case OFFSET_FETCH: {
+          ((OffsetFetchSqlFragment) operands[code[pc + 1]]).shape(shape, fragments, params);
+          break;
+        }
+        case SEEK: {
+          shape.add(((SeekSqlFragment) operands[code[pc + 1]]).isMatch(params));
+          break;
+        }
+        case IN: {
+          ((InSqlFragment) operands[code[pc + 1]]).shape(shape, fragments, params, loopIndex);
+          break;
+        }
+        case OPERATOR_BEGIN: {
+          int result = ((OperatorSqlFragment) operands[code[pc + 1]]).evaluate(fragments, params, loopIndex);
+          shape.add(result);
+          if (result == OperatorSqlFragment.NO_CONTENT) {
+            pc = code[pc + 2];
+            continue;
+          }
+          break;
+        }
+        case END: {
+          return true;
+        }
+        default:
+          // no decision is taken by the remaining instructions
+          break;
+      }
+      pc += 3;
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + ":" + _name + " " + (_code.length / 3) + " instructions";
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Builder used by the fragments to compile themselves.
+   * <p>
+   * This class is mutable and intended for use by a single thread.
+   */
+  static final class Builder {
+    private int[] _code = new int[48];
+    private int _size;
+    private final List<SqlFragment> _operands = new ArrayList<SqlFragment>();
+    private int _stack;
+    private int _maxStack;
+    private int _loopDepth;
+    private int _maxLoopDepth;
+
+    /**
+     * Adds an instruction.
+     *
+     * @param opcode  the opcode
+     * @param operand  the operand, null if none
+     * @return the address of the instruction, used to set the jump target
+     */
+    int add(int opcode, SqlFragment operand) {
+      if (_size + 3 > _code.length) {
+        _code = Arrays.copyOf(_code, _code.length * 2);
+      }
+      int address = _size;
+      _code[address] = opcode;
+      if (operand != null) {
+        _code[address + 1] = _operands.size();
+        _operands.add(operand);
+      }
+      _code[address + 2] = -1;
+      _size += 3;
+      return address;
+    }
+
+    /**
+     * Sets the jump target of an instruction to the next instruction to be added.
+     *
+     * @param address  the address of the instruction to update
+     */
+    void jumpHere(int address) {
+      _code[address + 2] = _size;
+    }
+
+    /**
+     * Sets the jump target of an instruction.
+     *
+     * @param address  the address of the instruction to update
+     * @param target  the address to jump to
+     */
+    void jumpTo(int address, int target) {
+      _code[address + 2] = target;
+    }
+
+    /**
+     * Gets the address of the next instruction to be added.
+     *
+     * @return the address
+     */
+    int next() {
+      return _size;
+    }
+
+    /**
+     * Records that values are pushed onto the stack.
+     *
+     * @param amount  the number of values pushed
+     */
+    void push(int amount) {
+      _stack += amount;
+      _maxStack = Math.max(_maxStack, _stack);
+    }
+
+    /**
+     * Records that values are popped from the stack.
+     *
+     * @param amount  the number of values popped
+     */
+    void pop(int amount) {
+      _stack -= amount;
+    }
+
+    /**
+     * Records entry to a loop.
+     */
+    void enterLoop() {
+      push(2);
+      _loopDepth++;
+      _maxLoopDepth = Math.max(_maxLoopDepth, _loopDepth);
+    }
+
+    /**
+     * Records exit from a loop.
+     */
+    void exitLoop() {
+      pop(2);
+      _loopDepth--;
+    }
+  }
+
+}
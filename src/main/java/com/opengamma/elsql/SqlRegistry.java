@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The process-wide registry of bundles loaded for a type.
+ * <p>
+ * The fragments parsed for a type are shared by every bundle loaded for the same type and config,
+ * thus the files of a type are only located, read and parsed once per config.
+ * The result of locating the files is also cached, including the absence of the optional
+ * config override file, and is shared by all configs with the same name.
+ * <p>
+ * The registry is keyed weakly by class loader, then weakly by config, where configs
+ * created separately with the same options are equal.
+ * The parsed fragments are held by weak references, as they refer to the config and
+ * may refer to classes of the class loader, such as a generated renderer.
+ * Thus the fragments are shared while any bundle using them is in use, and a class loader
+ * that is discarded, such as on redeployment, is released promptly rather than when memory is low.
+ * <p>
+ * This class is thread-safe.
+ */
+final class SqlRegistry {
+
+  /**
+   * The entries for each class loader.
+   */
+  private static final Map<ClassLoader, SqlRegistry> REGISTRIES = new WeakHashMap<ClassLoader, SqlRegistry>();
+
+  /**
+   * The resources of each type keyed by type name and config name, with null for a missing resource.
+   */
+  private final ConcurrentMap<String, URL[]> _resources = new ConcurrentHashMap<String, URL[]>();
+  /**
+   * The parsed fragments keyed by config, then by type name.
+   */
+  private final Map<ElSqlConfig, ConcurrentMap<String, WeakReference<SqlFragments>>> _parsed =
+      new WeakHashMap<ElSqlConfig, ConcurrentMap<String, WeakReference<SqlFragments>>>();
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the fragments of a type, parsing the files if not already registered.
+   *
+   * @param config  the config, not null
+   * @param type  the type, not null
+   * @return the fragments, not null
+   * @throws IllegalArgumentException if the input cannot be parsed or if no matching resource exists
+   */
+  static SqlFragments of(ElSqlConfig config, Class<?> type) {
+    return ofAll(config, new Class<?>[] {type}).get(0);
+  }
+
+  /**
+   * Gets the fragments of each type, parsing the files of those not already registered.
+   * <p>
+   * The types not already registered are parsed together, using the parse executor of the config.
+   *
+   * @param config  the config, not null
+   * @param types  the types, not null
+   * @return the fragments, in the same order as the types, not null
+   * @throws IllegalArgumentException if the input cannot be parsed or if no matching resource exists
+   */
+  static List<SqlFragments> ofAll(ElSqlConfig config, Class<?>[] types) {
+    List<SqlFragments> result = new ArrayList<SqlFragments>(types.length);
+    List<Integer> missing = new ArrayList<Integer>();
+    List<URL[]> bundles = new ArrayList<URL[]>();
+    for (int i = 0; i < types.length; i++) {
+      SqlRegistry registry = registry(types[i]);
+      SqlFragments fragments = registry.find(config, types[i]);
+      if (fragments == null) {
+        missing.add(i);
+        bundles.add(registry.findResources(config, types[i]));
+      }
+      result.add(fragments);
+    }
+    if (bundles.size() > 0) {
+      List<SqlFragments> parsed = SqlFragments.parseResources(bundles, config);
+      for (int i = 0; i < parsed.size(); i++) {
+        Class<?> type = types[missing.get(i)];
+        SqlFragments fragments = registry(type).register(config, type, parsed.get(i).withRenderer(ElSqlRenderer.find(type)));
+        result.set(missing.get(i), fragments);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Gets the resources of a type, locating them if not already registered.
+   * <p>
+   * The first resource is the base file, the second is the optional config override file.
+   * Either may be null if the file does not exist.
+   *
+   * @param config  the config, not null
+   * @param type  the type, not null
+   * @return the resources, not null
+   */
+  static URL[] resources(ElSqlConfig config, Class<?> type) {
+    return registry(type).findResources(config, type).clone();
+  }
+
+  // gets the registry for the class loader of the type
+  private static SqlRegistry registry(Class<?> type) {
+    ClassLoader loader = type.getClassLoader();
+    synchronized (REGISTRIES) {
+      SqlRegistry registry = REGISTRIES.get(loader);
+      if (registry == null) {
+        registry = new SqlRegistry();
+        REGISTRIES.put(loader, registry);
+      }
+      return registry;
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Creates an instance.
+   */
+  private SqlRegistry() {
+  }
+
+  // finds the base resource and the config override resource of a type
+  private URL[] findResources(ElSqlConfig config, Class<?> type) {
+    String key = type.getName() + "-" + config.getName();
+    URL[] resources = _resources.get(key);
+    if (resources == null) {
+      URL baseResource = type.getResource(type.getSimpleName() + ".elsql");
+      URL configResource = type.getResource(type.getSimpleName() + "-" + config.getName() + ".elsql");
+      resources = new URL[] {baseResource, configResource};
+      _resources.putIfAbsent(key, resources);
+    }
+    return resources;
+  }
+
+  // finds the registered fragments, null if not registered
+  private SqlFragments find(ElSqlConfig config, Class<?> type) {
+    WeakReference<SqlFragments> ref = parsed(config).get(type.getName());
+    return (ref != null ? ref.get() : null);
+  }
+
+  // registers the fragments, returning those registered by another thread if any
+  private SqlFragments register(ElSqlConfig config, Class<?> type, SqlFragments fragments) {
+    ConcurrentMap<String, WeakReference<SqlFragments>> parsed = parsed(config);
+    WeakReference<SqlFragments> ref = new WeakReference<SqlFragments>(fragments);
+    while (true) {
+      WeakReference<SqlFragments> existingRef = parsed.putIfAbsent(type.getName(), ref);
+      if (existingRef == null) {
+        return fragments;
+      }
+      SqlFragments existing = existingRef.get();
+      if (existing != null) {
+        return existing;
+      }
+      if (parsed.replace(type.getName(), existingRef, ref)) {
+        return fragments;
+      }
+    }
+  }
+
+  // gets the parsed fragments of a config
+  private ConcurrentMap<String, WeakReference<SqlFragments>> parsed(ElSqlConfig config) {
+    synchronized (_parsed) {
+      ConcurrentMap<String, WeakReference<SqlFragments>> parsed = _parsed.get(config);
+      if (parsed == null) {
+        parsed = new ConcurrentHashMap<String, WeakReference<SqlFragments>>();
+        _parsed.put(config, parsed);
+      }
+      return parsed;
+    }
+  }
+
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the fragments of a bundle, reloading files that change on the file system.
+ * <p>
+ * The files are checked by comparing the last modified time and length, at most once per interval.
+ * The first caller after the interval has passed starts the check in the background,
+ * using the parse executor of the config if available, otherwise a shared daemon thread.
+ * No caller waits for the check, all continue to use the current fragments until it completes.
+ * Only the files that have changed are parsed again, the blocks of the other files are shared.
+ * The merged fragments are then published in a single step, thus callers see either
+ * the old or the new fragments, never a mixture.
+ * <p>
+ * Resources that are not files, such as entries in a jar file, are never reloaded.
+ * <p>
+ * This class is thread-safe.
+ */
+final class SqlReloader {
+
+  /**
+   * The executor used to check for changes when the config has no parse executor.
+   * The single thread is a daemon, and ends when idle, thus it does not retain the class loader.
+   */
+  private static final Executor RELOAD_EXECUTOR = new ThreadPoolExecutor(
+      0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+          Thread thread = new Thread(task, "ElSql-Reload");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * The resources, in order, not null.
+   */
+  private final URL[] _resources;
+  /**
+   * The file of each resource, null if not a file.
+   */
+  private final File[] _files;
+  /**
+   * The last modified time of each file when last parsed.
+   */
+  private final long[] _modified;
+  /**
+   * The length of each file when last parsed, detecting changes within the resolution of the time.
+   */
+  private final long[] _lengths;
+  /**
+   * The failure of the last parse of each file, null if it parsed.
+   */
+  private final RuntimeException[] _failures;
+  /**
+   * The parsed sections of each resource.
+   */
+  private final List<Map<String, ElSqlParser.Section>> _parsed;
+  /**
+   * The table of variables, shared by each reload such that slots do not change.
+   */
+  private final SqlVariables _variables;
+  /**
+   * The config.
+   */
+  private final ElSqlConfig _config;
+  /**
+   * The generated renderer, null if none.
+   */
+  private final ElSqlRenderer _renderer;
+  /**
+   * The interval between checks.
+   */
+  private final long _intervalNanos;
+  /**
+   * The time of the next check.
+   */
+  private final AtomicLong _nextCheck;
+  /**
+   * Whether a check has been started and not yet completed.
+   */
+  private final AtomicBoolean _checking = new AtomicBoolean();
+  /**
+   * The current fragments.
+   */
+  private volatile SqlFragments _fragments;
+
+  /**
+   * Loads the resources.
+   *
+   * @param resources  the resources, may contain nulls which are ignored, not null
+   * @param config  the config, not null
+   * @param renderer  the generated renderer, null if none
+   * @param intervalMillis  the minimum interval between checks for changes, zero to check on every call
+   * @return the reloader, not null
+   * @throws IllegalArgumentException if none of the resources exists or the input cannot be parsed
+   */
+  static SqlReloader load(URL[] resources, ElSqlConfig config, ElSqlRenderer renderer, long intervalMillis) {
+    if (intervalMillis < 0) {
+      throw new IllegalArgumentException("Check interval must not be negative");
+    }
+    List<URL> found = new ArrayList<URL>(resources.length);
+    for (URL resource : resources) {
+      if (resource != null) {
+        found.add(resource);
+      }
+    }
+    if (found.isEmpty()) {
+      throw new IllegalArgumentException("No matching resource was found");
+    }
+    return new SqlReloader(found.toArray(new URL[found.size()]), config, renderer, intervalMillis);
+  }
+
+  /**
+   * Creates an instance, parsing the resources.
+   *
+   * @param resources  the resources, not null
+   * @param config  the config, not null
+   * @param renderer  the generated renderer, null if none
+   * @param intervalMillis  the minimum interval between checks for changes
+   */
+  private SqlReloader(URL[] resources, ElSqlConfig config, ElSqlRenderer renderer, long intervalMillis) {
+    _resources = resources;
+    _files = new File[resources.length];
+    _modified = new long[resources.length];
+    _lengths = new long[resources.length];
+    _failures = new RuntimeException[resources.length];
+    _parsed = new ArrayList<Map<String, ElSqlParser.Section>>(resources.length);
+    _variables = new SqlVariables();
+    _config = config;
+    _renderer = renderer;
+    _intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    for (int i = 0; i < resources.length; i++) {
+      _files[i] = SqlFragments.toFile(resources[i]);
+      // the time is read before parsing, such that a change while parsing is seen by the next check
+      _modified[i] = (_files[i] != null ? _files[i].lastModified() : 0);
+      _lengths[i] = (_files[i] != null ? _files[i].length() : 0);
+      _parsed.add(SqlFragments.parseFile(resources[i], _variables, config));
+    }
+    _fragments = SqlFragments.combine(_parsed, _variables, config).withRenderer(renderer);
+    _nextCheck = new AtomicLong(System.nanoTime() + _intervalNanos);
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the current fragments, starting a check for changed files if the check interval has passed.
+   * <p>
+   * This never waits for the check, which publishes the reloaded fragments when complete.
+   * A file that fails to parse is not reloaded until it changes again,
+   * with the previous version of the file being retained and the failure available
+   * from {@link #getFailure()}.
+   *
+   * @return the fragments, not null
+   */
+  SqlFragments current() {
+    long next = _nextCheck.get();
+    long now = System.nanoTime();
+    if (now - next >= 0 && _nextCheck.compareAndSet(next, now + _intervalNanos) && _checking.compareAndSet(false, true)) {
+      Runnable check = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            reload();
+          } catch (RuntimeException ex) {
+            // retained by reload for getFailure()
+          } finally {
+            _checking.set(false);
+          }
+        }
+      };
+      try {
+        Executor executor = _config.getParseExecutor();
+        (executor != null ? executor : RELOAD_EXECUTOR).execute(check);
+      } catch (RuntimeException ex) {
+        // the executor rejected the check, try again after the interval
+        _checking.set(false);
+      }
+    }
+    return _fragments;
+  }
+
+  /**
+   * Gets the failure of the last attempt to reload a file, if the file has not been fixed.
+   * <p>
+   * The failure of a file is cleared when the file changes again and is parsed successfully.
+   *
+   * @return the failure, null if every file was parsed successfully when last changed
+   */
+  synchronized RuntimeException getFailure() {
+    for (RuntimeException failure : _failures) {
+      if (failure != null) {
+        return failure;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reloads the files that have changed since they were last parsed.
+   * <p>
+   * A file that no longer exists is ignored, retaining the previous version.
+   *
+   * @return true if any file was reloaded
+   * @throws IllegalArgumentException if a changed file cannot be parsed
+   */
+  synchronized boolean reload() {
+    boolean changed = false;
+    RuntimeException failure = null;
+    for (int i = 0; i < _resources.length; i++) {
+      File file = _files[i];
+      if (file != null) {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified != 0 && (modified != _modified[i] || length != _lengths[i])) {
+          _modified[i] = modified;
+          _lengths[i] = length;
+          try {
+            _parsed.set(i, SqlFragments.parseFile(_resources[i], _variables, _config));
+            _failures[i] = null;
+            changed = true;
+          } catch (RuntimeException ex) {
+            _failures[i] = ex;
+            failure = ex;
+          }
+        }
+      }
+    }
+    if (changed) {
+      _fragments = SqlFragments.combine(_parsed, _variables, _config).withRenderer(_renderer);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return changed;
+  }
+
+  /**
+   * Returns a reloader for the same resources with a different configuration.
+   * <p>
+   * The resources are parsed again using the new config.
+   *
+   * @param config  the new config, not null
+   * @return the reloader, not null
+   */
+  SqlReloader withConfig(ElSqlConfig config) {
+    return new SqlReloader(_resources, config, _renderer, TimeUnit.NANOSECONDS.toMillis(_intervalNanos));
+  }
+
+}
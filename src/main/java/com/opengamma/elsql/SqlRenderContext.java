@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+/**
+ * The context of a single render.
+ * <p>
+ * This holds the buffer being appended to and tracks the clause keyword that the
+ * output currently ends with. This allows AND and OR to be output based on a simple
+ * check, rather than by examining the end of the buffer.
+ * <p>
+ * This class is mutable and intended for use by a single thread.
+ */
+final class SqlRenderContext {
+
+  /**
+   * Clause state where the output does not change the state, such as whitespace.
+   */
+  static final int CLAUSE_UNCHANGED = -1;
+  /**
+   * Clause state where the output ends with anything other than a clause keyword.
+   */
+  static final int CLAUSE_NONE = 0;
+  /**
+   * Clause state where the output ends with WHERE.
+   */
+  static final int CLAUSE_WHERE = 1;
+  /**
+   * Clause state where the output ends with AND.
+   */
+  static final int CLAUSE_AND = 2;
+  /**
+   * Clause state where the output ends with OR.
+   */
+  static final int CLAUSE_OR = 3;
+
+  /**
+   * The buffer.
+   */
+  private final StringBuilder _buf;
+  /**
+   * The clause keyword that the output ends with.
+   */
+  private int _clause = CLAUSE_NONE;
+
+  /**
+   * Creates an instance.
+   *
+   * @param buf  the buffer to append to, not null
+   */
+  SqlRenderContext(StringBuilder buf) {
+    _buf = buf;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Determines the clause state after outputting the text.
+   * <p>
+   * This is called when parsing, and when paging rewrites the output, and examines the last word of the text.
+   * The keywords are matched ignoring case and surrounding whitespace.
+   *
+   * @param text  the text to examine, not null
+   * @return the clause state, one of the constants in this class
+   */
+  static int clauseOf(String text) {
+    int end = text.length();
+    while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+      end--;
+    }
+    if (end == 0) {
+      return CLAUSE_UNCHANGED;
+    }
+    int start = end;
+    while (start > 0 && Character.isLetter(text.charAt(start - 1))) {
+      start--;
+    }
+    if (start > 0 && Character.isWhitespace(text.charAt(start - 1)) == false) {
+      return CLAUSE_NONE;
+    }
+    String word = text.substring(start, end);
+    if (word.equalsIgnoreCase("WHERE")) {
+      return CLAUSE_WHERE;
+    } else if (word.equalsIgnoreCase("AND")) {
+      return CLAUSE_AND;
+    } else if (word.equalsIgnoreCase("OR")) {
+      return CLAUSE_OR;
+    }
+    return CLAUSE_NONE;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the buffer.
+   * <p>
+   * Callers appending directly to the buffer must update the clause state.
+   *
+   * @return the buffer, not null
+   */
+  StringBuilder getBuffer() {
+    return _buf;
+  }
+
+  /**
+   * Gets the clause keyword that the output ends with.
+   *
+   * @return the clause state, one of the constants in this class
+   */
+  int getClause() {
+    return _clause;
+  }
+
+  /**
+   * Sets the clause keyword that the output ends with.
+   *
+   * @param clause  the clause state, one of the constants in this class, unchanged is ignored
+   */
+  void setClause(int clause) {
+    if (clause != CLAUSE_UNCHANGED) {
+      _clause = clause;
+    }
+  }
+
+  /**
+   * Appends AND or OR, unless the output already ends with WHERE or the same keyword.
+   *
+   * @param clause  the clause state of the keyword to append, either AND or OR
+   */
+  void appendConjunction(int clause) {
+    if (_clause != CLAUSE_WHERE && _clause != clause) {
+      _buf.append(clause == CLAUSE_AND ? "AND " : "OR ");
+      _clause = clause;
+    }
+  }
+
+  /**
+   * Appends SQL that does not end with a clause keyword.
+   *
+   * @param sql  the SQL to append, not null
+   */
+  void append(String sql) {
+    if (sql.length() > 0) {
+      _buf.append(sql);
+      _clause = CLAUSE_NONE;
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return _buf.toString();
+  }
+
+}
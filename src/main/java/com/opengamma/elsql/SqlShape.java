@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.Arrays;
+
+/**
+ * The shape of the output of a named fragment, used as a cache key.
+ * <p>
+ * The shape is the sequence of decisions taken while rendering, such as the result
+ * of each conditional tag, the size of each loop and the paging values.
+ * Two renders with the same shape produce the same SQL.
+ * <p>
+ * This class is mutable while the shape is evaluated and effectively immutable once complete.
+ * It is intended for use by a single thread until complete.
+ */
+final class SqlShape {
+
+  /**
+   * The name of the fragment.
+   */
+  private final String _name;
+  /**
+   * The recorded decisions.
+   */
+  private int[] _values = new int[16];
+  /**
+   * The number of recorded decisions.
+   */
+  private int _size;
+  /**
+   * The recorded includes, null if none.
+   */
+  private Object[] _includes;
+  /**
+   * The number of recorded includes.
+   */
+  private int _includeSize;
+  /**
+   * The hash code, calculated when complete.
+   */
+  private int _hashCode;
+
+  /**
+   * Creates an instance.
+   *
+   * @param name  the name of the fragment, not null
+   */
+  SqlShape(String name) {
+    _name = name;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Records a decision.
+   *
+   * @param value  the value of the decision
+   */
+  void add(int value) {
+    if (_size == _values.length) {
+      _values = Arrays.copyOf(_values, _size * 2);
+    }
+    _values[_size++] = value;
+  }
+
+  /**
+   * Records a decision that is a boolean.
+   *
+   * @param value  the value of the decision
+   */
+  void add(boolean value) {
+    add(value ? 1 : 0);
+  }
+
+  /**
+   * Records the fragment selected by a variable include.
+   *
+   * @param fragment  the included fragment, not null
+   */
+  void addInclude(NameSqlFragment fragment) {
+    if (_includes == null) {
+      _includes = new Object[4];
+    } else if (_includeSize == _includes.length) {
+      _includes = Arrays.copyOf(_includes, _includeSize * 2);
+    }
+    _includes[_includeSize++] = fragment;
+  }
+
+  /**
+   * Completes the shape, making it usable as a key.
+   *
+   * @return this shape, not null
+   */
+  SqlShape complete() {
+    int hash = _name.hashCode();
+    for (int i = 0; i < _size; i++) {
+      hash = 31 * hash + _values[i];
+    }
+    for (int i = 0; i < _includeSize; i++) {
+      hash = 31 * hash + _includes[i].hashCode();
+    }
+    _hashCode = hash;
+    return this;
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public boolean equals(Object obj) {
+    if (obj == this) {
+      return true;
+    }
+    if (obj instanceof SqlShape) {
+      SqlShape other = (SqlShape) obj;
+      if (_hashCode != other._hashCode || _size != other._size ||
+          _includeSize != other._includeSize || _name.equals(other._name) == false) {
+        return false;
+      }
+      for (int i = 0; i < _size; i++) {
+        if (_values[i] != other._values[i]) {
+          return false;
+        }
+      }
+      for (int i = 0; i < _includeSize; i++) {
+        if (_includes[i] != other._includes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public int hashCode() {
+    return _hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + ":" + _name + " " + Arrays.toString(Arrays.copyOf(_values, _size));
+  }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+/**
+ * A variable referred to by a fragment.
+ * <p>
+ * The value is accessed by slot when the parameters are {@link IndexedSqlParams}
+ * created for the same bundle, and by name otherwise.
+ * <p>
+ * This class is immutable and thread-safe.
+ */
+final class SqlVariable {
+
+  /**
+   * The table that assigned the slot.
+   */
+  private final SqlVariables _variables;
+  /**
+   * The variable name.
+   */
+  private final String _name;
+  /**
+   * The slot, -1 if the name depends on the loop index.
+   */
+  private final int _slot;
+  /**
+   * The name split at the loop index, null if no loop index.
+   */
+  private final LoopIndexText _loopIndex;
+
+  /**
+   * Creates an instance.
+   * 
+   * @param variables  the table that assigned the slot, not null
+   * @param name  the variable name, not null
+   * @param slot  the slot, -1 if none
+   * @param loopIndex  the name split at the loop index, null if no loop index
+   */
+  SqlVariable(SqlVariables variables, String name, int slot, LoopIndexText loopIndex) {
+    _variables = variables;
+    _name = name;
+    _slot = slot;
+    _loopIndex = loopIndex;
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Gets the variable name.
+   * 
+   * @return the name, which may contain the LOOPINDEX tag, not null
+   */
+  String getName() {
+    return _name;
+  }
+
+  /**
+   * Gets the slot.
+   * 
+   * @return the slot, -1 if the name depends on the loop index
+   */
+  int getSlot() {
+    return _slot;
+  }
+
+  /**
+   * Checks whether the variable exists in the parameters.
+   * 
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loop index
+   * @return true if it exists
+   */
+  boolean contains(SqlParams params, int[] loopIndex) {
+    if (_slot >= 0 && params instanceof IndexedSqlParams) {
+      IndexedSqlParams indexed = (IndexedSqlParams) params;
+      if (indexed.getVariables() == _variables) {
+        return indexed.contains(_slot, _name);
+      }
+    }
+    return params.contains(resolveName(loopIndex));
+  }
+
+  /**
+   * Gets the value of the variable from the parameters.
+   * 
+   * @param params  the SQL parameters, not null
+   * @param loopIndex  the current loop index
+   * @return the value, null if not found
+   */
+  Object get(SqlParams params, int[] loopIndex) {
+    if (_slot >= 0 && params instanceof IndexedSqlParams) {
+      IndexedSqlParams indexed = (IndexedSqlParams) params;
+      if (indexed.getVariables() == _variables) {
+        return indexed.get(_slot, _name);
+      }
+    }
+    return params.get(resolveName(loopIndex));
+  }
+
+  /**
+   * Checks whether the variable exists in the parameters, ignoring any loop index.
+   * 
+   * @param params  the SQL parameters, not null
+   * @return true if it exists
+   */
+  boolean contains(SqlParams params) {
+    if (_slot >= 0 && params instanceof IndexedSqlParams) {
+      IndexedSqlParams indexed = (IndexedSqlParams) params;
+      if (indexed.getVariables() == _variables) {
+        return indexed.contains(_slot, _name);
+      }
+    }
+    return params.contains(_name);
+  }
+
+  /**
+   * Gets the value of the variable from the parameters, ignoring any loop index.
+   * 
+   * @param params  the SQL parameters, not null
+   * @return the value, null if not found
+   */
+  Object get(SqlParams params) {
+    if (_slot >= 0 && params instanceof IndexedSqlParams) {
+      IndexedSqlParams indexed = (IndexedSqlParams) params;
+      if (indexed.getVariables() == _variables) {
+        return indexed.get(_slot, _name);
+      }
+    }
+    return params.get(_name);
+  }
+
+  /**
+   * Resolves the name, applying the loop index.
+   * 
+   * @param loopIndex  the current loop index
+   * @return the name, not null
+   */
+  String resolveName(int[] loopIndex) {
+    return (_loopIndex != null ? _loopIndex.apply(loopIndex) : _name);
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return _name;
+  }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The table of variables referred to by a bundle, each assigned an integer slot.
+ * <p>
+ * The parser registers each variable name as it is found.
+ * Rendering with {@link IndexedSqlParams} then accesses values by slot.
+ * Variables whose name depends on the loop index are not assigned a slot.
+ * <p>
+ * This class is thread-safe.
+ */
+final class SqlVariables {
+
+  /**
+   * The slots keyed by variable name.
+   */
+  private final ConcurrentMap<String, Integer> _slots = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * Creates an empty table.
+   */
+  SqlVariables() {
+  }
+
+  //-------------------------------------------------------------------------
+  /**
+   * Obtains a variable, registering the name if necessary.
+   * 
+   * @param name  the variable name, without the colon, not null
+   * @return the variable, not null
+   */
+  SqlVariable variable(String name) {
+    LoopIndexText loopIndex = LoopIndexText.parse(name);
+    if (loopIndex != null) {
+      return new SqlVariable(this, name, -1, loopIndex);
+    }
+    return new SqlVariable(this, name, register(name), null);
+  }
+
+  // registers the name, returning the slot
+  private synchronized int register(String name) {
+    Integer slot = _slots.get(name);
+    if (slot == null) {
+      slot = _slots.size();
+      _slots.put(name, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Gets the slot of a variable.
+   * 
+   * @param name  the variable name, without the colon, not null
+   * @return the slot, -1 if the name is not known
+   */
+  int getSlot(String name) {
+    Integer slot = _slots.get(name);
+    return (slot != null ? slot : -1);
+  }
+
+  /**
+   * Gets the number of slots.
+   * 
+   * @return the number of slots
+   */
+  int size() {
+    return _slots.size();
+  }
+
+  //-------------------------------------------------------------------------
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + _slots;
+  }
+
+}
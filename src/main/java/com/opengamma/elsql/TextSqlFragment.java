@@ -5,6 +5,8 @@
  */
 package com.opengamma.elsql;
 
+import java.util.Set;
+
 /**
  * Simple fragment of textual SQL.
  * <p>
@@ -16,6 +18,14 @@ final class TextSqlFragment extends SqlFragment {
    * The text of the fragment.
    */
   private final String _text;
+  /**
+   * The text split at the loop index, null if no loop index.
+   */
+  private final LoopIndexText _textLoopIndex;
+  /**
+   * The clause state after the text is output.
+   */
+  private final int _clause;
 
   /**
    * Creates an instance with text.
@@ -36,14 +46,49 @@ final class TextSqlFragment extends SqlFragment {
     } else {
       _text = text;
     }
+    _textLoopIndex = LoopIndexText.parse(_text);
+    _clause = SqlRenderContext.clauseOf(_text);
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
-    // handle LOOPINDEX, which is a text-like tag not surrounded by whitespace
-    String text = applyLoopIndex(_text, loopIndex);
-    buf.append(text);
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    appendTo(context, loopIndex);
+  }
+
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.TEXT, this);
+  }
+
+  @Override
+  boolean isStatic(SqlFragments fragments, Set<String> including) {
+    // text that refers to the loop index can be included from within a loop
+    return _textLoopIndex == null;
+  }
+
+  /**
+   * Appends the text to the buffer.
+   * 
+   * @param context  the render context, not null
+   * @param loopIndex  the current loopIndex
+   */
+  void appendTo(SqlRenderContext context, int[] loopIndex) {
+    if (_textLoopIndex != null) {
+      _textLoopIndex.appendTo(context.getBuffer(), loopIndex);
+    } else {
+      context.getBuffer().append(_text);
+    }
+    context.setClause(_clause);
+  }
+
+  /**
+   * Gets the text, as output.
+   * 
+   * @return the text, not null
+   */
+  String getText() {
+    return _text;
   }
 
   //-------------------------------------------------------------------------
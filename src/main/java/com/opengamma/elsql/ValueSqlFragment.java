@@ -15,7 +15,7 @@ final class ValueSqlFragment extends SqlFragment {
   /**
    * The variable to output.
    */
-  private final String _valueVariable;
+  private final SqlVariable _valueVariable;
   /**
    * Whether to follow with a space.
    */
@@ -28,27 +28,62 @@ final class ValueSqlFragment extends SqlFragment {
    * @param followWithSpace  whether to follow by a space
    */
   ValueSqlFragment(String valueVariable, boolean followWithSpace) {
-    _valueVariable = extractVariableName(valueVariable);
+    this(valueVariable, followWithSpace, new SqlVariables());
+  }
+
+  /**
+   * Creates an instance registering the variable in a table.
+   * 
+   * @param valueVariable  the value variable, not null
+   * @param followWithSpace  whether to follow by a space
+   * @param variables  the table of variables, not null
+   */
+  ValueSqlFragment(String valueVariable, boolean followWithSpace, SqlVariables variables) {
+    _valueVariable = variables.variable(extractVariableName(valueVariable));
     _followWithSpace = followWithSpace;
   }
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
-    String var = applyLoopIndex(_valueVariable, loopIndex);
-    Object value = params.get(var);
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    Object value = _valueVariable.get(params, loopIndex);
     if (value != null) {
+      StringBuilder buf = context.getBuffer();
       buf.append(value);
       if (_followWithSpace) {
         buf.append(' ');
       }
+      context.setClause(SqlRenderContext.CLAUSE_NONE);
     }
   }
 
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.VALUE, this);
+  }
+
+  /**
+   * Gets the variable.
+   * 
+   * @return the variable name, not null
+   */
+  String getVariable() {
+    return _valueVariable.getName();
+  }
+
+  /**
+   * Checks whether the value is followed by a space.
+   * 
+   * @return true if followed by a space
+   */
+  boolean isFollowWithSpace() {
+    return _followWithSpace;
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
-    return getClass().getSimpleName() + ":" + _valueVariable;
+    return getClass().getSimpleName() + ":" + _valueVariable.getName();
   }
 
 }
@@ -20,16 +20,29 @@ final class WhereSqlFragment extends ContainerSqlFragment {
 
   //-------------------------------------------------------------------------
   @Override
-  void toSQL(StringBuilder buf, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+  void toSQL(SqlRenderContext context, SqlFragments fragments, SqlParams params, int[] loopIndex) {
+    StringBuilder buf = context.getBuffer();
     int oldLen = buf.length();
+    int oldClause = context.getClause();
     buf.append("WHERE ");
+    context.setClause(SqlRenderContext.CLAUSE_WHERE);
     int newLen = buf.length();
-    super.toSQL(buf, fragments, params, loopIndex);
+    super.toSQL(context, fragments, params, loopIndex);
     if (buf.length() == newLen) {
       buf.setLength(oldLen);
+      context.setClause(oldClause);
     }
   }
 
+  @Override
+  void compile(SqlProgram.Builder program) {
+    program.add(SqlProgram.WHERE_BEGIN, null);
+    program.push(3);
+    super.compile(program);
+    program.pop(3);
+    program.add(SqlProgram.WHERE_END, null);
+  }
+
   //-------------------------------------------------------------------------
   @Override
   public String toString() {
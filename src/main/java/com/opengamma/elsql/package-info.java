@@ -111,6 +111,27 @@
  * &#064;FETCH(fetchVariable)<br>
  * The fetch tag adds the SQL FETCH clause. It works as per the offset-fetch tag.
  * <p>
+ * &#064;SEEK(column variable, column DESC variable)<br>
+ * The seek tag adds a keyset pagination condition, selecting the rows after the last row
+ * of the previous page. Each argument is a sort column, optionally followed by ASC or DESC,
+ * and the variable holding the value of the column in the last row seen.
+ * Where supported by the database, the condition is a row value comparison, such as
+ * {@code (name, id) > (:last_name, :last_id)}, otherwise the equivalent OR of single column
+ * comparisons is used. The condition is only output if the first variable exists, and is
+ * joined using AND in the same way as the and tag. It is typically used within a where tag,
+ * with an ORDER BY of the same columns and a fetch tag to limit the size of the page.
+ * The seek tag must be on a line by itself.
+ * <p>
+ * &#064;IN(variable)<br>
+ * The in tag compares against a list of values held in the variable.
+ * Where supported by the database, such as Postgres, and the variable is bound as an SQL array,
+ * being a {@code java.sql.Array} or a Spring {@code SqlParameterValue} of type {@code Types.ARRAY},
+ * {@code = ANY(:ids)} is output, thus the SQL does not vary with the size of the list.
+ * Otherwise, {@code IN (:ids)} is output, with the variable bound as a collection that
+ * the named parameter layer, such as Spring's {@code NamedParameterJdbcTemplate}, expands
+ * to one placeholder per element. An empty or missing list outputs {@code IN (NULL)}, which matches nothing.
+ * The tag must be directly followed by the bracket.
+ * <p>
  * To use the library, simply obtain an instance of {@code ElSql} and call {@code getSql()}.
  */
 package com.opengamma.elsql;
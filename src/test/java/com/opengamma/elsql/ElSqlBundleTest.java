@@ -7,6 +7,13 @@ package com.opengamma.elsql;
 
 import static org.testng.AssertJUnit.assertEquals;
 
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
@@ -44,6 +51,24 @@ public class ElSqlBundleTest {
     ElSqlBundle.of(null, ElSqlBundle.class);
   }
 
+  //-------------------------------------------------------------------------
+  public void test_ofAll_parseExecutor() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<ElSqlBundle> test = ElSqlBundle.ofAll(ElSqlConfig.HSQL.withParseExecutor(executor), ElSql.class, ElSql.class);
+      assertEquals(2, test.size());
+      assertEquals("SELECT * FROM foo ", test.get(0).getSql("TestFoo"));
+      assertEquals("SELECT * FROM bar, foo ", test.get(1).getSql("TestBar"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_ofAll_nullType() {
+    ElSqlBundle.ofAll(ElSqlConfig.DEFAULT, ElSql.class, null);
+  }
+
   @Test(expectedExceptions = IllegalArgumentException.class)
   public void test_of_nullClass() {
     ElSqlBundle.of(ElSqlConfig.DEFAULT, null);
@@ -73,4 +98,28 @@ public class ElSqlBundleTest {
     assertEquals("SELECT * FROM foo ", test.getSql("TestFoo", new MapSqlParameterSource()));
   }
 
+  public void test_getSql_appendable() {
+    ElSqlBundle test = ElSqlBundle.of(ElSqlConfig.DEFAULT, ElSql.class);
+    StringBuilder buf = new StringBuilder("X");
+    test.getSql("TestFoo", new MapSqlParameterSource(), buf);
+    assertEquals("XSELECT * FROM foo ", buf.toString());
+    StringWriter writer = new StringWriter();
+    test.getSql("TestBar", new MapSqlParameterSource(), writer);
+    assertEquals("SELECT * FROM bar ", writer.toString());
+  }
+
+  public void test_getSql_charBuffer() {
+    ElSqlBundle test = ElSqlBundle.of(ElSqlConfig.DEFAULT, ElSql.class);
+    CharBuffer buf = CharBuffer.allocate(20);
+    test.getSql("TestFoo", new MapSqlParameterSource(), buf);
+    buf.flip();
+    assertEquals("SELECT * FROM foo ", buf.toString());
+  }
+
+  @Test(expectedExceptions = BufferOverflowException.class)
+  public void test_getSql_charBuffer_overflow() {
+    ElSqlBundle test = ElSqlBundle.of(ElSqlConfig.DEFAULT, ElSql.class);
+    test.getSql("TestFoo", new MapSqlParameterSource(), CharBuffer.allocate(10));
+  }
+
 }
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class ElSqlClassWriterTest {
+
+  public void test_generate_matchesInterpreter() {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(ElSqlProcessorTest.LINES, new SqlVariables()).parse();
+    SqlFragments expected = new SqlFragments(parsed, ElSqlConfig.HSQL);
+    SqlFragments test = new SqlFragments(parsed, ElSqlConfig.HSQL.withGenerateThreshold(1));
+    for (NameSqlFragment fragment : parsed.values()) {
+      assertNotNull(ElSqlRenderer.generate(fragment, 1));
+    }
+    Random random = new Random(2);
+    for (int i = 0; i < 500; i++) {
+      SqlParams params = ElSqlProcessorTest.randomParams(random);
+      for (String name : parsed.keySet()) {
+        assertEquals(expected.getSql(name, params), test.getSql(name, params));
+      }
+    }
+  }
+
+  public void test_generate_threshold() {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(ElSqlProcessorTest.LINES, new SqlVariables()).parse();
+    SqlFragments test = new SqlFragments(parsed, ElSqlConfig.HSQL.withGenerateThreshold(3));
+    SqlParams params = new MapSqlParams("size", 1).with("key0", "a");
+    NameSqlFragment fragment = parsed.get("Where");
+    assertEquals("WHERE key = :key0 sub = 0_0 OR sub = 0_1 LIMIT FETCH FIRST 5 ROWS ONLY ", test.getSql("Where", params));
+    assertEquals("WHERE key = :key0 sub = 0_0 OR sub = 0_1 LIMIT FETCH FIRST 5 ROWS ONLY ", test.getSql("Where", params));
+    assertNull(fragment.getGenerated());
+    assertEquals("WHERE key = :key0 sub = 0_0 OR sub = 0_1 LIMIT FETCH FIRST 5 ROWS ONLY ", test.getSql("Where", params));
+    assertNotNull(fragment.getGenerated());
+    assertEquals("WHERE key = :key0 sub = 0_0 OR sub = 0_1 LIMIT FETCH FIRST 5 ROWS ONLY ", test.getSql("Where", params));
+  }
+
+  public void test_generate_disabledByDefault() {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(ElSqlProcessorTest.LINES, new SqlVariables()).parse();
+    SqlFragments test = new SqlFragments(parsed, ElSqlConfig.HSQL);
+    for (int i = 0; i < 10; i++) {
+      test.getSql("Where", new MapSqlParams("size", 0));
+    }
+    assertNull(parsed.get("Where").getGenerated());
+  }
+
+  public void test_generate_tooLarge() {
+    char[] chars = new char[70000];
+    Arrays.fill(chars, 'x');
+    String large = new String(chars);
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(Arrays.asList("@NAME(Large)", "  SELECT " + large), new SqlVariables()).parse();
+    SqlFragments test = new SqlFragments(parsed, ElSqlConfig.DEFAULT.withGenerateThreshold(1));
+    assertEquals("SELECT " + large + " ", test.getSql("Large", new MapSqlParams("a", 1)));
+    assertNull(ElSqlRenderer.generate(parsed.get("Large"), 1));
+    assertNotNull(test.getGenerateFailure("Large"));
+  }
+
+  public void test_generate_usedOnThisJvm() {
+    // generation must succeed on every supported JVM, using hidden classes or a class loader
+    // the remaining blocks are static, so are never rendered
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(ElSqlProcessorTest.LINES, new SqlVariables()).parse();
+    SqlFragments test = new SqlFragments(parsed, ElSqlConfig.HSQL.withGenerateThreshold(1));
+    Random random = new Random(1);
+    for (String name : Arrays.asList("Search", "Where", "Nested")) {
+      test.getSql(name, ElSqlProcessorTest.randomParams(random));
+      assertNull(test.getGenerateFailure(name));
+      ElSqlRenderer.Binding binding = parsed.get(name).getGenerated();
+      assertNotNull(binding);
+      assertSame(binding, ElSqlRenderer.generate(parsed.get(name), 1));
+    }
+  }
+
+  public void test_generate_failureVisible() throws Exception {
+    char[] chars = new char[70000];
+    Arrays.fill(chars, 'x');
+    File file = File.createTempFile("elsql", ".elsql");
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        out.write(("@NAME(Large)\n  SELECT " + new String(chars) + "\n  @IF(:a)\n    WHERE a = 1\n").getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      ElSql test = ElSql.parse(ElSqlConfig.DEFAULT.withGenerateThreshold(1), file.toURI().toURL());
+      assertNull(test.getGenerateFailure("Large"));
+      test.getSql("Large", new MapSqlParams("a", 1));
+      assertNotNull(test.getGenerateFailure("Large"));
+    } finally {
+      file.delete();
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_define_hiddenClass() throws Exception {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(ElSqlProcessorTest.LINES, new SqlVariables()).parse();
+    Class<?> cls = ElSqlClassWriter.define(ElSqlClassWriter.generate(parsed.get("Where")));
+    assertTrue(ElSqlRenderer.class.isAssignableFrom(cls));
+    Method isHidden = null;
+    try {
+      isHidden = Class.class.getMethod("isHidden");
+    } catch (NoSuchMethodException ex) {
+      // hidden classes not supported before Java 15
+    }
+    if (isHidden != null) {
+      assertEquals(Boolean.TRUE, isHidden.invoke(cls));
+    }
+  }
+
+  public void test_define_classLoader() throws Exception {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(ElSqlProcessorTest.LINES, new SqlVariables()).parse();
+    NameSqlFragment fragment = parsed.get("Where");
+    Class<?> cls = ElSqlClassWriter.defineInLoader(ElSqlClassWriter.generate(fragment));
+    ElSqlRenderer.Binding binding = new ElSqlRenderer.Binding(
+        (ElSqlRenderer) cls.newInstance(), 0, ElSqlRenderer.operands(fragment));
+    SqlFragments fragments = new SqlFragments(parsed, ElSqlConfig.DEFAULT);
+    StringBuilder buf = new StringBuilder();
+    SqlParams params = new MapSqlParams("size", 2).with("name", "Bob").with("key1", "b");
+    binding.render(new SqlRenderContext(buf), fragments, params, new int[] {-1});
+    assertEquals(fragments.getSql("Where", params), buf.toString());
+  }
+
+}
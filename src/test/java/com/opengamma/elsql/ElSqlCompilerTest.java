@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class ElSqlCompilerTest {
+
+  private static final List<String> LINES = Arrays.asList(
+      "@NAME(Search)",
+      "  @PAGING(:paging_offset,:paging_fetch)",
+      "    SELECT * FROM @INCLUDE(:table)",
+      "    @INCLUDE(Where)",
+      "    ORDER BY @VALUE(:sort) @FETCH(10)",
+      "@NAME(Where)",
+      "  @WHERE",
+      "    @AND(:name)",
+      "      name @LIKE :name @ENDLIKE AND a = 1",
+      "    @OR(:status = ACTIVE)",
+      "      status @EQUALS :status",
+      "    @IF(:deleted)",
+      "      deleted = 0",
+      "    @SEEK(name :last_name, main.id DESC :last_id)",
+      "    @AND(:ids)",
+      "      id @IN(:ids)",
+      "    @LOOP(:size)",
+      "      key = :key@LOOPINDEX",
+      "      @LOOPJOIN OR",
+      "  @NAME(Nested)",
+      "    LIMIT @OFFSETFETCH(:offset, 5)",
+      "@NAME(Table)",
+      "  foo");
+
+  public void test_roundTrip() throws Exception {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(LINES, new SqlVariables()).parse();
+    SqlVariables variables = new SqlVariables();
+    Map<String, NameSqlFragment> read = ElSqlCompiler.read(write(parsed), variables);
+    assertEquals(parsed.keySet(), read.keySet());
+    assertEquals(parsed.toString(), read.toString());
+    assertSame(read.get("Nested"), read.get("Where").getFragments().get(1));
+
+    SqlFragments expected = new SqlFragments(parsed, ElSqlConfig.HSQL);
+    SqlFragments test = new SqlFragments(read, variables, ElSqlConfig.HSQL);
+    SqlParams params = new MapSqlParams("table", "Table")
+        .with("paging_offset", 20).with("paging_fetch", 10).with("sort", "name")
+        .with("name", "B%").with("status", "ACTIVE").with("size", 2).with("key0", "a").with("key1", "b")
+        .with("last_name", "Bob").with("last_id", 12).with("ids", Arrays.asList(1, 2, 3));
+    assertEquals(expected.getSql("Search", params), test.getSql("Search", params));
+    assertEquals(expected.getSql("Where", params), test.getSql("Where", params));
+    assertEquals(expected.getSql("Nested", params), test.getSql("Nested", params));
+  }
+
+  public void test_read_otherVersion() throws Exception {
+    byte[] bytes = write(new ElSqlParser(LINES, new SqlVariables()).parse());
+    bytes[7]++;
+    assertNull(ElSqlCompiler.read(bytes, new SqlVariables()));
+    assertEquals(-1, ElSqlCompiler.readChecksum(bytes));
+  }
+
+  public void test_checksum() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] source = "@NAME(Test)\n  SELECT 1\n".getBytes("UTF-8");
+    ElSqlCompiler.write(new ElSqlParser(LINES, new SqlVariables()).parse(), ElSqlCompiler.checksum(source), out);
+    assertEquals(ElSqlCompiler.checksum(source), ElSqlCompiler.readChecksum(out.toByteArray()));
+    assertTrue(ElSqlCompiler.checksum(source) != ElSqlCompiler.checksum("@NAME(Test)\n  SELECT 2\n".getBytes("UTF-8")));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void test_read_truncated() throws Exception {
+    byte[] bytes = write(new ElSqlParser(LINES, new SqlVariables()).parse());
+    ElSqlCompiler.read(Arrays.copyOf(bytes, bytes.length - 3), new SqlVariables());
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_main_loadPrefersCompiled() throws Exception {
+    File dir = createTempDir();
+    try {
+      File source = new File(dir, "Test.elsql");
+      writeFile(source, "@NAME(Test)\n  SELECT 1\n");
+      ElSqlCompiler.main(new String[] {dir.getPath()});
+      File compiled = new File(dir, "Test.elsqlc");
+      assertTrue(compiled.isFile());
+
+      // the compiled file is used when the source is unchanged, whatever the timestamps
+      source.setLastModified(compiled.lastModified() + 10000);
+      ElSql test = ElSql.parse(ElSqlConfig.DEFAULT, source.toURI().toURL());
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertTrue(SqlFragments.loadCompiled(source.toURI().toURL(), new SqlVariables()) != null);
+
+      // the compiled file is not used when the source has changed, even with the same timestamp and length
+      writeFile(source, "@NAME(Test)\n  SELECT 2\n");
+      source.setLastModified(compiled.lastModified());
+      test = ElSql.parse(ElSqlConfig.DEFAULT, source.toURI().toURL());
+      assertEquals("SELECT 2 ", test.getSql("Test"));
+      assertNull(SqlFragments.loadCompiled(source.toURI().toURL(), new SqlVariables()));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_load_invalidCompiled() throws Exception {
+    File dir = createTempDir();
+    try {
+      File source = new File(dir, "Test.elsql");
+      writeFile(source, "@NAME(Test)\n  SELECT 1\n");
+      File compiled = new File(dir, "Test.elsqlc");
+      writeFile(compiled, "invalid");
+      compiled.setLastModified(source.lastModified() + 10000);
+      ElSql test = ElSql.parse(ElSqlConfig.DEFAULT, source.toURI().toURL());
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "@WHERE found .* in .*Test.elsql")
+  public void test_main_invalid() throws Exception {
+    File dir = createTempDir();
+    try {
+      writeFile(new File(dir, "Test.elsql"), "@NAME(Test)\n  @WHERE 1\n");
+      ElSqlCompiler.main(new String[] {dir.getPath()});
+    } finally {
+      delete(dir);
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  // writes the fragments in binary form
+  private static byte[] write(Map<String, NameSqlFragment> parsed) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ElSqlCompiler.write(parsed, 0, out);
+    return out.toByteArray();
+  }
+
+  // creates an empty directory
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("elsql", "");
+    dir.delete();
+    dir.mkdir();
+    return dir;
+  }
+
+  // writes the content as UTF-8
+  private static void writeFile(File file, String content) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  // deletes the directory and its files
+  private static void delete(File dir) {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of parsing large synthetic elsql files.
+ * <p>
+ * This is not run as part of the tests.
+ * Run the main method, optionally passing the number of named blocks.
+ */
+public class ElSqlParserBenchmark {
+
+  /**
+   * Time spent warming up.
+   */
+  private static final long WARMUP_NANOS = 3000000000L;
+  /**
+   * Time spent measuring.
+   */
+  private static final long MEASURE_NANOS = 5000000000L;
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args  the number of named blocks, optional
+   */
+  public static void main(String[] args) {
+    int blocks = (args.length > 0 ? Integer.parseInt(args[0]) : 2000);
+    List<String> lines = createLines(blocks);
+    System.out.println("Parsing " + blocks + " named blocks, " + lines.size() + " lines");
+    run(lines, WARMUP_NANOS);
+    long nanos = run(lines, MEASURE_NANOS);
+    System.out.println("Average parse: " + (nanos / 1000) + "us");
+    System.out.println("Throughput: " + ((long) lines.size() * 1000000000L / nanos) + " lines/s");
+  }
+
+  // parses repeatedly for the specified time, returning the average time of a parse
+  private static long run(List<String> lines, long duration) {
+    long start = System.nanoTime();
+    long end = start + duration;
+    int iterations = 0;
+    long now;
+    do {
+      parse(lines);
+      iterations++;
+      now = System.nanoTime();
+    } while (now < end);
+    return (now - start) / iterations;
+  }
+
+  // parses the lines
+  private static int parse(List<String> lines) {
+    return new ElSqlParser(lines, new SqlVariables()).parse().size();
+  }
+
+  /**
+   * Creates a synthetic file using a typical mix of tags.
+   *
+   * @param blocks  the number of named blocks
+   * @return the lines, not null
+   */
+  static List<String> createLines(int blocks) {
+    List<String> lines = new ArrayList<String>(blocks * 24);
+    lines.add("-- synthetic elsql file");
+    for (int i = 0; i < blocks; i++) {
+      lines.add("");
+      lines.add("-- block " + i);
+      lines.add("@NAME(Search" + i + ")");
+      lines.add("  @PAGING(:paging_offset,:paging_fetch)");
+      lines.add("    SELECT id, name, version_from, version_to  -- columns");
+      lines.add("    FROM @INCLUDE(:table) main");
+      lines.add("    @INCLUDE(Where" + i + ")");
+      lines.add("    ORDER BY @VALUE(:sort_column) @VALUE(:sort_order)");
+      lines.add("@NAME(Where" + i + ")");
+      lines.add("  @WHERE");
+      lines.add("    @AND(:name)");
+      lines.add("      name @LIKE :name");
+      lines.add("    @AND(:status = ACTIVE)");
+      lines.add("      status = 'A'");
+      lines.add("    @OR(:version)");
+      lines.add("      version @EQUALS :version @ENDEQUALS AND main.deleted = 0");
+      lines.add("    @LOOP(:size)");
+      lines.add("      @AND(:key@LOOPINDEX)");
+      lines.add("        (key_scheme = :scheme@LOOPINDEX AND key_value = :value@LOOPINDEX)");
+      lines.add("@NAME(Fetch" + i + ")");
+      lines.add("  SELECT * FROM foo WHERE id = :id @OFFSETFETCH(:offset, :fetch)");
+      lines.add("@NAME(First" + i + ")");
+      lines.add("  SELECT * FROM foo @FETCH(10)");
+    }
+    return lines;
+  }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class ElSqlParserTest {
+
+  public void test_parse_heavilyCommented() {
+    Map<String, NameSqlFragment> parsed = parse(createLines(100000));
+    assertEquals(10000, parsed.size());
+    SqlFragments fragments = new SqlFragments(parsed, ElSqlConfig.DEFAULT);
+    assertEquals("SELECT * FROM foo WHERE a = :a ", fragments.getSql("Name9999", new MapSqlParams("a", 1)));
+  }
+
+  public void test_parse_scalesLinearly() {
+    List<String> small = createLines(100000);
+    List<String> large = createLines(400000);
+    time(large, 1);
+    time(small, 4);
+    long smallTime = time(small, 4);
+    long largeTime = time(large, 1);
+    // a quadratic parse takes around four times as long as four smaller parses
+    String msg = "Parse of 400k lines took " + largeTime / 1000000 + "ms, " +
+        "four parses of 100k lines took " + smallTime / 1000000 + "ms";
+    assertTrue(msg, largeTime < smallTime * 3);
+  }
+
+  public void test_parse_content_lineTerminators() {
+    String content = "@NAME(A)\r\n  SELECT a\r  FROM b\n\n@NAME(B)\r\r\n  SELECT c -- comment\n";
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(content, new SqlVariables()).parse();
+    SqlFragments fragments = new SqlFragments(parsed, ElSqlConfig.DEFAULT);
+    assertEquals("SELECT a FROM b ", fragments.getSql("A", EmptySqlParams.INSTANCE));
+    assertEquals("SELECT c ", fragments.getSql("B", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_parse_content_noFinalTerminator() {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser("@NAME(A)\n  SELECT a", new SqlVariables()).parse();
+    SqlFragments fragments = new SqlFragments(parsed, ElSqlConfig.DEFAULT);
+    assertEquals("SELECT a ", fragments.getSql("A", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_parse_content_empty() {
+    assertEquals(0, new ElSqlParser("", new SqlVariables()).parse().size());
+  }
+
+  public void test_parse_content_lineNumbers() {
+    try {
+      new ElSqlParser("@NAME(A)\r\n  SELECT a\r\n\r\n  @PAGING\r\n", new SqlVariables()).parse();
+      fail();
+    } catch (IllegalArgumentException ex) {
+      assertEquals("@PAGING found with invalid format: Line 4", ex.getMessage());
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  // parses the lines
+  private static Map<String, NameSqlFragment> parse(List<String> lines) {
+    return new ElSqlParser(lines, new SqlVariables()).parse();
+  }
+
+  // times the best of five runs, each parsing the lines a number of times
+  private static long time(List<String> lines, int times) {
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < 5; i++) {
+      System.gc();
+      long start = System.nanoTime();
+      for (int j = 0; j < times; j++) {
+        parse(lines);
+      }
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return best;
+  }
+
+  // creates a file where half the lines are comments or blank
+  private static List<String> createLines(int size) {
+    List<String> lines = new ArrayList<String>(size);
+    for (int i = 0; lines.size() < size; i++) {
+      lines.add("-- comment " + i);
+      lines.add("@NAME(Name" + i + ")");
+      lines.add("  -- comment");
+      lines.add("  SELECT * FROM foo");
+      lines.add("  @WHERE");
+      lines.add("    -- comment");
+      lines.add("    @AND(:a)");
+      lines.add("      a = :a");
+      lines.add("");
+      lines.add("");
+    }
+    return lines;
+  }
+
+}
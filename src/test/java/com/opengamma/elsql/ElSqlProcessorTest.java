@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class ElSqlProcessorTest {
+
+  static final List<String> LINES = Arrays.asList(
+      "@NAME(Search)",
+      "  @PAGING(:paging_offset,:paging_fetch)",
+      "    SELECT * FROM @INCLUDE(:table)",
+      "    @INCLUDE(Where)",
+      "    ORDER BY @VALUE(:sort) @FETCH(10)",
+      "@NAME(Where)",
+      "  @WHERE",
+      "    @AND(:name)",
+      "      name @LIKE :name @ENDLIKE AND a = \"1\\\\\"",
+      "    @OR(:status = ACTIVE)",
+      "      status @EQUALS :status",
+      "    @IF(:deleted)",
+      "      deleted = 0",
+      "    @SEEK(name :last_name, id :last_id)",
+      "    @AND(:ids)",
+      "      id @IN(:ids)",
+      "    @LOOP(:size)",
+      "      @AND(:key@LOOPINDEX)",
+      "        key = :key@LOOPINDEX",
+      "        @LOOP(2)",
+      "          sub = @LOOPINDEX1_@LOOPINDEX",
+      "          @LOOPJOIN OR",
+      "      @LOOPJOIN OR",
+      "  @NAME(Nested)",
+      "    LIMIT @OFFSETFETCH(:offset, 5)",
+      "@NAME(Table)",
+      "  foo",
+      "@NAME(Static)",
+      "  SELECT 'café' FROM @INCLUDE(Table)");
+
+  //-------------------------------------------------------------------------
+  public void test_generate_matchesInterpreter() throws Exception {
+    File dir = createTempDir();
+    try {
+      ElSqlRenderer renderer = generate(dir, LINES);
+      Map<String, NameSqlFragment> parsed = new ElSqlParser(LINES, new SqlVariables()).parse();
+      SqlFragments expected = new SqlFragments(parsed, ElSqlConfig.HSQL);
+      SqlFragments test = new SqlFragments(parsed, ElSqlConfig.HSQL).withRenderer(renderer);
+      for (NameSqlFragment fragment : parsed.values()) {
+        assertNotNull(renderer.bind(fragment));
+      }
+      Random random = new Random(1);
+      for (int i = 0; i < 500; i++) {
+        SqlParams params = randomParams(random);
+        for (String name : parsed.keySet()) {
+          assertEquals(expected.getSql(name, params), test.getSql(name, params));
+        }
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_generate_changedBlockInterpreted() throws Exception {
+    File dir = createTempDir();
+    try {
+      ElSqlRenderer renderer = generate(dir, LINES);
+      List<String> changed = new ArrayList<String>(LINES);
+      changed.set(changed.indexOf("  foo"), "  bar");
+      Map<String, NameSqlFragment> parsed = new ElSqlParser(changed, new SqlVariables()).parse();
+      SqlFragments test = new SqlFragments(parsed, ElSqlConfig.HSQL).withRenderer(renderer);
+      assertNull(renderer.bind(parsed.get("Table")));
+      assertNotNull(renderer.bind(parsed.get("Search")));
+      SqlParams params = new MapSqlParams("table", "Table").with("size", 0).with("sort", "id");
+      assertEquals("SELECT * FROM bar LIMIT FETCH FIRST 5 ROWS ONLY ORDER BY id FETCH FIRST 10 ROWS ONLY ", test.getSql("Search", params));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_processor() throws Exception {
+    File dir = createTempDir();
+    try {
+      File pkg = new File(dir, "dao");
+      pkg.mkdir();
+      writeFile(new File(pkg, "PersonDao.java"), "package dao;\n@com.opengamma.elsql.ElSqlSource\npublic class PersonDao {\n}\n");
+      writeFile(new File(pkg, "PersonDao.elsql"), "@NAME(Find)\n  SELECT * FROM person\n  @WHERE\n    @AND(:name)\n      name = :name\n");
+      assertEquals("", compile(dir, new File(pkg, "PersonDao.java")));
+      assertTrue(new File(pkg, "PersonDaoElSqlRenderer.class").isFile());
+
+      URLClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, getClass().getClassLoader());
+      Class<?> type = loader.loadClass("dao.PersonDao");
+      assertNotNull(ElSqlRenderer.find(type));
+      ElSql test = ElSql.of(ElSqlConfig.DEFAULT, type);
+      assertEquals("SELECT * FROM person ", test.getSql("Find", EmptySqlParams.INSTANCE));
+      assertEquals("SELECT * FROM person WHERE name = :name ", test.getSql("Find", new MapSqlParams("name", "Bob")));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_processor_missingFile() throws Exception {
+    File dir = createTempDir();
+    try {
+      File source = new File(dir, "Missing.java");
+      writeFile(source, "@com.opengamma.elsql.ElSqlSource\npublic class Missing {\n}\n");
+      String errors = compile(dir, source);
+      assertTrue(errors, errors.contains("Unable to find Missing.elsql"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_processor_invalidFile() throws Exception {
+    File dir = createTempDir();
+    try {
+      File source = new File(dir, "Invalid.java");
+      writeFile(source, "@com.opengamma.elsql.ElSqlSource\npublic class Invalid {\n}\n");
+      writeFile(new File(dir, "Invalid.elsql"), "@NAME(Test)\n  @WHERE 1\n");
+      String errors = compile(dir, source);
+      assertTrue(errors, errors.contains("in Invalid.elsql"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_find_notAnnotated() {
+    assertNull(ElSqlRenderer.find(ElSqlProcessorTest.class));
+    assertFalse(ElSqlProcessorTest.class.isAnnotationPresent(ElSqlSource.class));
+  }
+
+  //-------------------------------------------------------------------------
+  // generates, compiles and loads a renderer for the lines
+  private static ElSqlRenderer generate(File dir, List<String> lines) throws Exception {
+    Map<String, NameSqlFragment> parsed = new ElSqlParser(lines, new SqlVariables()).parse();
+    File pkg = new File(dir, "gen");
+    pkg.mkdir();
+    File source = new File(pkg, "TestElSqlRenderer.java");
+    writeFile(source, ElSqlGenerator.generate("gen", "TestElSqlRenderer", "Test.elsql", parsed));
+    assertEquals("", compile(dir, source));
+    URLClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, ElSqlProcessorTest.class.getClassLoader());
+    return (ElSqlRenderer) loader.loadClass("gen.TestElSqlRenderer").newInstance();
+  }
+
+  // compiles the source with the processor enabled, returning the errors
+  private static String compile(File dir, File source) {
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    String classPath = new File(ElSqlRenderer.class.getProtectionDomain().getCodeSource().getLocation().getPath()).getPath();
+    ByteArrayOutputStream err = new ByteArrayOutputStream();
+    compiler.run(null, null, err,
+        "-classpath", classPath, "-sourcepath", dir.getPath(), "-d", dir.getPath(),
+        "-encoding", "UTF-8", "-processor", ElSqlProcessor.class.getName(),
+        source.getPath());
+    return new String(err.toByteArray()).trim();
+  }
+
+  // creates random parameters
+  static SqlParams randomParams(Random random) {
+    MapSqlParams params = new MapSqlParams("table", "Table").with("sort", "id");
+    String[] names = {"B%", "Bob", "A_"};
+    if (random.nextBoolean()) {
+      params = params.with("name", names[random.nextInt(names.length)]);
+    }
+    if (random.nextBoolean()) {
+      params = params.with("status", random.nextBoolean() ? "active" : "closed");
+    }
+    if (random.nextBoolean()) {
+      params = params.with("deleted", random.nextBoolean());
+    }
+    if (random.nextBoolean()) {
+      params = params.with("last_name", "Bob").with("last_id", random.nextInt(100));
+    }
+    if (random.nextBoolean()) {
+      params = params.with("ids", new int[random.nextInt(3)]);
+    }
+    int size = random.nextInt(4);
+    params = params.with("size", size);
+    for (int i = 0; i < size; i++) {
+      if (random.nextBoolean()) {
+        params = params.with("key" + i, "k" + i);
+      }
+    }
+    if (random.nextBoolean()) {
+      params = params.with("paging_offset", random.nextInt(3) * 10).with("paging_fetch", random.nextInt(3) * 10);
+    }
+    if (random.nextBoolean()) {
+      params = params.with("offset", random.nextInt(20));
+    }
+    return params;
+  }
+
+  // creates an empty directory
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("elsql", "");
+    dir.delete();
+    dir.mkdir();
+    return dir;
+  }
+
+  // writes the content as UTF-8
+  private static void writeFile(File file, String content) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  // deletes the directory and its contents
+  private static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        delete(file);
+      }
+    }
+    dir.delete();
+  }
+
+}
@@ -7,7 +7,14 @@ package com.opengamma.elsql;
 
 import static org.testng.AssertJUnit.assertEquals;
 
+import java.io.StringWriter;
 import java.net.URL;
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.testng.annotations.Test;
 
@@ -38,6 +45,24 @@ public class ElSqlTest {
     assertEquals("SELECT * FROM bar, foo ", test.getSql("TestBar"));
   }
 
+  public void test_of_dbOverride_parseExecutor() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      ElSql test = ElSql.of(ElSqlConfig.HSQL.withParseExecutor(executor), ElSql.class);
+      assertEquals("SELECT * FROM foo ", test.getSql("TestFoo"));
+      assertEquals("SELECT * FROM bar, foo ", test.getSql("TestBar"));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void test_of_parseExecutor_rejecting() {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    executor.shutdown();
+    ElSql test = ElSql.of(ElSqlConfig.HSQL.withParseExecutor(executor), ElSql.class);
+    assertEquals("SELECT * FROM bar, foo ", test.getSql("TestBar"));
+  }
+
   @Test(expectedExceptions = IllegalArgumentException.class)
   public void test_of_nullConfig() {
     ElSql.of(null, ElSql.class);
@@ -48,6 +73,55 @@ public class ElSqlTest {
     ElSql.of(ElSqlConfig.DEFAULT, null);
   }
 
+  //-------------------------------------------------------------------------
+  public void test_ofAll() {
+    List<ElSql> test = ElSql.ofAll(ElSqlConfig.HSQL, ElSql.class, ElSql.class);
+    assertEquals(2, test.size());
+    assertEquals("SELECT * FROM bar, foo ", test.get(0).getSql("TestBar"));
+    assertEquals("SELECT * FROM bar, foo ", test.get(1).getSql("TestBar"));
+  }
+
+  public void test_ofAll_parseExecutor() {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      ElSqlConfig config = ElSqlConfig.HSQL.withParseExecutor(executor);
+      Class<?>[] types = new Class<?>[20];
+      Arrays.fill(types, ElSql.class);
+      List<ElSql> test = ElSql.ofAll(config, types);
+      assertEquals(20, test.size());
+      for (ElSql elSql : test) {
+        assertEquals("SELECT * FROM foo ", elSql.getSql("TestFoo"));
+        assertEquals("SELECT * FROM bar, foo ", elSql.getSql("TestBar"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void test_ofAll_empty() {
+    assertEquals(0, ElSql.ofAll(ElSqlConfig.DEFAULT).size());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_ofAll_noExistingResource() {
+    ElSql.ofAll(ElSqlConfig.DEFAULT, ElSql.class, ElSqlTest.class);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_ofAll_nullConfig() {
+    ElSql.ofAll(null, ElSql.class);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_ofAll_nullTypes() {
+    ElSql.ofAll(ElSqlConfig.DEFAULT, (Class<?>[]) null);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_ofAll_nullType() {
+    ElSql.ofAll(ElSqlConfig.DEFAULT, ElSql.class, null);
+  }
+
   //-------------------------------------------------------------------------
   @Test(expectedExceptions = IllegalArgumentException.class)
   public void test_parse_nullConfig() {
@@ -72,4 +146,28 @@ public class ElSqlTest {
     assertEquals("SELECT * FROM foo ", test.getSql("TestFoo", EmptySqlParams.INSTANCE));
   }
 
+  public void test_getSql_appendable() {
+    ElSql test = ElSql.of(ElSqlConfig.DEFAULT, ElSql.class);
+    StringBuilder buf = new StringBuilder("X");
+    test.getSql("TestFoo", EmptySqlParams.INSTANCE, buf);
+    assertEquals("XSELECT * FROM foo ", buf.toString());
+    StringWriter writer = new StringWriter();
+    test.getSql("TestBar", EmptySqlParams.INSTANCE, writer);
+    assertEquals("SELECT * FROM bar ", writer.toString());
+  }
+
+  public void test_getSql_charBuffer() {
+    ElSql test = ElSql.of(ElSqlConfig.DEFAULT, ElSql.class);
+    CharBuffer buf = CharBuffer.allocate(20);
+    test.getSql("TestFoo", EmptySqlParams.INSTANCE, buf);
+    buf.flip();
+    assertEquals("SELECT * FROM foo ", buf.toString());
+  }
+
+  @Test(expectedExceptions = BufferOverflowException.class)
+  public void test_getSql_charBuffer_overflow() {
+    ElSql test = ElSql.of(ElSqlConfig.DEFAULT, ElSql.class);
+    test.getSql("TestFoo", EmptySqlParams.INSTANCE, CharBuffer.allocate(10));
+  }
+
 }
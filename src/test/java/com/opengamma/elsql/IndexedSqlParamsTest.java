@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class IndexedSqlParamsTest {
+
+  private static final SqlFragments BUNDLE = SqlFragments.parse(Arrays.asList(
+      "@NAME(Test1)",
+      "  SELECT * FROM @INCLUDE(:table)",
+      "  @WHERE",
+      "    @AND(:var)",
+      "      var @LIKE :var",
+      "    @AND(:vax = Y)",
+      "      vax = :vax",
+      "    @LOOP(:size)",
+      "      @AND(:a@LOOPINDEX)",
+      "        a = :a@LOOPINDEX",
+      "@NAME(Foo)",
+      "  foo"));
+
+  //-------------------------------------------------------------------------
+  public void test_slots() {
+    assertEquals(0, BUNDLE.getVariableSlot("table"));
+    assertEquals(1, BUNDLE.getVariableSlot("var"));
+    assertEquals(-1, BUNDLE.getVariableSlot("a@LOOPINDEX"));
+    assertEquals(-1, BUNDLE.getVariableSlot("unknown"));
+  }
+
+  public void test_setBySlot() {
+    IndexedSqlParams test = BUNDLE.createParams();
+    assertEquals(false, test.contains(1));
+    assertEquals(false, test.contains("var"));
+    test.set(1, "val");
+    assertEquals(true, test.contains(1));
+    assertEquals("val", test.get(1));
+    assertEquals(true, test.contains("var"));
+    assertEquals("val", test.get("var"));
+    assertEquals(false, test.contains(99));
+    assertEquals(null, test.get(99));
+  }
+
+  public void test_setByName() {
+    IndexedSqlParams test = BUNDLE.createParams();
+    test.set("var", null).set("a0", "x");
+    assertEquals(true, test.contains(1));
+    assertEquals(null, test.get(1));
+    assertEquals(true, test.contains("a0"));
+    assertEquals("x", test.get("a0"));
+    assertEquals(false, test.contains("a1"));
+  }
+
+  public void test_clear() {
+    IndexedSqlParams test = BUNDLE.createParams().set("var", "val").set("a0", "x");
+    test.clear();
+    assertEquals(false, test.contains("var"));
+    assertEquals(false, test.contains("a0"));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_set_invalidSlot() {
+    BUNDLE.createParams().set(99, "val");
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_set_nullName() {
+    BUNDLE.createParams().set(null, "val");
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_render() {
+    IndexedSqlParams params = BUNDLE.createParams();
+    params.set(BUNDLE.getVariableSlot("table"), "Foo");
+    params.set(BUNDLE.getVariableSlot("var"), "va%");
+    params.set(BUNDLE.getVariableSlot("vax"), "y");
+    params.set(BUNDLE.getVariableSlot("size"), 2);
+    params.set("a1", "x");
+    MapSqlParams mapParams = new MapSqlParams("table", "Foo").with("var", "va%").with("vax", "y")
+        .with("size", 2).with("a1", "x");
+    String expected = "SELECT * FROM foo WHERE var LIKE :var AND vax = :vax AND a = :a1 ";
+    assertEquals(expected, BUNDLE.getSql("Test1", mapParams));
+    assertEquals(expected, BUNDLE.getSql("Test1", params));
+  }
+
+  public void test_render_otherBundle() {
+    SqlFragments other = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM bar",
+        "  @WHERE",
+        "    @AND(:size)",
+        "      size = :size"));
+    IndexedSqlParams params = BUNDLE.createParams().set("size", 2);
+    assertEquals("SELECT * FROM bar WHERE size = :size ", other.getSql("Test1", params));
+  }
+
+}
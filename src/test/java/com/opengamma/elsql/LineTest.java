@@ -77,4 +77,43 @@ public class LineTest {
     assertEquals(0, line.indent());
   }
 
+  public void test_tags() {
+    Line line = new Line("  SELECT @INCLUDE(Foo) WHERE a @LIKE :a@LOOPINDEX @ENDLIKE  -- @VALUE(:b)", 3);
+    assertEquals("SELECT @INCLUDE(Foo) WHERE a @LIKE :a@LOOPINDEX @ENDLIKE", line.lineTrimmed());
+    assertEquals(4, line.tagCount());
+    assertEquals(9, line.tagPosition(0));
+    assertEquals(ElSqlParser.tagAt("@INCLUDE", 0), line.tagKind(0));
+    assertEquals(ElSqlParser.tagAt("@LIKE", 0), line.tagKind(1));
+    assertEquals(ElSqlParser.tagAt("@LOOPINDEX", 0), line.tagKind(2));
+    assertEquals(ElSqlParser.tagAt("@ENDLIKE", 0), line.tagKind(3));
+    assertEquals(-1, line.tagAtStart());
+    assertEquals(31, line.findTag(line.tagKind(1), 0, 50));
+    assertEquals(-1, line.findTag(line.tagKind(1), 32, 50));
+  }
+
+  public void test_tags_atStart() {
+    Line line = new Line("    @LOOPJOIN OR", 3);
+    assertEquals(1, line.tagCount());
+    assertEquals(4, line.tagPosition(0));
+    assertEquals(ElSqlParser.tagAt("@LOOPJOIN", 0), line.tagAtStart());
+    assertEquals(-1, ElSqlParser.tagAt("@UNKNOWN", 0));
+    assertEquals(ElSqlParser.tagAt("@OR", 0), ElSqlParser.tagAt("@ORDER", 0));
+    assertEquals(ElSqlParser.tagAt("@IN(", 0), ElSqlParser.tagAt("@IN(:ids)", 0));
+    assertEquals(-1, ElSqlParser.tagAt("@INFO", 0));
+    assertEquals(-1, ElSqlParser.tagAt("@IN", 0));
+  }
+
+  public void test_offsets() {
+    String text = "@NAME(A)\n  SELECT @VALUE(:a)  -- comment\n";
+    Line line = new Line(text, 9, 40, 2);
+    assertEquals("  SELECT @VALUE(:a)  -- comment", line.line());
+    assertEquals("SELECT @VALUE(:a)", line.lineTrimmed());
+    assertEquals(11, line.start());
+    assertEquals(28, line.end());
+    assertEquals(2, line.indent());
+    assertEquals(1, line.tagCount());
+    assertEquals(18, line.tagPosition(0));
+    assertEquals(-1, line.tagAtStart());
+  }
+
 }
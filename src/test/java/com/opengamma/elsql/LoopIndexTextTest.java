@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class LoopIndexTextTest {
+
+  public void test_parse_noLoopIndex() {
+    assertNull(LoopIndexText.parse("SELECT * FROM foo WHERE a = :a"));
+    assertNull(LoopIndexText.parse(""));
+  }
+
+  @DataProvider(name = "apply")
+  Object[][] data_apply() {
+    return new Object[][] {
+        {"a@LOOPINDEX", new int[] {-1, 4}, "a4"},
+        {"@LOOPINDEX", new int[] {-1, 4}, "4"},
+        {"a = :a@LOOPINDEX OR b = :b@LOOPINDEX ", new int[] {-1, 4}, "a = :a4 OR b = :b4 "},
+        {"a@LOOPINDEX1b@LOOPINDEX2c@LOOPINDEX3d@LOOPINDEX", new int[] {-1, 1, 2, 3}, "a1b2c3d3"},
+        {"a@LOOPINDEX1b@LOOPINDEX2", new int[] {-1, 5, 6}, "a5b6"},
+        // outer loop not present, historically the current index followed by the number
+        {"a@LOOPINDEX2", new int[] {-1, 5}, "a52"},
+        {"a@LOOPINDEX1", new int[] {-1}, "a-11"},
+        {"a@LOOPINDEX1", new int[] {-1, 1, 2, 3, 4}, "a41"},
+        // only 1 to 3 are slots
+        {"a@LOOPINDEX4", new int[] {-1, 1, 2, 3}, "a34"},
+        {"a@LOOPINDEX0", new int[] {-1, 1}, "a10"},
+    };
+  }
+
+  @Test(dataProvider = "apply")
+  public void test_apply(String text, int[] loopIndex, String expected) {
+    LoopIndexText test = LoopIndexText.parse(text);
+    assertEquals(expected, test.apply(loopIndex));
+    StringBuilder buf = new StringBuilder("X");
+    test.appendTo(buf, loopIndex);
+    assertEquals("X" + expected, buf.toString());
+    assertEquals(text, test.toString());
+  }
+
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Benchmark comparing the cost of rendering paged SQL with the two Oracle configs.
+ * <p>
+ * The {@code ORACLE} config wraps the rendered SELECT in nested ROWNUM subqueries,
+ * copying the statement, whereas {@code ORACLE12} appends OFFSET-FETCH.
+ * <p>
+ * This is not run as part of the tests.
+ * Run the main method.
+ */
+public class OraclePagingBenchmark {
+
+  /**
+   * Time spent warming up.
+   */
+  private static final long WARMUP_NANOS = 3000000000L;
+  /**
+   * Time spent measuring.
+   */
+  private static final long MEASURE_NANOS = 5000000000L;
+  /**
+   * The named block to render.
+   */
+  private static final List<String> LINES = Arrays.asList(
+      "@NAME(Search)",
+      "  @PAGING(:paging_offset,:paging_fetch)",
+      "    SELECT id, name, version_from, version_to, status, created_by, created_on",
+      "    FROM person main",
+      "    @WHERE",
+      "      @AND(:name)",
+      "        name @LIKE :name",
+      "      @AND(:status)",
+      "        status = :status",
+      "    ORDER BY name, id");
+
+  /**
+   * Runs the benchmark.
+   *
+   * @param args  ignored
+   */
+  public static void main(String[] args) {
+    SqlParams params = new MapSqlParams("name", "Bob%").with("status", "A").with("paging_offset", 400).with("paging_fetch", 20);
+    for (ElSqlConfig config : new ElSqlConfig[] {ElSqlConfig.ORACLE, ElSqlConfig.ORACLE12}) {
+      SqlFragments fragments = SqlFragments.parse(Collections.singletonList(LINES), config);
+      System.out.println(config + ": " + fragments.getSql("Search", params));
+      run(fragments, params, WARMUP_NANOS);
+      long nanos = run(fragments, params, MEASURE_NANOS);
+      System.out.println(config + " average render: " + nanos + "ns");
+    }
+  }
+
+  // renders repeatedly for the specified time, returning the average time of a render
+  private static long run(SqlFragments fragments, SqlParams params, long duration) {
+    long start = System.nanoTime();
+    long end = start + duration;
+    int iterations = 0;
+    int length = 0;
+    long now;
+    do {
+      length += fragments.getSql("Search", params).length();
+      iterations++;
+      now = System.nanoTime();
+    } while (now < end);
+    if (length == 0) {
+      throw new IllegalStateException();
+    }
+    return (now - start) / iterations;
+  }
+
+}
@@ -6,13 +6,39 @@
 package com.opengamma.elsql;
 
 import static org.testng.AssertJUnit.assertEquals;
-
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
-
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.springframework.jdbc.core.SqlParameterValue;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
 /**
@@ -166,6 +192,52 @@ public class SqlFragmentsTest {
     bundle.getSql("Unknown", EmptySqlParams.INSTANCE);
   }
 
+  //-------------------------------------------------------------------------
+  public void test_static_sharedInstance() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM @INCLUDE(Table)",
+        "  @WHERE",
+        "    a = 1",
+        "@NAME(Table)",
+        "  foo"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    String sql1 = bundle.getSql("Test1", EmptySqlParams.INSTANCE);
+    assertEquals("SELECT * FROM foo WHERE a = 1 ", sql1);
+    assertSame(sql1, bundle.getSql("Test1", new MapSqlParams("a", 2)));
+    assertSame(sql1, bundle.withConfig(ElSqlConfig.HSQL).getSql("Test1", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_static_notStatic() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM @INCLUDE(:table)",
+        "@NAME(Test2)",
+        "  SELECT * FROM foo WHERE a = :a@LOOPINDEX",
+        "@NAME(Test3)",
+        "  SELECT * FROM @INCLUDE(Test2)",
+        "@NAME(Table)",
+        "  foo"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("table", "Table");
+    assertNotSame(bundle.getSql("Test1", params), bundle.getSql("Test1", params));
+    assertNotSame(bundle.getSql("Test2", params), bundle.getSql("Test2", params));
+    assertNotSame(bundle.getSql("Test3", params), bundle.getSql("Test3", params));
+  }
+
+  public void test_static_includeCycle() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM @INCLUDE(Test2)",
+        "@NAME(Test2)",
+        "  @INCLUDE(Test1)"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);  // no infinite loop
+    assertEquals("Test2", bundle.getFragment("Test2").getName());
+  }
+
   //-------------------------------------------------------------------------
   public void test_insert_name() {
     List<String> lines = Arrays.asList(
@@ -480,6 +552,32 @@ public class SqlFragmentsTest {
     assertEquals("SELECT * FROM foo ORDER BY bar OFFSET 8 ROWS FETCH NEXT 4 ROWS ONLY ", sql1);
   }
 
+  @DataProvider(name = "wrapPagingConfigs")
+  Object[][] data_wrapPagingConfigs() {
+    return new Object[][] {
+      {ElSqlConfig.ORACLE, "SELECT * FROM foo WHERE s1 OR s2 "},
+      {ElSqlConfig.ORACLE.withCompiled(false), "SELECT * FROM foo WHERE s1 OR s2 "},
+      {ElSqlConfig.SQL_SERVER_2008, "SELECT TOP 2147483647 * FROM foo WHERE s1 OR s2 "},
+      {ElSqlConfig.SQL_SERVER_2008.withRenderCacheSize(10), "SELECT TOP 2147483647 * FROM foo WHERE s1 OR s2 "},
+    };
+  }
+
+  @Test(dataProvider = "wrapPagingConfigs")
+  public void test_paging_rewriteKeepsClause(ElSqlConfig config, String expected) {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  @PAGING(:offset, :fetch)",
+        "    SELECT * FROM foo WHERE",
+        "  @OR(:s1)",
+        "    s1",
+        "  @OR(:s2)",
+        "    s2"
+    );
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), config);
+    SqlParams params = new MapSqlParams("s1", true).with("s2", true);
+    assertEquals(expected, bundle.getSql("Test1", params));
+  }
+
   @Test(expectedExceptions = IllegalArgumentException.class)
   public void test_paging_invalidFormat1() {
     List<String> lines = Arrays.asList(
@@ -500,6 +598,386 @@ public class SqlFragmentsTest {
     SqlFragments.parse(lines);
   }
 
+  //-------------------------------------------------------------------------
+  private static final List<String> BIND_PAGING = Arrays.asList(
+      "@NAME(Paging)",
+      "  @PAGING(:paging_offset, :paging_fetch)",
+      "    SELECT * FROM foo ORDER BY bar ",
+      "@NAME(OffsetFetch)",
+      "  SELECT * FROM foo @OFFSETFETCH(:paging_offset, 10)");
+
+  public void test_withBindPaging() {
+    assertEquals(false, ElSqlConfig.HSQL.isBindPaging());
+    ElSqlConfig test = ElSqlConfig.HSQL.withBindPaging(true);
+    assertEquals(true, test.isBindPaging());
+    assertEquals("HSQL", test.getName());
+    assertEquals(true, test.withCompiled(false).isBindPaging());
+    assertEquals(false, test.withBindPaging(false).isBindPaging());
+  }
+
+  @DataProvider(name = "bindPaging")
+  Object[][] data_bindPaging() {
+    return new Object[][] {
+      {ElSqlConfig.DEFAULT, 20, 10,
+        "SELECT * FROM foo ORDER BY bar OFFSET :paging_offset ROWS FETCH NEXT :paging_fetch ROWS ONLY ",
+        "SELECT * FROM foo OFFSET :paging_offset ROWS FETCH NEXT 10 ROWS ONLY "},
+      {ElSqlConfig.DEFAULT, 0, 10,
+        "SELECT * FROM foo ORDER BY bar FETCH FIRST :paging_fetch ROWS ONLY ",
+        "SELECT * FROM foo FETCH FIRST 10 ROWS ONLY "},
+      {ElSqlConfig.POSTGRES, 20, Integer.MAX_VALUE,
+        "SELECT * FROM foo ORDER BY bar OFFSET :paging_offset ROWS ",
+        "SELECT * FROM foo OFFSET :paging_offset ROWS FETCH NEXT 10 ROWS ONLY "},
+      {ElSqlConfig.MYSQL, 20, 10,
+        "SELECT * FROM foo ORDER BY bar LIMIT :paging_fetch OFFSET :paging_offset ",
+        "SELECT * FROM foo LIMIT 10 OFFSET :paging_offset "},
+      {ElSqlConfig.ORACLE, 20, 10,
+        "SELECT * FROM (SELECT row_.*,rownum rownum_ FROM ( SELECT * FROM foo ORDER BY bar  ) row_ " +
+            "where rownum <= :paging_offset + :paging_fetch) WHERE rownum_ > :paging_offset",
+        null},
+      {ElSqlConfig.ORACLE, 0, 10,
+        "SELECT * FROM ( SELECT * FROM foo ORDER BY bar  ) where rownum <= :paging_fetch",
+        null},
+      {ElSqlConfig.ORACLE12, 20, 10,
+        "SELECT * FROM foo ORDER BY bar OFFSET :paging_offset ROWS FETCH NEXT :paging_fetch ROWS ONLY ",
+        "SELECT * FROM foo OFFSET :paging_offset ROWS FETCH NEXT 10 ROWS ONLY "},
+      {ElSqlConfig.SQL_SERVER_2012, 20, 10,
+        "SELECT * FROM foo ORDER BY bar OFFSET :paging_offset ROWS FETCH NEXT :paging_fetch ROWS ONLY ",
+        "SELECT * FROM foo OFFSET :paging_offset ROWS FETCH NEXT 10 ROWS ONLY "},
+      {ElSqlConfig.SQL_SERVER_2012, 0, 10,
+        "SELECT * FROM foo ORDER BY bar OFFSET 0 ROWS FETCH NEXT :paging_fetch ROWS ONLY ",
+        "SELECT * FROM foo OFFSET 0 ROWS FETCH NEXT 10 ROWS ONLY "},
+      {ElSqlConfig.SQL_SERVER_2008, 20, 10,
+        "SELECT * FROM (SELECT *, ROW_NUMBER() OVER (ORDER BY bar) AS ROW_NUM FROM foo) AS ROW_TABLE " +
+            "WHERE ROW_NUM > :paging_offset AND ROW_NUM <= :paging_offset + :paging_fetch",
+        null},
+      {ElSqlConfig.SQL_SERVER_2008, 0, 0,
+        "SELECT TOP 2147483647 * FROM foo ORDER BY bar ",
+        null},
+    };
+  }
+
+  @Test(dataProvider = "bindPaging")
+  public void test_bindPaging(ElSqlConfig config, int offset, int fetch, String paging, String offsetFetch) {
+    SqlParams params = new MapSqlParams("paging_offset", offset).with("paging_fetch", fetch);
+    for (ElSqlConfig options : new ElSqlConfig[] {
+        config.withBindPaging(true), config.withBindPaging(true).withCompiled(false),
+        config.withBindPaging(true).withRenderCacheSize(10)}) {
+      SqlFragments bundle = SqlFragments.parse(Collections.singletonList(BIND_PAGING), options);
+      assertEquals(paging, bundle.getSql("Paging", params));
+      if (offsetFetch != null) {
+        assertEquals(offsetFetch, bundle.getSql("OffsetFetch", params));
+      }
+    }
+  }
+
+  public void test_bindPaging_sameSqlForEachPage() {
+    SqlFragments bundle = SqlFragments.parse(
+        Collections.singletonList(BIND_PAGING), ElSqlConfig.HSQL.withBindPaging(true).withRenderCacheSize(10));
+    String sql = bundle.getSql("Paging", new MapSqlParams("paging_offset", 20).with("paging_fetch", 10));
+    assertSame(sql, bundle.getSql("Paging", new MapSqlParams("paging_offset", 40).with("paging_fetch", 10)));
+    assertSame(sql, bundle.getSql("Paging", new MapSqlParams("paging_offset", 60).with("paging_fetch", 20)));
+  }
+
+  public void test_bindPaging_literal() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  @PAGING(8, :fetch)",
+        "    SELECT * FROM foo ORDER BY bar ");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), ElSqlConfig.DEFAULT.withBindPaging(true));
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("fetch", 4));
+    assertEquals("SELECT * FROM foo ORDER BY bar OFFSET 8 ROWS FETCH NEXT :fetch ROWS ONLY ", sql1);
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_oracle12() {
+    assertEquals("Oracle12", ElSqlConfig.ORACLE12.getName());
+    assertEquals("ElSqlConfig[Oracle12]", ElSqlConfig.ORACLE12.toString());
+    assertEquals(true, ElSqlConfig.ORACLE12.isAppendPaging());
+    assertEquals(false, ElSqlConfig.ORACLE.isAppendPaging());
+    assertEquals(true, ElSqlConfig.ORACLE12.withCompiled(false).isAppendPaging());
+  }
+
+  public void test_oracle12_paging() {
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(BIND_PAGING), ElSqlConfig.ORACLE12);
+    SqlParams params = new MapSqlParams("paging_offset", 20).with("paging_fetch", 10);
+    assertEquals("SELECT * FROM foo ORDER BY bar OFFSET 20 ROWS FETCH NEXT 10 ROWS ONLY ", bundle.getSql("Paging", params));
+    assertEquals("SELECT * FROM foo OFFSET 20 ROWS FETCH NEXT 10 ROWS ONLY ", bundle.getSql("OffsetFetch", params));
+    assertEquals("SELECT * FROM foo ORDER BY bar ", bundle.getSql("Paging", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_sqlServer2012_paging() {
+    assertEquals("SqlServer2012", ElSqlConfig.SQL_SERVER_2012.getName());
+    assertEquals(true, ElSqlConfig.SQL_SERVER_2012.isAppendPaging());
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(BIND_PAGING), ElSqlConfig.SQL_SERVER_2012);
+    SqlParams params = new MapSqlParams("paging_offset", 20).with("paging_fetch", 10);
+    assertEquals("SELECT * FROM foo ORDER BY bar OFFSET 20 ROWS FETCH NEXT 10 ROWS ONLY ", bundle.getSql("Paging", params));
+    params = new MapSqlParams("paging_fetch", 10);
+    assertEquals("SELECT * FROM foo ORDER BY bar OFFSET 0 ROWS FETCH NEXT 10 ROWS ONLY ", bundle.getSql("Paging", params));
+    params = new MapSqlParams("paging_offset", 20);
+    assertEquals("SELECT * FROM foo ORDER BY bar OFFSET 20 ROWS ", bundle.getSql("Paging", params));
+    assertEquals("SELECT * FROM foo ORDER BY bar ", bundle.getSql("Paging", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_sqlServer2012_like() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE name @LIKE :name");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), ElSqlConfig.SQL_SERVER_2012);
+    assertEquals("SELECT * FROM foo WHERE name LIKE :name ESCAPE '\\' ", bundle.getSql("Test1", new MapSqlParams("name", "[ab]c")));
+    assertEquals("SELECT * FROM foo WHERE name = :name ", bundle.getSql("Test1", new MapSqlParams("name", "\\[ab]c")));
+  }
+
+  public void test_paging_overriddenAddPaging() {
+    ElSqlConfig config = new ElSqlConfig("Custom") {
+      @Override
+      public String addPaging(String selectToPage, int offset, int fetchLimit) {
+        return "PAGE(" + selectToPage.trim() + ", " + offset + ", " + fetchLimit + ")";
+      }
+    };
+    assertEquals(false, config.isAppendPaging());
+    assertEquals(false, config.withCompiled(false).isAppendPaging());
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(BIND_PAGING), config);
+    SqlParams params = new MapSqlParams("paging_offset", 20).with("paging_fetch", 10);
+    assertEquals("PAGE(SELECT * FROM foo ORDER BY bar, 20, 10)", bundle.getSql("Paging", params));
+  }
+
+  //-------------------------------------------------------------------------
+  private static final List<String> SEEK = Arrays.asList(
+      "@NAME(Test1)",
+      "  SELECT * FROM foo",
+      "  @WHERE",
+      "    @AND(:status)",
+      "      status = :status",
+      "    @SEEK(name :last_name, foo.id :last_id)",
+      "  ORDER BY name, foo.id",
+      "  @FETCH(:fetch)");
+
+  public void test_seek_firstPage() {
+    SqlFragments bundle = SqlFragments.parse(SEEK);
+    SqlParams params = new MapSqlParams("fetch", 20);
+    assertEquals("SELECT * FROM foo ORDER BY name, foo.id FETCH FIRST 20 ROWS ONLY ", bundle.getSql("Test1", params));
+  }
+
+  public void test_seek_rowValue() {
+    SqlFragments bundle = SqlFragments.parse(SEEK);
+    SqlParams params = new MapSqlParams("last_name", "Bob").with("last_id", 12).with("fetch", 20);
+    assertEquals("SELECT * FROM foo WHERE (name, foo.id) > (:last_name, :last_id) ORDER BY name, foo.id FETCH FIRST 20 ROWS ONLY ",
+        bundle.getSql("Test1", params));
+  }
+
+  public void test_seek_withAnd() {
+    SqlFragments bundle = SqlFragments.parse(SEEK);
+    SqlParams params = new MapSqlParams("status", "A").with("last_name", "Bob").with("last_id", 12).with("fetch", 20);
+    assertEquals("SELECT * FROM foo WHERE status = :status AND (name, foo.id) > (:last_name, :last_id) " +
+        "ORDER BY name, foo.id FETCH FIRST 20 ROWS ONLY ", bundle.getSql("Test1", params));
+  }
+
+  public void test_seek_expanded() {
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(SEEK), ElSqlConfig.SQL_SERVER_2012);
+    SqlParams params = new MapSqlParams("last_name", "Bob").with("last_id", 12).with("fetch", 20);
+    assertEquals("SELECT * FROM foo WHERE (name > :last_name OR (name = :last_name AND foo.id > :last_id)) " +
+        "ORDER BY name, foo.id OFFSET 0 ROWS FETCH NEXT 20 ROWS ONLY ", bundle.getSql("Test1", params));
+  }
+
+  public void test_seek_mixedDirections() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE deleted = 0",
+        "  @SEEK(created DESC :last_created, a ASC :last_a, id :last_id)");
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("last_created", 1).with("last_a", 2).with("last_id", 3);
+    assertEquals("SELECT * FROM foo WHERE deleted = 0 AND (created < :last_created OR " +
+        "(created = :last_created AND a > :last_a) OR " +
+        "(created = :last_created AND a = :last_a AND id > :last_id)) ", bundle.getSql("Test1", params));
+  }
+
+  public void test_seek_singleColumn() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @SEEK(id DESC :{last.id})");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), ElSqlConfig.ORACLE);
+    assertEquals("SELECT * FROM foo WHERE id < :last.id ", bundle.getSql("Test1", new MapSqlParams("last.id", 3)));
+  }
+
+  public void test_seek_cachedAndInterpreted() {
+    SqlParams params = new MapSqlParams("last_name", "Bob").with("last_id", 12).with("fetch", 20);
+    String expected = SqlFragments.parse(SEEK).getSql("Test1", params);
+    for (ElSqlConfig config : new ElSqlConfig[] {
+        ElSqlConfig.DEFAULT.withCompiled(false), ElSqlConfig.DEFAULT.withRenderCacheSize(10)}) {
+      SqlFragments bundle = SqlFragments.parse(Collections.singletonList(SEEK), config);
+      assertEquals(expected, bundle.getSql("Test1", params));
+      assertEquals("SELECT * FROM foo ORDER BY name, foo.id FETCH FIRST 20 ROWS ONLY ",
+          bundle.getSql("Test1", new MapSqlParams("fetch", 20)));
+    }
+  }
+
+  @DataProvider(name = "seekInvalid")
+  Object[][] data_seekInvalid() {
+    return new Object[][] {
+      {"@SEEK"},
+      {"@SEEK()"},
+      {"@SEEK(name)"},
+      {"@SEEK(:last_name)"},
+      {"@SEEK(name :last_name"},
+      {"@SEEK(name :last_name,)"},
+      {"@SEEK(name DOWN :last_name)"},
+      {"@SEEK(name :last_name) AND"},
+    };
+  }
+
+  @Test(dataProvider = "seekInvalid", expectedExceptions = IllegalArgumentException.class,
+      expectedExceptionsMessageRegExp = "@SEEK found with invalid format: Line 2")
+  public void test_seek_invalidFormat(String line) {
+    SqlFragments.parse(Arrays.asList("@NAME(Test1)", "  " + line));
+  }
+
+  //-------------------------------------------------------------------------
+  private static final List<String> IN = Arrays.asList(
+      "@NAME(Test1)",
+      "  SELECT * FROM foo WHERE id @IN(:ids) AND deleted = 0");
+
+  public void test_in_arrayBinding() {
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(IN), ElSqlConfig.POSTGRES);
+    SqlParams params = new MapSqlParams("ids", new SqlParameterValue(Types.ARRAY, new Integer[] {1, 2, 3}));
+    assertEquals("SELECT * FROM foo WHERE id = ANY(:ids) AND deleted = 0 ", bundle.getSql("Test1", params));
+    SqlParams empty = new MapSqlParams("ids", new SqlParameterValue(Types.ARRAY, new Integer[0]));
+    assertEquals("SELECT * FROM foo WHERE id = ANY(:ids) AND deleted = 0 ", bundle.getSql("Test1", empty));
+    assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ", bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_in_arrayBinding_sqlArray() {
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(IN), ElSqlConfig.POSTGRES);
+    java.sql.Array array = (java.sql.Array) Proxy.newProxyInstance(
+        getClass().getClassLoader(), new Class<?>[] {java.sql.Array.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;
+          }
+        });
+    assertEquals("SELECT * FROM foo WHERE id = ANY(:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", array)));
+  }
+
+  public void test_in_arrayBinding_collectionExpanded() {
+    // a collection is not bound as an array, so is expanded by Spring even on Postgres
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(IN), ElSqlConfig.POSTGRES);
+    MapSqlParameterSource source = new MapSqlParameterSource("ids", Arrays.asList(1, 2, 3));
+    String sql = bundle.getSql("Test1", new SpringSqlParams(source));
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ", sql);
+    assertEquals("SELECT * FROM foo WHERE id IN (?, ?, ?) AND deleted = 0 ",
+        NamedParameterUtils.substituteNamedParameters(NamedParameterUtils.parseSqlStatement(sql), source));
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", new SqlParameterValue(Types.INTEGER, Arrays.asList(1, 2)))));
+    assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", Collections.emptyList())));
+  }
+
+  public void test_in_expanded() {
+    SqlFragments bundle = SqlFragments.parse(IN);
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", Arrays.asList(1, 2, 3))));
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", new Object[] {1})));
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", 1)));
+  }
+
+  public void test_in_expandedBySpring() {
+    SqlFragments bundle = SqlFragments.parse(IN);
+    MapSqlParameterSource source = new MapSqlParameterSource("ids", Arrays.asList(1, 2, 3));
+    String sql = bundle.getSql("Test1", new SpringSqlParams(source));
+    assertEquals("SELECT * FROM foo WHERE id IN (?, ?, ?) AND deleted = 0 ",
+        NamedParameterUtils.substituteNamedParameters(NamedParameterUtils.parseSqlStatement(sql), source));
+  }
+
+  public void test_in_empty() {
+    SqlFragments bundle = SqlFragments.parse(IN);
+    assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", Collections.emptyList())));
+    assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", new long[0])));
+    assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ",
+        bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_in_endOfLine() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:ids)",
+        "      id @IN(:ids)",
+        "    @AND(:name)",
+        "      name = :name");
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("ids", Arrays.asList("a", "b")).with("name", "Bob");
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND name = :name ", bundle.getSql("Test1", params));
+  }
+
+  public void test_in_loop() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOP(2)",
+        "    key @IN(:keys@LOOPINDEX)",
+        "    @LOOPJOIN OR");
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("keys0", Arrays.asList("a")).with("keys1", Collections.emptyList());
+    assertEquals("SELECT * FROM foo WHERE key IN (:keys0) OR key IN (NULL) ", bundle.getSql("Test1", params));
+  }
+
+  public void test_in_cachedAndInterpreted() {
+    for (ElSqlConfig config : new ElSqlConfig[] {
+        ElSqlConfig.DEFAULT.withCompiled(false), ElSqlConfig.DEFAULT.withRenderCacheSize(10)}) {
+      SqlFragments bundle = SqlFragments.parse(Collections.singletonList(IN), config);
+      assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ",
+          bundle.getSql("Test1", new MapSqlParams("ids", Arrays.asList(1, 2))));
+      assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ",
+          bundle.getSql("Test1", new MapSqlParams("ids", Collections.emptyList())));
+    }
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(IN), ElSqlConfig.POSTGRES.withRenderCacheSize(10));
+    assertEquals("SELECT * FROM foo WHERE id = ANY(:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", new SqlParameterValue(Types.ARRAY, new Integer[] {1}))));
+    assertEquals("SELECT * FROM foo WHERE id IN (:ids) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", Arrays.asList(1, 2))));
+    assertEquals("SELECT * FROM foo WHERE id IN (NULL) AND deleted = 0 ",
+        bundle.getSql("Test1", new MapSqlParams("ids", Collections.emptyList())));
+  }
+
+  public void test_in_notTagInLiteral() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT '@INFO' FROM foo WHERE email = 'x@INTERNAL.COM' AND id @IN(:ids)");
+    SqlFragments bundle = SqlFragments.parse(lines);
+    assertEquals("SELECT '@INFO' FROM foo WHERE email = 'x@INTERNAL.COM' AND id IN (:ids) ",
+        bundle.getSql("Test1", new MapSqlParams("ids", Arrays.asList(1))));
+  }
+
+  @DataProvider(name = "inInvalid")
+  Object[][] data_inInvalid() {
+    return new Object[][] {
+      {"id @IN()"},
+      {"id @IN(ids)"},
+      {"id @IN(:ids"},
+    };
+  }
+
+  @Test(dataProvider = "inInvalid", expectedExceptions = IllegalArgumentException.class,
+      expectedExceptionsMessageRegExp = "@IN found with invalid format: Line 2")
+  public void test_in_invalidFormat(String line) {
+    SqlFragments.parse(Arrays.asList("@NAME(Test1)", "  SELECT * FROM foo WHERE " + line));
+  }
+
+  public void test_isArrayBinding() {
+    assertEquals(true, ElSqlConfig.POSTGRES.isArrayBinding());
+    assertEquals(true, ElSqlConfig.POSTGRES.withRenderCacheSize(10).isArrayBinding());
+    assertEquals(false, ElSqlConfig.DEFAULT.isArrayBinding());
+    assertEquals(false, ElSqlConfig.HSQL.isArrayBinding());
+    assertEquals(false, ElSqlConfig.ORACLE.isArrayBinding());
+  }
+
   //-------------------------------------------------------------------------
   public void test_fetch_defaultVar() {
     List<String> lines = Arrays.asList(
@@ -829,6 +1307,68 @@ public class SqlFragmentsTest {
     assertEquals("SELECT * FROM foo WHERE var = :var AND vax = :vax ", sql1);
   }
 
+  public void test_and_afterTextWhere_lowerCase() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  select * from foo where",
+        "    @AND(:var)",
+        "      var = :var",
+        "    @AND(:vax)",
+        "      vax = :vax"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("var", "val").with("vax", "val");
+    String sql1 = bundle.getSql("Test1", params);
+    assertEquals("select * from foo where var = :var AND vax = :vax ", sql1);
+  }
+
+  public void test_and_afterTextAnd() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    a = 1 AND",
+        "    @AND(:var)",
+        "      var = :and"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("var", "val");
+    String sql1 = bundle.getSql("Test1", params);
+    assertEquals("SELECT * FROM foo WHERE a = 1 AND var = :and ", sql1);
+  }
+
+  public void test_and_afterVariableNamedAnd() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    a = :and",
+        "    @AND(:var)",
+        "      var = :var"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("var", "val");
+    String sql1 = bundle.getSql("Test1", params);
+    assertEquals("SELECT * FROM foo WHERE a = :and AND var = :var ", sql1);
+  }
+
+  public void test_and_afterEmptyWhere() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:vax)",
+        "      vax = :vax",
+        "  @WHERE",
+        "    @AND(:var)",
+        "      var = :var"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    SqlParams params = new MapSqlParams("var", "val");
+    String sql1 = bundle.getSql("Test1", params);
+    assertEquals("SELECT * FROM foo WHERE var = :var ", sql1);
+  }
+
   public void test_and_withMatch_varAbsent() {
     List<String> lines = Arrays.asList(
         "@NAME(Test1)",
@@ -1326,6 +1866,144 @@ public class SqlFragmentsTest {
     assertEquals("SELECT * FROM foo WHERE (a = :a0 AND b = bob) OR (a = :a1 AND b = doctor) ", sql1);
   }
 
+  public void test_loopWithJoin_sameLine() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOP(:size)",
+        "    a = :a@LOOPINDEX @LOOPJOIN OR"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("size", 3));
+    assertEquals("SELECT * FROM foo WHERE a = :a0 OR a = :a1 OR a = :a2 ", sql1);
+  }
+
+  public void test_loopWithJoin_multipleLines() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOP(:size)",
+        "    a = :a@LOOPINDEX",
+        "    @LOOPJOIN OR",
+        "    @IF(:b)",
+        "      b = :b@LOOPINDEX OR"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("size", 2).with("b", true));
+    assertEquals("SELECT * FROM foo WHERE a = :a0 OR b = :b0 OR a = :a1 ", sql1);
+  }
+
+  public void test_loopWithJoin_andInWhere() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @LOOP(:size)",
+        "      @AND(:a@LOOPINDEX)",
+        "        a = :a@LOOPINDEX"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("size", 2).with("a0", "x").with("a1", "y"));
+    assertEquals("SELECT * FROM foo WHERE a = :a0 AND a = :a1 ", sql1);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_loopJoin_outsideLoop() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOPJOIN OR"
+    );
+    SqlFragments.parse(lines);
+  }
+
+  public void test_loopJoin_inIf() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOP(:size)",
+        "    @IF(:a)",
+        "      a = :a@LOOPINDEX",
+        "      @LOOPJOIN OR"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    assertEquals("SELECT * FROM foo WHERE a = :a0 OR a = :a1 OR a = :a2 ",
+        bundle.getSql("Test1", new MapSqlParams("size", 3).with("a", true)));
+    assertEquals("SELECT * FROM foo WHERE ", bundle.getSql("Test1", new MapSqlParams("size", 3)));
+  }
+
+  public void test_loopJoin_inAndInIf() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @LOOP(:size)",
+        "      @IF(:b = x)",
+        "        @AND(:a@LOOPINDEX)",
+        "          a = :a@LOOPINDEX",
+        "          @LOOPJOIN AND"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    assertEquals("SELECT * FROM foo WHERE a = :a0 AND a = :a2 ",
+        bundle.getSql("Test1", new MapSqlParams("size", 3).with("a0", 1).with("a2", 2).with("b", "x")));
+    assertEquals("SELECT * FROM foo WHERE a = :a1 ",
+        bundle.getSql("Test1", new MapSqlParams("size", 2).with("a1", 2).with("b", "x")));
+    assertEquals("SELECT * FROM foo ",
+        bundle.getSql("Test1", new MapSqlParams("size", 2).with("a1", 2).with("b", "y")));
+  }
+
+  public void test_loopJoin_onlyJoinInLoop() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE a IN (?",
+        "  @LOOP(:size)",
+        "    @LOOPJOIN , ?",
+        "  )"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    assertEquals("SELECT * FROM foo WHERE a IN (? , ? , ? ) ", bundle.getSql("Test1", new MapSqlParams("size", 3)));
+    assertEquals("SELECT * FROM foo WHERE a IN (? ) ", bundle.getSql("Test1", new MapSqlParams("size", 1)));
+  }
+
+  public void test_loopJoin_inIfOnly() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOP(:size)",
+        "    a = :a@LOOPINDEX",
+        "    @IF(:or)",
+        "      @LOOPJOIN OR"
+    );
+    SqlFragments bundle = SqlFragments.parse(lines);
+    assertEquals("SELECT * FROM foo WHERE a = :a0 OR a = :a1 ",
+        bundle.getSql("Test1", new MapSqlParams("size", 2).with("or", true)));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_loopJoin_inIfOutsideLoop() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @IF(:a)",
+        "    a = :a",
+        "    @LOOPJOIN OR"
+    );
+    SqlFragments.parse(lines);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_loopJoin_twice() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE",
+        "  @LOOP(:size)",
+        "    a = :a",
+        "    @LOOPJOIN OR",
+        "    @LOOPJOIN AND"
+    );
+    SqlFragments.parse(lines);
+  }
+
   @Test(expectedExceptions = IllegalArgumentException.class)
   public void test_loop_sizeBadType() {
     List<String> lines = Arrays.asList(
@@ -1361,4 +2039,283 @@ public class SqlFragmentsTest {
         "AND (a = :a1 AND b = :b0) OR (a = :a1 AND b = :b1) ", sql1);
   }
 
+  //-------------------------------------------------------------------------
+  public void test_parse_parseExecutor_overrideOrder() {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<List<String>> files = new ArrayList<List<String>>();
+      for (int i = 0; i < 50; i++) {
+        files.add(Arrays.asList(
+            "@NAME(Test" + i + ")",
+            "  SELECT " + i,
+            "@NAME(Last)",
+            "  SELECT " + i));
+      }
+      SqlFragments bundle = SqlFragments.parse(files, ElSqlConfig.DEFAULT.withParseExecutor(executor));
+      assertEquals("SELECT 49 ", bundle.getSql("Last", EmptySqlParams.INSTANCE));
+      assertEquals("SELECT 7 ", bundle.getSql("Test7", EmptySqlParams.INSTANCE));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "@WHERE found .*")
+  public void test_parse_parseExecutor_invalid() {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      List<List<String>> files = new ArrayList<List<String>>();
+      files.add(Arrays.asList("@NAME(Test)", "  SELECT 1"));
+      files.add(Arrays.asList("@NAME(Test)", "  @WHERE 1"));
+      SqlFragments.parse(files, ElSqlConfig.DEFAULT.withParseExecutor(executor));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  private static final ElSqlConfig LAZY = ElSqlConfig.DEFAULT.withLazyParsing(true);
+
+  public void test_withLazyParsing() {
+    assertEquals(false, ElSqlConfig.HSQL.isLazyParsing());
+    ElSqlConfig test = ElSqlConfig.HSQL.withLazyParsing(true);
+    assertEquals(true, test.isLazyParsing());
+    assertEquals("HSQL", test.getName());
+    assertEquals(true, test.withRenderCacheSize(2).isLazyParsing());
+    assertEquals(false, test.withLazyParsing(false).isLazyParsing());
+  }
+
+  public void test_lazy_parseOnce() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:a)",
+        "      a = :a",
+        "@NAME(Test2)",
+        "  SELECT * FROM bar");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    NameSqlFragment fragment = bundle.getFragment("Test1");
+    assertSame(fragment, bundle.getFragment("Test1"));
+    assertSame(fragment, bundle.withConfig(ElSqlConfig.HSQL).getFragment("Test1"));
+    assertEquals("SELECT * FROM foo WHERE a = :a ", bundle.getSql("Test1", new MapSqlParams("a", 1)));
+    assertEquals("SELECT * FROM bar ", bundle.getSql("Test2", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_lazy_invalidUnusedSection() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "@NAME(Test2)",
+        "  SELECT * FROM bar @LIKE",
+        "  @WHERE 1");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    assertEquals("SELECT * FROM foo ", bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+    try {
+      bundle.getSql("Test2", EmptySqlParams.INSTANCE);
+      fail();
+    } catch (IllegalArgumentException ex) {
+      assertEquals("@LIKE found with invalid format: Line 4", ex.getMessage());
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "@LIKE found .*")
+  public void test_lazy_invalidUnusedSection_eager() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "@NAME(Test2)",
+        "  SELECT * FROM bar @LIKE");
+    SqlFragments.parse(Collections.singletonList(lines), LAZY.withLazyParsing(false));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Invalid fragment .*")
+  public void test_lazy_invalidRootLevel() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "SELECT * FROM bar");
+    SqlFragments.parse(Collections.singletonList(lines), LAZY);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "@NAME found .*")
+  public void test_lazy_invalidName() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1",
+        "  SELECT * FROM foo");
+    SqlFragments.parse(Collections.singletonList(lines), LAZY);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "@NAME found with no .*")
+  public void test_lazy_emptyName() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "@NAME(Test2)",
+        "  SELECT * FROM foo");
+    SqlFragments.parse(Collections.singletonList(lines), LAZY);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Tab .*")
+  public void test_lazy_tab() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "\tSELECT * FROM foo");
+    SqlFragments.parse(Collections.singletonList(lines), LAZY);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp = "Unknown fragment name: Test3")
+  public void test_lazy_unknownName() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    bundle.getSql("Test3", EmptySqlParams.INSTANCE);
+  }
+
+  public void test_lazy_nestedName() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @NAME(Inner)",
+        "    WHERE a = 1");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    assertEquals("WHERE a = 1 ", bundle.getSql("Inner", EmptySqlParams.INSTANCE));
+    assertEquals("SELECT * FROM foo WHERE a = 1 ", bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_lazy_static_include() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo @INCLUDE(Test2)",
+        "@NAME(Test2)",
+        "  WHERE a = 1");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    assertEquals("SELECT * FROM foo WHERE a = 1 ", bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+    // rendered once when first parsed, then shared
+    String sql = bundle.getSql("Test1", EmptySqlParams.INSTANCE);
+    assertSame(sql, bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_lazy_overrideOrder() {
+    List<List<String>> files = new ArrayList<List<String>>();
+    files.add(Arrays.asList("@NAME(Test1)", "  SELECT 1", "@NAME(Test2)", "  SELECT 2"));
+    files.add(Arrays.asList("@NAME(Test2)", "  SELECT 3"));
+    SqlFragments bundle = SqlFragments.parse(files, LAZY);
+    assertEquals("SELECT 1 ", bundle.getSql("Test1", EmptySqlParams.INSTANCE));
+    assertEquals("SELECT 3 ", bundle.getSql("Test2", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_lazy_indexedParams_setBeforeParse() {
+    List<String> lines = Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:a)",
+        "      a = :a");
+    SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    assertEquals(-1, bundle.getVariableSlot("a"));
+    IndexedSqlParams params = bundle.createParams().set("a", 1);
+    assertEquals("SELECT * FROM foo WHERE a = :a ", bundle.getSql("Test1", params));
+    assertEquals(0, bundle.getVariableSlot("a"));
+  }
+
+  public void test_lazy_concurrent() throws Exception {
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      lines.add("@NAME(Test" + i + ")");
+      lines.add("  SELECT * FROM foo @INCLUDE(Test" + ((i + 1) % 100) + ")");
+    }
+    final SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<NameSqlFragment>> results = new ArrayList<Future<NameSqlFragment>>();
+      for (int i = 0; i < 400; i++) {
+        final String name = "Test" + (i % 100);
+        results.add(executor.submit(new Callable<NameSqlFragment>() {
+          @Override
+          public NameSqlFragment call() {
+            return bundle.getFragment(name);
+          }
+        }));
+      }
+      for (int i = 0; i < 400; i++) {
+        assertSame(results.get(i % 100).get(), results.get(i).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  public void test_lazy_concurrent_parsedOnce() throws Exception {
+    // a large section widens the window in which threads miss the parsed fragment
+    List<String> lines = new ArrayList<String>();
+    lines.add("@NAME(Test1)");
+    lines.add("  SELECT * FROM foo");
+    lines.add("  @WHERE");
+    for (int i = 0; i < 500; i++) {
+      lines.add("    @AND(:a" + i + ")");
+      lines.add("      a" + i + " = :a" + i);
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      for (int round = 0; round < 50; round++) {
+        final SqlFragments bundle = SqlFragments.parse(Collections.singletonList(lines), LAZY);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<SqlProgram>> results = new ArrayList<Future<SqlProgram>>();
+        for (int i = 0; i < 8; i++) {
+          results.add(executor.submit(new Callable<SqlProgram>() {
+            @Override
+            public SqlProgram call() throws Exception {
+              start.await();
+              return bundle.getFragment("Test1").getProgram();
+            }
+          }));
+        }
+        start.countDown();
+        // each parse compiles a new program, thus a single program shows a single parse
+        Set<SqlProgram> parses = Collections.newSetFromMap(new IdentityHashMap<SqlProgram, Boolean>());
+        for (Future<SqlProgram> result : results) {
+          parses.add(result.get());
+        }
+        assertEquals(1, parses.size());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_loadResource_file() throws Exception {
+    File file = File.createTempFile("elsql", ".elsql");
+    try {
+      write(new FileOutputStream(file), CONTENT);
+      assertEquals(CONTENT, SqlFragments.loadResource(file.toURI().toURL()));
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void test_loadResource_jar() throws Exception {
+    File file = File.createTempFile("elsql", ".jar");
+    try {
+      JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+      out.putNextEntry(new ZipEntry("Test.elsql"));
+      write(out, CONTENT);
+      URL url = new URL("jar:" + file.toURI().toURL() + "!/Test.elsql");
+      assertEquals(CONTENT, SqlFragments.loadResource(url));
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static final String CONTENT = "@NAME(Test)\r\n  SELECT * FROM caf\u00e9 -- \u20ac\n";
+
+  // writes the content as UTF-8, closing the stream
+  private static void write(OutputStream out, String content) throws IOException {
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
 }
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class SqlIntValueTest {
+
+  private static final SqlParams PARAMS = new MapSqlParams("offset", 20).with("fetch", 10L);
+
+  @DataProvider(name = "parse")
+  Object[][] data_parse() {
+    return new Object[][] {
+        {"0", 0},
+        {"123", 123},
+        {":offset", 20},
+        {":{offset}", 20},
+        {":fetch", 10},
+        {":missing", 0},
+        {null, 0},
+        {"", 0},
+        {":", 0},
+        {"12a", 0},
+        {"-1", 0},
+    };
+  }
+
+  @Test(dataProvider = "parse")
+  public void test_parse(String str, int expected) {
+    SqlIntValue test = SqlIntValue.parse(str, new SqlVariables());
+    assertEquals(expected, test.get(PARAMS));
+    assertEquals(String.valueOf(str), test.toString());
+  }
+
+  public void test_literal_noVariable() {
+    SqlVariables variables = new SqlVariables();
+    assertNull(SqlIntValue.parse("12", variables).getVariable());
+    assertEquals(0, variables.size());
+  }
+
+  public void test_variable_indexed() {
+    SqlVariables variables = new SqlVariables();
+    SqlIntValue test = SqlIntValue.parse(":offset", variables);
+    assertEquals(0, test.getVariable().getSlot());
+    IndexedSqlParams params = new IndexedSqlParams(variables);
+    assertEquals(0, test.get(params));
+    params.set(0, 30);
+    assertEquals(30, test.get(params));
+  }
+
+  public void test_toBindSql() {
+    SqlVariables variables = new SqlVariables();
+    assertEquals(":offset", SqlIntValue.parse(":offset", variables).toBindSql(20));
+    assertEquals(":offset", SqlIntValue.parse(":{offset}", variables).toBindSql(20));
+    assertNull(SqlIntValue.parse(":offset", variables).toBindSql(0));
+    assertEquals("12", SqlIntValue.parse("12", variables).toBindSql(12));
+    assertNull(SqlIntValue.parse(null, variables).toBindSql(0));
+  }
+
+}
@@ -0,0 +1,340 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.StringWriter;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class SqlProgramTest {
+
+  private static final ElSqlConfig TREE = ElSqlConfig.DEFAULT.withCompiled(false);
+  private static final ElSqlConfig CACHED = ElSqlConfig.DEFAULT.withRenderCacheSize(2);
+  private static final ElSqlConfig THREAD_LOCAL = ElSqlConfig.DEFAULT.withThreadLocalBuffer(true);
+
+  @DataProvider(name = "templates")
+  Object[][] data_templates() {
+    return new Object[][] {
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo",
+            "  @WHERE",
+            "    @AND(:var)",
+            "      var = :var",
+            "    @AND(:vax)",
+            "      vax = :vax",
+            "    @OR(:vay)",
+            "      vay = :vay"),
+            new MapSqlParams("var", "val").with("vay", "val"),
+            "SELECT * FROM foo WHERE var = :var OR vay = :vay "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo",
+            "  @WHERE",
+            "    @AND(:var)",
+            "      var = :var"),
+            EmptySqlParams.INSTANCE,
+            "SELECT * FROM foo "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo",
+            "  @IF(:var = Hello)",
+            "    WHERE var = :var"),
+            new MapSqlParams("var", "hello"),
+            "SELECT * FROM foo WHERE var = :var "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo WHERE",
+            "  @LOOP(:size1)",
+            "    @LOOP(:size2)",
+            "      (a = :a@LOOPINDEX1 AND b = :b@LOOPINDEX2)",
+            "      @LOOPJOIN OR",
+            "    @LOOPJOIN AND"),
+            new MapSqlParams("size1", 2).with("size2", 2),
+            "SELECT * FROM foo WHERE (a = :a0 AND b = :b0) OR (a = :a0 AND b = :b1) " +
+                "AND (a = :a1 AND b = :b0) OR (a = :a1 AND b = :b1) "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo",
+            "  @WHERE",
+            "    @LOOP(:size)",
+            "      (a = :a@LOOPINDEX)",
+            "      @LOOPJOIN OR"),
+            new MapSqlParams("size", 0),
+            "SELECT * FROM foo "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo",
+            "  @WHERE",
+            "    @LOOP(:size)",
+            "      @AND(:a@LOOPINDEX)",
+            "        a = :a@LOOPINDEX",
+            "        @LOOPJOIN AND"),
+            new MapSqlParams("size", 3).with("a0", "x").with("a2", "z"),
+            "SELECT * FROM foo WHERE a = :a0 AND a = :a2 "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo WHERE a IN (?",
+            "  @LOOP(:size)",
+            "    @LOOPJOIN , ?",
+            "  )"),
+            new MapSqlParams("size", 3),
+            "SELECT * FROM foo WHERE a IN (? , ? , ? ) "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM @INCLUDE(:table) WHERE @INCLUDE(Cond)",
+            "@NAME(Cond)",
+            "  a @LIKE :a @ENDLIKE AND b @EQUALS :b @ENDEQUALS AND c = @VALUE(:c)",
+            "@NAME(Table)",
+            "  foo"),
+            new MapSqlParams("table", "Table").with("a", "x%").with("b", null).with("c", "3"),
+            "SELECT * FROM foo  WHERE a LIKE :a  AND b IS NULL  AND c = 3 "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  @PAGING(:offset, :fetch)",
+            "    SELECT * FROM foo",
+            "    @WHERE",
+            "      @AND(:var)",
+            "        var = :var",
+            "    ORDER BY bar"),
+            new MapSqlParams("offset", 7).with("fetch", 3).with("var", "val"),
+            "SELECT * FROM foo WHERE var = :var ORDER BY bar OFFSET 7 ROWS FETCH NEXT 3 ROWS ONLY "},
+        {Arrays.asList(
+            "@NAME(Test1)",
+            "  SELECT * FROM foo",
+            "  @OFFSETFETCH(8, 4) ENDFOO"),
+            EmptySqlParams.INSTANCE,
+            "SELECT * FROM foo OFFSET 8 ROWS FETCH NEXT 4 ROWS ONLY ENDFOO "},
+    };
+  }
+
+  @Test(dataProvider = "templates")
+  public void test_compiled(List<String> lines, SqlParams params, String expected) {
+    SqlFragments bundle = SqlFragments.parse(lines);
+    assertEquals(expected, bundle.getSql("Test1", params));
+  }
+
+  @Test(dataProvider = "templates")
+  public void test_tree(List<String> lines, SqlParams params, String expected) {
+    SqlFragments bundle = SqlFragments.parse(lines).withConfig(TREE);
+    assertEquals(expected, bundle.getSql("Test1", params));
+  }
+
+  @Test(dataProvider = "templates")
+  public void test_cached(List<String> lines, SqlParams params, String expected) {
+    SqlFragments bundle = SqlFragments.parse(lines).withConfig(CACHED);
+    assertEquals(expected, bundle.getSql("Test1", params));
+    assertEquals(expected, bundle.getSql("Test1", params));
+  }
+
+  @Test(dataProvider = "templates")
+  public void test_threadLocalBuffer(List<String> lines, SqlParams params, String expected) {
+    SqlFragments bundle = SqlFragments.parse(lines).withConfig(THREAD_LOCAL);
+    assertEquals(expected, bundle.getSql("Test1", params));
+    assertEquals(expected, bundle.getSql("Test1", params));
+  }
+
+  @Test(dataProvider = "templates")
+  public void test_appendable(List<String> lines, SqlParams params, String expected) {
+    SqlFragments bundle = SqlFragments.parse(lines);
+    StringBuilder buf = new StringBuilder("X");
+    bundle.getSql("Test1", params, buf);
+    assertEquals("X" + expected, buf.toString());
+    StringWriter writer = new StringWriter();
+    bundle.getSql("Test1", params, writer);
+    assertEquals(expected, writer.toString());
+    CharBuffer heap = CharBuffer.allocate(200);
+    bundle.getSql("Test1", params, heap);
+    assertEquals(expected, ((CharBuffer) heap.flip()).toString());
+    CharBuffer direct = ByteBuffer.allocateDirect(400).asCharBuffer();
+    bundle.getSql("Test1", params, direct);
+    assertEquals(expected, ((CharBuffer) direct.flip()).toString());
+  }
+
+  @Test(expectedExceptions = BufferOverflowException.class)
+  public void test_appendable_overflow() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:var)",
+        "      var = :var"));
+    bundle.getSql("Test1", new MapSqlParams("var", "a"), CharBuffer.allocate(10));
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_sizeHint() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:var)",
+        "      var = :var"));
+    NameSqlFragment fragment = bundle.getFragment("Test1");
+    assertEquals(256, fragment.getSizeHint());
+    String sql = bundle.getSql("Test1", new MapSqlParams("var", "a"));
+    assertEquals(sql.length(), fragment.getSizeHint());
+    String smaller = bundle.getSql("Test1", EmptySqlParams.INSTANCE);
+    assertTrue(fragment.getSizeHint() < sql.length());
+    assertTrue(fragment.getSizeHint() > smaller.length());
+  }
+
+  public void test_sizeHint_growsAndDecays() {
+    NameSqlFragment fragment = new NameSqlFragment("Test1");
+    fragment.recordSize(1000);
+    assertEquals(1000, fragment.getSizeHint());
+    fragment.recordSize(200);
+    assertEquals(900, fragment.getSizeHint());
+    for (int i = 0; i < 100; i++) {
+      fragment.recordSize(200);
+    }
+    assertTrue(fragment.getSizeHint() < 210);
+    fragment.recordSize(1000);
+    assertEquals(1000, fragment.getSizeHint());
+  }
+
+  public void test_sizeHint_capped() {
+    NameSqlFragment fragment = new NameSqlFragment("Test1");
+    fragment.recordSize(10 * 1024 * 1024);
+    assertEquals(64 * 1024, fragment.getSizeHint());
+  }
+
+  public void test_withThreadLocalBuffer() {
+    assertEquals(false, ElSqlConfig.HSQL.isThreadLocalBuffer());
+    ElSqlConfig test = ElSqlConfig.HSQL.withThreadLocalBuffer(true);
+    assertEquals(true, test.isThreadLocalBuffer());
+    assertEquals("HSQL", test.getName());
+    assertEquals(true, test.withRenderCacheSize(2).isThreadLocalBuffer());
+    assertEquals(false, test.withThreadLocalBuffer(false).isThreadLocalBuffer());
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_cached_sameShape() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:var)",
+        "      var = :var",
+        "    @AND(:vax)",
+        "      vax @LIKE :vax @ENDLIKE")).withConfig(CACHED);
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("var", "a").with("vax", "b"));
+    String sql2 = bundle.getSql("Test1", new MapSqlParams("var", "c").with("vax", "d"));
+    String sql3 = bundle.getSql("Test1", new MapSqlParams("var", "c").with("vax", "d%"));
+    String sql4 = bundle.getSql("Test1", new MapSqlParams("var", "c"));
+    assertEquals("SELECT * FROM foo WHERE var = :var AND vax = :vax ", sql1);
+    assertSame(sql1, sql2);
+    assertEquals("SELECT * FROM foo WHERE var = :var AND vax LIKE :vax ", sql3);
+    assertEquals("SELECT * FROM foo WHERE var = :var ", sql4);
+  }
+
+  public void test_cached_hotShapeSurvivesOverflow() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:a)",
+        "      a = :a",
+        "    @AND(:b)",
+        "      b = :b",
+        "    @AND(:c)",
+        "      c = :c")).withConfig(CACHED);
+    String hot = bundle.getSql("Test1", new MapSqlParams("a", "x"));
+    bundle.getSql("Test1", new MapSqlParams("b", "x"));
+    for (int i = 0; i < 3; i++) {
+      assertSame(hot, bundle.getSql("Test1", new MapSqlParams("a", "x")));
+      bundle.getSql("Test1", new MapSqlParams(i % 2 == 0 ? "c" : "b", "x"));
+    }
+    assertSame(hot, bundle.getSql("Test1", new MapSqlParams("a", "x")));
+    assertEquals("SELECT * FROM foo WHERE a = :a ", hot);
+  }
+
+  public void test_cached_loopsAndIncludes() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM @INCLUDE(:table) WHERE",
+        "  @LOOP(:size)",
+        "    a = :a@LOOPINDEX",
+        "    @LOOPJOIN OR",
+        "@NAME(Foo)",
+        "  foo",
+        "@NAME(Bar)",
+        "  bar")).withConfig(CACHED);
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("table", "Foo").with("size", 2));
+    String sql2 = bundle.getSql("Test1", new MapSqlParams("table", "Bar").with("size", 2));
+    String sql3 = bundle.getSql("Test1", new MapSqlParams("table", "Foo").with("size", 3));
+    assertEquals("SELECT * FROM foo WHERE a = :a0 OR a = :a1 ", sql1);
+    assertEquals("SELECT * FROM bar WHERE a = :a0 OR a = :a1 ", sql2);
+    assertEquals("SELECT * FROM foo WHERE a = :a0 OR a = :a1 OR a = :a2 ", sql3);
+    assertSame(sql3, bundle.getSql("Test1", new MapSqlParams("table", "Foo").with("size", 3)));
+  }
+
+  public void test_cached_value() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo WHERE a = @VALUE(:a)")).withConfig(CACHED);
+    assertEquals("SELECT * FROM foo WHERE a = 1 ", bundle.getSql("Test1", new MapSqlParams("a", "1")));
+    assertEquals("SELECT * FROM foo WHERE a = 2 ", bundle.getSql("Test1", new MapSqlParams("a", "2")));
+  }
+
+  public void test_notCached() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList(
+        "@NAME(Test1)",
+        "  SELECT * FROM foo",
+        "  @WHERE",
+        "    @AND(:var)",
+        "      var = :var"));
+    String sql1 = bundle.getSql("Test1", new MapSqlParams("var", "a"));
+    String sql2 = bundle.getSql("Test1", new MapSqlParams("var", "a"));
+    assertEquals(sql1, sql2);
+    assertNotSame(sql1, sql2);
+  }
+
+  public void test_withRenderCacheSize() {
+    assertEquals(0, ElSqlConfig.HSQL.getRenderCacheSize());
+    ElSqlConfig test = ElSqlConfig.HSQL.withRenderCacheSize(100);
+    assertEquals(100, test.getRenderCacheSize());
+    assertEquals("HSQL", test.getName());
+    assertEquals(true, test.isCompiled());
+    assertEquals(100, test.withCompiled(false).getRenderCacheSize());
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_withRenderCacheSize_negative() {
+    ElSqlConfig.HSQL.withRenderCacheSize(-1);
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_withCompiled() {
+    assertEquals(true, ElSqlConfig.HSQL.isCompiled());
+    ElSqlConfig test = ElSqlConfig.HSQL.withCompiled(false);
+    assertEquals(false, test.isCompiled());
+    assertEquals("HSQL", test.getName());
+    assertEquals("ESCAPE '\\' ", test.getLikeSuffix());
+    assertEquals(true, test.withCompiled(true).isCompiled());
+  }
+
+  public void test_toString() {
+    SqlFragments bundle = SqlFragments.parse(Arrays.asList("@NAME(Test1)", "  SELECT * FROM foo"));
+    assertEquals("SqlProgram:Test1 2 instructions", bundle.getFragment("Test1").getProgram().toString());
+  }
+
+}
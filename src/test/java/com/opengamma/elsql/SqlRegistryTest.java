@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class SqlRegistryTest {
+
+  public void test_of_shared() {
+    ElSqlConfig config = ElSqlConfig.HSQL.withCompiled(true);
+    SqlFragments test = SqlRegistry.of(config, ElSql.class);
+    assertSame(test, SqlRegistry.of(config, ElSql.class));
+    assertEquals("SELECT * FROM bar, foo ", test.getSql("TestBar", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_of_equalConfig() {
+    ElSqlConfig config1 = ElSqlConfig.HSQL.withCompiled(true).withRenderCacheSize(4);
+    ElSqlConfig config2 = ElSqlConfig.HSQL.withCompiled(true).withRenderCacheSize(4);
+    assertNotSame(config1, config2);
+    assertEquals(config1, config2);
+    assertEquals(config1.hashCode(), config2.hashCode());
+    SqlFragments test1 = SqlRegistry.of(config1, ElSql.class);
+    SqlFragments test2 = SqlRegistry.of(config2, ElSql.class);
+    assertSame(test1, test2);
+    assertSame(config1, test1.getConfig());
+  }
+
+  public void test_of_differentConfig() {
+    ElSqlConfig config1 = ElSqlConfig.HSQL.withCompiled(true);
+    ElSqlConfig config2 = ElSqlConfig.HSQL.withCompiled(false);
+    ElSqlConfig config3 = ElSqlConfig.MYSQL.withCompiled(true);
+    assertFalse(config1.equals(config2));
+    assertFalse(config1.equals(config3));
+    SqlFragments test1 = SqlRegistry.of(config1, ElSql.class);
+    SqlFragments test2 = SqlRegistry.of(config2, ElSql.class);
+    SqlFragments test3 = SqlRegistry.of(config3, ElSql.class);
+    assertNotSame(test1, test2);
+    assertNotSame(test1, test3);
+    assertEquals(config1, test1.getConfig());
+    assertEquals(config2, test2.getConfig());
+    assertEquals(config3, test3.getConfig());
+  }
+
+  public void test_ofAll_mixed() {
+    ElSqlConfig config = ElSqlConfig.HSQL.withCompiled(true);
+    SqlFragments first = SqlRegistry.of(config, ElSql.class);
+    List<SqlFragments> test = SqlRegistry.ofAll(config, new Class<?>[] {ElSql.class, ElSql.class});
+    assertSame(first, test.get(0));
+    assertSame(first, test.get(1));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_of_noExistingResource() {
+    SqlRegistry.of(ElSqlConfig.DEFAULT, SqlRegistryTest.class);
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_resources() {
+    URL[] test = SqlRegistry.resources(ElSqlConfig.HSQL, ElSql.class);
+    assertEquals(ElSql.class.getResource("ElSql.elsql"), test[0]);
+    assertEquals(ElSql.class.getResource("ElSql-HSQL.elsql"), test[1]);
+  }
+
+  public void test_resources_oracle12() {
+    assertNull(SqlRegistry.resources(ElSqlConfig.ORACLE, ElSql.class)[1]);
+    assertEquals(ElSql.class.getResource("ElSql-Oracle12.elsql"), SqlRegistry.resources(ElSqlConfig.ORACLE12, ElSql.class)[1]);
+    assertEquals("SELECT * FROM bar ", SqlRegistry.of(ElSqlConfig.ORACLE, ElSql.class).getSql("TestBar", EmptySqlParams.INSTANCE));
+    assertEquals("SELECT * FROM bar FETCH FIRST 1 ROWS ONLY ",
+        SqlRegistry.of(ElSqlConfig.ORACLE12, ElSql.class).getSql("TestBar", EmptySqlParams.INSTANCE));
+  }
+
+  public void test_resources_missingOverride() {
+    URL[] test = SqlRegistry.resources(ElSqlConfig.MYSQL, ElSql.class);
+    assertNotNull(test[0]);
+    assertNull(test[1]);
+    test[0] = null;
+    assertNotNull(SqlRegistry.resources(ElSqlConfig.MYSQL, ElSql.class)[0]);
+  }
+
+  //-------------------------------------------------------------------------
+  public void test_classLoader_notRetained() throws Exception {
+    WeakReference<ClassLoader> ref = register();
+    for (int i = 0; i < 20 && ref.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(ref.get());
+  }
+
+  // registers a bundle for a type loaded by a separate class loader
+  private static WeakReference<ClassLoader> register() throws Exception {
+    URL classes = new File(ElSql.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toURI().toURL();
+    URL testClasses = new File(SqlRegistryTest.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toURI().toURL();
+    URLClassLoader loader = new URLClassLoader(new URL[] {classes, testClasses}, null);
+    Class<?> type = loader.loadClass(ElSql.class.getName());
+    assertNotSame(ElSql.class, type);
+    SqlFragments fragments = SqlRegistry.of(ElSqlConfig.HSQL, type);
+    assertEquals("SELECT * FROM bar, foo ", fragments.getSql("TestBar", EmptySqlParams.INSTANCE));
+    return new WeakReference<ClassLoader>(loader);
+  }
+
+}
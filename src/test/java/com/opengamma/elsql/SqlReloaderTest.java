@@ -0,0 +1,273 @@
+/**
+ * Copyright (C) 2009 - present by OpenGamma Inc. and the OpenGamma group of companies
+ *
+ * Please see distribution for license.
+ */
+package com.opengamma.elsql;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertNotSame;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test.
+ */
+@Test
+public class SqlReloaderTest {
+
+  public void test_reload_onRequest() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT 1\n");
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT, 0, file.toURI().toURL());
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+
+      writeFile(file, "@NAME(Test)\n  SELECT 2\n");
+      awaitSql(test, "SELECT 2 ");
+      // a check may have seen the content before the modified time was moved forward
+      test.reload();
+      assertFalse(test.reload());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_inBackground() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT 1\n");
+      QueueExecutor executor = new QueueExecutor();
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT.withParseExecutor(executor), 0, file.toURI().toURL());
+      writeFile(file, "@NAME(Test)\n  SELECT 2\n");
+      executor._tasks.clear();
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertEquals(1, executor._tasks.size());
+
+      executor.runAll();
+      assertEquals("SELECT 2 ", test.getSql("Test"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_interval() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT 1\n");
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT, 3600000, file.toURI().toURL());
+      writeFile(file, "@NAME(Test)\n  SELECT 2\n");
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertTrue(test.reload());
+      assertEquals("SELECT 2 ", test.getSql("Test"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_onlyChangedFile() throws Exception {
+    File dir = createTempDir();
+    try {
+      File base = new File(dir, "Test.elsql");
+      File override = new File(dir, "Test-HSQL.elsql");
+      writeFile(base, "@NAME(A)\n  SELECT a\n@NAME(B)\n  SELECT b\n");
+      writeFile(override, "@NAME(B)\n  SELECT c\n");
+      SqlReloader reloader = SqlReloader.load(
+          new URL[] {base.toURI().toURL(), null, override.toURI().toURL()}, ElSqlConfig.HSQL, null, 0);
+      NameSqlFragment a = reloader.current().getFragment("A");
+      assertEquals("SELECT c ", reloader.current().getSql("B", EmptySqlParams.INSTANCE));
+
+      writeFile(override, "@NAME(B)\n  SELECT d\n");
+      assertTrue(reloader.reload());
+      SqlFragments fragments = reloader.current();
+      assertEquals("SELECT d ", fragments.getSql("B", EmptySqlParams.INSTANCE));
+      assertSame(a, fragments.getFragment("A"));
+      assertSame(fragments, reloader.current());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_invalidRetainsPrevious() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT 1\n");
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT, 3600000, file.toURI().toURL());
+      writeFile(file, "@NAME(Test)\n  @WHERE 1\n");
+      try {
+        test.reload();
+        fail();
+      } catch (IllegalArgumentException ex) {
+        // expected
+      }
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertFalse(test.reload());
+
+      writeFile(file, "@NAME(Test)\n  SELECT 3\n");
+      assertTrue(test.reload());
+      assertEquals("SELECT 3 ", test.getSql("Test"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_failureVisible() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT 1\n");
+      QueueExecutor executor = new QueueExecutor();
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT.withParseExecutor(executor), 0, file.toURI().toURL());
+      assertNull(test.getReloadFailure());
+
+      writeFile(file, "@NAME(Test)\n  @WHERE 1\n");
+      test.getSql("Test");
+      executor.runAll();
+      assertEquals("SELECT 1 ", test.getSql("Test"));
+      assertEquals("@WHERE found with invalid format: Line 2", test.getReloadFailure().getMessage());
+      executor.runAll();
+      assertNotNull(test.getReloadFailure());
+
+      writeFile(file, "@NAME(Test)\n  SELECT 3\n");
+      test.getSql("Test");
+      executor.runAll();
+      assertEquals("SELECT 3 ", test.getSql("Test"));
+      assertNull(test.getReloadFailure());
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_variableSlotsRetained() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT * FROM foo\n  @WHERE\n    @AND(:a)\n      a = :a\n");
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT, 0, file.toURI().toURL());
+      IndexedSqlParams params = test.createParams();
+      int slot = test.getVariableSlot("a");
+      params.set(slot, 1);
+      writeFile(file, "@NAME(Test)\n  SELECT * FROM bar\n  @WHERE\n    @AND(:b)\n      b = :b\n    @AND(:a)\n      a = :a\n");
+      assertTrue(test.reload());
+      assertEquals("SELECT * FROM bar WHERE a = :a ", test.getSql("Test", params));
+      assertEquals(slot, test.getVariableSlot("a"));
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_withConfig() throws Exception {
+    File dir = createTempDir();
+    try {
+      File file = new File(dir, "Test.elsql");
+      writeFile(file, "@NAME(Test)\n  SELECT 1\n");
+      ElSql test = ElSql.parseReloading(ElSqlConfig.DEFAULT, 0, file.toURI().toURL()).withConfig(ElSqlConfig.HSQL);
+      assertEquals(ElSqlConfig.HSQL, test.getConfig());
+      writeFile(file, "@NAME(Test)\n  SELECT 2\n");
+      awaitSql(test, "SELECT 2 ");
+    } finally {
+      delete(dir);
+    }
+  }
+
+  public void test_reload_notReloading() {
+    ElSql test = ElSql.of(ElSqlConfig.DEFAULT, ElSql.class);
+    assertFalse(test.reload());
+    assertNull(test.getReloadFailure());
+  }
+
+  public void test_ofReloading() {
+    ElSql test = ElSql.ofReloading(ElSqlConfig.HSQL, ElSql.class, 1000);
+    ElSql expected = ElSql.of(ElSqlConfig.HSQL, ElSql.class);
+    assertEquals(expected.getSql("TestFoo"), test.getSql("TestFoo"));
+    assertNotSame(expected, test);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_parseReloading_noExistingResource() {
+    ElSql.parseReloading(ElSqlConfig.DEFAULT, 0, (URL) null);
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void test_parseReloading_negativeInterval() throws Exception {
+    ElSql.parseReloading(ElSqlConfig.DEFAULT, -1, ElSql.class.getResource("ElSql.elsql"));
+  }
+
+  //-------------------------------------------------------------------------
+  // executor that queues the tasks until run
+  private static final class QueueExecutor implements Executor {
+    private final List<Runnable> _tasks = new ArrayList<Runnable>();
+
+    @Override
+    public synchronized void execute(Runnable task) {
+      _tasks.add(task);
+    }
+
+    synchronized void runAll() {
+      while (_tasks.isEmpty() == false) {
+        _tasks.remove(0).run();
+      }
+    }
+  }
+
+  // waits for the background check to publish the expected SQL
+  private static void awaitSql(ElSql test, String expected) throws InterruptedException {
+    long end = System.currentTimeMillis() + 10000;
+    while (expected.equals(test.getSql("Test")) == false && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, test.getSql("Test"));
+  }
+
+  // creates an empty directory
+  private static File createTempDir() throws IOException {
+    File dir = File.createTempFile("elsql", "");
+    dir.delete();
+    dir.mkdir();
+    return dir;
+  }
+
+  // writes the content as UTF-8, moving the modification time forward to ensure it changes
+  private static void writeFile(File file, String content) throws IOException {
+    long previous = file.lastModified();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    if (previous != 0) {
+      file.setLastModified(previous + 2000);
+    }
+  }
+
+  // deletes the directory and its files
+  private static void delete(File dir) {
+    for (File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+}